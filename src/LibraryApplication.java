@@ -1,16 +1,39 @@
 import application.service.ILibraryService;
 import application.service.impl.LibraryService;
-import domain.book.BookFormat;
-import domain.inventory.BookInventory;
+import application.service.impl.OverdueMonitor;
+import application.service.impl.PartitionedLibraryService;
+import application.service.impl.ReplicatedLibraryService;
+import application.service.impl.ShardedLibraryService;
 import common.LibraryException;
-import java.util.Scanner;
+import infrastructure.repository.impl.LogStructuredLibraryRepository;
+import presentation.CommandInterpreter;
+import presentation.LibraryHttpServer;
+import presentation.LibraryNodeServer;
+import presentation.LibraryServer;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
 
 /**
  * Main console application for interacting with the library system.
  * <p>
  * Supports commands for managing users, books, loans, reservations, and
  * viewing the activity log. Accepts input via the console and delegates
- * operations to an {@link ILibraryService} implementation.
+ * operations to an {@link ILibraryService} implementation. In server mode,
+ * the same commands are also accepted from local socket connections, see
+ * {@link LibraryServer}, and the operations are also offered as an HTTP/JSON
+ * API, see {@link LibraryHttpServer}. The titles may be split across worker
+ * threads each owning a share of them, see {@link ShardedLibraryService}.
+ * A library may also be one node of a
+ * catalog partitioned across local processes, see {@link LibraryNodeServer},
+ * or the router of such a catalog, see {@link PartitionedLibraryService}.
+ * Reads may be served by replicas of the library, see
+ * {@link ReplicatedLibraryService}. The due dates of the loans are checked
+ * in the background, see {@link OverdueMonitor}.
  */
 public class LibraryApplication {
 
@@ -19,152 +42,194 @@ public class LibraryApplication {
      * <p>
      * Displays the library art, prompts the user for commands, and executes
      * them in a loop until the user exits.
+     * <p>
+     * If a data directory is given, the library state is recovered from it
+     * and every change is made durable there. With {@code --disk}, the book
+     * catalog is kept in a file on disk instead of in memory, in the data
+     * directory or else in the temporary directory. With {@code --port},
+     * the library is also served to local connections on the given port, and
+     * with {@code --http} to HTTP clients; it keeps serving them once the
+     * console input ends, until the console exits or the process is stopped.
+     * With {@code --shards}, the titles are owned by the given number of shard
+     * workers, by default one per core, each keeping its share of the state
+     * in a subdirectory of the data directory. With {@code --replicas},
+     * read-only operations are served by the given number of read replicas.
+     * <p>
+     * With {@code --node}, the library is also served on the given port as a
+     * node of a partitioned catalog. With {@code --nodes}, the application
+     * holds no library of its own but routes every operation to the nodes
+     * listening on the given comma-separated ports.
      *
-     * @param args command-line arguments (not used)
+     * @param args command-line arguments: an optional data directory, an optional {@code --disk} flag,
+     *             optional {@code --port}, {@code --http} and {@code --node} flags, each followed by a
+     *             port number, optional {@code --shards} and {@code --replicas} flags, each followed by a
+     *             number of shards or replicas, and an
+     *             optional {@code --nodes} flag followed by the ports of the nodes to route to
      */
     public static void main(String[] args) {
-        ILibraryService library = new LibraryService();
-        Scanner sc = new Scanner(System.in);
+        String dataDir = null;
+        boolean disk = false;
+        Integer port = null, httpPort = null, shards = null, nodePort = null, replicas = null;
+        String nodes = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--disk")) disk = true;
+            else if (args[i].equals("--port")) port = isNumber(args, i + 1) ? Integer.parseInt(args[++i]) : LibraryServer.DEFAULT_PORT;
+            else if (args[i].equals("--http")) httpPort = isNumber(args, i + 1) ? Integer.parseInt(args[++i]) : LibraryHttpServer.DEFAULT_PORT;
+            else if (args[i].equals("--shards")) shards = isNumber(args, i + 1) ? Integer.parseInt(args[++i]) : ShardedLibraryService.DEFAULT_SHARDS;
+            else if (args[i].equals("--replicas")) replicas = isNumber(args, i + 1) ? Integer.parseInt(args[++i]) : ReplicatedLibraryService.DEFAULT_REPLICAS;
+            else if (args[i].equals("--node")) nodePort = isNumber(args, i + 1) ? Integer.parseInt(args[++i]) : LibraryNodeServer.DEFAULT_PORT;
+            else if (args[i].equals("--nodes") && i + 1 < args.length) nodes = args[++i];
+            else dataDir = args[i];
+        }
+
+        ILibraryService library;
+        LibraryService service = null;
+        ShardedLibraryService sharded = null;
+        try {
+            if (nodes != null) {
+                if (dataDir != null || disk || shards != null || nodePort != null || replicas != null)
+                    throw new LibraryException("A router of nodes holds no library: it takes no data directory, --disk, --shards, --replicas nor --node.");
+                library = new PartitionedLibraryService(parsePorts(nodes));
+            } else if (shards != null) {
+                if (nodePort != null || replicas != null)
+                    throw new LibraryException("A sharded library is served by its shards: it takes no --replicas nor --node.");
+                String shardsDir = dataDir;
+                boolean shardsOnDisk = disk;
+                library = sharded = new ShardedLibraryService(shards, shard -> openLibrary(
+                        shardsDir != null ? Path.of(shardsDir).resolve("shard-" + shard).toString() : null, shardsOnDisk));
+            } else {
+                library = service = openLibrary(dataDir, disk);
+            }
+            if (replicas != null) library = replicatedOrClose(service, replicas);
+        } catch (LibraryException e) {
+            System.out.println("Error: " + e.getMessage());
+            return;
+        }
+
+        LibraryServer server = null;
+        LibraryHttpServer httpServer = null;
+        LibraryNodeServer nodeServer = null;
+        try {
+            if (port != null) server = new LibraryServer(library, port);
+            if (httpPort != null) httpServer = new LibraryHttpServer(library, httpPort);
+            if (nodePort != null) nodeServer = new LibraryNodeServer(service, nodePort);
+        } catch (LibraryException e) {
+            System.out.println("Error: " + e.getMessage());
+            if (server != null) server.close();
+            if (httpServer != null) httpServer.close();
+            library.close();
+            return;
+        }
+        OverdueMonitor overdueMonitor = (service != null) ? new OverdueMonitor(service)
+                : (sharded != null) ? new OverdueMonitor(sharded) : null;
+        if (server != null) server.start();
+        if (httpServer != null) httpServer.start();
+        if (nodeServer != null) nodeServer.start();
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+        CommandInterpreter interpreter = new CommandInterpreter(library, in);
 
         printLibraryArt();
         System.out.println("Welcome to the Library. Type 'help' to see the available commands.");
+        if (server != null) System.out.println("Serving connections on localhost:" + server.getPort() + ".");
+        if (httpServer != null) System.out.println("Serving HTTP on http://localhost:" + httpServer.getPort() + "/.");
+        if (nodeServer != null) System.out.println("Serving as a node on localhost:" + nodeServer.getPort() + ".");
 
         while (true) {
             System.out.print("\n> ");
-            String input = sc.nextLine().trim();
-            if (input.isEmpty()) continue;
-
-            String[] commands = input.split(";");
-            for (String rawCmd : commands) {
-                String cmdLine = rawCmd.trim();
-                if (cmdLine.isEmpty()) continue;
-
-                String[] parts = cmdLine.split("\\s+");
-                String command = parts[0].toLowerCase();
-
+            String input;
+            try {
+                input = in.readLine();
+            } catch (IOException e) {
+                input = null;
+            }
+            if (input == null) {
+                if (server == null && httpServer == null && nodeServer == null) break;
+                // Without a console, keep serving the clients until the process is stopped
                 try {
-                    switch (command) {
-                        case "h", "help" -> showHelp();
-                        case "u", "users" -> library.listUsers();
-                        case "b", "books" -> library.listBooks();
-                        case "+u", "+user" -> {
-                            String name = (parts.length >= 2) ? parts[1] : ask("Name: ", sc);
-                            library.addUser(name);
-                        }
-                        case "-u", "-user" -> {
-                            String name = (parts.length >= 2) ? parts[1] : ask("Name: ", sc);
-                            library.removeUser(name);
-                        }
-                        case "+b", "+book" -> {
-                            String title = (parts.length >= 2) ? parts[1] : ask("Title: ", sc);
-                            String format = (parts.length >= 3) ? parts[2] : ask("Format (physical/p or digital/d): ", sc);
-                            library.addBook(title, format);
-                        }
-                        case "-b", "-book" -> {
-                            String title = (parts.length >= 2) ? parts[1] : ask("Title: ", sc);
-                            String format = (parts.length >= 3) ? parts[2] : getFormat(title, sc, library);
-                            library.removeBook(title, format);
-                        }
-                        case "+l", "+loan" -> {
-                            String user = (parts.length >= 2) ? parts[1] : ask("User: ", sc);
-                            String title = (parts.length >= 3) ? parts[2] : ask("Title: ", sc);
-                            String format = (parts.length >= 4) ? parts[3].toLowerCase() : getFormat(title, sc, library);
-                            library.lendBook(user, title, format);
-                        }
-                        case "-l", "-loan" -> {
-                            String user = (parts.length >= 2) ? parts[1] : ask("User: ", sc);
-                            String title = (parts.length >= 3) ? parts[2] : ask("Title: ", sc);
-                            String format = (parts.length >= 4) ? parts[3].toLowerCase() : getFormat(title, sc, library);
-                            library.returnBook(user, title, format);
-                        }
-                        case "l", "loans" -> library.listLoans();
-                        case "+r", "+reserve" -> {
-                            String title = (parts.length >= 2) ? parts[1] : ask("Title: ", sc);
-                            library.reserve(title);
-                        }
-                        case "-r", "-reserve" -> {
-                            String title = (parts.length >= 2) ? parts[1] : ask("Title: ", sc);
-                            library.vacate(title);
-                        }
-                        case "q", "queue" -> {
-                            String title = (parts.length >= 2) ? parts[1] : ask("Title: ", sc);
-                            library.showWaitingList(title);
-                        }
-                        case "s", "sort" -> library.sortInverse();
-                        case "a", "activity" -> library.showEventHistory();
-                        case "e", "exit" -> {
-                            System.out.println("Exiting...");
-                            return;
-                        }
-                        default -> System.out.println("Unknown command. Type 'help' to see available commands.");
-                    }
-                } catch (LibraryException e) {
-                    System.out.println("Error: " + e.getMessage());
+                    new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
+                break;
             }
+            input = input.trim();
+            if (input.isEmpty()) continue;
+            if (!interpreter.execute(input)) break;
         }
+        if (server != null) server.close();
+        if (httpServer != null) httpServer.close();
+        if (nodeServer != null) nodeServer.close();
+        if (overdueMonitor != null) overdueMonitor.close();
+        library.close();
     }
 
     /**
-     * Prompts the user with a question and reads a line of input.
+     * Opens a library, durable if a data directory is given. With
+     * {@code disk}, its book catalog is kept in a file in the data directory,
+     * or else in the temporary directory.
      *
-     * @param question the prompt to display to the user
-     * @param sc       the Scanner used to read input
-     * @return the trimmed user input
+     * @param dataDir the data directory, or null
+     * @param disk    whether the book catalog is kept on disk
+     * @return the library
+     * @throws LibraryException if the library cannot be recovered or its catalog storage created
      */
-    public static String ask(String question, Scanner sc) {
-        System.out.print(question);
-        return sc.nextLine().trim();
+    private static LibraryService openLibrary(String dataDir, boolean disk) throws LibraryException {
+        if (!disk) return (dataDir != null) ? new LibraryService(dataDir) : new LibraryService();
+        try {
+            Path spillDir = Path.of(dataDir != null ? dataDir : System.getProperty("java.io.tmpdir"));
+            Files.createDirectories(spillDir);
+            return new LibraryService(dataDir, () -> new LogStructuredLibraryRepository(spillDir));
+        } catch (IOException | UncheckedIOException e) {
+            throw new LibraryException("could not create catalog storage: " + e.getMessage());
+        }
     }
 
     /**
-     * Determines the format of a book for lending or removal, asking the
-     * user if both formats are available.
+     * Wraps a library into a replicated one, closing the library if the
+     * number of replicas is invalid.
      *
-     * @param title   the book title
-     * @param sc      the Scanner for user input
-     * @param library the library service used to access book inventory
-     * @return the selected or determined book format as a string
-     * @throws LibraryException if the book title is not found
+     * @param library  the primary library
+     * @param replicas the number of replicas
+     * @return the replicated library
+     * @throws LibraryException if the number of replicas is invalid
      */
-    public static String getFormat(String title, Scanner sc, ILibraryService library) throws LibraryException {
-        String format;
-        BookInventory bookInventory = library.accessRepository().getInventory().get(title);
-        if(bookInventory.hasPBook() && bookInventory.hasDBook()) {
-            format = ask("Format (physical/p or digital/d): ", sc).toLowerCase().trim();
-        } else if(bookInventory.hasPBook()) {
-            format = BookFormat.DIGITAL.toString();
-        } else {
-            format = BookFormat.PHYSICAL.toString();
+    private static ILibraryService replicatedOrClose(LibraryService library, int replicas) throws LibraryException {
+        try {
+            return new ReplicatedLibraryService(library, replicas, ReplicatedLibraryService.DEFAULT_MAX_LAG);
+        } catch (LibraryException e) {
+            library.close();
+            throw e;
         }
-        return format;
     }
 
     /**
-     * Prints a help menu showing all available commands and their usage.
+     * Parses a comma-separated list of ports.
+     *
+     * @param list the list of ports
+     * @return the ports
+     * @throws LibraryException if an element is not a port number
      */
-    private static void showHelp() {
-        System.out.println("""
-        Available commands:
-         h,  help                         - Show this help menu
-         u,  users                        - List all users
-        +u, +user name                    - Add a user
-        -u, -user name                    - Remove a user
-         b,  books                        - List all books
-        +b, +book title format            - Add a book (physical/p or digital/d)
-        -b, -book title (format)          - Remove a book (physical/p or digital/d)
-        +l, +loan user title (format)     - Lend a book to a user
-        -l, -loan user title (format)     - Return a book from a user
-         l,  loans                        - List current loans
-        +r, +reserve title                - Add a reserve to a book
-        -r, -reserve title                - Remove a reserve to a book
-         q,  queue title                  - Show waiting list for a book
-         s,  sort                         - Sort books by title in descending order
-         a,  activity                     - Show full activity log
-         e,  exit                         - Exit the program
-        """);
+    private static int[] parsePorts(String list) throws LibraryException {
+        String[] parts = list.split(",");
+        int[] ports = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            if (!parts[i].trim().matches("\\d{1,5}")) throw new LibraryException("Invalid port: " + parts[i]);
+            ports[i] = Integer.parseInt(parts[i].trim());
+        }
+        return ports;
     }
 
+    /**
+     * Checks whether a command-line argument is a number following a flag,
+     * such as the port of a server flag; the flag uses its default otherwise.
+     *
+     * @param args the command-line arguments
+     * @param i    the position of the argument
+     * @return true if the argument exists and is a number
+     */
+    private static boolean isNumber(String[] args, int i) {
+        return i < args.length && args[i].matches("\\d{1,5}");
+    }
 
     /**
      * Prints an ASCII art banner for the library at application startup.
@@ -0,0 +1,55 @@
+package application.service;
+
+import common.LibraryException;
+import infrastructure.persistence.LogOperation;
+
+/**
+ * One mutation of a batch executed by {@link ILibraryService#executeBatch},
+ * named by the operation it performs and holding its arguments in the order
+ * of the matching service method.
+ */
+public class BatchOperation {
+
+    /** Operation performed. */
+    private final LogOperation operation;
+
+    /** Arguments of the operation. */
+    private final String[] args;
+
+    /**
+     * Constructs a BatchOperation.
+     *
+     * @param operation the operation to perform
+     * @param args      the arguments of the operation, as for the matching service method
+     * @throws LibraryException if the operation cannot be batched or the number of arguments is wrong
+     */
+    public BatchOperation(LogOperation operation, String... args) throws LibraryException {
+        if (operation.hasVariableArity()) throw new LibraryException("A batch cannot contain a batch.");
+        if (args.length != operation.getBatchArity())
+            throw new LibraryException(operation + " takes " + operation.getBatchArity() + " arguments, not " + args.length + ".");
+        for (String arg : args)
+            if (arg == null || arg.isEmpty()) throw new LibraryException(operation + " has an empty argument.");
+        this.operation = operation;
+        this.args = args.clone();
+    }
+
+    /** @return the operation performed */
+    public LogOperation getOperation() { return operation; }
+
+    /**
+     * Returns an argument of the operation.
+     *
+     * @param i the position of the argument
+     * @return the argument
+     */
+    public String getArg(int i) { return args[i]; }
+
+    /** @return the number of arguments */
+    public int getArgCount() { return args.length; }
+
+    /** @return the operation followed by its arguments, separated by spaces */
+    @Override
+    public String toString() {
+        return operation + " " + String.join(" ", args);
+    }
+}
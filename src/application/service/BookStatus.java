@@ -0,0 +1,58 @@
+package application.service;
+
+import domain.book.BookFormat;
+
+/**
+ * Copy counters of one format of a book at the time it was listed. Digital
+ * books are never exhausted and have no counters: they are reported as one
+ * copy, always available.
+ */
+public class BookStatus {
+
+    /** Title of the book. */
+    private final String title;
+
+    /** Format of the book. */
+    private final BookFormat format;
+
+    /** Total number of copies. */
+    private final int totalCopies;
+
+    /** Number of copies that can be lent, excluding reserved ones. */
+    private final int availableCopies;
+
+    /** Number of copies reserved. */
+    private final int reservedCopies;
+
+    /**
+     * Constructs a BookStatus.
+     *
+     * @param title           the title of the book
+     * @param format          the format of the book
+     * @param totalCopies     the total number of copies
+     * @param availableCopies the number of copies that can be lent, excluding reserved ones
+     * @param reservedCopies  the number of copies reserved
+     */
+    public BookStatus(String title, BookFormat format, int totalCopies, int availableCopies, int reservedCopies) {
+        this.title = title;
+        this.format = format;
+        this.totalCopies = totalCopies;
+        this.availableCopies = availableCopies;
+        this.reservedCopies = reservedCopies;
+    }
+
+    /** @return the title of the book */
+    public String getTitle() { return title; }
+
+    /** @return the format of the book */
+    public BookFormat getFormat() { return format; }
+
+    /** @return the total number of copies */
+    public int getTotalCopies() { return totalCopies; }
+
+    /** @return the number of copies that can be lent, excluding reserved ones */
+    public int getAvailableCopies() { return availableCopies; }
+
+    /** @return the number of copies reserved */
+    public int getReservedCopies() { return reservedCopies; }
+}
@@ -0,0 +1,32 @@
+package application.service;
+
+import infrastructure.persistence.LogOperation;
+
+/**
+ * Receiver of the change stream of a library: every mutation applied to the
+ * library, in the form it takes in the write-ahead log, in an order that
+ * reproduces the state of the library when applied one after the other.
+ * <p>
+ * Changes are delivered on the thread of the mutation, while the library
+ * holds the records it changed, so a listener must not block nor call back
+ * into the library: it should queue the change and return.
+ */
+public interface ChangeListener {
+
+    /**
+     * Receives one change.
+     *
+     * @param sequence  the position of the change in the stream, one more than the previous one
+     * @param operation the applied operation
+     * @param args      the arguments of the operation
+     */
+    void onChange(long sequence, LogOperation operation, String[] args);
+
+    /**
+     * Tells that the library was changed as a whole, by an operation that
+     * is not part of the stream, such as an import or a snapshot load. The
+     * listener is unsubscribed: it must subscribe again to receive a copy of
+     * the new state and the changes that follow it.
+     */
+    void onReset();
+}
@@ -0,0 +1,149 @@
+package application.service;
+
+import common.dataStructures.list.LibraryListWithPI;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous variant of {@link ILibraryService}: each operation is
+ * submitted to an executor and returns at once with a future of its typed
+ * result, so a caller can keep many operations outstanding without a thread
+ * of its own waiting on each.
+ * <p>
+ * Operations print nothing: their outcome is the value of the future. A
+ * failed operation completes its future exceptionally with the
+ * {@link common.LibraryException} describing the failure.
+ */
+public interface IAsyncLibraryService {
+
+    // ----------------------
+    // User methods
+    // ----------------------
+
+    /**
+     * Adds a new user to the library.
+     *
+     * @param name Name of the user.
+     * @return A future completed once the user is added.
+     */
+    CompletableFuture<Void> addUser(String name);
+
+    /**
+     * Removes a user from the library.
+     *
+     * @param name Name of the user.
+     * @return A future completed once the user is removed.
+     */
+    CompletableFuture<Void> removeUser(String name);
+
+    /**
+     * Lists one page of the users registered in the library.
+     *
+     * @param from  Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit Maximum number of users to list.
+     * @return A future of the page of users.
+     */
+    CompletableFuture<Page<UserStatus>> listUsers(long from, int limit);
+
+    // ----------------------
+    // Book methods
+    // ----------------------
+
+    /**
+     * Adds a book copy to the library inventory, lending it to the first
+     * user waiting for the title, if any.
+     *
+     * @param title  Title of the book.
+     * @param format Format of the book (DIGITAL or PHYSICAL).
+     * @return A future completed once the copy is added.
+     */
+    CompletableFuture<Void> addBook(String title, String format);
+
+    /**
+     * Removes a book copy from the library inventory.
+     *
+     * @param title  Title of the book.
+     * @param format Format of the book (DIGITAL or PHYSICAL).
+     * @return A future completed once the copy is removed.
+     */
+    CompletableFuture<Void> removeBook(String title, String format);
+
+    /**
+     * Lists one page of the books of the library with their copy counters.
+     *
+     * @param from  Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit Maximum number of books to list.
+     * @return A future of the page of books.
+     */
+    CompletableFuture<Page<BookStatus>> listBooks(long from, int limit);
+
+    /**
+     * Lists the users waiting for a book, first in line first.
+     *
+     * @param title Title of the book.
+     * @return A future of the names of the waiting users.
+     */
+    CompletableFuture<LibraryListWithPI<String>> waitingList(String title);
+
+    /**
+     * Reserves a physical copy of a book.
+     *
+     * @param title Title of the book.
+     * @return A future completed once the copy is reserved.
+     */
+    CompletableFuture<Void> reserve(String title);
+
+    /**
+     * Releases a reserved copy of a book.
+     *
+     * @param title Title of the book.
+     * @return A future completed once the copy is released.
+     */
+    CompletableFuture<Void> vacate(String title);
+
+    // ----------------------
+    // Loan methods
+    // ----------------------
+
+    /**
+     * Lends a book to a user, or queues the user if no copy is available.
+     *
+     * @param name   Name of the user.
+     * @param title  Title of the book.
+     * @param format Format of the book (DIGITAL or PHYSICAL).
+     * @return A future of whether the book was lent, or the position of the user in its waiting list.
+     */
+    CompletableFuture<LoanOutcome> lendBook(String name, String title, String format);
+
+    /**
+     * Returns a book from a user.
+     *
+     * @param name   Name of the user.
+     * @param title  Title of the book.
+     * @param format Format of the book (DIGITAL or PHYSICAL).
+     * @return A future of the loan of the returned copy to the next user waiting, or of null if nobody was waiting.
+     */
+    CompletableFuture<LoanOutcome> returnBook(String name, String title, String format);
+
+    /**
+     * Lists one page of the active loans of the library.
+     *
+     * @param from  Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit Maximum number of loans to list.
+     * @return A future of the page of loans.
+     */
+    CompletableFuture<Page<Loan>> listLoans(long from, int limit);
+
+    // ----------------------
+    // Batch methods
+    // ----------------------
+
+    /**
+     * Executes a batch of operations all or nothing.
+     *
+     * @param operations The operations to execute, in order.
+     * @return A future completed once every operation is applied.
+     * @see ILibraryService#executeBatch
+     */
+    CompletableFuture<Void> executeBatch(LibraryListWithPI<BatchOperation> operations);
+}
@@ -1,6 +1,11 @@
 package application.service;
 
 import common.LibraryException;
+import domain.book.Book;
+import domain.user.User;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
 
 /**
  * Interface defining operations for managing books in the library system.
@@ -16,33 +21,81 @@ public interface IBookService {
      */
     void addBook(String title, String format) throws LibraryException;
 
+    /**
+     * Adds several physical copies of a book to the library inventory at once.
+     *
+     * @param title  the title of the book
+     * @param copies the number of copies, at least 1
+     * @throws LibraryException if the copies cannot be added
+     */
+    void addCopies(String title, int copies) throws LibraryException;
+
     /**
      * Removes a book from the library inventory in the specified format.
-     * Also updates loans and waiting lists accordingly.
+     * Also updates loans and waiting lists accordingly: removing the digital
+     * book ends all its loans at once.
      *
      * @param title  the title of the book
      * @param format the format of the book ("PHYSICAL" or "DIGITAL")
+     * @return the number of loans ended by the removal
      * @throws LibraryException if the book does not exist or cannot be removed
      */
-    void removeBook(String title, String format) throws LibraryException;
+    int removeBook(String title, String format) throws LibraryException;
 
     /**
-     * Removes all book copies loaned to a user as part of the user removal process.
-     * This operation is triggered indirectly when a user is deleted, not by an explicit
-     * book removal request. Ensures that the library state remains consistent by
-     * cleaning up any loans tied to the removed user.
+     * Ends all the loans of a user at once, as part of the user removal
+     * process, and withdraws the physical copies the user borrowed from the
+     * inventory. The copies held for the user are released back to the
+     * shelf. This operation is triggered indirectly when a user is deleted,
+     * not by an explicit book removal request.
      *
-     * @param title the title of the book currently loaned to the removed user
+     * @param user the removed user
+     * @return the number of loans ended
      * @throws LibraryException if an error occurs during the cleanup
      */
-    void removeBookByUserDeletion(String title) throws LibraryException;
+    int removeBooksByUserDeletion(User user) throws LibraryException;
+
+    /**
+     * Lists one page of the available books in the library inventory.
+     * Each format of a title counts as one entry of the page.
+     *
+     * @param from  cursor of the page: 0 for the first page, then the cursor returned by the previous one
+     * @param limit maximum number of entries to list
+     * @return the continuation cursor of the next page, or -1 if there is none
+     * @throws LibraryException if there are no available books or the page is invalid
+     */
+    long listAvailableBooks(long from, int limit) throws LibraryException;
+
+    /**
+     * Visits one page of the books of the inventory, in listing order: the
+     * physical book of a title, then its digital book.
+     *
+     * @param from    cursor of the page: 0 for the first page, then the cursor returned by the previous one
+     * @param limit   maximum number of books to visit
+     * @param visitor receives each book of the page
+     * @return the continuation cursor of the next page, or -1 if there is none
+     * @throws LibraryException if the page is invalid
+     */
+    long visitBooks(long from, int limit, Consumer<? super Book> visitor) throws LibraryException;
+
+    /**
+     * Visits the users waiting for a book, first in line first.
+     *
+     * @param title   the book title
+     * @param visitor receives each waiting user
+     */
+    void visitWaitingList(String title, Consumer<? super User> visitor);
 
     /**
-     * Lists all available books in the library inventory.
+     * Adds every book listed in a CSV file, one {@code title,format[,copies]}
+     * record per line, without per-book output. Records with an invalid
+     * format or copy count, and digital copies already registered, are skipped.
      *
-     * @throws LibraryException if there are no available books
+     * @param path the file listing the books
+     * @return the number of records imported and skipped
+     * @throws LibraryException if the file cannot be read
      */
-    void listAvailableBooks() throws LibraryException;
+    ImportResult importBooks(Path path) throws LibraryException;
 
     /**
      * Displays the waiting list of users for a given book title.
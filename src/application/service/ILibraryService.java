@@ -1,8 +1,17 @@
 package application.service;
 
 import common.LibraryException;
+import common.dataStructures.list.LibraryListWithPI;
+import domain.book.Book;
+import domain.book.BookFormat;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
+import domain.user.User;
 import infrastructure.repository.LibraryRepository;
 
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
 /**
  * Interface defining all operations of a Library system,
  * including management of users, books, loans, and events.
@@ -30,11 +39,37 @@ public interface ILibraryService {
     void removeUser(String name) throws LibraryException;
 
     /**
-     * Lists all users currently registered in the library.
+     * Sets the role of a user, which sets their priority in the waiting
+     * lists: accessibility holds first, then faculty, then regular users.
      *
-     * @throws LibraryException if no users exist.
+     * @param name Name of the user.
+     * @param role Role of the user (accessibility/a, faculty/f or user/u).
+     * @throws LibraryException if the user does not exist or the role is invalid.
      */
-    void listUsers() throws LibraryException;
+    void setRole(String name, String role) throws LibraryException;
+
+    /**
+     * Lists one page of the users currently registered in the library.
+     *
+     * @param from  Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit Maximum number of users to list.
+     * @return The continuation cursor of the next page, or -1 if there is none.
+     * @throws LibraryException if no users exist or the page is invalid.
+     */
+    long listUsers(long from, int limit) throws LibraryException;
+
+    /**
+     * Visits one page of the users currently registered in the library.
+     * The visitor runs while the records are locked: it must be quick, must
+     * not call back into the library, and must not keep the records it receives.
+     *
+     * @param from    Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit   Maximum number of users to visit.
+     * @param visitor Receives each user of the page.
+     * @return The continuation cursor of the next page, or -1 if there is none.
+     * @throws LibraryException if the page is invalid.
+     */
+    long visitUsers(long from, int limit, Consumer<? super User> visitor) throws LibraryException;
 
     // ----------------------
     // Book methods
@@ -49,6 +84,17 @@ public interface ILibraryService {
      */
     void addBook(String title, String format) throws LibraryException;
 
+    /**
+     * Adds several physical copies of a book at once, and lends them to the
+     * users waiting for it in a single pass, up to one user per copy.
+     *
+     * @param title  Title of the book.
+     * @param copies Number of copies, at least 1.
+     * @return the number of waiting users lent a copy.
+     * @throws LibraryException if the copies cannot be added.
+     */
+    int addCopies(String title, int copies) throws LibraryException;
+
     /**
      * Removes a book from the library inventory.
      *
@@ -59,11 +105,36 @@ public interface ILibraryService {
     void removeBook(String title, String format) throws LibraryException;
 
     /**
-     * Lists all available books in the library.
+     * Lists one page of the available books in the library.
      *
-     * @throws LibraryException if no books are available.
+     * @param from  Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit Maximum number of books to list.
+     * @return The continuation cursor of the next page, or -1 if there is none.
+     * @throws LibraryException if no books are available or the page is invalid.
      */
-    void listBooks() throws LibraryException;
+    long listBooks(long from, int limit) throws LibraryException;
+
+    /**
+     * Visits one page of the books in the library, physical and digital.
+     * The visitor runs while the records are locked: it must be quick, must
+     * not call back into the library, and must not keep the records it receives.
+     *
+     * @param from    Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit   Maximum number of books to visit.
+     * @param visitor Receives each book of the page.
+     * @return The continuation cursor of the next page, or -1 if there is none.
+     * @throws LibraryException if the page is invalid.
+     */
+    long visitBooks(long from, int limit, Consumer<? super Book> visitor) throws LibraryException;
+
+    /**
+     * Returns the formats in which a book is held, physical first.
+     *
+     * @param title Title of the book.
+     * @return The formats of the book, empty if all its copies were removed.
+     * @throws LibraryException if the book does not exist.
+     */
+    BookFormat[] formatsOf(String title) throws LibraryException;
 
     /**
      * Displays the waiting list for a specific book.
@@ -73,6 +144,17 @@ public interface ILibraryService {
      */
     void showWaitingList(String title) throws LibraryException;
 
+    /**
+     * Visits the users waiting for a specific book, first in line first.
+     * The visitor runs while the records are locked: it must be quick, must
+     * not call back into the library, and must not keep the records it receives.
+     *
+     * @param title   Title of the book.
+     * @param visitor Receives each waiting user.
+     * @throws LibraryException if the book does not exist.
+     */
+    void visitWaitingList(String title, Consumer<? super User> visitor) throws LibraryException;
+
     /**
      * Sorts all books in inverse alphabetical order by title.
      *
@@ -81,7 +163,9 @@ public interface ILibraryService {
     void sortInverse() throws LibraryException;
 
     /**
-     * Reserves a book for the next user in the waiting list.
+     * Reserves a physical copy of a book for nobody in particular. The
+     * reservation expires like a hold, after {@link HoldRecord#DEFAULT_PERIOD_SECONDS},
+     * and the copy is then lent to the next users waiting for the book.
      *
      * @param title Title of the book.
      * @throws LibraryException if the book does not exist or cannot be reserved.
@@ -89,13 +173,35 @@ public interface ILibraryService {
     void reserve(String title) throws LibraryException;
 
     /**
-     * Vacates a book, making it available for other users.
+     * Vacates a book, releasing the reservation expiring first and making
+     * the copy available for other users.
      *
      * @param title Title of the book.
      * @throws LibraryException if the book does not exist or cannot be vacated.
      */
     void vacate(String title) throws LibraryException;
 
+    /**
+     * Holds an available physical copy of a book for a user for a while. The
+     * hold ends when the user borrows the book, and expires otherwise: the
+     * copy is then lent to the next users waiting for the book.
+     *
+     * @param name    Name of the user.
+     * @param title   Title of the book.
+     * @param seconds Duration of the hold, in seconds.
+     * @throws LibraryException if the user or book does not exist, or no copy can be held.
+     */
+    void placeHold(String name, String title, long seconds) throws LibraryException;
+
+    /**
+     * Cancels the hold of a user on a book, lending the copy to the next user waiting.
+     *
+     * @param name  Name of the user.
+     * @param title Title of the book.
+     * @throws LibraryException if the user holds no copy of the book.
+     */
+    void cancelHold(String name, String title) throws LibraryException;
+
     // ----------------------
     // Loan methods
     // ----------------------
@@ -106,9 +212,23 @@ public interface ILibraryService {
      * @param name   Name of the user.
      * @param title  Title of the book.
      * @param format Format of the book (DIGITAL or PHYSICAL).
+     * @return Whether the book was lent, or the position of the user in its waiting list.
      * @throws LibraryException if the user or book does not exist or cannot be lent.
      */
-    void lendBook(String name, String title, String format) throws LibraryException;
+    LoanOutcome lendBook(String name, String title, String format) throws LibraryException;
+
+    /**
+     * Lends a book to a whole cohort of users at once, such as a class at
+     * the start of a semester. The cohort is lent the book all or nothing:
+     * if any user cannot borrow it, nobody does.
+     *
+     * @param title  Title of the book.
+     * @param format Format of the copies.
+     * @param names  Names of the users, each once.
+     * @return The number of users lent the book.
+     * @throws LibraryException if the book does not exist, a user cannot borrow it, or there are not enough copies.
+     */
+    int lendToUsers(String title, String format, LibraryListWithPI<String> names) throws LibraryException;
 
     /**
      * Returns a book from a user.
@@ -116,23 +236,166 @@ public interface ILibraryService {
      * @param name   Name of the user.
      * @param title  Title of the book.
      * @param format Format of the book (DIGITAL or PHYSICAL).
+     * @return The loan of the returned copy to the next user waiting for it, or null if nobody was waiting.
      * @throws LibraryException if the user or book does not exist or cannot be returned.
      */
-    void returnBook(String name, String title, String format) throws LibraryException;
+    LoanOutcome returnBook(String name, String title, String format) throws LibraryException;
+
+    /**
+     * Lists one page of the current loans in the library.
+     *
+     * @param from  Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit Maximum number of loans to list.
+     * @return The continuation cursor of the next page, or -1 if there is none.
+     * @throws LibraryException if the page is invalid.
+     */
+    long listLoans(long from, int limit) throws LibraryException;
 
     /**
-     * Lists all current loans in the library.
+     * Visits one page of the active loans in the library.
+     * The visitor runs while the records are locked: it must be quick, must
+     * not call back into the library, and must not keep the records it receives.
+     *
+     * @param from    Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit   Maximum number of loans to visit.
+     * @param visitor Receives the borrower and the book of each loan of the page.
+     * @return The continuation cursor of the next page, or -1 if there is none.
+     * @throws LibraryException if the page is invalid.
      */
-    void listLoans();
+    long visitLoans(long from, int limit, BiConsumer<? super User, ? super Book> visitor) throws LibraryException;
+
+    /**
+     * Lists one page of the overdue loans in the library, in the order
+     * they became overdue.
+     *
+     * @param from  Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit Maximum number of loans to list.
+     * @return The continuation cursor of the next page, or -1 if there is none.
+     * @throws LibraryException if the page is invalid.
+     */
+    long listOverdueLoans(long from, int limit) throws LibraryException;
+
+    /**
+     * Visits one page of the overdue loans in the library.
+     * The visitor runs while the loans are locked: it must be quick, must
+     * not call back into the library, and must not keep the loans it receives.
+     *
+     * @param from    Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit   Maximum number of loans to visit.
+     * @param visitor Receives each overdue loan of the page.
+     * @return The continuation cursor of the next page, or -1 if there is none.
+     * @throws LibraryException if the page is invalid.
+     */
+    long visitOverdueLoans(long from, int limit, Consumer<? super LoanRecord> visitor) throws LibraryException;
+
+    /**
+     * Returns the titles with the largest counts of a popularity metric,
+     * counted as loans are made and waiting lists are joined.
+     *
+     * @param metric The popularity metric.
+     * @param k      Number of titles to return.
+     * @return The titles, by decreasing estimated count.
+     * @throws LibraryException if the number of titles is invalid.
+     */
+    LibraryListWithPI<TitleCount> topTitles(PopularityMetric metric, int k) throws LibraryException;
+
+    /**
+     * Estimates the count of a popularity metric for any title.
+     *
+     * @param metric The popularity metric.
+     * @param title  Title of the book.
+     * @return The estimated count, never below the true count.
+     * @throws LibraryException if the count cannot be read.
+     */
+    long estimatePopularity(PopularityMetric metric, String title) throws LibraryException;
+
+    // ----------------------
+    // Batch methods
+    // ----------------------
+
+    /**
+     * Executes a batch of operations all or nothing: either every operation
+     * succeeds, or the library is left as it was and the failing operation
+     * is reported. The output of the operations is printed at once when the
+     * batch succeeds, and their events are logged together with a summary.
+     *
+     * @param operations The operations to execute, in order.
+     * @throws LibraryException if the batch is empty or too large, or one of its operations fails.
+     */
+    void executeBatch(LibraryListWithPI<BatchOperation> operations) throws LibraryException;
 
     // ----------------------
     // Other methods
     // ----------------------
 
     /**
-     * Displays the history of library events.
+     * Displays one page of the history of library events.
+     *
+     * @param from  Cursor of the page: 0 for the first page, then the cursor returned by the previous one.
+     * @param limit Maximum number of events to display.
+     * @return The continuation cursor of the next page, or -1 if there is none.
+     * @throws LibraryException if the page is invalid.
+     */
+    long showEventHistory(long from, int limit) throws LibraryException;
+
+    /**
+     * Records an event in the history of library events, such as the
+     * failure of a task running in the background.
+     *
+     * @param event Description of the event.
+     */
+    void logEvent(String event);
+
+    /**
+     * Saves the current state of the library to a binary snapshot file.
+     *
+     * @param path Path of the snapshot file.
+     * @throws LibraryException if the snapshot cannot be written.
+     */
+    void saveSnapshot(String path) throws LibraryException;
+
+    /**
+     * Replaces the current state of the library with the one stored in a
+     * binary snapshot file.
+     *
+     * @param path Path of the snapshot file.
+     * @throws LibraryException if the snapshot cannot be read.
+     */
+    void loadSnapshot(String path) throws LibraryException;
+
+    /**
+     * Adds every user listed in a file, one name per line, printing and
+     * logging a single summary instead of one line per user.
+     *
+     * @param path Path of the file listing the users.
+     * @throws LibraryException if the file cannot be read.
+     */
+    void importUsers(String path) throws LibraryException;
+
+    /**
+     * Adds every book listed in a CSV file of {@code title,format[,copies]}
+     * records, printing and logging a single summary instead of one line per
+     * book. Users waiting for an imported physical title are served.
+     *
+     * @param path Path of the file listing the books.
+     * @throws LibraryException if the file cannot be read.
+     */
+    void importBooks(String path) throws LibraryException;
+
+    /**
+     * Writes the records changed since the previous checkpoint to the data
+     * directory and discards the write-ahead log records they reflect.
+     * Checkpoints also run periodically in the background.
+     *
+     * @throws LibraryException if durability is not enabled or the checkpoint fails.
+     */
+    void checkpoint() throws LibraryException;
+
+    /**
+     * Releases the write-ahead log and the storage held by the library.
+     * The library must not be used afterwards.
      */
-    void showEventHistory();
+    void close();
 
     /**
      * Provides access to the underlying repository of the library.
@@ -1,8 +1,14 @@
 package application.service;
 
 import common.LibraryException;
+import common.dataStructures.list.LibraryListWithPI;
+import domain.book.Book;
+import domain.loan.LoanRecord;
 import domain.user.User;
 
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
 /**
  * Interface defining loan-related operations for the library system.
  */
@@ -13,51 +19,158 @@ public interface ILoanService {
      *
      * @param name   the name of the user borrowing the book
      * @param title  the title of the book to lend
-     * @param format the format of the book (PHYSICAL or DIGITAL)
+     * @param format  the format of the book (PHYSICAL or DIGITAL)
+     * @param dueDate the due date of the loan, in seconds since the epoch
      * @return true if the book was successfully lent, false if the user was added to the waiting list
      * @throws LibraryException if the user has already borrowed the book or other errors occur
      */
-    boolean lendBook(String name, String title, String format) throws LibraryException;
+    boolean lendBook(String name, String title, String format, long dueDate) throws LibraryException;
 
     /**
      * Processes the return of a book from a user.
      *
      * @param name   the name of the user returning the book
      * @param title  the title of the book being returned
-     * @param format the format of the book (PHYSICAL or DIGITAL)
+     * @param format  the format of the book (PHYSICAL or DIGITAL)
+     * @param dueDate the due date of the loan of the next user in the waiting list, in seconds since the epoch
      * @return the next user in the waiting list for the book if applicable, otherwise null
      * @throws LibraryException if the user never borrowed the book
      */
-    User returnBook(String name, String title, String format) throws LibraryException;
+    User returnBook(String name, String title, String format, long dueDate) throws LibraryException;
 
     /**
-     * Lists all active loans in the system.
+     * Lists one page of the active loans in the system.
+     *
+     * @param from  cursor of the page: 0 for the first page, then the cursor returned by the previous one
+     * @param limit maximum number of loans to list
+     * @return the continuation cursor of the next page, or -1 if there is none
+     * @throws LibraryException if the page is invalid
      */
-    void listLoans();
+    long listLoans(long from, int limit) throws LibraryException;
 
     /**
-     * Updates the waiting list for a book and lends it to the next user in the queue.
+     * Visits one page of the active loans, in listing order.
      *
-     * @param title the title of the book
-     * @return the user who received the book from the waiting list, or null if no one was waiting
+     * @param from    cursor of the page: 0 for the first page, then the cursor returned by the previous one
+     * @param limit   maximum number of loans to visit
+     * @param visitor receives the borrower and the book of each loan of the page
+     * @return the continuation cursor of the next page, or -1 if there is none
+     * @throws LibraryException if the page is invalid
+     */
+    long visitLoans(long from, int limit, BiConsumer<? super User, ? super Book> visitor) throws LibraryException;
+
+    /**
+     * Lists one page of the overdue loans, in the order they became overdue.
+     *
+     * @param from  cursor of the page: 0 for the first page, then the cursor returned by the previous one
+     * @param limit maximum number of loans to list
+     * @return the continuation cursor of the next page, or -1 if there is none
+     * @throws LibraryException if the page is invalid
+     */
+    long listOverdueLoans(long from, int limit) throws LibraryException;
+
+    /**
+     * Visits one page of the overdue loans, in listing order.
+     *
+     * @param from    cursor of the page: 0 for the first page, then the cursor returned by the previous one
+     * @param limit   maximum number of loans to visit
+     * @param visitor receives each overdue loan of the page
+     * @return the continuation cursor of the next page, or -1 if there is none
+     * @throws LibraryException if the page is invalid
+     */
+    long visitOverdueLoans(long from, int limit, Consumer<? super LoanRecord> visitor) throws LibraryException;
+
+    /**
+     * Updates the waiting list for a book and lends an available physical
+     * copy to the next user in the queue. Users removed from the library, or
+     * already holding the title, leave the queue without a copy, as in
+     * {@link #promoteWaitingList}.
+     *
+     * @param title   the title of the book
+     * @param dueDate the due date of the loan, in seconds since the epoch
+     * @return the user who received the book from the waiting list, or null if no one could
+     * @throws LibraryException if an error occurs during lending
+     */
+    User updateWaitingList(String title, long dueDate) throws LibraryException;
+
+    /**
+     * Lends the available physical copies of a book to the users at the head
+     * of its waiting list, in a single pass over the queue: up to the given
+     * number of users are dequeued and lent a copy, without going through
+     * the validation of {@link #lendBook} for each of them.
+     *
+     * @param title   the title of the book
+     * @param limit   the maximum number of users to promote
+     * @param dueDate the due date of the loans, in seconds since the epoch
+     * @return the promoted users, in queue order; empty if no one was waiting
      * @throws LibraryException if an error occurs during lending
      */
-    User updateWaitingList(String title) throws LibraryException;
+    LibraryListWithPI<User> promoteWaitingList(String title, int limit, long dueDate) throws LibraryException;
+
+    /**
+     * Lends the same book to a whole cohort of users at once, all or
+     * nothing: the cohort is checked first, then the inventory is resolved
+     * and updated once and the loans are added together.
+     *
+     * @param title  the title of the book
+     * @param format the format of the copies
+     * @param names   the names of the users, each once
+     * @param dueDate the due date of the loans, in seconds since the epoch
+     * @return the users lent a copy, in the order of the names
+     * @throws LibraryException if a user does not exist, is listed twice or already
+     *                          borrowed the book, or there are not enough copies for everyone
+     */
+    LibraryListWithPI<User> lendToUsers(String title, String format, LibraryListWithPI<String> names, long dueDate) throws LibraryException;
 
     /**
-     * Reserves a book in the inventory.
+     * Reserves a physical copy of a book for nobody in particular until an
+     * expiry date, as an anonymous hold.
      *
-     * @param title the title of the book to reserve
+     * @param title  the title of the book to reserve
+     * @param expiry the expiry date of the reservation, in seconds since the epoch
      * @throws LibraryException if an error occurs during reservation
      */
-    void reserve(String title) throws LibraryException;
+    void reserve(String title, long expiry) throws LibraryException;
 
     /**
-     * Vacates a reserved book in the inventory.
+     * Vacates a reserved book in the inventory, releasing the anonymous hold
+     * expiring first.
      *
      * @param title the title of the book to vacate
      * @return true if the reservation was removed, false otherwise
      * @throws LibraryException if an error occurs during vacating
      */
     boolean vacate(String title) throws LibraryException;
+
+    /**
+     * Holds an available physical copy of a book for a user until an expiry
+     * date: the copy is reserved, and taken off the reserved copies once the
+     * user borrows the book.
+     *
+     * @param name   the name of the user
+     * @param title  the title of the book
+     * @param expiry the expiry date of the hold, in seconds since the epoch
+     * @throws LibraryException if the user already holds or borrowed the book, or no copy is available
+     */
+    void placeHold(String name, String title, long expiry) throws LibraryException;
+
+    /**
+     * Cancels the hold of a user on a book, releasing the held copy.
+     *
+     * @param name  the name of the user
+     * @param title the title of the book
+     * @throws LibraryException if the user holds no copy of the book
+     */
+    void cancelHold(String name, String title) throws LibraryException;
+
+    /**
+     * Releases the holds of several users on a book at once, as their holds
+     * expire. Users whose hold is already gone are skipped.
+     *
+     * @param title the title of the book
+     * @param names the names of the users
+     * @return the names of the users whose hold was released
+     * @throws LibraryException if the book is not registered
+     */
+    LibraryListWithPI<String> releaseHolds(String title, LibraryListWithPI<String> names) throws LibraryException;
 }
@@ -2,6 +2,10 @@ package application.service;
 
 import common.LibraryException;
 import domain.user.User;
+import domain.user.UserRole;
+
+import java.nio.file.Path;
+import java.util.function.Consumer;
 
 /**
  * Interface defining user-related operations for the library system.
@@ -11,10 +15,11 @@ public interface IUserService {
     /**
      * Adds a new user to the system.
      *
-     * @param name the name of the user to add
+     * @param name         the name of the user to add
+     * @param creationDate the creation date of the user, in seconds since the epoch
      * @throws LibraryException if a user with the given name already exists
      */
-    void addUser(String name) throws LibraryException;
+    void addUser(String name, long creationDate) throws LibraryException;
 
     /**
      * Removes an existing user from the system.
@@ -25,9 +30,44 @@ public interface IUserService {
     User removeUser(String name);
 
     /**
-     * Lists all registered users in the system.
+     * Sets the role of a user, moving the user to their new place in every
+     * waiting list they are in.
+     *
+     * @param name the name of the user
+     * @param role the new role
+     * @return the number of waiting lists the user was moved in
+     * @throws LibraryException if the user does not exist
+     */
+    int setRole(String name, UserRole role) throws LibraryException;
+
+    /**
+     * Lists one page of the registered users in the system.
+     *
+     * @param from  cursor of the page: 0 for the first page, then the cursor returned by the previous one
+     * @param limit maximum number of users to list
+     * @return the continuation cursor of the next page, or -1 if there is none
+     * @throws LibraryException if there are no registered users or the page is invalid
+     */
+    long listUsers(long from, int limit) throws LibraryException;
+
+    /**
+     * Visits one page of the registered users, in listing order.
+     *
+     * @param from    cursor of the page: 0 for the first page, then the cursor returned by the previous one
+     * @param limit   maximum number of users to visit
+     * @param visitor receives each user of the page
+     * @return the continuation cursor of the next page, or -1 if there is none
+     * @throws LibraryException if the page is invalid
+     */
+    long visitUsers(long from, int limit, Consumer<? super User> visitor) throws LibraryException;
+
+    /**
+     * Adds every user listed in a file, one name per line, without per-user
+     * output. Existing users and blank names are skipped.
      *
-     * @throws LibraryException if there are no registered users
+     * @param path the file listing the users
+     * @return the number of users imported and skipped
+     * @throws LibraryException if the file cannot be read
      */
-    void listUsers() throws LibraryException;
+    ImportResult importUsers(Path path) throws LibraryException;
 }
@@ -0,0 +1,31 @@
+package application.service;
+
+/**
+ * Outcome of a bulk import: the number of records stored and the number of
+ * records skipped because they were invalid or already present.
+ */
+public class ImportResult {
+
+    /** Number of records stored. */
+    private final int imported;
+
+    /** Number of records skipped. */
+    private final int skipped;
+
+    /**
+     * Constructs an ImportResult with the given counts.
+     *
+     * @param imported the number of records stored
+     * @param skipped  the number of records skipped
+     */
+    public ImportResult(int imported, int skipped) {
+        this.imported = imported;
+        this.skipped = skipped;
+    }
+
+    /** @return the number of records stored */
+    public int getImported() { return imported; }
+
+    /** @return the number of records skipped */
+    public int getSkipped() { return skipped; }
+}
@@ -0,0 +1,40 @@
+package application.service;
+
+import domain.book.BookFormat;
+
+/**
+ * An active loan: a copy of a book held by a user.
+ */
+public class Loan {
+
+    /** Name of the borrower. */
+    private final String name;
+
+    /** Title of the book. */
+    private final String title;
+
+    /** Format of the copy. */
+    private final BookFormat format;
+
+    /**
+     * Constructs a Loan.
+     *
+     * @param name   the name of the borrower
+     * @param title  the title of the book
+     * @param format the format of the copy
+     */
+    public Loan(String name, String title, BookFormat format) {
+        this.name = name;
+        this.title = title;
+        this.format = format;
+    }
+
+    /** @return the name of the borrower */
+    public String getName() { return name; }
+
+    /** @return the title of the book */
+    public String getTitle() { return title; }
+
+    /** @return the format of the copy */
+    public BookFormat getFormat() { return format; }
+}
@@ -0,0 +1,53 @@
+package application.service;
+
+import domain.book.BookFormat;
+
+/**
+ * Outcome of a request for a copy of a book: either the copy was lent, or
+ * the user joined the waiting list of the title at some position.
+ */
+public class LoanOutcome {
+
+    /** Name of the user who requested the copy. */
+    private final String name;
+
+    /** Title of the book. */
+    private final String title;
+
+    /** Format of the copy. */
+    private final BookFormat format;
+
+    /** Position of the user in the waiting list, starting at 1, or 0 if the copy was lent. */
+    private final int queuePosition;
+
+    /**
+     * Constructs a LoanOutcome.
+     *
+     * @param name          the name of the user who requested the copy
+     * @param title         the title of the book
+     * @param format        the format of the copy
+     * @param queuePosition the position of the user in the waiting list, starting at 1,
+     *                      or 0 if the copy was lent
+     */
+    public LoanOutcome(String name, String title, BookFormat format, int queuePosition) {
+        this.name = name;
+        this.title = title;
+        this.format = format;
+        this.queuePosition = queuePosition;
+    }
+
+    /** @return the name of the user who requested the copy */
+    public String getName() { return name; }
+
+    /** @return the title of the book */
+    public String getTitle() { return title; }
+
+    /** @return the format of the copy */
+    public BookFormat getFormat() { return format; }
+
+    /** @return true if the copy was lent, false if the user joined the waiting list */
+    public boolean isLoaned() { return queuePosition == 0; }
+
+    /** @return the position of the user in the waiting list, starting at 1, or 0 if the copy was lent */
+    public int getQueuePosition() { return queuePosition; }
+}
@@ -0,0 +1,37 @@
+package application.service;
+
+import common.dataStructures.list.LibraryListWithPI;
+
+/**
+ * One page of a listing, with the cursor of the next page.
+ *
+ * @param <T> the type of the listed items
+ */
+public class Page<T> {
+
+    /** Items of the page, in listing order. */
+    private final LibraryListWithPI<T> items;
+
+    /** Continuation cursor of the next page, or -1 if there is none. */
+    private final long next;
+
+    /**
+     * Constructs a Page.
+     *
+     * @param items the items of the page, in listing order
+     * @param next  the continuation cursor of the next page, or -1 if there is none
+     */
+    public Page(LibraryListWithPI<T> items, long next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    /** @return the items of the page, in listing order */
+    public LibraryListWithPI<T> getItems() { return items; }
+
+    /** @return the continuation cursor of the next page, or -1 if there is none */
+    public long getNext() { return next; }
+
+    /** @return true if there is a next page */
+    public boolean hasNext() { return next != -1; }
+}
@@ -0,0 +1,38 @@
+package application.service;
+
+/**
+ * Enumeration of the popularity counters a library keeps for its titles.
+ */
+public enum PopularityMetric {
+
+    /** Copies lent, directly or to a user leaving a waiting list. */
+    BORROWS("loan", "loans"),
+
+    /** Users joining a waiting list. */
+    WAITS("wait", "waits");
+
+    /** Noun counted by the metric, in singular form. */
+    private final String singular;
+
+    /** Noun counted by the metric, in plural form. */
+    private final String plural;
+
+    /**
+     * Constructs a PopularityMetric.
+     *
+     * @param singular the noun counted by the metric, in singular form
+     * @param plural   the noun counted by the metric, in plural form
+     */
+    PopularityMetric(String singular, String plural) {
+        this.singular = singular;
+        this.plural = plural;
+    }
+
+    /**
+     * Returns the noun counted by the metric, agreeing with a count.
+     *
+     * @param count the count
+     * @return the noun, in singular form for a count of 1 and in plural form otherwise
+     */
+    public String unit(long count) { return count == 1 ? singular : plural; }
+}
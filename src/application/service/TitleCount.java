@@ -0,0 +1,43 @@
+package application.service;
+
+/**
+ * Estimated count of a popularity metric for a title: the count is never
+ * below the true count, and the true count is at least the count minus the
+ * error.
+ */
+public class TitleCount {
+
+    /** Title of the book. */
+    private final String title;
+
+    /** Estimated count, never below the true count. */
+    private final long count;
+
+    /** How far above the true count the estimate may be. */
+    private final long error;
+
+    /**
+     * Constructs a TitleCount.
+     *
+     * @param title the title of the book
+     * @param count the estimated count, never below the true count
+     * @param error how far above the true count the estimate may be
+     */
+    public TitleCount(String title, long count, long error) {
+        this.title = title;
+        this.count = count;
+        this.error = error;
+    }
+
+    /** @return the title of the book */
+    public String getTitle() { return title; }
+
+    /** @return the estimated count, never below the true count */
+    public long getCount() { return count; }
+
+    /** @return how far above the true count the estimate may be */
+    public long getError() { return error; }
+
+    /** @return the smallest count the title may have */
+    public long getGuaranteedCount() { return count - error; }
+}
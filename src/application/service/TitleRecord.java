@@ -0,0 +1,205 @@
+package application.service;
+
+import common.LibraryException;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Everything a library holds about one title: its copies, the users waiting
+ * for it, the users holding a copy, with the due dates of their loans, and
+ * the users a copy is held for, with the expiry of their holds.
+ * Titles are moved between libraries as records, when a partitioned catalog
+ * is rebalanced.
+ */
+public class TitleRecord {
+
+    /**
+     * A user holding a copy of the title until a date: the due date of a
+     * loan, or the expiry of a hold.
+     */
+    public static class Borrower {
+
+        /** Name of the user. */
+        private final String name;
+
+        /** Due date of the loan, or expiry of the hold, in seconds since the epoch. */
+        private final long dueDate;
+
+        /**
+         * Constructs a Borrower.
+         *
+         * @param name    the name of the user
+         * @param dueDate the due date of the loan, or expiry of the hold, in seconds since the epoch
+         */
+        public Borrower(String name, long dueDate) {
+            this.name = name;
+            this.dueDate = dueDate;
+        }
+
+        /** @return the name of the user */
+        public String getName() { return name; }
+
+        /** @return the due date of the loan, or expiry of the hold, in seconds since the epoch */
+        public long getDueDate() { return dueDate; }
+    }
+
+    /** Title of the book. */
+    private final String title;
+
+    /** Whether the title has physical copies. */
+    private final boolean physical;
+
+    /** Total number of physical copies. */
+    private final int totalCopies;
+
+    /** Number of physical copies available for loan. */
+    private final int availableCopies;
+
+    /** Number of physical copies reserved. */
+    private final int reservedCopies;
+
+    /** Whether the title has a digital copy. */
+    private final boolean digital;
+
+    /** Names of the users waiting for a physical copy, first in line first. */
+    private final LibraryListWithPI<String> waiting;
+
+    /** Users holding a physical copy. */
+    private final LibraryListWithPI<Borrower> physicalBorrowers;
+
+    /** Users holding the digital copy. */
+    private final LibraryListWithPI<Borrower> digitalBorrowers;
+
+    /** Users a reserved physical copy is held for, until the expiry of their holds. */
+    private final LibraryListWithPI<Borrower> holds;
+
+    /**
+     * Constructs a TitleRecord.
+     *
+     * @param title             the title of the book
+     * @param physical          whether the title has physical copies
+     * @param totalCopies       the total number of physical copies
+     * @param availableCopies   the number of physical copies available for loan
+     * @param reservedCopies    the number of physical copies reserved
+     * @param digital           whether the title has a digital copy
+     * @param waiting           the names of the users waiting for a physical copy, first in line first
+     * @param physicalBorrowers the users holding a physical copy
+     * @param digitalBorrowers  the users holding the digital copy
+     * @param holds             the users a reserved physical copy is held for
+     */
+    public TitleRecord(String title, boolean physical, int totalCopies, int availableCopies, int reservedCopies,
+                       boolean digital, LibraryListWithPI<String> waiting,
+                       LibraryListWithPI<Borrower> physicalBorrowers, LibraryListWithPI<Borrower> digitalBorrowers,
+                       LibraryListWithPI<Borrower> holds) {
+        this.title = title;
+        this.physical = physical;
+        this.totalCopies = totalCopies;
+        this.availableCopies = availableCopies;
+        this.reservedCopies = reservedCopies;
+        this.digital = digital;
+        this.waiting = waiting;
+        this.physicalBorrowers = physicalBorrowers;
+        this.digitalBorrowers = digitalBorrowers;
+        this.holds = holds;
+    }
+
+    /** @return the title of the book */
+    public String getTitle() { return title; }
+
+    /** @return true if the title has physical copies */
+    public boolean isPhysical() { return physical; }
+
+    /** @return the total number of physical copies */
+    public int getTotalCopies() { return totalCopies; }
+
+    /** @return the number of physical copies available for loan */
+    public int getAvailableCopies() { return availableCopies; }
+
+    /** @return the number of physical copies reserved */
+    public int getReservedCopies() { return reservedCopies; }
+
+    /** @return true if the title has a digital copy */
+    public boolean isDigital() { return digital; }
+
+    /** @return the names of the users waiting for a physical copy, first in line first */
+    public LibraryListWithPI<String> getWaiting() { return waiting; }
+
+    /** @return the users holding a physical copy */
+    public LibraryListWithPI<Borrower> getPhysicalBorrowers() { return physicalBorrowers; }
+
+    /** @return the users holding the digital copy */
+    public LibraryListWithPI<Borrower> getDigitalBorrowers() { return digitalBorrowers; }
+
+    /** @return the users a reserved physical copy is held for */
+    public LibraryListWithPI<Borrower> getHolds() { return holds; }
+
+    /**
+     * Appends the record to a list of strings, the form it travels in
+     * between the processes of a partitioned catalog.
+     *
+     * @param values the list receiving the fields of the record
+     */
+    public void writeTo(LibraryListWithPI<String> values) {
+        values.insert(title);
+        values.insert(Boolean.toString(physical));
+        values.insert(Integer.toString(totalCopies));
+        values.insert(Integer.toString(availableCopies));
+        values.insert(Integer.toString(reservedCopies));
+        values.insert(Boolean.toString(digital));
+        writeNames(values, waiting);
+        writeBorrowers(values, physicalBorrowers);
+        writeBorrowers(values, digitalBorrowers);
+        writeBorrowers(values, holds);
+    }
+
+    /**
+     * Reads a record written by {@link #writeTo}.
+     *
+     * @param values the fields of the records, positioned at the first field of the record
+     * @return the record
+     * @throws LibraryException if the fields do not form a record
+     */
+    public static TitleRecord readFrom(Iterator<String> values) throws LibraryException {
+        try {
+            return new TitleRecord(values.next(), Boolean.parseBoolean(values.next()),
+                    Integer.parseInt(values.next()), Integer.parseInt(values.next()), Integer.parseInt(values.next()),
+                    Boolean.parseBoolean(values.next()), readNames(values), readBorrowers(values), readBorrowers(values), readBorrowers(values));
+        } catch (NoSuchElementException | NumberFormatException e) {
+            throw new LibraryException("Invalid title record: " + e.getMessage());
+        }
+    }
+
+    /** Appends a list of names preceded by its size. */
+    private static void writeNames(LibraryListWithPI<String> values, LibraryListWithPI<String> names) {
+        values.insert(Integer.toString(names.size()));
+        for (String name : names) values.insert(name);
+    }
+
+    /** Reads a list of names preceded by its size. */
+    private static LibraryListWithPI<String> readNames(Iterator<String> values) {
+        int count = Integer.parseInt(values.next());
+        LibraryListWithPI<String> names = new SLLLibraryListWithPI<>();
+        for (int i = 0; i < count; i++) names.insert(values.next());
+        return names;
+    }
+
+    /** Appends a list of borrowers, name and due date, preceded by its size. */
+    private static void writeBorrowers(LibraryListWithPI<String> values, LibraryListWithPI<Borrower> borrowers) {
+        values.insert(Integer.toString(borrowers.size()));
+        for (Borrower borrower : borrowers) {
+            values.insert(borrower.getName());
+            values.insert(Long.toString(borrower.getDueDate()));
+        }
+    }
+
+    /** Reads a list of borrowers, name and due date, preceded by its size. */
+    private static LibraryListWithPI<Borrower> readBorrowers(Iterator<String> values) {
+        int count = Integer.parseInt(values.next());
+        LibraryListWithPI<Borrower> borrowers = new SLLLibraryListWithPI<>();
+        for (int i = 0; i < count; i++) borrowers.insert(new Borrower(values.next(), Long.parseLong(values.next())));
+        return borrowers;
+    }
+}
@@ -0,0 +1,41 @@
+package application.service;
+
+import domain.user.UserRole;
+
+/**
+ * A registered user at the time it was listed: its name, role and
+ * creation date.
+ */
+public class UserStatus {
+
+    /** Name of the user. */
+    private final String name;
+
+    /** Role of the user. */
+    private final UserRole role;
+
+    /** Creation date of the user, formatted as yyyy-MM-dd HH:mm:ss. */
+    private final String creationDate;
+
+    /**
+     * Constructs a UserStatus.
+     *
+     * @param name         the name of the user
+     * @param role         the role of the user
+     * @param creationDate the creation date of the user, formatted as yyyy-MM-dd HH:mm:ss
+     */
+    public UserStatus(String name, UserRole role, String creationDate) {
+        this.name = name;
+        this.role = role;
+        this.creationDate = creationDate;
+    }
+
+    /** @return the name of the user */
+    public String getName() { return name; }
+
+    /** @return the role of the user */
+    public UserRole getRole() { return role; }
+
+    /** @return the creation date of the user, formatted as yyyy-MM-dd HH:mm:ss */
+    public String getCreationDate() { return creationDate; }
+}
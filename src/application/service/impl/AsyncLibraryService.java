@@ -0,0 +1,266 @@
+package application.service.impl;
+
+import application.service.BatchOperation;
+import application.service.BookStatus;
+import application.service.IAsyncLibraryService;
+import application.service.ILibraryService;
+import application.service.Loan;
+import application.service.LoanOutcome;
+import application.service.Page;
+import application.service.UserStatus;
+import common.LibraryException;
+import common.ThreadRoutedPrintStream;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import domain.book.BookFormat;
+import domain.book.PBook;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Implementation of IAsyncLibraryService running the operations of a
+ * synchronous {@link ILibraryService} on a given executor.
+ * <p>
+ * The output the synchronous service prints is discarded on the executing
+ * thread, see {@link ThreadRoutedPrintStream}. Listings are built from the
+ * visiting methods of the service, copying each record into a value that
+ * stays valid once the records are unlocked.
+ */
+public class AsyncLibraryService implements IAsyncLibraryService {
+
+    /** Service performing the operations. */
+    private final ILibraryService library;
+
+    /** Executor running the operations. */
+    private final Executor executor;
+
+    /** Console output, discarded while an operation runs. */
+    private final ThreadRoutedPrintStream console;
+
+    /** Stream discarding the output of the operations. */
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    /**
+     * Constructs an asynchronous service running the operations of the given
+     * library on the given executor. The executor belongs to the caller,
+     * who shuts it down once done with the service.
+     *
+     * @param library  the service performing the operations
+     * @param executor the executor running the operations
+     */
+    public AsyncLibraryService(ILibraryService library, Executor executor) {
+        this.library = library;
+        this.executor = executor;
+        this.console = ThreadRoutedPrintStream.install();
+    }
+
+    // ----------------------
+    // User methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> addUser(String name) {
+        return run(() -> library.addUser(name));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> removeUser(String name) {
+        return run(() -> library.removeUser(name));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Page<UserStatus>> listUsers(long from, int limit) {
+        return submit(() -> {
+            LibraryListWithPI<UserStatus> users = new SLLLibraryListWithPI<>();
+            long next = library.visitUsers(from, limit, user ->
+                    users.insert(new UserStatus(user.getName(), user.getRole(), user.getCreationDate())));
+            return new Page<>(users, next);
+        });
+    }
+
+    // ----------------------
+    // Book methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> addBook(String title, String format) {
+        return run(() -> library.addBook(title, format));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> removeBook(String title, String format) {
+        return run(() -> library.removeBook(title, format));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Page<BookStatus>> listBooks(long from, int limit) {
+        return submit(() -> {
+            LibraryListWithPI<BookStatus> books = new SLLLibraryListWithPI<>();
+            long next = library.visitBooks(from, limit, book -> {
+                if (book instanceof PBook pBook) {
+                    books.insert(new BookStatus(book.getTitle(), BookFormat.PHYSICAL, pBook.getTotalCopies(),
+                            pBook.getAvailableCopies(), pBook.getReservedCopies()));
+                } else {
+                    books.insert(new BookStatus(book.getTitle(), BookFormat.DIGITAL, 1, 1, 0));
+                }
+            });
+            return new Page<>(books, next);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<LibraryListWithPI<String>> waitingList(String title) {
+        return submit(() -> {
+            LibraryListWithPI<String> names = new SLLLibraryListWithPI<>();
+            library.visitWaitingList(title, user -> names.insert(user.getName()));
+            return names;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> reserve(String title) {
+        return run(() -> library.reserve(title));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> vacate(String title) {
+        return run(() -> library.vacate(title));
+    }
+
+    // ----------------------
+    // Loan methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<LoanOutcome> lendBook(String name, String title, String format) {
+        return submit(() -> library.lendBook(name, title, format));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<LoanOutcome> returnBook(String name, String title, String format) {
+        return submit(() -> library.returnBook(name, title, format));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Page<Loan>> listLoans(long from, int limit) {
+        return submit(() -> {
+            LibraryListWithPI<Loan> loans = new SLLLibraryListWithPI<>();
+            long next = library.visitLoans(from, limit, (user, book) ->
+                    loans.insert(new Loan(user.getName(), book.getTitle(),
+                            book instanceof PBook ? BookFormat.PHYSICAL : BookFormat.DIGITAL)));
+            return new Page<>(loans, next);
+        });
+    }
+
+    // ----------------------
+    // Batch methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public CompletableFuture<Void> executeBatch(LibraryListWithPI<BatchOperation> operations) {
+        return run(() -> library.executeBatch(operations));
+    }
+
+    // ----------------------
+    // Private helpers
+    // ----------------------
+
+    /**
+     * An operation of the synchronous service.
+     *
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    private interface Call<T> {
+        T run() throws LibraryException;
+    }
+
+    /**
+     * An operation of the synchronous service without result.
+     */
+    @FunctionalInterface
+    private interface Action {
+        void run() throws LibraryException;
+    }
+
+    /**
+     * Submits an operation without result.
+     *
+     * @param action the operation
+     * @return a future completed once the operation succeeds, or exceptionally with its failure
+     */
+    private CompletableFuture<Void> run(Action action) {
+        return submit(() -> {
+            action.run();
+            return null;
+        });
+    }
+
+    /**
+     * Submits an operation to the executor, discarding what it prints.
+     *
+     * @param call the operation
+     * @return a future of the result of the operation, or completed exceptionally with its failure
+     */
+    private <T> CompletableFuture<T> submit(Call<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                PrintStream previous = console.route(DISCARD);
+                try {
+                    future.complete(call.run());
+                } catch (LibraryException | RuntimeException e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    console.route(previous);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(new LibraryException("The library is not accepting operations: " + e.getMessage()));
+        }
+        return future;
+    }
+}
@@ -0,0 +1,226 @@
+package application.service.impl;
+
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+import common.dataStructures.queue.LibraryQueue;
+import domain.book.DBook;
+import domain.book.PBook;
+import domain.inventory.BookInventory;
+import domain.inventory.BookInventoryImpl;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
+import domain.user.User;
+import domain.user.UserRole;
+import infrastructure.repository.LibraryRepository;
+
+/**
+ * Copy of the records a batch of operations changes, each taken just before
+ * the batch first touches it, so that a failed batch can be undone by
+ * writing the copies back with {@link #restore()}. A single operation is
+ * undone the same way when it cannot be logged.
+ * <p>
+ * Records are captured by key, as the checkpoint deltas track them: users
+ * and their loans by name, inventories, waiting lists and holds by title. Capturing
+ * a title also captures the loans of the users waiting for it, who may be
+ * lent a copy. The caller must hold the stripes of every captured key from
+ * the first capture to the restore, since restoring a record overwrites it
+ * whole.
+ */
+class BeforeImage {
+
+    /** Repository the records are read from, without change tracking. */
+    private final LibraryRepository source;
+
+    /** Repository the records are restored through. */
+    private final LibraryRepository target;
+
+    /** Users by name, null for names that did not exist. */
+    private final LibraryMap<String, User> users;
+
+    /** Roles of the captured users by name, since users are changed in place. */
+    private final LibraryMap<String, UserRole> roles;
+
+    /** Inventories by title, null for titles that did not exist. */
+    private final LibraryMap<String, BookInventory> inventories;
+
+    /** Loans with their due dates by user name, null for users that did not exist. */
+    private final LibraryMap<String, LibraryListWithPI<LoanRecord>> loans;
+
+    /** Names of the waiting users by title, first in line first. */
+    private final LibraryMap<String, LibraryListWithPI<String>> queues;
+
+    /** Holds by title, null for titles without holds. */
+    private final LibraryMap<String, LibraryListWithPI<HoldRecord>> holds;
+
+    /**
+     * Constructs an empty before-image.
+     *
+     * @param source        the repository to read the records from, without change tracking
+     * @param target        the repository to restore the records through
+     * @param estimatedSize the expected number of keys of each kind
+     */
+    BeforeImage(LibraryRepository source, LibraryRepository target, int estimatedSize) {
+        this.source = source;
+        this.target = target;
+        this.users = new HashLibraryMap<>(estimatedSize);
+        this.roles = new HashLibraryMap<>(estimatedSize);
+        this.inventories = new HashLibraryMap<>(estimatedSize);
+        this.loans = new HashLibraryMap<>(estimatedSize);
+        this.queues = new HashLibraryMap<>(estimatedSize);
+        this.holds = new HashLibraryMap<>(estimatedSize);
+    }
+
+    /**
+     * Captures a user and its loans, unless already captured.
+     *
+     * @param name the user name
+     */
+    void captureUser(String name) {
+        if (!users.containsKey(name)) {
+            User user = source.findUser(name);
+            users.put(name, user);
+            if (user != null) roles.put(name, user.getRole());
+        }
+        captureLoans(name);
+    }
+
+    /**
+     * Captures a user and its loans, along with every title it waits for,
+     * for a change of its role, which moves it in those waiting lists.
+     *
+     * @param name the user name
+     */
+    void captureUserWithQueues(String name) {
+        captureUser(name);
+        User user = source.findUser(name);
+        if (user == null) return;
+        // The waiting lists cannot be looked up while they are iterated
+        LibraryListWithPI<String> titles = new SLLLibraryListWithPI<>();
+        source.forEachWaitingList((title, queue) -> {
+            if (queue.contains(user)) titles.insert(title);
+        });
+        for (String title : titles) captureTitle(title);
+    }
+
+    /**
+     * Captures a user and its loans, along with every title it borrowed or
+     * holds a copy of, for the removal of the user.
+     *
+     * @param name the user name
+     */
+    void captureUserWithTitles(String name) {
+        captureUser(name);
+        LibraryListWithPI<String> held = new SLLLibraryListWithPI<>();
+        source.forEachHolds((title, holds) -> {
+            for (HoldRecord hold : holds) if (hold.getName().equals(name)) held.insert(title);
+        });
+        for (String title : held) captureTitle(title);
+        LibraryListWithPI<LoanRecord> captured = loans.get(name);
+        if (captured == null) return;
+        for (LoanRecord loan : captured) captureTitle(loan.getBook().getTitle());
+    }
+
+    /**
+     * Captures the inventory, the waiting list and the holds of a title, and
+     * the loans of the users waiting for it, unless already captured.
+     *
+     * @param title the title
+     */
+    void captureTitle(String title) {
+        if (inventories.containsKey(title)) return;
+        BookInventory bookInventory = source.findInventory(title);
+        inventories.put(title, bookInventory == null ? null : copyOf(bookInventory));
+
+        LibraryListWithPI<String> waiting = new SLLLibraryListWithPI<>();
+        LibraryQueue<User> queue = source.findWaitingList(title);
+        if (queue != null) for (User user : queue) waiting.insert(user.getName());
+        queues.put(title, waiting);
+        for (String name : waiting) captureLoans(name);
+        holds.put(title, source.findHolds(title));
+    }
+
+    /**
+     * Captures a title along with the loans of every borrower of its digital
+     * copy, for the removal of that copy, which ends their loans.
+     *
+     * @param title the title
+     */
+    void captureTitleWithBorrowers(String title) {
+        captureTitle(title);
+        BookInventory bookInventory = source.findInventory(title);
+        if (bookInventory == null || !bookInventory.hasDBook()) return;
+        source.forEachBorrowerWhile(bookInventory.getDBook(), user -> {
+            captureLoans(user.getName());
+            return true;
+        });
+    }
+
+    /**
+     * Writes every captured record back, undoing whatever the batch changed
+     * in them. A title that did not exist is left without copies, since the
+     * repository cannot drop an inventory.
+     */
+    void restore() {
+        // Users first, so that loans and waiting lists can refer to them
+        users.forEach((name, user) -> {
+            if (user == null) return;
+            UserRole role = roles.get(name);
+            if (user.getRole() != role) user.setRole(role);
+            else if (target.containsUser(name)) return;
+            target.saveUser(user);
+        });
+        inventories.forEach((title, bookInventory) -> {
+            if (bookInventory != null) target.saveInventory(copyOf(bookInventory));
+            else if (target.containsTitle(title)) target.saveInventory(new BookInventoryImpl(title));
+        });
+        loans.forEach((name, captured) -> {
+            User user = target.findUser(name);
+            if (user == null) return;
+            target.removeLoansByUser(user);
+            if (captured != null) for (LoanRecord loan : captured) target.addLoan(user, loan.getBook(), loan.getDueDate());
+        });
+        queues.forEach((title, names) -> {
+            target.removeWaitingList(title);
+            if (names.isEmpty()) return;
+            LibraryQueue<User> queue = target.findOrCreateWaitingList(title);
+            for (String name : names) {
+                User user = target.findUser(name);
+                if (user != null) queue.add(user);
+            }
+        });
+        holds.forEach((title, captured) -> {
+            target.removeHolds(title);
+            if (captured != null) for (HoldRecord hold : captured) target.addHold(hold.getName(), title, hold.getExpiry());
+        });
+        // Users added by the batch last, once their loans are gone
+        users.forEach((name, user) -> {
+            if (user == null && target.containsUser(name)) target.removeUser(name);
+        });
+    }
+
+    /** Captures the loans of a user, unless already captured. */
+    private void captureLoans(String name) {
+        if (loans.containsKey(name)) return;
+        User user = source.findUser(name);
+        LibraryListWithPI<LoanRecord> copy = user == null ? null : source.findLoansByUser(user);
+        if (user != null && copy == null) copy = new SLLLibraryListWithPI<>();
+        loans.put(name, copy);
+    }
+
+    /**
+     * Copies an inventory, since inventories are changed in place: the copy
+     * has its own physical copy counters.
+     */
+    private static BookInventory copyOf(BookInventory bookInventory) {
+        PBook pBook = null;
+        if (bookInventory.hasPBook()) {
+            PBook original = bookInventory.getPBook();
+            pBook = new PBook(bookInventory.getTitle(), original.getTotalCopies(),
+                    original.getAvailableCopies() + original.getReservedCopies(), original.getReservedCopies());
+        }
+        DBook dBook = bookInventory.hasDBook() ? new DBook(bookInventory.getTitle()) : null;
+        return new BookInventoryImpl(bookInventory.getTitle(), pBook, dBook);
+    }
+}
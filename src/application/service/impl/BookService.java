@@ -1,22 +1,29 @@
 package application.service.impl;
 
 import application.service.IBookService;
+import application.service.ImportResult;
 import common.LibraryException;
+import common.PageCursor;
+import common.PagedPrinter;
 import common.dataStructures.list.LibraryList;
+import common.dataStructures.list.LibraryListWithPI;
 import common.dataStructures.list.impl.SLLLibraryList;
-import common.dataStructures.map.LibraryMap;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
 import common.dataStructures.queue.LibraryQueue;
-import common.dataStructures.set.LibrarySet;
-import common.dataStructures.set.impl.HashLibrarySet;
 import domain.book.Book;
 import domain.book.BookFormat;
 import domain.inventory.BookInventory;
-import domain.inventory.BookInventoryImpl;
 import domain.book.DBook;
+import domain.book.PBook;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
 import domain.user.User;
+import infrastructure.persistence.RecordFileReader;
 import infrastructure.repository.LibraryRepository;
+import java.nio.file.Path;
 import java.util.Collections;
 import java.util.List;
+import java.util.function.Consumer;
 
 /**
  * Implementation of IBookService, managing books in the library inventory.
@@ -24,6 +31,12 @@ import java.util.List;
  */
 public class BookService implements IBookService {
 
+    /** Number of records read from an import file before they are stored. */
+    private static final int IMPORT_BATCH_SIZE = 4096;
+
+    /** Estimated size of a book record in an import file, used to pre-size the repository. */
+    private static final int ESTIMATED_BOOK_RECORD_BYTES = 28;
+
     /** Reference to the library repository for accessing data structures */
     private final LibraryRepository repo;
 
@@ -41,8 +54,8 @@ public class BookService implements IBookService {
      */
     @Override
     public void addBook(String title, String format) throws LibraryException {
-        LibraryMap<String, BookInventory> inventory = repo.getInventory();
-        BookInventory bookInventory = inventory.computeIfAbsent(title, k -> new BookInventoryImpl(title));
+        requireStorableTitle(title);
+        BookInventory bookInventory = repo.findOrCreateInventory(title);
 
         if(format.equals(BookFormat.DIGITAL.toString())) {
             bookInventory.addDBook();
@@ -50,6 +63,7 @@ public class BookService implements IBookService {
         else {
             bookInventory.addPBook();
         }
+        repo.saveInventory(bookInventory);
         System.out.println("Book \"" + title + "\" (" + format + "), successfully added.");
     }
 
@@ -57,79 +71,186 @@ public class BookService implements IBookService {
      * {@inheritDoc}
      */
     @Override
-    public void removeBook(String title, String format) throws LibraryException {
-        LibraryMap<String, BookInventory> inventory = repo.getInventory();
-        BookInventory bookInventory = inventory.get(title);
+    public void addCopies(String title, int copies) throws LibraryException {
+        if (copies < 1) {
+            throw new LibraryException("Invalid number of copies: " + copies + ".");
+        }
+        requireStorableTitle(title);
+        BookInventory bookInventory = repo.findOrCreateInventory(title);
+        bookInventory.addPBooks(copies);
+        repo.saveInventory(bookInventory);
+        System.out.println("Book \"" + title + "\" (" + BookFormat.PHYSICAL + "), " + copies + " copies successfully added.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int removeBook(String title, String format) throws LibraryException {
+        BookInventory bookInventory = repo.findInventory(title);
+        int ended = 0;
         if(format.equals(BookFormat.DIGITAL.toString())) {
             // Remove the book from the inventory
             DBook dBook = bookInventory.removeDBook();
+            repo.saveInventory(bookInventory);
 
-            // Remove from all users who have it on loan
-            LibrarySet<User> users = repo.getLoansByBook().get(dBook);
-            if (users != null) {
-                // We use a new HashSet to avoid ConcurrentModificationException
-                LibrarySet<User> usersCopy = new HashLibrarySet<>(users.size());
-                users.forEach(usersCopy::add);
-
-                for (User user : usersCopy) {
-                    LibrarySet<Book> books = repo.getLoansByUser().get(user);
-                    if (books != null) {
-                        books.remove(dBook);
-                        if (books.isEmpty()) {
-                            repo.getLoansByUser().remove(user);
-                        }
-                    }
-                    users.remove(user);
-                }
-                // If no users remain, we remove the entry from the map
-                if (users.isEmpty()) {
-                    repo.getLoansByBook().remove(dBook);
-                }
-            }
+            // Remove from all users who have it on loan, in one pass over its borrowers
+            LibraryListWithPI<LoanRecord> loans = repo.removeLoansByBook(dBook);
+            if (loans != null) ended = loans.size();
 
             // Remove queue
-            repo.getWaitingListMap().remove(title);
+            repo.removeWaitingList(title);
         }
         else {
-            if(bookInventory.removePBook() == null) {
+            boolean lastCopy = bookInventory.removePBook() == null;
+            repo.saveInventory(bookInventory);
+            if(lastCopy) {
                 // Remove queue
-                repo.getWaitingListMap().remove(title);
+                repo.removeWaitingList(title);
             }
         }
         System.out.println("Book \"" + title + "\" (" + format + "), successfully removed.");
+        return ended;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void removeBookByUserDeletion(String title) throws LibraryException {
-        LibraryMap<String, BookInventory> inventory = repo.getInventory();
-        BookInventory bookInventory = inventory.get(title);
-        if(bookInventory.removePBookByRemoveUser() == null) {
-            // Remove queue
-            repo.getWaitingListMap().remove(title);
+    public int removeBooksByUserDeletion(User user) throws LibraryException {
+        // The holds cannot be removed while they are iterated
+        LibraryListWithPI<String> held = new SLLLibraryListWithPI<>();
+        repo.forEachHolds((title, holds) -> {
+            for (HoldRecord hold : holds) {
+                if (!hold.getName().equals(user.getName())) continue;
+                held.insert(title);
+                return;
+            }
+        });
+        for (String title : held) {
+            repo.removeHold(title, user.getName());
+            BookInventory bookInventory = repo.findInventory(title);
+            bookInventory.vacatePBook();
+            repo.saveInventory(bookInventory);
         }
+
+        LibraryListWithPI<LoanRecord> loans = repo.removeLoansByUser(user);
+        if (loans == null) return 0;
+        for (LoanRecord loan : loans) {
+            if (!(loan.getBook() instanceof PBook)) continue;
+            String title = loan.getBook().getTitle();
+            BookInventory bookInventory = repo.findInventory(title);
+            boolean lastCopy = bookInventory.removePBookByRemoveUser() == null;
+            repo.saveInventory(bookInventory);
+            if(lastCopy) {
+                // Remove queue
+                repo.removeWaitingList(title);
+            }
+        }
+        return loans.size();
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void listAvailableBooks() throws LibraryException {
-        LibraryMap<String, BookInventory> inventory = repo.getInventory();
-
-        if (inventory.isEmpty()) {
+    public long listAvailableBooks(long from, int limit) throws LibraryException {
+        if (repo.titleCount() == 0) {
             throw new LibraryException("No available books.");
         }
-        System.out.println("--- Available books ---");
-        inventory.values().forEach((bookInventory) -> {
-            if(bookInventory.hasPBook()) {
-                System.out.println(bookInventory.getPBook().toString());
+        PagedPrinter printer = new PagedPrinter(from, limit);
+        printer.header("--- Available books ---");
+        repo.forEachInventoryWhile(printer, bookInventory -> {
+            if(bookInventory.hasPBook() && printer.accept()) {
+                printer.println(bookInventory.getPBook().toString());
             }
-            if(bookInventory.hasDBook())
-                System.out.println(bookInventory.getDBook().toString());
+            if(bookInventory.hasDBook() && printer.accept())
+                printer.println(bookInventory.getDBook().toString());
+            return printer.needsMore();
+        });
+        return printer.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitBooks(long from, int limit, Consumer<? super Book> visitor) throws LibraryException {
+        PageCursor cursor = new PageCursor(from, limit);
+        repo.forEachInventoryWhile(cursor, bookInventory -> {
+            if (bookInventory.hasPBook() && cursor.accept()) visitor.accept(bookInventory.getPBook());
+            if (bookInventory.hasDBook() && cursor.accept()) visitor.accept(bookInventory.getDBook());
+            return cursor.needsMore();
         });
+        return cursor.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The repository is grown once from the file size, then records are read
+     * and stored in batches, each inventory being saved once per record
+     * whatever its number of copies.
+     */
+    @Override
+    public ImportResult importBooks(Path path) throws LibraryException {
+        try (RecordFileReader in = new RecordFileReader(path)) {
+            long estimated = in.size() / ESTIMATED_BOOK_RECORD_BYTES;
+            repo.ensureCapacity((int) Math.min(Integer.MAX_VALUE, repo.titleCount() + estimated), 0);
+
+            String[][] batch = new String[IMPORT_BATCH_SIZE][];
+            int imported = 0, skipped = 0;
+            int size;
+            do {
+                size = 0;
+                String[] record;
+                while (size < batch.length && (record = in.next()) != null) batch[size++] = record;
+
+                for (int i = 0; i < size; i++) {
+                    if (importBook(batch[i])) imported++;
+                    else skipped++;
+                }
+            } while (size == batch.length);
+            return new ImportResult(imported, skipped);
+        }
+    }
+
+    /**
+     * Stores a {@code title,format[,copies]} record read from an import file.
+     *
+     * @return true if the record was stored, false if it was skipped
+     */
+    private boolean importBook(String[] record) throws LibraryException {
+        if (record.length < 2 || record[0].isEmpty() || !Book.isStorableTitle(record[0])) return false;
+        BookFormat format;
+        int copies;
+        try {
+            format = BookFormat.fromString(record[1]);
+            copies = (record.length >= 3 && !record[2].isEmpty()) ? Integer.parseInt(record[2]) : 1;
+        } catch (LibraryException | NumberFormatException e) {
+            return false;
+        }
+        if (copies < 1 || copies > PBook.MAX_COPIES) return false;
+
+        BookInventory bookInventory = repo.findOrCreateInventory(record[0]);
+        if (format == BookFormat.DIGITAL) {
+            if (bookInventory.hasDBook()) return false;
+            bookInventory.addDBook();
+        } else {
+            if (bookInventory.hasPBook() && bookInventory.getPBook().getTotalCopies() > PBook.MAX_COPIES - copies) return false;
+            bookInventory.addPBooks(copies);
+        }
+        repo.saveInventory(bookInventory);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void visitWaitingList(String title, Consumer<? super User> visitor) {
+        LibraryQueue<User> queue = repo.findWaitingList(title);
+        if (queue != null) queue.forEach(visitor);
     }
 
     /**
@@ -137,7 +258,7 @@ public class BookService implements IBookService {
      */
     @Override
     public void showWaitingList(String title) {
-        LibraryQueue<User> queue = repo.getWaitingListMap().get(title.toLowerCase());
+        LibraryQueue<User> queue = repo.findWaitingList(title);
         if (queue == null || queue.isEmpty()) {
             System.out.println("No users in queue for this book.");
             return;
@@ -156,7 +277,9 @@ public class BookService implements IBookService {
      */
     @Override
     public void sortInverseBooksByTitleQuicksort() throws LibraryException {
-        LibraryList<BookInventory> books = new SLLLibraryList<>(repo.getInventory().values());
+        LibraryListWithPI<BookInventory> collected = new SLLLibraryListWithPI<>();
+        repo.forEachInventory(collected::insert);
+        LibraryList<BookInventory> books = new SLLLibraryList<>(collected);
         if(books.isEmpty()) {
             throw new LibraryException("No books to sort.");
         }
@@ -196,4 +319,15 @@ public class BookService implements IBookService {
         Collections.swap((List<?>) list, i + 1, high);
         return i + 1;
     }
+
+    /**
+     * Checks that a new title can be logged and saved.
+     *
+     * @param title the title
+     * @throws LibraryException if the title is too long
+     */
+    private static void requireStorableTitle(String title) throws LibraryException {
+        if (!Book.isStorableTitle(title))
+            throw new LibraryException("Title too long: at most " + Book.MAX_TITLE_LENGTH + " bytes.");
+    }
 }
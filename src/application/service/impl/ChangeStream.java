@@ -0,0 +1,81 @@
+package application.service.impl;
+
+import application.service.ChangeListener;
+import infrastructure.persistence.LogOperation;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Change stream of a library: delivers every logged mutation to the
+ * subscribed listeners, numbered in the order the mutations applied, see
+ * {@link ChangeListener}.
+ * <p>
+ * Changes are delivered one at a time, under the monitor of the listeners,
+ * so every listener receives them in stream order. Nothing is counted while
+ * the stream has no listeners.
+ */
+final class ChangeStream {
+
+    /** Receivers of the changes; also guards the delivery of the changes, in stream order. */
+    private final CopyOnWriteArrayList<ChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Position of the last change of the stream. */
+    private volatile long sequence;
+
+    /**
+     * Adds a listener, which receives the changes published from now on.
+     * The caller must keep mutations from running until the listener is
+     * added, so that the listener misses none of them.
+     *
+     * @param listener the listener
+     * @return the position in the stream of the last change published before the listener was added
+     */
+    long subscribe(ChangeListener listener) {
+        synchronized (listeners) {
+            listeners.add(listener);
+            return sequence;
+        }
+    }
+
+    /**
+     * Stops delivering changes to a listener.
+     *
+     * @param listener the listener
+     */
+    void unsubscribe(ChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /** @return the position in the stream of the last change published, 0 if there was none */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Delivers a mutation to the listeners, if any.
+     *
+     * @param operation the applied operation
+     * @param args      the arguments of the operation
+     */
+    void publish(LogOperation operation, String[] args) {
+        if (listeners.isEmpty()) return;
+        synchronized (listeners) {
+            long position = ++sequence;
+            for (ChangeListener listener : listeners) listener.onChange(position, operation, args);
+        }
+    }
+
+    /**
+     * Tells the listeners that the state changed as a whole, unsubscribing
+     * them, see {@link ChangeListener#onReset()}.
+     */
+    void reset() {
+        if (listeners.isEmpty()) return;
+        synchronized (listeners) {
+            for (ChangeListener listener : listeners) {
+                listeners.remove(listener);
+                listener.onReset();
+            }
+        }
+    }
+}
@@ -0,0 +1,265 @@
+package application.service.impl;
+
+import common.LibraryException;
+import common.LibraryLogger;
+import common.ThreadRoutedPrintStream;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import infrastructure.persistence.IncrementalCheckpointer;
+import infrastructure.persistence.LogOperation;
+import infrastructure.persistence.WriteAheadLog;
+import infrastructure.repository.LibraryRepository;
+import infrastructure.repository.impl.DirtyTrackingLibraryRepository;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Durability of a {@link LibraryService} kept in a data directory: the
+ * write-ahead log of its mutations, the incremental checkpoints of its state
+ * and the recovery of both on startup.
+ * <p>
+ * The state is recovered in two steps: {@link #recover(LibraryRepository)} loads the last
+ * checkpoint, which the library then tracks through {@link #track}, and
+ * {@link #replay(LibraryService)} applies the log on top of it. Checkpoints
+ * then run in the background once {@link #start()} is called. The
+ * checkpoints take the checkpointer before the state lock of the library,
+ * so the library runs its own checkpoints through {@link #withCheckpointer}.
+ */
+final class LibraryDurability implements AutoCloseable {
+
+    /** File name of the write-ahead log inside the data directory. */
+    private static final String WAL_FILE = "library.wal";
+
+    /** Writer of the checkpoints of the data directory. */
+    private final IncrementalCheckpointer checkpointer;
+
+    /** Log of mutations since the last checkpoint. */
+    private final WriteAheadLog wal;
+
+    /** Exclusive side of the state lock of the library, held while the state is checkpointed. */
+    private final Lock stateWriteLock;
+
+    /** Records the failures of the background checkpoints in the activity log of the library. */
+    private final Consumer<String> failures;
+
+    /** Runs the background checkpoints, once started. */
+    private ScheduledExecutorService scheduler;
+
+    /** Guards the advance of the sequence number of the repository by concurrent operations. */
+    private final Object sequenceLock = new Object();
+
+    /** Whether the log is being replayed, its operations being applied again without being logged. */
+    private volatile boolean replaying;
+
+    /** Repository tracking the changes to checkpoint. */
+    private volatile DirtyTrackingLibraryRepository tracked;
+
+    /**
+     * Opens the checkpoints and the write-ahead log of a data directory,
+     * creating the directory if needed.
+     *
+     * @param dataDir        directory holding the checkpoint snapshot and the write-ahead log
+     * @param storage        factory creating empty repositories of the chosen storage engine
+     * @param stateWriteLock exclusive side of the state lock of the library
+     * @param failures       records the failures of the background checkpoints
+     * @throws LibraryException if the directory or the log cannot be opened
+     */
+    LibraryDurability(String dataDir, Supplier<LibraryRepository> storage, Lock stateWriteLock, Consumer<String> failures)
+            throws LibraryException {
+        Path dir = Path.of(dataDir);
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new LibraryException("Could not create data directory \"" + dataDir + "\": " + e.getMessage());
+        }
+        this.checkpointer = new IncrementalCheckpointer(dir, storage);
+        this.wal = new WriteAheadLog(dir.resolve(WAL_FILE), WriteAheadLog.DEFAULT_GROUP_COMMIT_INTERVAL_MS);
+        this.stateWriteLock = stateWriteLock;
+        this.failures = failures;
+    }
+
+    /**
+     * Loads the last checkpoint of the data directory.
+     *
+     * @param empty the empty repository to load the checkpoint into
+     * @return the repository holding the checkpointed state
+     * @throws LibraryException if the checkpoint cannot be loaded
+     */
+    LibraryRepository recover(LibraryRepository empty) throws LibraryException {
+        return checkpointer.recover(empty);
+    }
+
+    /**
+     * Tracks the changes made to a repository, for the next checkpoints to
+     * write them. Called whenever the library replaces its repository.
+     *
+     * @param repo the repository holding the library state
+     * @return the repository to make the changes through
+     */
+    LibraryRepository track(LibraryRepository repo) {
+        tracked = new DirtyTrackingLibraryRepository(repo);
+        return tracked;
+    }
+
+    /**
+     * Returns the tracked repository without change tracking, for reads
+     * that hand out records the caller does not modify.
+     *
+     * @return the repository holding the data
+     */
+    LibraryRepository untracked() {
+        return tracked.getDelegate();
+    }
+
+    /**
+     * Applies the write-ahead log to the recovered state of a library. The
+     * output of the replayed operations is discarded and their events are
+     * not recorded, since the event history is not recovered; operations
+     * already reflected by the checkpoint are skipped.
+     *
+     * @param library the library, holding the recovered state
+     * @throws LibraryException if the log cannot be read
+     */
+    void replay(LibraryService library) throws LibraryException {
+        LibraryRepository repo = library.accessRepository();
+        LibraryLogger logger = library.logger();
+        // The output of the replayed operations is discarded on this thread only
+        ThreadRoutedPrintStream console = ThreadRoutedPrintStream.install();
+        PrintStream previous = console.route(new PrintStream(OutputStream.nullOutputStream()));
+        LibraryListWithPI<String> skipped = new SLLLibraryListWithPI<>();
+        int replayed;
+        logger.setMuted(true);
+        replaying = true;
+        try {
+            replayed = wal.replay(repo.getSequence(), (sequence, operation, args) -> {
+                if (sequence <= repo.getSequence()) return;
+                try {
+                    library.applyChange(operation, args);
+                } catch (LibraryException e) {
+                    // Only successful operations are logged, so this means the log does not match the snapshot
+                    skipped.insert("Skipped logged operation " + sequence + " (" + operation + "): " + e.getMessage());
+                }
+                repo.setSequence(sequence);
+            });
+        } finally {
+            replaying = false;
+            console.route(previous);
+            logger.setMuted(false);
+        }
+        if (replayed > 0) logger.logEvent("Recovered " + replayed + " operations from the write-ahead log.");
+        if (!skipped.isEmpty()) logger.logEvents(skipped);
+    }
+
+    /**
+     * Starts checkpointing the state in the background, every
+     * {@link IncrementalCheckpointer#DEFAULT_CHECKPOINT_INTERVAL_MS} milliseconds.
+     */
+    void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::backgroundCheckpoint,
+                IncrementalCheckpointer.DEFAULT_CHECKPOINT_INTERVAL_MS,
+                IncrementalCheckpointer.DEFAULT_CHECKPOINT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a mutation in the write-ahead log and waits until it is
+     * durable, then advances the sequence number of the repository to it.
+     * Concurrent operations may finish out of log order, so the highest
+     * sequence number is kept. Replayed operations are already in the log,
+     * and are not logged again.
+     *
+     * @param repo      the repository the mutation applied to
+     * @param operation the applied operation
+     * @param args      the arguments of the operation
+     * @throws LibraryException if the log cannot be written
+     */
+    void append(LibraryRepository repo, LogOperation operation, String... args) throws LibraryException {
+        if (replaying) return;
+        long sequence = wal.append(operation, args);
+        synchronized (sequenceLock) {
+            if (sequence > repo.getSequence()) repo.setSequence(sequence);
+        }
+    }
+
+    /**
+     * Writes the records changed since the last checkpoint, holding the
+     * state lock exclusively while they are collected.
+     *
+     * @return the number of records written
+     * @throws LibraryException if the checkpoint cannot be written
+     */
+    int checkpoint() throws LibraryException {
+        return checkpointer.checkpoint(tracked, wal, stateWriteLock);
+    }
+
+    /**
+     * Runs an operation holding the checkpointer, for operations that take
+     * the state lock exclusively and then checkpoint or rebase the state:
+     * the background checkpoints take the checkpointer before the state
+     * lock, and this keeps that order.
+     *
+     * @param mutation the operation to run
+     * @throws LibraryException if the operation fails
+     */
+    void withCheckpointer(LibraryService.Mutation mutation) throws LibraryException {
+        synchronized (checkpointer) {
+            mutation.run();
+        }
+    }
+
+    /**
+     * Makes a repository loaded from a snapshot the new base of the
+     * checkpoints, replacing everything logged so far.
+     *
+     * @param loaded the loaded repository
+     * @throws LibraryException if the new base cannot be written
+     */
+    void rebase(LibraryRepository loaded) throws LibraryException {
+        loaded.setSequence(wal.getLastSequence());
+        checkpointer.rebase(loaded, wal);
+    }
+
+    /**
+     * Stops the background checkpoints and checkpoints the pending changes,
+     * so the next start does not need to replay them, then closes the log.
+     */
+    @Override
+    public void close() {
+        if (scheduler != null) scheduler.shutdown();
+        try {
+            if (scheduler != null) scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            checkpoint();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (LibraryException e) {
+            failures.accept("Final checkpoint failed: " + e.getMessage());
+        }
+        wal.close();
+    }
+
+    /**
+     * Body of the background checkpoints. Failures are reported and the
+     * changes retried at the next checkpoint.
+     */
+    private void backgroundCheckpoint() {
+        try {
+            checkpoint();
+        } catch (LibraryException e) {
+            failures.accept("Background checkpoint failed: " + e.getMessage());
+        }
+    }
+}
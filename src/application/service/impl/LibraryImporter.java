@@ -0,0 +1,249 @@
+package application.service.impl;
+
+import application.service.IBookService;
+import application.service.ILoanService;
+import application.service.IUserService;
+import application.service.ImportResult;
+import application.service.TitleRecord;
+import common.LibraryClock;
+import common.LibraryException;
+import common.LibraryLogger;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import common.dataStructures.queue.LibraryQueue;
+import domain.book.Book;
+import domain.book.BookFormat;
+import domain.book.DBook;
+import domain.book.PBook;
+import domain.inventory.BookInventory;
+import domain.inventory.BookInventoryImpl;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
+import domain.user.User;
+import infrastructure.repository.LibraryRepository;
+
+import java.nio.file.Path;
+import java.util.function.Predicate;
+
+/**
+ * Bulk changes of the state of a {@link LibraryService}: imports of users
+ * and books from files, and moves of titles between the libraries of a
+ * partitioned catalog.
+ * <p>
+ * These changes are not written to the write-ahead log one by one. The
+ * library runs them holding its state lock exclusively, and in durable
+ * mode checkpoints the state before releasing it; the importer only applies
+ * them to the repository. It is bound to one repository, and created again
+ * whenever the library replaces it.
+ */
+final class LibraryImporter {
+
+    /** Repository the changes are made through. */
+    private final LibraryRepository repo;
+
+    /** Repository without change tracking, for reads that hand out records the caller does not modify. */
+    private final LibraryRepository untracked;
+
+    /** Service managing the users of the repository. */
+    private final IUserService userService;
+
+    /** Service managing the books of the repository. */
+    private final IBookService bookService;
+
+    /** Service managing the loans of the repository. */
+    private final ILoanService loanService;
+
+    /** Logger recording the events of the repository. */
+    private final LibraryLogger libraryLogger;
+
+    /**
+     * Binds an importer to a repository and to the services of the library
+     * working on it.
+     *
+     * @param repo          repository the changes are made through
+     * @param untracked     the same repository without change tracking
+     * @param userService   service managing the users of the repository
+     * @param bookService   service managing the books of the repository
+     * @param loanService   service managing the loans of the repository
+     * @param libraryLogger logger recording the events of the repository
+     */
+    LibraryImporter(LibraryRepository repo, LibraryRepository untracked, IUserService userService,
+                    IBookService bookService, ILoanService loanService, LibraryLogger libraryLogger) {
+        this.repo = repo;
+        this.untracked = untracked;
+        this.userService = userService;
+        this.bookService = bookService;
+        this.loanService = loanService;
+        this.libraryLogger = libraryLogger;
+    }
+
+    /**
+     * Imports users from a CSV file, see {@link IUserService#importUsers(Path)}.
+     *
+     * @param path the path of the file
+     * @return the number of users imported and skipped
+     * @throws LibraryException if the file cannot be read
+     */
+    ImportResult importUsers(Path path) throws LibraryException {
+        return userService.importUsers(path);
+    }
+
+    /**
+     * Imports books from a CSV file, see {@link IBookService#importBooks(Path)},
+     * then lends the copies received to the users waiting for their titles.
+     *
+     * @param path the path of the file
+     * @return the number of book records imported and skipped
+     * @throws LibraryException if the file cannot be read
+     */
+    ImportResult importBooks(Path path) throws LibraryException {
+        ImportResult result = bookService.importBooks(path);
+
+        // Serve the users waiting for a title that received copies
+        long dueDate = LibraryClock.epochSecond() + LoanRecord.DEFAULT_PERIOD_SECONDS;
+        LibraryListWithPI<String> waited = new SLLLibraryListWithPI<>();
+        repo.forEachWaitingList((title, queue) -> { if (!queue.isEmpty()) waited.insert(title); });
+        for (waited.start(); !waited.isEnd(); waited.next()) {
+            String title = waited.get();
+            BookInventory bookInventory = repo.findInventory(title);
+            while (bookInventory != null && bookInventory.hasPBook() && bookInventory.getPBook().isAvailable()) {
+                User user = loanService.updateWaitingList(title, dueDate);
+                if (user == null) break;
+                libraryLogger.logEvent("User \"" + user.getName() + ", joined queue for \"" + title + "\"  (" + BookFormat.PHYSICAL + ").");
+                bookInventory = repo.findInventory(title);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Copies the records of the titles leaving the library.
+     *
+     * @param leaving tells whether a title leaves the library
+     * @param records receives the records of the leaving titles that have copies
+     */
+    void exportTitles(Predicate<String> leaving, LibraryListWithPI<TitleRecord> records) {
+        untracked.forEachInventory(bookInventory -> {
+            String title = bookInventory.getTitle();
+            if (!leaving.test(title) || (!bookInventory.hasPBook() && !bookInventory.hasDBook())) return;
+            PBook pBook = bookInventory.hasPBook() ? bookInventory.getPBook() : null;
+            LibraryListWithPI<String> waiting = new SLLLibraryListWithPI<>();
+            LibraryQueue<User> queue = untracked.findWaitingList(title);
+            if (queue != null) for (User user : queue) waiting.insert(user.getName());
+            records.insert(new TitleRecord(title, pBook != null,
+                    pBook != null ? pBook.getTotalCopies() : 0,
+                    pBook != null ? pBook.getAvailableCopies() : 0,
+                    pBook != null ? pBook.getReservedCopies() : 0,
+                    bookInventory.hasDBook(), waiting,
+                    borrowersOf(pBook), borrowersOf(bookInventory.hasDBook() ? bookInventory.getDBook() : null),
+                    holdsOn(title)));
+        });
+    }
+
+    /**
+     * Takes over titles moved from another library, replacing whatever the
+     * library held about them. Nothing is changed unless every user the
+     * records name exists.
+     *
+     * @param records the records of the moved titles
+     * @throws LibraryException if a user named by the records does not exist
+     */
+    void importTitles(LibraryListWithPI<TitleRecord> records) throws LibraryException {
+        for (TitleRecord record : records) {
+            for (String name : record.getWaiting()) requireUser(name);
+            for (TitleRecord.Borrower borrower : record.getPhysicalBorrowers()) requireUser(borrower.getName());
+            for (TitleRecord.Borrower borrower : record.getDigitalBorrowers()) requireUser(borrower.getName());
+        }
+        for (TitleRecord record : records) {
+            String title = record.getTitle();
+            clearTitle(title);
+            PBook pBook = record.isPhysical() ? new PBook(title, record.getTotalCopies(),
+                    record.getAvailableCopies() + record.getReservedCopies(), record.getReservedCopies()) : null;
+            DBook dBook = record.isDigital() ? new DBook(title) : null;
+            repo.saveInventory(new BookInventoryImpl(title, pBook, dBook));
+            for (TitleRecord.Borrower borrower : record.getPhysicalBorrowers())
+                repo.addLoan(repo.findUser(borrower.getName()), pBook, borrower.getDueDate());
+            for (TitleRecord.Borrower borrower : record.getDigitalBorrowers())
+                repo.addLoan(repo.findUser(borrower.getName()), dBook, borrower.getDueDate());
+            for (TitleRecord.Borrower hold : record.getHolds())
+                repo.addHold(hold.getName(), title, hold.getDueDate());
+            if (record.getWaiting().isEmpty()) continue;
+            LibraryQueue<User> queue = repo.findOrCreateWaitingList(title);
+            for (String name : record.getWaiting()) {
+                User user = repo.findUser(name);
+                if (user != null) queue.add(user);
+            }
+        }
+    }
+
+    /**
+     * Removes the titles that left the library: their copies, loans,
+     * waiting lists and holds.
+     *
+     * @param leaving tells whether a title left the library
+     * @param titles  receives the titles removed
+     */
+    void dropTitles(Predicate<String> leaving, LibraryListWithPI<String> titles) {
+        untracked.forEachInventory(bookInventory -> {
+            if (leaving.test(bookInventory.getTitle()) && (bookInventory.hasPBook() || bookInventory.hasDBook()))
+                titles.insert(bookInventory.getTitle());
+        });
+        for (String title : titles) clearTitle(title);
+    }
+
+    /**
+     * Lists the names of the users holding a copy of a book.
+     *
+     * @param book the book, or null for a format the title does not have
+     * @return the names of the borrowers
+     */
+    private LibraryListWithPI<TitleRecord.Borrower> borrowersOf(Book book) {
+        LibraryListWithPI<TitleRecord.Borrower> borrowers = new SLLLibraryListWithPI<>();
+        if (book != null) untracked.forEachBorrowerWhile(book, user -> {
+            borrowers.insert(new TitleRecord.Borrower(user.getName(), untracked.findLoan(user, book).getDueDate()));
+            return true;
+        });
+        return borrowers;
+    }
+
+    /**
+     * Lists the names of the users a copy of a title is held for.
+     *
+     * @param title the title
+     * @return the names of the users, with the expiry of their holds
+     */
+    private LibraryListWithPI<TitleRecord.Borrower> holdsOn(String title) {
+        LibraryListWithPI<TitleRecord.Borrower> borrowers = new SLLLibraryListWithPI<>();
+        LibraryListWithPI<HoldRecord> holds = untracked.findHolds(title);
+        if (holds != null) for (HoldRecord hold : holds)
+            borrowers.insert(new TitleRecord.Borrower(hold.getName(), hold.getExpiry()));
+        return borrowers;
+    }
+
+    /**
+     * Removes everything held about a title: its loans, its waiting list, its
+     * holds and its copies. The repository keeps the emptied inventory.
+     *
+     * @param title the title
+     */
+    private void clearTitle(String title) {
+        BookInventory bookInventory = repo.findInventory(title);
+        if (bookInventory == null) return;
+        for (Book book : new Book[] { bookInventory.getPBook(), bookInventory.getDBook() }) {
+            if (book != null) repo.removeLoansByBook(book);
+        }
+        repo.removeWaitingList(title);
+        repo.removeHolds(title);
+        repo.saveInventory(new BookInventoryImpl(title));
+    }
+
+    /**
+     * Checks that a user exists.
+     *
+     * @param name the user name
+     * @throws LibraryException if the user does not exist
+     */
+    private void requireUser(String name) throws LibraryException {
+        if (!repo.containsUser(name)) throw new LibraryException("User \"" + name + "\", not found");
+    }
+}
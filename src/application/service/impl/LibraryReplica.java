@@ -0,0 +1,248 @@
+package application.service.impl;
+
+import application.service.ChangeListener;
+import common.LibraryException;
+import common.ThreadRoutedPrintStream;
+import infrastructure.persistence.LogOperation;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read-only copy of a library kept up to date from its change stream.
+ * <p>
+ * The replica starts from a snapshot of the primary library and applies
+ * the changes that follow it, in stream order, on a thread of its own, to
+ * a library of its own: reads served by the replica never wait for the
+ * writes of the primary. Changes wait in a bounded mailbox; if the replica
+ * falls so far behind that its mailbox overflows, or the primary is changed
+ * as a whole, the replica drops its pending changes and copies the primary
+ * again from a fresh snapshot, so the primary never waits for a replica.
+ * <p>
+ * The lag of the replica is the number of changes of the primary it has not
+ * applied yet, see {@link #getLag()}, and the time the oldest of them has
+ * been waiting, see {@link #getLagMillis()}.
+ */
+public class LibraryReplica implements ChangeListener, AutoCloseable {
+
+    /** Default capacity of the mailbox of a replica, in changes. */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /** Stream discarding the output of the applied changes. */
+    private static final PrintStream DISCARD = new PrintStream(OutputStream.nullOutputStream());
+
+    /** A change waiting to be applied. */
+    private record Change(long sequence, LogOperation operation, String[] args, long publishedNanos) {
+    }
+
+    /** Placeholder change waking the applier up, to copy the primary again or to stop. */
+    private static final Change WAKE_UP = new Change(0, null, null, 0);
+
+    /** Primary library the replica copies. */
+    private final LibraryService primary;
+
+    /** Name of the replica, used for its thread and its status. */
+    private final String name;
+
+    /** Changes received and not applied yet. */
+    private final BlockingQueue<Change> mailbox;
+
+    /** Thread applying the changes. */
+    private final Thread applier;
+
+    /** Console output, discarded on the applying thread. */
+    private final ThreadRoutedPrintStream console;
+
+    /** Copy of the library the reads are served from; replaced on each copy of the primary. */
+    private volatile LibraryService copy;
+
+    /** Position in the change stream of the last change the copy reflects. */
+    private volatile long appliedSequence;
+
+    /** Whether the copy must be replaced by a fresh copy of the primary. */
+    private volatile boolean stale = true;
+
+    /** Number of times the primary was copied. */
+    private volatile int copies;
+
+    /** Whether the replica was closed. */
+    private volatile boolean closed;
+
+    /**
+     * Constructs a replica of a library and starts copying it. The replica
+     * is not current until its first copy is made, see {@link #isCurrent}.
+     *
+     * @param primary  the library to copy
+     * @param name     the name of the replica
+     * @param capacity the number of changes the replica may lag behind before copying the primary again
+     */
+    public LibraryReplica(LibraryService primary, String name, int capacity) {
+        this.primary = primary;
+        this.name = name;
+        this.mailbox = new ArrayBlockingQueue<>(capacity);
+        this.console = ThreadRoutedPrintStream.install();
+        this.applier = new Thread(this::applyLoop, "library-" + name);
+        applier.setDaemon(true);
+        applier.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * An overflowing mailbox makes the replica copy the primary again.
+     */
+    @Override
+    public void onChange(long sequence, LogOperation operation, String[] args) {
+        if (stale) return;
+        if (!mailbox.offer(new Change(sequence, operation, args, System.nanoTime()))) {
+            primary.unsubscribe(this);
+            markStale();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onReset() {
+        markStale();
+    }
+
+    /** @return the name of the replica */
+    public String getName() { return name; }
+
+    /**
+     * Returns the copy of the library the reads are served from.
+     *
+     * @return the copy, or null before the first copy of the primary is made
+     */
+    public LibraryService getCopy() { return copy; }
+
+    /**
+     * Returns the number of changes of the primary the replica has not applied.
+     *
+     * @return the lag in changes, or {@link Long#MAX_VALUE} while the replica is being copied
+     */
+    public long getLag() {
+        if (stale || copy == null) return Long.MAX_VALUE;
+        return Math.max(0, primary.getChangeSequence() - appliedSequence);
+    }
+
+    /**
+     * Returns how long the oldest change not applied yet has been waiting.
+     *
+     * @return the lag in milliseconds, 0 if every change is applied
+     */
+    public long getLagMillis() {
+        Change oldest = mailbox.peek();
+        return oldest == null || oldest == WAKE_UP ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.publishedNanos());
+    }
+
+    /**
+     * Tells whether the replica may serve reads: it holds a copy of the
+     * primary and lags it by at most the given number of changes.
+     *
+     * @param maxLag the maximum number of changes not applied yet
+     * @return true if the replica is current enough
+     */
+    public boolean isCurrent(long maxLag) {
+        return getLag() <= maxLag;
+    }
+
+    /** @return the position in the change stream of the last change applied */
+    public long getAppliedSequence() { return appliedSequence; }
+
+    /** @return the number of times the primary was copied */
+    public int getCopies() { return copies; }
+
+    /**
+     * Stops the replica and releases its copy.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        primary.unsubscribe(this);
+        mailbox.clear();
+        mailbox.offer(WAKE_UP);
+        try {
+            applier.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        LibraryService current = copy;
+        if (current != null) current.close();
+    }
+
+    /** Drops the pending changes and has the applier copy the primary again. */
+    private void markStale() {
+        stale = true;
+        mailbox.clear();
+        mailbox.offer(WAKE_UP);
+    }
+
+    /** Applies the changes in order, copying the primary whenever the replica is stale. */
+    private void applyLoop() {
+        console.route(DISCARD);
+        while (!closed) {
+            try {
+                if (stale) {
+                    recopy();
+                    continue;
+                }
+                Change change = mailbox.take();
+                if (change == WAKE_UP || stale) continue;
+                try {
+                    copy.applyChange(change.operation(), change.args());
+                } catch (LibraryException e) {
+                    // The change succeeded on the primary: the copy diverged, start over
+                    markStale();
+                    continue;
+                }
+                appliedSequence = change.sequence();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        console.unroute();
+    }
+
+    /**
+     * Replaces the copy by a fresh copy of the primary, subscribing again to
+     * the changes that follow it.
+     */
+    private void recopy() throws InterruptedException {
+        Path snapshot = null;
+        try {
+            snapshot = Files.createTempFile("library-" + name, ".snapshot");
+            mailbox.clear();
+            stale = false;
+            long sequence = primary.subscribe(this, snapshot);
+            LibraryService fresh = new LibraryService();
+            fresh.loadSnapshot(snapshot.toString());
+            LibraryService previous = copy;
+            appliedSequence = sequence;
+            copy = fresh;
+            copies++;
+            if (previous != null) previous.close();
+        } catch (IOException | LibraryException e) {
+            stale = true;
+            primary.logEvent("Replica " + name + " could not copy the library: " + e.getMessage());
+            Thread.sleep(1_000);
+        } finally {
+            if (snapshot != null) {
+                try {
+                    Files.deleteIfExists(snapshot);
+                } catch (IOException e) {
+                    // The temporary file is left behind
+                }
+            }
+        }
+    }
+}
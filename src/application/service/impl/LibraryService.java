@@ -1,48 +1,191 @@
 package application.service.impl;
 
+import application.service.BatchOperation;
+import application.service.ChangeListener;
 import application.service.IBookService;
 import application.service.ILibraryService;
 import application.service.ILoanService;
 import application.service.IUserService;
+import application.service.ImportResult;
+import application.service.LoanOutcome;
+import application.service.PopularityMetric;
+import application.service.TitleCount;
+import application.service.TitleRecord;
+import common.LibraryClock;
 import common.LibraryException;
+import common.LockStripes;
+import common.ThreadRoutedPrintStream;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+import common.dataStructures.queue.LibraryQueue;
+import common.dataStructures.set.LibrarySet;
+import common.dataStructures.set.impl.HashLibrarySet;
 import domain.book.Book;
 import domain.book.BookFormat;
+import domain.inventory.BookInventory;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
 import domain.user.User;
+import domain.user.UserRole;
+import infrastructure.persistence.IncrementalCheckpointer;
+import infrastructure.persistence.LogOperation;
+import infrastructure.persistence.SnapshotStore;
+import infrastructure.persistence.WriteAheadLog;
 import infrastructure.repository.LibraryRepository;
+import infrastructure.repository.impl.HeapLibraryRepository;
 import common.LibraryLogger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
 
 /**
  * Implementation of ILibraryService, handling all library operations
  * by delegating to user, book, and loan services, while logging events.
+ * <p>
+ * When constructed with a data directory, every successful mutation is
+ * recorded in a {@link WriteAheadLog} before the call returns, and the state
+ * is recovered on startup from the last checkpoint plus the log. Checkpoints
+ * are incremental: they write only the records changed since the previous
+ * one, see {@link IncrementalCheckpointer}. The log, the checkpoints and the
+ * recovery are handled by a {@link LibraryDurability}, the imports and moves
+ * of titles by a {@link LibraryImporter}, and the delivery of the changes to
+ * replicas by a {@link ChangeStream}.
+ * <p>
+ * The storage engine is chosen with the repository factory given at
+ * construction; it defaults to the in-memory {@link HeapLibraryRepository}.
+ * <p>
+ * The service is thread-safe. Each operation locks only the stripes of the
+ * titles and users it touches, see {@link LockStripes}, so operations on
+ * unrelated titles and users run in parallel. Operations on the whole state,
+ * such as imports and snapshots, exclude every other operation instead.
  */
 public class LibraryService implements ILibraryService {
 
     /** Repository that stores all library data, including users, books, and loans. */
-    private final LibraryRepository repo;
+    private LibraryRepository repo;
 
     /** Logger responsible for recording all library events and actions. */
-    private final LibraryLogger libraryLogger;
+    private LibraryLogger libraryLogger;
 
     /** Service responsible for managing library users. */
-    private final IUserService userService;
+    private IUserService userService;
 
     /** Service responsible for managing library books. */
-    private final IBookService bookService;
+    private IBookService bookService;
 
     /** Service responsible for managing loans and reservations. */
-    private final ILoanService loanService;
+    private ILoanService loanService;
+
+    /** Counts the loans and waiting list entries of each title; outlives repository replacements. */
+    private final PopularityTracker popularity = new PopularityTracker();
+
+    /** Applies the imports and the moves of titles to the repository. */
+    private LibraryImporter importer;
+
+    /** Factory creating empty repositories of the configured storage engine. */
+    private final Supplier<LibraryRepository> storage;
+
+    /** Write-ahead log and checkpoints of the data directory, or null if durability is disabled. */
+    private final LibraryDurability durability;
+
+    /** Locks of the titles and users, held by each operation for the records it touches. */
+    private final LockStripes stripes = new LockStripes();
+
+    /**
+     * Lock between single operations and operations on the whole state:
+     * every operation holds it shared while it runs, while checkpoints,
+     * imports and snapshots hold it exclusively, so they never see an
+     * operation half applied nor run alongside one.
+     */
+    private final ReentrantReadWriteLock stateLock = new ReentrantReadWriteLock();
+
+    /** Delivers the logged mutations to the replicas. */
+    private final ChangeStream changes = new ChangeStream();
+
+    /** Maximum number of operations of a batch, so that it fits a write-ahead log record. */
+    private static final int MAX_BATCH_SIZE = 10_000;
+
+    /** Maximum number of users of a cohort, so that it fits a write-ahead log record. */
+    private static final int MAX_COHORT_SIZE = 10_000;
+
+    /** Maximum number of holds on a title released together, so that they fit a write-ahead log record. */
+    private static final int MAX_RELEASED_HOLDS = 10_000;
 
     /**
      * Constructs a new LibraryService and initializes
      * repository, logger, and sub-services.
      */
     public LibraryService() {
-        this.repo = new LibraryRepository();
+        this.storage = HeapLibraryRepository::new;
+        this.durability = null;
+        wire(storage.get());
+    }
+
+    /**
+     * Constructs a durable LibraryService whose state is kept in the given
+     * data directory. The last checkpoint is loaded if present and the
+     * write-ahead log is replayed on top of it. Changes are checkpointed
+     * incrementally in the background.
+     *
+     * @param dataDir directory holding the checkpoint snapshot and the write-ahead log
+     * @throws LibraryException if the stored state cannot be recovered
+     */
+    public LibraryService(String dataDir) throws LibraryException {
+        this(dataDir, HeapLibraryRepository::new);
+    }
+
+    /**
+     * Constructs a LibraryService storing its state in repositories created by
+     * the given factory. If a data directory is given, the service is durable
+     * as described in {@link #LibraryService(String)}.
+     *
+     * @param dataDir directory holding the checkpoint snapshot and the write-ahead log,
+     *                or null to keep the state only in the repository
+     * @param storage factory creating empty repositories of the chosen storage engine
+     * @throws LibraryException if the stored state cannot be recovered
+     */
+    public LibraryService(String dataDir, Supplier<LibraryRepository> storage) throws LibraryException {
+        this.storage = storage;
+        if (dataDir == null) {
+            this.durability = null;
+            wire(storage.get());
+            return;
+        }
+        this.durability = new LibraryDurability(dataDir, storage, stateLock.writeLock(), this::logEvent);
+        wire(durability.recover(storage.get()));
+        durability.replay(this);
+        durability.start();
+    }
+
+    /**
+     * Binds the logger, sub-services and importer to the given repository, tracking its
+     * changes if durability is enabled. Used at construction and whenever the
+     * repository is replaced.
+     *
+     * @param repo the repository holding the library state
+     */
+    private void wire(LibraryRepository repo) {
+        LibraryRepository previous = this.repo;
+        LibraryRepository untracked = repo;
+        if (durability != null) repo = durability.track(repo);
+        this.repo = repo;
         this.userService = new UserService(repo);
         this.libraryLogger = new LibraryLogger(repo);
         this.bookService = new BookService(repo);
-        this.loanService = new LoanService(repo);
+        this.loanService = new LoanService(repo, popularity);
+        this.importer = new LibraryImporter(repo, untracked, userService, bookService, loanService, libraryLogger);
+        if (previous != null) previous.close();
     }
 
     // ----------------------
@@ -54,8 +197,32 @@ public class LibraryService implements ILibraryService {
      */
     @Override
     public void addUser(String name) throws LibraryException {
-        userService.addUser(name);
-        libraryLogger.logEvent("User \"" + name + "\", successfully added.");
+        addUser(name, LibraryClock.epochSecond());
+    }
+
+    /**
+     * Adds a user created at a given date.
+     *
+     * @param name         the user name
+     * @param creationDate the creation date of the user, in seconds since the epoch
+     * @throws LibraryException if the user already exists
+     */
+    private void addUser(String name, long creationDate) throws LibraryException {
+        mutate(guard -> guard.users(name), image -> image.captureUser(name), () -> applyAddUser(name, creationDate, null));
+    }
+
+    /**
+     * Adds a user, holding its stripe.
+     *
+     * @param name         the user name
+     * @param creationDate the creation date of the user, in seconds since the epoch
+     * @param batch        the batch the operation belongs to, or null if it runs alone
+     * @throws LibraryException if the user already exists
+     */
+    private void applyAddUser(String name, long creationDate, Batch batch) throws LibraryException {
+        userService.addUser(name, creationDate);
+        durable(batch, LogOperation.ADD_USER, creationDate, name);
+        logEvent(batch, "User \"" + name + "\", successfully added.");
     }
 
     /**
@@ -63,23 +230,110 @@ public class LibraryService implements ILibraryService {
      */
     @Override
     public void removeUser(String name) throws LibraryException {
+        removeUser(name, dueDateFromNow());
+    }
+
+    /**
+     * Removes a user, lending the copies held for the user to the users
+     * waiting until a due date.
+     *
+     * @param name    the user name
+     * @param dueDate the due date of the loans of the users waiting, in seconds since the epoch
+     * @throws LibraryException if the user does not exist
+     */
+    private void removeUser(String name, long dueDate) throws LibraryException {
+        // The titles of the user's loans and holds are only known once the titles are locked,
+        // and anyone waiting for a held title may be lent the released copy
+        mutate(guard -> {
+            guard.allTitles();
+            if (heldTitles(name).isEmpty()) guard.users(name);
+            else guard.allUsers();
+        }, image -> image.captureUserWithTitles(name), () -> applyRemoveUser(name, dueDate, null));
+    }
+
+    /**
+     * Removes a user, holding every title stripe and the stripe of the user,
+     * or every user stripe if copies are held for the user: the released
+     * copies are lent to the users waiting for them.
+     *
+     * @param name    the user name
+     * @param dueDate the due date of the loans of the users waiting, in seconds since the epoch
+     * @param batch   the batch the operation belongs to, or null if it runs alone
+     * @throws LibraryException if the user does not exist
+     */
+    private void applyRemoveUser(String name, long dueDate, Batch batch) throws LibraryException {
         if(!validUserName(name)) { throw new LibraryException("User \"" + name + "\", not found"); }
 
+        LibraryListWithPI<String> held = heldTitles(name);
         User user = userService.removeUser(name);
-        for(Book book : repo.getLoansByUser().get(user)) {
-            if (book.getFormat().equals(BookFormat.PHYSICAL.toString())) {
-                bookService.removeBookByUserDeletion(book.getTitle());
-            }
+        int ended = bookService.removeBooksByUserDeletion(user);
+        durable(batch, LogOperation.REMOVE_USER, dueDate, name);
+        logEvent(batch, "User \"" + name + "\", successfully removed." + endedLoans(ended));
+        for (String title : held) {
+            LibraryListWithPI<User> promoted = loanService.promoteWaitingList(title, 1, dueDate);
+            if (!promoted.isEmpty()) logEvent(batch, LoanService.promotionMessage(title, promoted));
         }
-        libraryLogger.logEvent("User \"" + name + "\", successfully removed.");
+    }
+
+    /**
+     * Returns the titles of the copies held for a user, holding every title
+     * stripe.
+     *
+     * @param name the user name
+     * @return the titles, in no particular order
+     */
+    private LibraryListWithPI<String> heldTitles(String name) {
+        LibraryListWithPI<String> held = new SLLLibraryListWithPI<>();
+        untracked().forEachHolds((title, holds) -> {
+            for (HoldRecord hold : holds) {
+                if (!hold.getName().equals(name)) continue;
+                held.insert(title);
+                return;
+            }
+        });
+        return held;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRole(String name, String role) throws LibraryException {
+        // The waiting lists of the user are only known by looking at every title
+        mutate(guard -> guard.allTitles().users(name), image -> image.captureUserWithQueues(name), () -> applySetRole(name, role));
+    }
+
+    /**
+     * Sets the role of a user, holding every title stripe and the stripe of
+     * the user.
+     *
+     * @param name the user name
+     * @param role the new role
+     * @throws LibraryException if the user does not exist or the role is invalid
+     */
+    private void applySetRole(String name, String role) throws LibraryException {
+        UserRole fixedRole = UserRole.fromString(role);
+
+        int moved = userService.setRole(name, fixedRole);
+        durable(LogOperation.SET_ROLE, name, fixedRole.name());
+        libraryLogger.logEvent("User \"" + name + "\", role set to " + fixedRole + "."
+                + (moved == 0 ? "" : " Moved in " + moved + (moved == 1 ? " waiting list." : " waiting lists.")));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listUsers(long from, int limit) throws LibraryException {
+        return query(LockStripes.Guard::allUsers, () -> userService.listUsers(from, limit));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void listUsers() throws LibraryException {
-        userService.listUsers();
+    public long visitUsers(long from, int limit, Consumer<? super User> visitor) throws LibraryException {
+        return query(LockStripes.Guard::allUsers, () -> userService.visitUsers(from, limit, visitor));
     }
 
     // ----------------------
@@ -91,13 +345,86 @@ public class LibraryService implements ILibraryService {
      */
     @Override
     public void addBook(String title, String format) throws LibraryException {
+        addBook(title, format, dueDateFromNow());
+    }
+
+    /**
+     * Adds a book copy, lending it to the first user waiting until a due date.
+     *
+     * @param title   the title
+     * @param format  the format of the copy
+     * @param dueDate the due date of the loan, in seconds since the epoch
+     * @throws LibraryException if the copy cannot be added
+     */
+    private void addBook(String title, String format, long dueDate) throws LibraryException {
+        mutate(guard -> selectWaiting(guard, title, 1), image -> image.captureTitle(title),
+                () -> applyAddBook(title, format, dueDate, null));
+    }
+
+    /**
+     * Adds a book copy, holding the stripes of the title and of the first
+     * user waiting for it.
+     *
+     * @param title   the title
+     * @param format  the format of the copy
+     * @param dueDate the due date of the loan of the first user waiting, in seconds since the epoch
+     * @param batch   the batch the operation belongs to, or null if it runs alone
+     * @throws LibraryException if the copy cannot be added
+     */
+    private void applyAddBook(String title, String format, long dueDate, Batch batch) throws LibraryException {
         BookFormat fixedFormat = BookFormat.fromString(format);
 
         bookService.addBook(title, fixedFormat.toString());
-        User user = loanService.updateWaitingList(title);
+        durable(batch, LogOperation.ADD_BOOK, dueDate, title, fixedFormat.toString());
+        User user = loanService.updateWaitingList(title, dueDate);
         if(user != null)
-            libraryLogger.logEvent("User \"" + user.getName() + ", joined queue for \"" + title + "\"  (" + fixedFormat + ").");
-        libraryLogger.logEvent("Book \"" + title + "\" (" + fixedFormat + "), successfully added.");
+            logEvent(batch, "User \"" + user.getName() + ", joined queue for \"" + title + "\"  (" + fixedFormat + ").");
+        logEvent(batch, "Book \"" + title + "\" (" + fixedFormat + "), successfully added.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int addCopies(String title, int copies) throws LibraryException {
+        return addCopies(title, copies, dueDateFromNow());
+    }
+
+    /**
+     * Adds several physical copies, lending them to the users waiting until
+     * a due date.
+     *
+     * @param title   the title
+     * @param copies  the number of copies
+     * @param dueDate the due date of the loans, in seconds since the epoch
+     * @return the number of waiting users lent a copy
+     * @throws LibraryException if the copies cannot be added
+     */
+    private int addCopies(String title, int copies, long dueDate) throws LibraryException {
+        return mutateReturning(guard -> selectWaiting(guard, title, copies), image -> image.captureTitle(title),
+                () -> applyAddCopies(title, copies, dueDate, null));
+    }
+
+    /**
+     * Adds several physical copies and lends them to the users waiting for
+     * the title in a single pass, holding the stripes of the title and of
+     * the users who get a copy.
+     *
+     * @param title   the title
+     * @param copies  the number of copies
+     * @param dueDate the due date of the loans of the users waiting, in seconds since the epoch
+     * @param batch   the batch the operation belongs to, or null if it runs alone
+     * @return the number of waiting users lent a copy
+     * @throws LibraryException if the copies cannot be added
+     */
+    private int applyAddCopies(String title, int copies, long dueDate, Batch batch) throws LibraryException {
+        bookService.addCopies(title, copies);
+        durable(batch, LogOperation.ADD_COPIES, dueDate, title, Integer.toString(copies));
+        LibraryListWithPI<User> promoted = loanService.promoteWaitingList(title, copies, dueDate);
+        if (!promoted.isEmpty())
+            logEvent(batch, LoanService.promotionMessage(title, promoted));
+        logEvent(batch, "Book \"" + title + "\" (" + BookFormat.PHYSICAL + "), " + copies + " copies successfully added.");
+        return promoted.size();
     }
 
     /**
@@ -105,19 +432,63 @@ public class LibraryService implements ILibraryService {
      */
     @Override
     public void removeBook(String title, String format) throws LibraryException {
+        // Removing a digital book ends the loans of every user who borrowed it
+        mutate(guard -> {
+            guard.titles(title);
+            if (isDigital(format)) guard.allUsers();
+        }, image -> {
+            if (isDigital(format)) image.captureTitleWithBorrowers(title);
+            else image.captureTitle(title);
+        }, () -> applyRemoveBook(title, format, null));
+    }
+
+    /**
+     * Removes a book copy, holding the stripe of the title, and every user
+     * stripe if the copy is digital.
+     *
+     * @param title  the title
+     * @param format the format of the copy
+     * @param batch  the batch the operation belongs to, or null if it runs alone
+     * @throws LibraryException if the copy cannot be removed
+     */
+    private void applyRemoveBook(String title, String format, Batch batch) throws LibraryException {
         if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
         BookFormat fixedFormat = BookFormat.fromString(format);
 
-        bookService.removeBook(title, fixedFormat.toString());
-        libraryLogger.logEvent("Book \"" + title + "\" (" + fixedFormat + "), successfully removed.");
+        int ended = bookService.removeBook(title, fixedFormat.toString());
+        durable(batch, LogOperation.REMOVE_BOOK, title, fixedFormat.toString());
+        logEvent(batch, "Book \"" + title + "\" (" + fixedFormat + "), successfully removed." + endedLoans(ended));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listBooks(long from, int limit) throws LibraryException {
+        return query(LockStripes.Guard::allTitles, () -> bookService.listAvailableBooks(from, limit));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitBooks(long from, int limit, Consumer<? super Book> visitor) throws LibraryException {
+        return query(LockStripes.Guard::allTitles, () -> bookService.visitBooks(from, limit, visitor));
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void listBooks() throws LibraryException {
-        bookService.listAvailableBooks();
+    public BookFormat[] formatsOf(String title) throws LibraryException {
+        return query(guard -> guard.titles(title), () -> {
+            BookInventory bookInventory = untracked().findInventory(title);
+            if (bookInventory == null) throw new LibraryException("Book \"" + title +  "\", not found");
+            if (bookInventory.hasPBook() && bookInventory.hasDBook()) return new BookFormat[] { BookFormat.PHYSICAL, BookFormat.DIGITAL };
+            if (bookInventory.hasPBook()) return new BookFormat[] { BookFormat.PHYSICAL };
+            if (bookInventory.hasDBook()) return new BookFormat[] { BookFormat.DIGITAL };
+            return new BookFormat[0];
+        });
     }
 
     /**
@@ -125,9 +496,25 @@ public class LibraryService implements ILibraryService {
      */
     @Override
     public void showWaitingList(String title) throws LibraryException {
-        if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
+        query(guard -> guard.titles(title), () -> {
+            if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
+
+            bookService.showWaitingList(title);
+            return null;
+        });
+    }
 
-        bookService.showWaitingList(title);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void visitWaitingList(String title, Consumer<? super User> visitor) throws LibraryException {
+        query(guard -> guard.titles(title), () -> {
+            if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
+
+            bookService.visitWaitingList(title, visitor);
+            return null;
+        });
     }
 
     /**
@@ -135,7 +522,8 @@ public class LibraryService implements ILibraryService {
      */
     @Override
     public void sortInverse() throws LibraryException {
-        bookService.sortInverseBooksByTitleQuicksort();
+        mutate(LockStripes.Guard::allTitles, () -> bookService.sortInverseBooksByTitleQuicksort());
+        changes.reset();
     }
 
     /**
@@ -143,9 +531,35 @@ public class LibraryService implements ILibraryService {
      */
     @Override
     public void reserve(String title) throws LibraryException {
+        reserve(title, LibraryClock.epochSecond() + HoldRecord.DEFAULT_PERIOD_SECONDS);
+    }
+
+    /**
+     * Reserves a physical copy for nobody in particular until an expiry date.
+     *
+     * @param title  the title
+     * @param expiry the expiry date of the reservation, in seconds since the epoch
+     * @throws LibraryException if no copy can be reserved
+     */
+    private void reserve(String title, long expiry) throws LibraryException {
+        mutate(guard -> guard.titles(title), image -> image.captureTitle(title), () -> applyReserve(title, expiry, null));
+    }
+
+    /**
+     * Reserves a physical copy for nobody in particular until an expiry
+     * date, holding the stripe of the title. The reservation is an anonymous
+     * hold, which expires like the holds of users.
+     *
+     * @param title  the title
+     * @param expiry the expiry date of the reservation, in seconds since the epoch
+     * @param batch  the batch the operation belongs to, or null if it runs alone
+     * @throws LibraryException if no copy can be reserved
+     */
+    private void applyReserve(String title, long expiry, Batch batch) throws LibraryException {
         if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
 
-        loanService.reserve(title);
+        loanService.reserve(title, expiry);
+        durable(batch, LogOperation.RESERVE, expiry, title);
     }
 
     /**
@@ -153,10 +567,202 @@ public class LibraryService implements ILibraryService {
      */
     @Override
     public void vacate(String title) throws LibraryException {
+        vacate(title, dueDateFromNow());
+    }
+
+    /**
+     * Releases a reserved copy, lending it to the first user waiting until a
+     * due date.
+     *
+     * @param title   the title
+     * @param dueDate the due date of the loan, in seconds since the epoch
+     * @throws LibraryException if no copy is reserved
+     */
+    private void vacate(String title, long dueDate) throws LibraryException {
+        mutate(guard -> selectWaiting(guard, title, 1), image -> image.captureTitle(title),
+                () -> applyVacate(title, dueDate, null));
+    }
+
+    /**
+     * Releases a reserved copy, holding the stripes of the title and of the
+     * first user waiting for it.
+     *
+     * @param title   the title
+     * @param dueDate the due date of the loan of the first user waiting, in seconds since the epoch
+     * @param batch   the batch the operation belongs to, or null if it runs alone
+     * @throws LibraryException if no copy is reserved
+     */
+    private void applyVacate(String title, long dueDate, Batch batch) throws LibraryException {
+        if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
+
+        boolean vacated = loanService.vacate(title);
+        durable(batch, LogOperation.VACATE, dueDate, title);
+        if(vacated)
+            loanService.updateWaitingList(title, dueDate);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void placeHold(String name, String title, long seconds) throws LibraryException {
+        if (seconds < 1) throw new LibraryException("Invalid hold duration: " + seconds + ".");
+        holdUntil(name, title, LibraryClock.epochSecond() + seconds);
+    }
+
+    /**
+     * Holds a physical copy for a user until an expiry date.
+     *
+     * @param name   the user name
+     * @param title  the title
+     * @param expiry the expiry date, in seconds since the epoch
+     * @throws LibraryException if no copy can be held
+     */
+    private void holdUntil(String name, String title, long expiry) throws LibraryException {
+        mutate(guard -> guard.titles(title).users(name), image -> image.captureTitle(title), () -> applyPlaceHold(name, title, expiry));
+    }
+
+    /**
+     * Holds a physical copy for a user until an expiry date, holding the
+     * stripes of the title and of the user. The expiry date is logged, so
+     * that the hold expires at the same date once replayed.
+     *
+     * @param name   the user name
+     * @param title  the title
+     * @param expiry the expiry date, in seconds since the epoch
+     * @throws LibraryException if no copy can be held
+     */
+    private void applyPlaceHold(String name, String title, long expiry) throws LibraryException {
+        if(!validUserName(name)) { throw new LibraryException("User \"" + name + "\", not found"); }
+        if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
+
+        loanService.placeHold(name, title, expiry);
+        durable(LogOperation.PLACE_HOLD, name, title, Long.toString(expiry));
+        libraryLogger.logEvent("User \"" + name + ", holds \"" + title + "\"  (" + BookFormat.PHYSICAL + ") until "
+                + LibraryClock.format(expiry) + ".");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancelHold(String name, String title) throws LibraryException {
+        cancelHold(name, title, dueDateFromNow());
+    }
+
+    /**
+     * Cancels a hold, lending the copy to the next user waiting until a due
+     * date.
+     *
+     * @param name    the user name
+     * @param title   the title
+     * @param dueDate the due date of the loan, in seconds since the epoch
+     * @throws LibraryException if the user holds no copy of the title
+     */
+    private void cancelHold(String name, String title, long dueDate) throws LibraryException {
+        mutate(guard -> selectWaiting(guard, title, 1, name), image -> image.captureTitle(title),
+                () -> applyCancelHold(name, title, dueDate));
+    }
+
+    /**
+     * Cancels a hold and lends the copy to the next user waiting, holding the
+     * stripes of the title, of the user and of the next user.
+     *
+     * @param name    the user name
+     * @param title   the title
+     * @param dueDate the due date of the loan of the next user, in seconds since the epoch
+     * @throws LibraryException if the user holds no copy of the title
+     */
+    private void applyCancelHold(String name, String title, long dueDate) throws LibraryException {
         if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
 
-        if(loanService.vacate(title))
-            loanService.updateWaitingList(title);
+        loanService.cancelHold(name, title);
+        durable(LogOperation.CANCEL_HOLD, name, title, Long.toString(dueDate));
+        libraryLogger.logEvent("User \"" + name + ", cancelled hold on \"" + title + "\"  (" + BookFormat.PHYSICAL + ").");
+        LibraryListWithPI<User> promoted = loanService.promoteWaitingList(title, 1, dueDate);
+        if (!promoted.isEmpty())
+            libraryLogger.logEvent(LoanService.promotionMessage(title, promoted));
+    }
+
+    /**
+     * Releases the holds whose expiry date has passed, and lends the released
+     * copies to the users waiting for their titles.
+     * <p>
+     * The expired holds are taken from the timing wheel of the repository in
+     * one step, then released title by title: the holds of a title are
+     * released together, with a single inventory update and a single log
+     * record, and the users waiting are promoted in one pass, up to
+     * {@value #MAX_RELEASED_HOLDS} holds at a time. Holds that ended
+     * meanwhile, by a loan or a cancellation, are skipped.
+     *
+     * @return the number of holds released
+     * @throws LibraryException if the holds cannot be released
+     */
+    public int expireHolds() throws LibraryException {
+        LibraryListWithPI<HoldRecord> expired = new SLLLibraryListWithPI<>();
+        mutateReturning(guard -> {}, () -> repo.advanceHolds(LibraryClock.epochSecond(), expired::insert));
+        if (expired.isEmpty()) return 0;
+        long dueDate = dueDateFromNow();
+
+        // Group the expired holds by title, in groups that fit a log record
+        LibraryMap<String, LibraryListWithPI<HoldRecord>> byTitle = new HashLibraryMap<>(2 * expired.size());
+        LibraryListWithPI<LibraryListWithPI<HoldRecord>> groups = new SLLLibraryListWithPI<>();
+        LibraryListWithPI<String> titles = new SLLLibraryListWithPI<>();
+        for (HoldRecord hold : expired) {
+            LibraryListWithPI<HoldRecord> holds = byTitle.get(hold.getTitle());
+            if (holds == null || holds.size() == MAX_RELEASED_HOLDS) {
+                holds = new SLLLibraryListWithPI<>();
+                byTitle.put(hold.getTitle(), holds);
+                groups.insert(holds);
+                titles.insert(hold.getTitle());
+            }
+            holds.insert(hold);
+        }
+
+        int released = 0;
+        titles.start();
+        for (LibraryListWithPI<HoldRecord> holds : groups) {
+            String title = titles.get();
+            titles.next();
+            released += mutateReturning(guard -> selectWaiting(guard, title, holds.size()), image -> image.captureTitle(title), () -> {
+                LibraryListWithPI<HoldRecord> recorded = untracked().findHolds(title);
+                if (recorded == null) return 0;
+                LibrarySet<HoldRecord> current = new HashLibrarySet<>(recorded.size());
+                for (HoldRecord hold : recorded) current.add(hold);
+                LibraryListWithPI<String> names = new SLLLibraryListWithPI<>();
+                for (HoldRecord hold : holds)
+                    if (current.contains(hold)) names.insert(hold.getName());
+                return names.isEmpty() ? 0 : applyExpireHolds(title, names, dueDate);
+            });
+        }
+        return released;
+    }
+
+    /**
+     * Releases several holds on a title together and lends the released
+     * copies to the users waiting, holding the stripes of the title and of
+     * the users who get a copy.
+     *
+     * @param title   the title
+     * @param names   the names of the users whose hold expired
+     * @param dueDate the due date of the loans of the users waiting, in seconds since the epoch
+     * @return the number of holds released
+     * @throws LibraryException if the holds cannot be released
+     */
+    private int applyExpireHolds(String title, LibraryListWithPI<String> names, long dueDate) throws LibraryException {
+        LibraryListWithPI<String> released = loanService.releaseHolds(title, names);
+        if (released.isEmpty()) return 0;
+        String[] args = new String[released.size() + 2];
+        args[0] = title;
+        args[1] = Long.toString(dueDate);
+        int i = 2;
+        for (String name : released) args[i++] = name;
+        durable(LogOperation.EXPIRE_HOLDS, args);
+        libraryLogger.logEvent(LoanService.expiryMessage(title, released));
+        LibraryListWithPI<User> promoted = loanService.promoteWaitingList(title, released.size(), dueDate);
+        if (!promoted.isEmpty())
+            libraryLogger.logEvent(LoanService.promotionMessage(title, promoted));
+        return released.size();
     }
 
     // ----------------------
@@ -167,63 +773,1120 @@ public class LibraryService implements ILibraryService {
      * {@inheritDoc}
      */
     @Override
-    public void lendBook(String name, String title, String format) throws LibraryException {
+    public LoanOutcome lendBook(String name, String title, String format) throws LibraryException {
+        return lendBook(name, title, format, dueDateFromNow());
+    }
+
+    /**
+     * Lends a copy to a user until a due date, or queues the user.
+     *
+     * @param name    the user name
+     * @param title   the title
+     * @param format  the format of the copy
+     * @param dueDate the due date of the loan, in seconds since the epoch
+     * @return whether the copy was lent, or the position of the user in the waiting list
+     * @throws LibraryException if the copy cannot be lent
+     */
+    private LoanOutcome lendBook(String name, String title, String format, long dueDate) throws LibraryException {
+        return mutateReturning(guard -> guard.titles(title).users(name), image -> {
+            image.captureUser(name);
+            image.captureTitle(title);
+        }, () -> applyLendBook(name, title, format, dueDate, null));
+    }
+
+    /**
+     * Lends a copy to a user, or queues the user, holding the stripes of the
+     * title and of the user.
+     *
+     * @param name    the user name
+     * @param title   the title
+     * @param format  the format of the copy
+     * @param dueDate the due date of the loan, in seconds since the epoch
+     * @param batch   the batch the operation belongs to, or null if it runs alone
+     * @return whether the copy was lent, or the position of the user in the waiting list
+     * @throws LibraryException if the copy cannot be lent
+     */
+    private LoanOutcome applyLendBook(String name, String title, String format, long dueDate, Batch batch) throws LibraryException {
         if(!validUserName(name)) { throw new LibraryException("User \"" + name + "\", not found"); }
         if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
         BookFormat fixedFormat = BookFormat.fromString(format);
 
-        if(!loanService.lendBook(name, title,  fixedFormat.toString()))
-            libraryLogger.logEvent("User \"" + name + ", joined queue for \"" + title + "\"  (" + fixedFormat + ").");
-        else libraryLogger.logEvent("User \"" + name + ", took loan for \"" + title + "\"  (" + fixedFormat + ").");
+        boolean loaned = loanService.lendBook(name, title,  fixedFormat.toString(), dueDate);
+        durable(batch, LogOperation.LEND_BOOK, dueDate, name, title, fixedFormat.toString());
+        if(!loaned)
+            logEvent(batch, "User \"" + name + ", joined queue for \"" + title + "\"  (" + fixedFormat + ").");
+        else logEvent(batch, "User \"" + name + ", took loan for \"" + title + "\"  (" + fixedFormat + ").");
+        return new LoanOutcome(name, title, fixedFormat, loaned ? 0 : queuePosition(title, name));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stripes of the title and of every user of the cohort are acquired
+     * once, and the whole cohort is checked before any loan is made. The
+     * loans are then added in one update of the repository, logged as a
+     * single write-ahead log record and reported as a single event.
+     */
+    @Override
+    public int lendToUsers(String title, String format, LibraryListWithPI<String> names) throws LibraryException {
+        return lendToUsers(title, format, names, dueDateFromNow());
+    }
+
+    /**
+     * Lends a book to a cohort of users until a due date.
+     *
+     * @param title   the title
+     * @param format  the format of the copies
+     * @param names   the names of the users
+     * @param dueDate the due date of the loans, in seconds since the epoch
+     * @return the number of users lent the book
+     * @throws LibraryException if the cohort cannot be lent the book
+     */
+    private int lendToUsers(String title, String format, LibraryListWithPI<String> names, long dueDate) throws LibraryException {
+        if (names.isEmpty()) throw new LibraryException("The cohort has no users.");
+        if (names.size() > MAX_COHORT_SIZE)
+            throw new LibraryException("A cohort holds at most " + MAX_COHORT_SIZE + " users.");
+        String[] stripes = new String[names.size()];
+        int i = 0;
+        for (String name : names) stripes[i++] = name;
+        return mutateReturning(guard -> guard.titles(title).users(stripes), image -> {
+            image.captureTitle(title);
+            for (String name : stripes) image.captureUser(name);
+        }, () -> applyLendToUsers(title, format, names, dueDate));
+    }
+
+    /**
+     * Lends a book to a cohort, holding the stripes of the title and of the
+     * users of the cohort.
+     *
+     * @param title   the title
+     * @param format  the format of the copies
+     * @param names   the names of the users
+     * @param dueDate the due date of the loans, in seconds since the epoch
+     * @return the number of users lent the book
+     * @throws LibraryException if the cohort cannot be lent the book
+     */
+    private int applyLendToUsers(String title, String format, LibraryListWithPI<String> names, long dueDate) throws LibraryException {
+        if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
+        BookFormat fixedFormat = BookFormat.fromString(format);
+
+        LibraryListWithPI<User> lent = loanService.lendToUsers(title, fixedFormat.toString(), names, dueDate);
+        String[] args = new String[names.size() + 3];
+        args[0] = title;
+        args[1] = fixedFormat.toString();
+        args[2] = Long.toString(dueDate);
+        int i = 3;
+        for (String name : names) args[i++] = name;
+        durable(LogOperation.LEND_TO_USERS, args);
+        libraryLogger.logEvent(LoanService.cohortMessage(title, fixedFormat.toString(), lent.size()));
+        return lent.size();
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void returnBook(String name, String title, String format) throws LibraryException {
+    public LoanOutcome returnBook(String name, String title, String format) throws LibraryException {
+        // A returned copy goes to the next user waiting for the title
+        return returnBook(name, title, format, dueDateFromNow());
+    }
+
+    /**
+     * Takes back a copy from a user, lending it to the next user waiting
+     * until a due date.
+     *
+     * @param name    the user name
+     * @param title   the title
+     * @param format  the format of the copy
+     * @param dueDate the due date of the loan of the next user, in seconds since the epoch
+     * @return the loan of the copy to the next user waiting, or null if nobody was waiting
+     * @throws LibraryException if the user holds no copy of the title
+     */
+    private LoanOutcome returnBook(String name, String title, String format, long dueDate) throws LibraryException {
+        return mutateReturning(guard -> selectWaiting(guard, title, 1, name), image -> {
+            image.captureUser(name);
+            image.captureTitle(title);
+        }, () -> applyReturnBook(name, title, format, dueDate, null));
+    }
+
+    /**
+     * Takes back a copy from a user and lends it to the next user waiting,
+     * holding the stripes of the title, of the user and of the next user.
+     *
+     * @param name    the user name
+     * @param title   the title
+     * @param format  the format of the copy
+     * @param dueDate the due date of the loan of the next user, in seconds since the epoch
+     * @param batch   the batch the operation belongs to, or null if it runs alone
+     * @return the loan of the copy to the next user waiting, or null if nobody was waiting
+     * @throws LibraryException if the user holds no copy of the title
+     */
+    private LoanOutcome applyReturnBook(String name, String title, String format, long dueDate, Batch batch) throws LibraryException {
         if(!validUserName(name)) { throw new LibraryException("User \"" + name + "\", not found"); }
         if(!validBookName(title)) { throw new LibraryException("Book \"" + title +  "\", not found"); }
         BookFormat fixedFormat = BookFormat.fromString(format);
 
-        User user = loanService.returnBook(name, title, fixedFormat.toString());
-        libraryLogger.logEvent("User \"" + name + ", returned loan for \"" + title + "\"  (" + fixedFormat + ").");
-        if(user != null) {
-            libraryLogger.logEvent("User \"" + user.getName() + ", took loan for \"" + title + "\"  (" + fixedFormat + ").");
-        }
+        User user = loanService.returnBook(name, title, fixedFormat.toString(), dueDate);
+        durable(batch, LogOperation.RETURN_BOOK, dueDate, name, title, fixedFormat.toString());
+        logEvent(batch, "User \"" + name + ", returned loan for \"" + title + "\"  (" + fixedFormat + ").");
+        if(user == null) return null;
+        logEvent(batch, "User \"" + user.getName() + ", took loan for \"" + title + "\"  (" + fixedFormat + ").");
+        return new LoanOutcome(user.getName(), title, fixedFormat, 0);
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void listLoans() {
-        loanService.listLoans();
+    public long listLoans(long from, int limit) throws LibraryException {
+        return query(LockStripes.Guard::allUsers, () -> loanService.listLoans(from, limit));
     }
 
-    // ----------------------
-    // Other methods
-    // ----------------------
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitLoans(long from, int limit, BiConsumer<? super User, ? super Book> visitor) throws LibraryException {
+        return query(LockStripes.Guard::allUsers, () -> loanService.visitLoans(from, limit, visitor));
+    }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public void showEventHistory() {
-        libraryLogger.showEventHistory();
+    public long listOverdueLoans(long from, int limit) throws LibraryException {
+        return query(guard -> {}, () -> loanService.listOverdueLoans(from, limit));
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * The titles are read from a space-saving sketch kept up to date by
+     * every loan and waiting list entry, in O(k) and without visiting the
+     * loans or the waiting lists.
      */
     @Override
-    public LibraryRepository accessRepository() {
-        return repo;
+    public LibraryListWithPI<TitleCount> topTitles(PopularityMetric metric, int k) throws LibraryException {
+        if (k < 1 || k > popularity.capacity())
+            throw new LibraryException("The number of titles must be between 1 and " + popularity.capacity() + ".");
+        return popularity.top(metric, k);
     }
 
-    // ----------------------
-    // Private helpers
-    // ----------------------
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long estimatePopularity(PopularityMetric metric, String title) throws LibraryException {
+        return popularity.estimate(metric, title);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitOverdueLoans(long from, int limit, Consumer<? super LoanRecord> visitor) throws LibraryException {
+        return query(guard -> {}, () -> loanService.visitOverdueLoans(from, limit, visitor));
+    }
+
+    /**
+     * Checks the due dates of the loans against the current time, logging
+     * a reminder for each loan that became overdue since the last check.
+     * The cost of a check only depends on the seconds elapsed since the
+     * last one and on the loans due during them, not on the number of loans.
+     *
+     * @return the number of loans that became overdue
+     * @throws LibraryException if the check fails
+     */
+    public int checkDueDates() throws LibraryException {
+        return mutateReturning(guard -> {}, () -> repo.advanceDueDates(LibraryClock.epochSecond(), loan ->
+                libraryLogger.logEvent("User \"" + loan.getUser().getName() + ", overdue loan of \""
+                        + loan.getBook().getTitle() + "\"  (" + loan.getBook().getFormat() + "), due "
+                        + loan.getFormattedDueDate() + ".")));
+    }
+
+    // ----------------------
+    // Batch methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The stripes of every title and user named by the batch, and of the
+     * users waiting for those titles, are acquired once for the whole batch.
+     * Before each operation runs, the records it may change are copied into a
+     * {@link BeforeImage}, which is written back if an operation fails. The
+     * batch is logged as a single write-ahead log record once every
+     * operation has succeeded, with the time it ran at.
+     */
+    @Override
+    public void executeBatch(LibraryListWithPI<BatchOperation> operations) throws LibraryException {
+        executeBatch(operations, LibraryClock.epochSecond());
+    }
+
+    /**
+     * Executes a batch of operations all or nothing, as if run at a given
+     * time: the loans it makes fall due a loan period later, and the users
+     * it adds are created at that time.
+     *
+     * @param operations the operations, in order
+     * @param time       the time the batch runs at, in seconds since the epoch
+     * @throws LibraryException if the batch is invalid or an operation fails, nothing being applied
+     */
+    private void executeBatch(LibraryListWithPI<BatchOperation> operations, long time) throws LibraryException {
+        if (operations.isEmpty()) throw new LibraryException("The batch has no operations.");
+        if (operations.size() > MAX_BATCH_SIZE)
+            throw new LibraryException("A batch holds at most " + MAX_BATCH_SIZE + " operations.");
+        Batch batch = new Batch(time);
+        ThreadRoutedPrintStream console = ThreadRoutedPrintStream.install();
+        PrintStream previous = console.route(batch.output);
+        try {
+            mutate(guard -> selectBatchStripes(guard, operations), () -> {
+                BeforeImage image = new BeforeImage(untracked(), repo, 2 * operations.size());
+                BatchOperation current = null;
+                int position = 0;
+                boolean applied = false;
+                try {
+                    for (BatchOperation operation : operations) {
+                        current = operation;
+                        position++;
+                        capture(image, operation);
+                        apply(operation, batch);
+                    }
+                    current = null;
+                    durable(LogOperation.BATCH, batch.loggedArgs());
+                    applied = true;
+                } catch (LibraryException e) {
+                    throw new LibraryException("Batch rolled back" + (current != null
+                            ? " at operation " + position + " (" + current + ")" : "") + ": " + e.getMessage());
+                } finally {
+                    if (!applied) image.restore();
+                }
+                batch.events.insert("Batch of " + operations.size() + " operations applied.");
+                libraryLogger.logEvents(batch.events);
+            });
+        } finally {
+            console.route(previous);
+        }
+        // The output of the whole batch is printed at once
+        System.out.print(batch.output.toString());
+        System.out.println("Batch of " + operations.size() + " operations applied.");
+    }
+
+    // ----------------------
+    // Partition methods
+    // ----------------------
+
+    /**
+     * Copies the records of the titles leaving this library, when the titles
+     * of a partitioned catalog are rebalanced. The titles stay in place until
+     * {@link #dropTitles} removes them, once their new owner holds them.
+     *
+     * @param leaving tells whether a title leaves this library
+     * @return the records of the leaving titles that have copies
+     * @throws LibraryException if the records cannot be read
+     */
+    public LibraryListWithPI<TitleRecord> exportTitles(Predicate<String> leaving) throws LibraryException {
+        LibraryListWithPI<TitleRecord> records = new SLLLibraryListWithPI<>();
+        exclusive(() -> importer.exportTitles(leaving, records));
+        return records;
+    }
+
+    /**
+     * Takes over titles moved from another library of a partitioned catalog,
+     * replacing whatever this library held about them. The users the records
+     * name must exist. The moved records are not written to the write-ahead
+     * log: in durable mode, the state is checkpointed once they are in place.
+     *
+     * @param records the records of the moved titles
+     * @throws LibraryException if a user named by the records does not exist
+     */
+    public void importTitles(LibraryListWithPI<TitleRecord> records) throws LibraryException {
+        checkpointed(() -> importer.importTitles(records));
+        changes.reset();
+        libraryLogger.logEvent("Received " + records.size() + " titles from another node.");
+    }
+
+    /**
+     * Removes the titles that left this library once their new owner holds
+     * them: their copies, loans and waiting lists. Like moved-in titles, the
+     * removal is checkpointed instead of logged in durable mode.
+     *
+     * @param leaving tells whether a title left this library
+     * @return the number of titles removed
+     * @throws LibraryException if the titles cannot be removed
+     */
+    public int dropTitles(Predicate<String> leaving) throws LibraryException {
+        LibraryListWithPI<String> titles = new SLLLibraryListWithPI<>();
+        checkpointed(() -> importer.dropTitles(leaving, titles));
+        if (!titles.isEmpty()) {
+            changes.reset();
+            libraryLogger.logEvent("Handed " + titles.size() + " titles over to another node.");
+        }
+        return titles.size();
+    }
+
+    // ----------------------
+    // Change stream methods
+    // ----------------------
+
+    /**
+     * Subscribes a listener to the change stream: saves a snapshot of the
+     * current state to a file and delivers to the listener every change
+     * applied after it, see {@link ChangeListener}. No operation runs while
+     * the snapshot is taken, so the snapshot and the changes that follow it
+     * leave no gap.
+     *
+     * @param listener the listener
+     * @param snapshot the file to save the snapshot to
+     * @return the position in the stream of the last change the snapshot reflects
+     * @throws LibraryException if the snapshot cannot be written
+     */
+    public long subscribe(ChangeListener listener, Path snapshot) throws LibraryException {
+        long[] sequence = new long[1];
+        exclusive(() -> {
+            SnapshotStore.save(repo, snapshot);
+            sequence[0] = changes.subscribe(listener);
+        });
+        return sequence[0];
+    }
+
+    /**
+     * Stops delivering changes to a listener.
+     *
+     * @param listener the listener
+     */
+    public void unsubscribe(ChangeListener listener) {
+        changes.unsubscribe(listener);
+    }
+
+    /**
+     * Returns the position in the change stream of the last change applied.
+     * Changes are only counted while the stream has listeners.
+     *
+     * @return the position of the last change, 0 if there was none
+     */
+    public long getChangeSequence() {
+        return changes.getSequence();
+    }
+
+    /**
+     * Applies a change of the change stream, or of the write-ahead log, as
+     * the operation it records.
+     *
+     * @param operation the operation
+     * @param args      the arguments of the operation
+     * @throws LibraryException if the operation fails
+     */
+    public void applyChange(LogOperation operation, String[] args) throws LibraryException {
+        switch (operation) {
+            case ADD_USER -> addUser(args[0], Long.parseLong(args[1]));
+            case REMOVE_USER -> removeUser(args[0], Long.parseLong(args[1]));
+            case SET_ROLE -> setRole(args[0], args[1]);
+            case ADD_BOOK -> addBook(args[0], args[1], Long.parseLong(args[2]));
+            case ADD_COPIES -> addCopies(args[0], Integer.parseInt(args[1]), Long.parseLong(args[2]));
+            case REMOVE_BOOK -> removeBook(args[0], args[1]);
+            case LEND_BOOK -> lendBook(args[0], args[1], args[2], Long.parseLong(args[3]));
+            case RETURN_BOOK -> returnBook(args[0], args[1], args[2], Long.parseLong(args[3]));
+            case RESERVE -> reserve(args[0], Long.parseLong(args[1]));
+            case VACATE -> vacate(args[0], Long.parseLong(args[1]));
+            case PLACE_HOLD -> holdUntil(args[0], args[1], Long.parseLong(args[2]));
+            case CANCEL_HOLD -> cancelHold(args[0], args[1], Long.parseLong(args[2]));
+            case EXPIRE_HOLDS -> expireHolds(args);
+            case LEND_TO_USERS -> {
+                LibraryListWithPI<String> names = new SLLLibraryListWithPI<>();
+                for (int i = 3; i < args.length; i++) names.insert(args[i]);
+                lendToUsers(args[0], args[1], names, Long.parseLong(args[2]));
+            }
+            case BATCH -> executeBatch(decodeBatch(args), Long.parseLong(args[0]));
+        }
+    }
+
+    /**
+     * Replays the release of expired holds on a title.
+     *
+     * @param args the title, the due date of the loans, then the names of the users whose hold expired
+     * @throws LibraryException if the holds cannot be released
+     */
+    private void expireHolds(String[] args) throws LibraryException {
+        String title = args[0];
+        long dueDate = Long.parseLong(args[1]);
+        LibraryListWithPI<String> names = new SLLLibraryListWithPI<>();
+        for (int i = 2; i < args.length; i++) names.insert(args[i]);
+        mutateReturning(guard -> selectWaiting(guard, title, names.size()), image -> image.captureTitle(title),
+                () -> applyExpireHolds(title, names, dueDate));
+    }
+
+    // ----------------------
+    // Other methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long showEventHistory(long from, int limit) throws LibraryException {
+        return query(guard -> {}, () -> libraryLogger.showEventHistory(from, limit));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void logEvent(String event) {
+        libraryLogger.logEvent(event);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveSnapshot(String path) throws LibraryException {
+        exclusive(() -> SnapshotStore.save(repo, Path.of(path)));
+        System.out.println("Snapshot saved to \"" + path + "\".");
+        libraryLogger.logEvent("Snapshot saved to \"" + path + "\".");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void loadSnapshot(String path) throws LibraryException {
+        LibraryRepository loaded = storage.get();
+        if (durability == null) replaceState(loaded, path);
+        else durability.withCheckpointer(() -> replaceState(loaded, path));
+        System.out.println("Snapshot loaded from \"" + path + "\": " + repo.userCount() + " users, "
+                + repo.titleCount() + " titles.");
+        changes.reset();
+        libraryLogger.logEvent("Snapshot loaded from \"" + path + "\".");
+    }
+
+    /**
+     * Replaces the whole state with a snapshot, holding the state lock
+     * exclusively. In durable mode, the snapshot becomes the new base of
+     * the checkpoints right away.
+     *
+     * @param loaded the empty repository to load the snapshot into
+     * @param path   the path of the snapshot
+     * @throws LibraryException if the snapshot cannot be loaded, the state being left unchanged
+     */
+    private void replaceState(LibraryRepository loaded, String path) throws LibraryException {
+        stateLock.writeLock().lock();
+        try {
+            SnapshotStore.load(Path.of(path), loaded);
+            // The loaded state replaces everything logged so far: make it the new base right away
+            if (durability != null) durability.rebase(loaded);
+            wire(loaded);
+        } catch (LibraryException e) {
+            loaded.close();
+            throw e;
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Imported users are not written to the write-ahead log one by one: in
+     * durable mode, the state is checkpointed once the import is done.
+     */
+    @Override
+    public void importUsers(String path) throws LibraryException {
+        ImportResult[] result = new ImportResult[1];
+        checkpointed(() -> result[0] = importer.importUsers(Path.of(path)));
+        changes.reset();
+        String summary = "Imported " + result[0].getImported() + " users from \"" + path + "\" ("
+                + result[0].getSkipped() + " skipped).";
+        System.out.println(summary);
+        libraryLogger.logEvent(summary);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Imported books are not written to the write-ahead log one by one: in
+     * durable mode, the state is checkpointed once the import is done.
+     */
+    @Override
+    public void importBooks(String path) throws LibraryException {
+        ImportResult[] result = new ImportResult[1];
+        checkpointed(() -> result[0] = importer.importBooks(Path.of(path)));
+        changes.reset();
+
+        String summary = "Imported " + result[0].getImported() + " book records from \"" + path + "\" ("
+                + result[0].getSkipped() + " skipped).";
+        System.out.println(summary);
+        libraryLogger.logEvent(summary);
+    }
+
+    /**
+     * Describes the loans ended by a removal, for its single log event.
+     *
+     * @param ended the number of loans ended
+     * @return the description, empty if no loan was ended
+     */
+    private static String endedLoans(int ended) {
+        if (ended == 0) return "";
+        return " " + ended + (ended == 1 ? " loan" : " loans") + " ended.";
+    }
+
+    /**
+     * Runs an operation on the whole state whose changes are not logged, like
+     * {@link #exclusive(Mutation)}, and makes them durable by checkpointing
+     * the state before the state lock is released: no logged operation can
+     * build on the changes before they are durable, so a crash never replays
+     * one without them. Without durability, the operation just runs exclusively.
+     *
+     * @param mutation the operation to run
+     * @throws LibraryException if the operation or the checkpoint fails; the
+     *         changes of a failed checkpoint stay applied, and are written by the next one
+     */
+    private void checkpointed(Mutation mutation) throws LibraryException {
+        if (durability == null) {
+            exclusive(mutation);
+            return;
+        }
+        durability.withCheckpointer(() -> exclusive(() -> {
+            mutation.run();
+            durability.checkpoint();
+        }));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void checkpoint() throws LibraryException {
+        if (durability == null) throw new LibraryException("Durability is not enabled: start the library with a data directory.");
+        int changed = durability.checkpoint();
+        System.out.println("Checkpoint saved: " + changed + " changed records.");
+        libraryLogger.logEvent("Checkpoint saved: " + changed + " changed records.");
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In durable mode, the pending changes are checkpointed first so the
+     * next start does not need to replay them.
+     */
+    @Override
+    public void close() {
+        if (durability != null) durability.close();
+        repo.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LibraryRepository accessRepository() {
+        return repo;
+    }
+
+    /**
+     * Returns the logger recording the events of the library.
+     *
+     * @return the logger bound to the current repository
+     */
+    LibraryLogger logger() {
+        return libraryLogger;
+    }
+
+    // ----------------------
+    // Private helpers
+    // ----------------------
+
+    /**
+     * Effects of the operations of a batch, held back until every operation
+     * has succeeded.
+     */
+    private static class Batch {
+
+        /** Output of the operations. */
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        /** Stream writing to the output buffer. */
+        private final PrintStream output = new PrintStream(buffer, false, StandardCharsets.UTF_8) {
+            @Override
+            public String toString() {
+                flush();
+                return buffer.toString(StandardCharsets.UTF_8);
+            }
+        };
+
+        /** Events of the operations, in order. */
+        private final LibraryListWithPI<String> events = new SLLLibraryListWithPI<>();
+
+        /** Time the batch runs at, which the users it adds are created at, in seconds since the epoch. */
+        private final long time;
+
+        /** Due date of the loans made by the operations, in seconds since the epoch. */
+        private final long dueDate;
+
+        /** Expiry date of the reservations made by the operations, in seconds since the epoch. */
+        private final long expiry;
+
+        /** Write-ahead log arguments of the operations: the code of each operation followed by its arguments. */
+        private final LibraryListWithPI<String> logged = new SLLLibraryListWithPI<>();
+
+        Batch(long time) {
+            this.time = time;
+            this.dueDate = time + LoanRecord.DEFAULT_PERIOD_SECONDS;
+            this.expiry = time + HoldRecord.DEFAULT_PERIOD_SECONDS;
+        }
+
+        /** @return the write-ahead log arguments of the batch: its time, then the operations */
+        private String[] loggedArgs() {
+            String[] args = new String[logged.size() + 1];
+            args[0] = Long.toString(time);
+            int i = 1;
+            for (String arg : logged) args[i++] = arg;
+            return args;
+        }
+    }
+
+    /**
+     * Failure to log a mutation already applied to the state, which must be
+     * undone.
+     */
+    private static final class UnloggedChangeException extends LibraryException {
+
+        private static final long serialVersionUID = 1L;
+
+        UnloggedChangeException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * A mutation of the library state.
+     */
+    @FunctionalInterface
+    interface Mutation {
+        void run() throws LibraryException;
+    }
+
+    /**
+     * An operation on the library state returning a result.
+     *
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    private interface Operation<T> {
+        T run() throws LibraryException;
+    }
+
+    /**
+     * Runs a mutation while holding the stripes it touches and the state
+     * lock shared, so that no checkpoint captures the state while it is
+     * half applied.
+     *
+     * @param selection acquires the stripes of the titles and users touched, titles first
+     * @param mutation  the mutation to run
+     * @throws LibraryException if the mutation fails
+     */
+    private void mutate(Consumer<LockStripes.Guard> selection, Mutation mutation) throws LibraryException {
+        mutateReturning(selection, () -> {
+            mutation.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs a mutation like {@link #mutate(Consumer, Mutation)}, undoing it if
+     * it cannot be logged, see {@link #mutateReturning(Consumer, Consumer, Operation)}.
+     *
+     * @param selection acquires the stripes of the titles and users touched, titles first
+     * @param capture   copies the records the mutation may change
+     * @param mutation  the mutation to run
+     * @throws LibraryException if the mutation fails
+     */
+    private void mutate(Consumer<LockStripes.Guard> selection, Consumer<BeforeImage> capture, Mutation mutation) throws LibraryException {
+        mutateReturning(selection, capture, () -> {
+            mutation.run();
+            return null;
+        });
+    }
+
+    /**
+     * Runs a mutation that logs itself and returns a result, like
+     * {@link #mutateReturning(Consumer, Operation)}, undoing it if it cannot
+     * be logged. In durable mode, the records the mutation may change are
+     * copied into a {@link BeforeImage} once their stripes are held, and
+     * written back if the write-ahead log fails, so that the state never
+     * holds a change missing from the log.
+     *
+     * @param selection acquires the stripes of the titles and users touched, titles first
+     * @param capture   copies the records the mutation may change
+     * @param mutation  the mutation to run
+     * @return the result of the mutation
+     * @throws LibraryException if the mutation fails
+     */
+    private <T> T mutateReturning(Consumer<LockStripes.Guard> selection, Consumer<BeforeImage> capture, Operation<T> mutation) throws LibraryException {
+        return mutateReturning(selection, () -> {
+            if (durability == null) return mutation.run();
+            BeforeImage image = new BeforeImage(untracked(), repo, 1);
+            capture.accept(image);
+            try {
+                return mutation.run();
+            } catch (UnloggedChangeException e) {
+                image.restore();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Runs a mutation that returns a result while holding the stripes it
+     * touches and the state lock shared, see {@link #locked(Consumer, Operation)}.
+     *
+     * @param selection acquires the stripes of the titles and users touched, titles first
+     * @param mutation  the mutation to run
+     * @return the result of the mutation
+     * @throws LibraryException if the mutation fails
+     */
+    private <T> T mutateReturning(Consumer<LockStripes.Guard> selection, Operation<T> mutation) throws LibraryException {
+        return locked(selection, mutation);
+    }
+
+    /**
+     * Runs an operation reading the library state while holding the stripes
+     * it reads and the state lock shared, see {@link #locked(Consumer, Operation)}.
+     *
+     * @param selection acquires the stripes of the titles and users read, titles first
+     * @param query     the operation to run
+     * @return the result of the operation
+     * @throws LibraryException if the operation fails
+     */
+    private <T> T query(Consumer<LockStripes.Guard> selection, Operation<T> query) throws LibraryException {
+        return locked(selection, query);
+    }
+
+    /**
+     * Runs an operation while holding the stripes it touches and the state
+     * lock shared. The stripes are selected once the state lock is held, so
+     * the selection may read the repository under the stripes it acquired.
+     * The popularity counts of the operation are held back until it
+     * succeeds, and dropped if it fails, since a failed operation is undone.
+     *
+     * @param selection acquires the stripes of the titles and users touched, titles first
+     * @param operation the operation to run
+     * @return the result of the operation
+     * @throws LibraryException if the operation fails
+     */
+    private <T> T locked(Consumer<LockStripes.Guard> selection, Operation<T> operation) throws LibraryException {
+        stateLock.readLock().lock();
+        boolean counting = popularity.defer();
+        try (LockStripes.Guard guard = stripes.guard()) {
+            selection.accept(guard);
+            T result = operation.run();
+            if (counting) popularity.commit();
+            return result;
+        } finally {
+            if (counting) popularity.discard();
+            stateLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs an operation on the whole state while holding the state lock
+     * exclusively, so that no other operation runs alongside it.
+     *
+     * @param mutation the operation to run
+     * @throws LibraryException if the operation fails
+     */
+    private void exclusive(Mutation mutation) throws LibraryException {
+        stateLock.writeLock().lock();
+        try {
+            mutation.run();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Acquires the stripes of a batch: those of every title it names, or all
+     * of them if it removes a user, then those of every user it names and of
+     * the users waiting for its titles, who may be lent a freed copy, or all
+     * of them if it removes a digital book or a user copies are held for.
+     *
+     * @param guard      the guard acquiring the stripes
+     * @param operations the operations of the batch
+     */
+    private void selectBatchStripes(LockStripes.Guard guard, LibraryListWithPI<BatchOperation> operations) {
+        LibrarySet<String> titles = new HashLibrarySet<>(operations.size());
+        LibrarySet<String> names = new HashLibrarySet<>(2 * operations.size());
+        LibraryListWithPI<String> removed = new SLLLibraryListWithPI<>();
+        boolean allTitles = false;
+        boolean allUsers = false;
+        for (BatchOperation operation : operations) {
+            switch (operation.getOperation()) {
+                case ADD_USER -> names.add(operation.getArg(0));
+                case REMOVE_USER -> {
+                    names.add(operation.getArg(0));
+                    removed.insert(operation.getArg(0));
+                    allTitles = true;
+                }
+                case ADD_BOOK, ADD_COPIES, RESERVE, VACATE -> titles.add(operation.getArg(0));
+                case REMOVE_BOOK -> {
+                    titles.add(operation.getArg(0));
+                    if (isDigital(operation.getArg(1))) allUsers = true;
+                }
+                case LEND_BOOK, RETURN_BOOK -> {
+                    names.add(operation.getArg(0));
+                    titles.add(operation.getArg(1));
+                }
+                default -> { }
+            }
+        }
+        if (allTitles) guard.allTitles();
+        else guard.titles(titles.stream().toArray(String[]::new));
+        for (String name : removed) if (!heldTitles(name).isEmpty()) allUsers = true;
+        if (allUsers) {
+            guard.allUsers();
+            return;
+        }
+        for (String title : titles) {
+            LibraryQueue<User> queue = untracked().findWaitingList(title);
+            if (queue != null) for (User user : queue) names.add(user.getName());
+        }
+        guard.users(names.stream().toArray(String[]::new));
+    }
+
+    /**
+     * Copies the records an operation of a batch may change, unless an
+     * earlier operation of the batch already touched them.
+     *
+     * @param image     the before-image of the batch
+     * @param operation the operation about to run
+     */
+    private static void capture(BeforeImage image, BatchOperation operation) {
+        switch (operation.getOperation()) {
+            case ADD_USER -> image.captureUser(operation.getArg(0));
+            case REMOVE_USER -> image.captureUserWithTitles(operation.getArg(0));
+            case ADD_BOOK, ADD_COPIES, RESERVE, VACATE -> image.captureTitle(operation.getArg(0));
+            case REMOVE_BOOK -> {
+                if (isDigital(operation.getArg(1))) image.captureTitleWithBorrowers(operation.getArg(0));
+                else image.captureTitle(operation.getArg(0));
+            }
+            case LEND_BOOK, RETURN_BOOK -> {
+                image.captureUser(operation.getArg(0));
+                image.captureTitle(operation.getArg(1));
+            }
+            default -> { }
+        }
+    }
+
+    /**
+     * Applies an operation of a batch.
+     *
+     * @param operation the operation
+     * @param batch     the batch collecting its effects
+     * @throws LibraryException if the operation fails
+     */
+    private void apply(BatchOperation operation, Batch batch) throws LibraryException {
+        switch (operation.getOperation()) {
+            case ADD_USER -> applyAddUser(operation.getArg(0), batch.time, batch);
+            case REMOVE_USER -> applyRemoveUser(operation.getArg(0), batch.dueDate, batch);
+            case ADD_BOOK -> applyAddBook(operation.getArg(0), operation.getArg(1), batch.dueDate, batch);
+            case ADD_COPIES -> applyAddCopies(operation.getArg(0), Integer.parseInt(operation.getArg(1)), batch.dueDate, batch);
+            case REMOVE_BOOK -> applyRemoveBook(operation.getArg(0), operation.getArg(1), batch);
+            case LEND_BOOK -> applyLendBook(operation.getArg(0), operation.getArg(1), operation.getArg(2), batch.dueDate, batch);
+            case RETURN_BOOK -> applyReturnBook(operation.getArg(0), operation.getArg(1), operation.getArg(2), batch.dueDate, batch);
+            case RESERVE -> applyReserve(operation.getArg(0), batch.expiry, batch);
+            case VACATE -> applyVacate(operation.getArg(0), batch.dueDate, batch);
+            default -> throw new LibraryException(operation.getOperation() + " cannot be part of a batch.");
+        }
+    }
+
+    /**
+     * Acquires the stripes of a title, of the given users and of the first
+     * users waiting for the title who are lent the next copies that become
+     * available: registered users who do not hold the title yet.
+     * <p>
+     * Only the waiting list, which the stripe of the title guards, is read
+     * before the user stripes are held: the first users waiting are taken
+     * as candidates, and checked once their stripes are held. While some of
+     * them cannot be lent a copy and more users wait, the stripes are
+     * released and the selection starts over with as many more candidates.
+     *
+     * @param guard the guard acquiring the stripes
+     * @param title the title
+     * @param count the number of copies
+     * @param names the other users the operation touches
+     */
+    private void selectWaiting(LockStripes.Guard guard, String title, int count, String... names) {
+        for (int candidates = count; ; guard.reset()) {
+            guard.titles(title);
+            LibraryQueue<User> queue = untracked().findWaitingList(title);
+            LibraryListWithPI<User> heads = new SLLLibraryListWithPI<>();
+            if (queue != null) for (User user : queue) {
+                if (heads.size() >= candidates) break;
+                heads.insert(user);
+            }
+            String[] stripes = Arrays.copyOf(names, names.length + heads.size());
+            int i = names.length;
+            for (User user : heads) stripes[i++] = user.getName();
+            guard.users(stripes);
+
+            int eligible = 0;
+            for (User user : heads)
+                if (untracked().findUser(user.getName()) == user && untracked().findLoan(user, title) == null) eligible++;
+            if (eligible >= count || heads.size() < candidates) return;
+            candidates += count - eligible;
+        }
+    }
+
+    /**
+     * Returns the position of a user in the waiting list of a title. Must be
+     * called holding the stripe of the title.
+     *
+     * @param title the title
+     * @param name  the user name
+     * @return the position of the user, starting at 1, or 0 if the user is not waiting
+     */
+    private int queuePosition(String title, String name) {
+        LibraryQueue<User> queue = untracked().findWaitingList(title);
+        if (queue == null) return 0;
+        int position = 0;
+        for (User user : queue) {
+            position++;
+            if (user.getName().equals(name)) return position;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the repository without change tracking, for reads that hand
+     * out records the caller does not modify, so they are not checkpointed
+     * as changed.
+     *
+     * @return the repository holding the data
+     */
+    private LibraryRepository untracked() {
+        return durability != null ? durability.untracked() : repo;
+    }
+
+    /**
+     * Returns the due date of the loans made now. Operations that may lend
+     * copies log it, so that once replayed their loans fall due at the same
+     * date rather than a full loan period after the recovery.
+     *
+     * @return the due date, in seconds since the epoch
+     */
+    private static long dueDateFromNow() {
+        return LibraryClock.epochSecond() + LoanRecord.DEFAULT_PERIOD_SECONDS;
+    }
+
+    /**
+     * Checks if a format names the digital format, treating invalid formats
+     * as physical; they are rejected once the operation runs.
+     *
+     * @param format the format given by the caller
+     * @return true if the format is digital
+     */
+    private static boolean isDigital(String format) {
+        try {
+            return BookFormat.fromString(format) == BookFormat.DIGITAL;
+        } catch (LibraryException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Records a successfully applied mutation in the write-ahead log, or in
+     * its batch, which is logged once complete.
+     *
+     * @param batch     the batch the mutation belongs to, or null if it runs alone
+     * @param operation the applied operation
+     * @param args      the arguments of the operation
+     * @throws LibraryException if the log cannot be written
+     */
+    private void durable(Batch batch, LogOperation operation, String... args) throws LibraryException {
+        if (batch == null) {
+            durable(operation, args);
+            return;
+        }
+        batch.logged.insert(Integer.toString(operation.getCode()));
+        for (String arg : args) batch.logged.insert(arg);
+    }
+
+    /**
+     * Records a successfully applied mutation that logs a date, see
+     * {@link LogOperation#isDated()}, in the write-ahead log, or in its
+     * batch, whose operations follow from the time of the batch instead.
+     *
+     * @param batch     the batch the mutation belongs to, or null if it runs alone
+     * @param operation the applied operation
+     * @param date      the date, in seconds since the epoch
+     * @param args      the arguments of the operation, without the date
+     * @throws LibraryException if the log cannot be written
+     */
+    private void durable(Batch batch, LogOperation operation, long date, String... args) throws LibraryException {
+        if (batch != null) {
+            durable(batch, operation, args);
+            return;
+        }
+        String[] dated = Arrays.copyOf(args, args.length + 1);
+        dated[args.length] = Long.toString(date);
+        durable(operation, dated);
+    }
+
+    /**
+     * Logs the event of a mutation, or holds it back with its batch.
+     *
+     * @param batch the batch the mutation belongs to, or null if it runs alone
+     * @param event the description of the event
+     */
+    private void logEvent(Batch batch, String event) {
+        if (batch != null) batch.events.insert(event);
+        else libraryLogger.logEvent(event);
+    }
+
+    /**
+     * Records a successfully applied mutation in the write-ahead log and waits
+     * until it is durable, then publishes it on the change stream. Logging
+     * does nothing if durability is disabled, publishing if nobody listens.
+     * Mutations run while holding the records they change, so mutations of
+     * the same records are logged and published in the order they applied.
+     * A mutation that cannot be logged fails with an
+     * {@link UnloggedChangeException}, for its caller to undo it.
+     *
+     * @param operation the applied operation
+     * @param args      the arguments of the operation
+     * @throws LibraryException if the log cannot be written
+     */
+    private void durable(LogOperation operation, String... args) throws LibraryException {
+        if (durability != null) {
+            try {
+                durability.append(repo, operation, args);
+            } catch (LibraryException e) {
+                throw new UnloggedChangeException(e.getMessage());
+            }
+        }
+        changes.publish(operation, args);
+    }
+
+    /**
+     * Decodes the operations of a logged batch.
+     *
+     * @param args the logged arguments: the time of the batch, then the code of each operation followed by its arguments
+     * @return the operations of the batch
+     * @throws LibraryException if an operation is unknown or incomplete
+     */
+    private static LibraryListWithPI<BatchOperation> decodeBatch(String[] args) throws LibraryException {
+        LibraryListWithPI<BatchOperation> operations = new SLLLibraryListWithPI<>();
+        int i = 1;
+        while (i < args.length) {
+            LogOperation operation = LogOperation.fromCode(Integer.parseInt(args[i++]));
+            if (operation == null || operation.hasVariableArity() || i + operation.getBatchArity() > args.length)
+                throw new LibraryException("Invalid logged batch.");
+            String[] operationArgs = new String[operation.getBatchArity()];
+            for (int j = 0; j < operationArgs.length; j++) operationArgs[j] = args[i++];
+            operations.insert(new BatchOperation(operation, operationArgs));
+        }
+        return operations;
+    }
 
     /**
      * Checks if a user with the given name exists in the repository.
@@ -232,7 +1895,7 @@ public class LibraryService implements ILibraryService {
      * @return true if the user exists, false otherwise.
      */
     private boolean validUserName(String name) {
-        return repo.getUserMap().containsKey(name);
+        return repo.containsUser(name);
     }
 
     /**
@@ -242,6 +1905,6 @@ public class LibraryService implements ILibraryService {
      * @return true if the book exists, false otherwise.
      */
     private boolean validBookName(String title) {
-        return repo.getInventory().containsKey(title);
+        return repo.containsTitle(title);
     }
 }
\ No newline at end of file
@@ -1,19 +1,26 @@
 package application.service.impl;
 
 import application.service.ILoanService;
+import application.service.PopularityMetric;
 import common.LibraryException;
+import common.PageCursor;
+import common.PagedPrinter;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
 import common.dataStructures.queue.LibraryQueue;
-import common.dataStructures.queue.impl.ArrayLibraryQueue;
 import common.dataStructures.set.LibrarySet;
 import common.dataStructures.set.impl.HashLibrarySet;
 import domain.book.Book;
 import domain.book.BookFormat;
-import domain.book.DBook;
 import domain.book.PBook;
 import domain.inventory.BookInventory;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
 import domain.user.User;
 import infrastructure.repository.LibraryRepository;
-import java.util.Optional;
+
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
 /**
  * Implementation of the ILoanService interface that manages book loans,
@@ -24,55 +31,53 @@ public class LoanService implements ILoanService {
     /** Repository used to store users, books, loans, and waiting lists. */
     private final LibraryRepository repo;
 
+    /** Counts the loans and waiting list entries of each title. */
+    private final PopularityTracker popularity;
+
     /**
      * Constructs a LoanService with the specified repository.
      *
-     * @param repo the repository used to manage library data
+     * @param repo       the repository used to manage library data
+     * @param popularity the tracker counting the loans and waiting list entries of each title
      */
-    public LoanService(LibraryRepository repo) {
+    public LoanService(LibraryRepository repo, PopularityTracker popularity) {
         this.repo = repo;
+        this.popularity = popularity;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean lendBook(String name, String title, String format) throws LibraryException {
-        User user = repo.getUserMap().get(name);
+    public boolean lendBook(String name, String title, String format, long dueDate) throws LibraryException {
+        User user = repo.findUser(name);
 
-        LibrarySet<Book> userBooks = repo.getLoansByUser().get(user);
-        if (userBooks != null && userBooks.stream().anyMatch(b -> b.getTitle().equals(title))) {
+        // One lookup by title in the user's loans, whatever their number
+        if (repo.findLoan(user, title) != null) {
             throw new LibraryException("User \"" + name + ", already loaned \"" + title + "\".");
         }
 
-        BookInventory bookInventory = repo.getInventory().get(title);
+        BookInventory bookInventory = repo.findInventory(title);
         if(format.equals(BookFormat.PHYSICAL.toString())) {
-            if(!bookInventory.loanPBook()) {
-                LibraryQueue<User> queue = repo.getWaitingListMap().computeIfAbsent(title, t -> new ArrayLibraryQueue<>());
+            // The copy held for the user is lent straight from the reserved copies
+            boolean held = repo.removeHold(title, name) != null && bookInventory.loanReservedPBook();
+            if(!held && !bookInventory.loanPBook()) {
+                LibraryQueue<User> queue = repo.findOrCreateWaitingList(title);
                 if(queue.contains(user)) {
                     throw new LibraryException("User \"" + name + ", already in queue for \"" + title + "\" (" + format + ").");
                 }
                 queue.add(user);
+                popularity.record(PopularityMetric.WAITS, title);
                 System.out.println("User \"" + name + ", joined queue for \"" + title + "\"  (" + format + ").");
                 return false;
             }
-            PBook pBook = bookInventory.getPBook();
-            repo.getLoansByUser()
-                    .computeIfAbsent(user, u -> new HashLibrarySet<>(repo.getESTIMATED_LIBRARY_SIZE()))
-                    .add(pBook);
-            repo.getLoansByBook()
-                    .computeIfAbsent(pBook, b -> new HashLibrarySet<>(repo.getESTIMATED_USER_SIZE()))
-                    .add(user);
+            repo.saveInventory(bookInventory);
+            repo.addLoan(user, bookInventory.getPBook(), dueDate);
         } else {
             //bookInventory.loanEBook(1); Not needed
-            DBook dBook = bookInventory.getDBook();
-            repo.getLoansByUser()
-                    .computeIfAbsent(user, u -> new HashLibrarySet<>(repo.getESTIMATED_LIBRARY_SIZE()))
-                    .add(dBook);
-            repo.getLoansByBook()
-                    .computeIfAbsent(dBook, b -> new HashLibrarySet<>(repo.getESTIMATED_USER_SIZE()))
-                    .add(user);
+            repo.addLoan(user, bookInventory.getDBook(), dueDate);
         }
+        popularity.record(PopularityMetric.BORROWS, title);
         System.out.println("User \"" + name + ", took loan for \"" + title + "\"  (" + format + ").");
         return true;
     }
@@ -81,49 +86,26 @@ public class LoanService implements ILoanService {
      * {@inheritDoc}
      */
     @Override
-    public User returnBook(String name, String title, String format) throws LibraryException {
-        User user = repo.getUserMap().get(name);
+    public User returnBook(String name, String title, String format, long dueDate) throws LibraryException {
+        User user = repo.findUser(name);
 
-        LibrarySet<Book> userBooks = repo.getLoansByUser().get(user);
-        if (userBooks == null || userBooks.stream().noneMatch(b -> b.getTitle().equals(title))) {
+        // Only the copy the user holds can be returned, not a copy of the other format
+        LoanRecord loan = repo.findLoan(user, title);
+        if (loan == null || !loan.getBook().getFormat().equals(format)) {
             throw new LibraryException("User \"" + name + ", never loaned \"" + title + "\".");
         }
 
-        BookInventory bookInventory = repo.getInventory().get(title);
+        BookInventory bookInventory = repo.findInventory(title);
         if(format.equals(BookFormat.PHYSICAL.toString())) {
             bookInventory.returnPBook();
-
-            PBook pBook = bookInventory.getPBook();
-            Optional.ofNullable(repo.getLoansByUser().get(user)).ifPresent(books -> {
-                books.remove(pBook);
-                if (books.isEmpty()) {
-                    repo.getLoansByUser().remove(user);
-                }
-            });
-            Optional.ofNullable(repo.getLoansByBook().get(pBook)).ifPresent(users -> {
-                users.remove(user);
-                if (users.isEmpty()) {
-                    repo.getLoansByBook().remove(pBook);
-                }
-            });
+            repo.saveInventory(bookInventory);
+            repo.removeLoan(user, bookInventory.getPBook());
 
             System.out.println("User \"" + name + ", returned loan for \"" + title + "\"  (" + format + ").");
-            return updateWaitingList(title);
+            return updateWaitingList(title, dueDate);
         }
         else {
-            DBook dBook = bookInventory.getDBook();
-            Optional.ofNullable(repo.getLoansByUser().get(user)).ifPresent(books -> {
-                books.remove(dBook);
-                if (books.isEmpty()) {
-                    repo.getLoansByUser().remove(user);
-                }
-            });
-            Optional.ofNullable(repo.getLoansByBook().get(dBook)).ifPresent(users -> {
-                users.remove(user);
-                if (users.isEmpty()) {
-                    repo.getLoansByBook().remove(dBook);
-                }
-            });
+            repo.removeLoan(user, bookInventory.getDBook());
             System.out.println("User \"" + name + ", returned loan for \"" + title + "\"  (" + format + ").");
             return null;
         }
@@ -133,29 +115,85 @@ public class LoanService implements ILoanService {
      * {@inheritDoc}
      */
     @Override
-    public void listLoans() {
-        if (repo.getLoansByUser().isEmpty()) {
+    public long listLoans(long from, int limit) throws LibraryException {
+        if (!repo.hasLoans()) {
             System.out.println("No active loans.");
-            return;
+            return PagedPrinter.END;
+        }
+
+        PagedPrinter printer = new PagedPrinter(from, limit);
+        printer.header("--- Active loans ---");
+        repo.forEachLoanWhile(printer, loan -> {
+            if (printer.accept())
+                printer.println("User \"" + loan.getUser().getName() + ", returned loan for \"" + loan.getBook().getTitle() + "\"  (" + loan.getBook().getFormat() + ").");
+            return printer.needsMore();
+        });
+        return printer.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitLoans(long from, int limit, BiConsumer<? super User, ? super Book> visitor) throws LibraryException {
+        PageCursor cursor = new PageCursor(from, limit);
+        repo.forEachLoanWhile(cursor, loan -> {
+            if (cursor.accept()) visitor.accept(loan.getUser(), loan.getBook());
+            return cursor.needsMore();
+        });
+        return cursor.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listOverdueLoans(long from, int limit) throws LibraryException {
+        if (repo.overdueCount() == 0) {
+            System.out.println("No overdue loans.");
+            return PagedPrinter.END;
         }
 
-        System.out.println("--- Active loans ---");
-        repo.getLoansByUser().forEach((user, bookSet) ->
-                bookSet.forEach(book -> System.out.println("User \"" + user.getName() + ", returned loan for \"" + book.getTitle() + "\"  (" + book.getFormat() + ")."))
-        );
+        PagedPrinter printer = new PagedPrinter(from, limit);
+        printer.header("--- Overdue loans ---");
+        repo.forEachOverdueLoanWhile(printer, loan -> {
+            if (printer.accept())
+                printer.println("User \"" + loan.getUser().getName() + ", overdue loan of \"" + loan.getBook().getTitle()
+                        + "\"  (" + loan.getBook().getFormat() + "), due " + loan.getFormattedDueDate() + ".");
+            return printer.needsMore();
+        });
+        return printer.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitOverdueLoans(long from, int limit, Consumer<? super LoanRecord> visitor) throws LibraryException {
+        PageCursor cursor = new PageCursor(from, limit);
+        repo.forEachOverdueLoanWhile(cursor, loan -> {
+            if (cursor.accept()) visitor.accept(loan);
+            return cursor.needsMore();
+        });
+        return cursor.finish();
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public User updateWaitingList(String title) throws LibraryException {
-        LibraryQueue<User> queue = repo.getWaitingListMap().get(title);
-        if (queue != null && !queue.isEmpty()) {
+    public User updateWaitingList(String title, long dueDate) throws LibraryException {
+        LibraryQueue<User> queue = repo.findWaitingList(title);
+        if (queue == null) return null;
+        BookInventory bookInventory = repo.findInventory(title);
+        if (bookInventory == null || !bookInventory.hasPBook() || !bookInventory.getPBook().isAvailable()) return null;
+        while (!queue.isEmpty()) {
             User nextUser = queue.remove();
+            // Users removed from the library, or already holding the title, leave the queue without a copy
+            if (repo.findUser(nextUser.getName()) != nextUser || repo.findLoan(nextUser, title) != null) continue;
             String name = nextUser.getName();
             System.out.println("User \"" + name + ", joined queue for \"" + title + "\"  (" + BookFormat.PHYSICAL + ").");
-            lendBook(name, title, BookFormat.PHYSICAL.toString());
+            lendBook(name, title, BookFormat.PHYSICAL.toString(), dueDate);
             return nextUser;
         }
         return null;
@@ -165,10 +203,121 @@ public class LoanService implements ILoanService {
      * {@inheritDoc}
      */
     @Override
-    public void reserve(String title) throws LibraryException {
-        BookInventory bookInventory = repo.getInventory().get(title);
-        System.out.println("Added reserve for \"" + title + "\"  (" + BookFormat.PHYSICAL + ").");
+    public LibraryListWithPI<User> promoteWaitingList(String title, int limit, long dueDate) throws LibraryException {
+        LibraryListWithPI<User> promoted = new SLLLibraryListWithPI<>();
+        LibraryQueue<User> queue = repo.findWaitingList(title);
+        if (queue == null || queue.isEmpty()) return promoted;
+
+        // One inventory lookup for the whole group
+        BookInventory bookInventory = repo.findInventory(title);
+        PBook pBook = bookInventory.getPBook();
+        if (pBook == null) return promoted;
+        while (promoted.size() < limit && pBook.isAvailable() && !queue.isEmpty()) {
+            User user = queue.remove();
+            // Users removed from the library, or already holding the title, leave the queue without a copy
+            if (repo.findUser(user.getName()) != user || repo.findLoan(user, title) != null) continue;
+            if (!pBook.loanCopies()) break;
+            repo.addLoan(user, pBook, dueDate);
+            popularity.record(PopularityMetric.BORROWS, title);
+            promoted.insert(user);
+        }
+        if (promoted.isEmpty()) return promoted;
+
+        repo.saveInventory(bookInventory);
+        System.out.println(promotionMessage(title, promoted));
+        return promoted;
+    }
+
+    /**
+     * Returns the message reporting the users of a waiting list lent a copy
+     * together.
+     *
+     * @param title    the title
+     * @param promoted the promoted users, in queue order
+     * @return the message
+     */
+    public static String promotionMessage(String title, LibraryListWithPI<User> promoted) {
+        StringBuilder names = new StringBuilder();
+        promoted.forEach(user -> names.append(names.isEmpty() ? "" : ", ").append(user.getName()));
+        return "Lent \"" + title + "\"  (" + BookFormat.PHYSICAL + ") to " + promoted.size()
+                + (promoted.size() == 1 ? " waiting user: " : " waiting users: ") + names + ".";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LibraryListWithPI<User> lendToUsers(String title, String format, LibraryListWithPI<String> names, long dueDate) throws LibraryException {
+        // Check the whole cohort before changing anything, so that it is lent all or nothing
+        boolean physical = format.equals(BookFormat.PHYSICAL.toString());
+        LibrarySet<String> listed = new HashLibrarySet<>(names.size());
+        LibraryListWithPI<User> users = new SLLLibraryListWithPI<>();
+        int held = 0;
+        for (String name : names) {
+            if (!listed.add(name)) throw new LibraryException("User \"" + name + ", listed twice.");
+            User user = repo.findUser(name);
+            if (user == null) throw new LibraryException("User \"" + name + "\", not found");
+            if (repo.findLoan(user, title) != null) {
+                throw new LibraryException("User \"" + name + ", already loaned \"" + title + "\".");
+            }
+            if (physical && repo.findHold(title, name) != null) held++;
+            users.insert(user);
+        }
+
+        // One inventory lookup and one copy update for the whole cohort
+        BookInventory bookInventory = repo.findInventory(title);
+        Book book;
+        if (physical) {
+            PBook pBook = bookInventory.getPBook();
+            if (pBook == null) {
+                throw new LibraryException("Physical copy of \"" + title + "\", not registered in the library.");
+            }
+            int needed = users.size() - held;
+            if (pBook.getAvailableCopies() < needed) {
+                throw new LibraryException("Physical copy of \"" + title + "\", " + pBook.getAvailableCopies()
+                        + " copies available for " + needed + " users.");
+            }
+            // Users holding a copy are lent the copy held for them
+            if (held > 0) for (String name : names) {
+                if (repo.removeHold(title, name) != null) bookInventory.loanReservedPBook();
+            }
+            if (needed > 0) bookInventory.loanPBooks(needed);
+            repo.saveInventory(bookInventory);
+            book = pBook;
+        } else {
+            book = bookInventory.getDBook();
+            if (book == null) {
+                throw new LibraryException("Digital copy of \"" + title + "\", not registered in the library.");
+            }
+        }
+        repo.addLoans(users, book, dueDate);
+        for (int i = 0; i < users.size(); i++) popularity.record(PopularityMetric.BORROWS, title);
+        System.out.println(cohortMessage(title, format, users.size()));
+        return users;
+    }
+
+    /**
+     * Returns the message reporting a book lent to a whole cohort of users.
+     *
+     * @param title  the title
+     * @param format the format of the copies
+     * @param count  the number of users
+     * @return the message
+     */
+    public static String cohortMessage(String title, String format, int count) {
+        return "Lent \"" + title + "\"  (" + format + ") to a cohort of " + count + (count == 1 ? " user." : " users.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reserve(String title, long expiry) throws LibraryException {
+        BookInventory bookInventory = repo.findInventory(title);
         bookInventory.reservePBook();
+        repo.saveInventory(bookInventory);
+        HoldRecord hold = repo.addHold(HoldRecord.ANONYMOUS, title, expiry);
+        System.out.println("Added reserve for \"" + title + "\"  (" + BookFormat.PHYSICAL + ") until " + hold.getFormattedExpiry() + ".");
     }
 
     /**
@@ -176,8 +325,83 @@ public class LoanService implements ILoanService {
      */
     @Override
     public boolean vacate(String title) throws LibraryException {
-        BookInventory bookInventory = repo.getInventory().get(title);
+        BookInventory bookInventory = repo.findInventory(title);
+        // Copies held for users are only released by their holds
+        if (repo.findHold(title, HoldRecord.ANONYMOUS) == null && repo.findHolds(title) != null) {
+            throw new LibraryException("Physical copy of \"" + title + "\", only reserved by holds.");
+        }
+        if (!bookInventory.vacatePBook()) return false;
+        repo.removeHold(title, HoldRecord.ANONYMOUS);
+        repo.saveInventory(bookInventory);
         System.out.println("Removed reserve for \"" + title + "\"  (" + BookFormat.PHYSICAL + ").");
-        return bookInventory.vacatePBook();
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void placeHold(String name, String title, long expiry) throws LibraryException {
+        if (repo.findLoan(repo.findUser(name), title) != null) {
+            throw new LibraryException("User \"" + name + ", already loaned \"" + title + "\".");
+        }
+        if (repo.findHold(title, name) != null) {
+            throw new LibraryException("User \"" + name + ", already holds \"" + title + "\".");
+        }
+        BookInventory bookInventory = repo.findInventory(title);
+        PBook pBook = bookInventory.getPBook();
+        if (pBook == null || !pBook.addReservedCopies()) {
+            throw new LibraryException("Physical copy of \"" + title + "\", no copies available to hold.");
+        }
+        repo.saveInventory(bookInventory);
+        HoldRecord hold = repo.addHold(name, title, expiry);
+        System.out.println("User \"" + name + ", holds \"" + title + "\"  (" + BookFormat.PHYSICAL + ") until " + hold.getFormattedExpiry() + ".");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancelHold(String name, String title) throws LibraryException {
+        if (repo.removeHold(title, name) == null) {
+            throw new LibraryException("User \"" + name + ", holds no copy of \"" + title + "\".");
+        }
+        BookInventory bookInventory = repo.findInventory(title);
+        bookInventory.vacatePBook();
+        repo.saveInventory(bookInventory);
+        System.out.println("User \"" + name + ", cancelled hold on \"" + title + "\"  (" + BookFormat.PHYSICAL + ").");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LibraryListWithPI<String> releaseHolds(String title, LibraryListWithPI<String> names) throws LibraryException {
+        LibraryListWithPI<String> released = new SLLLibraryListWithPI<>();
+        for (String name : names) if (repo.removeHold(title, name) != null) released.insert(name);
+        if (released.isEmpty()) return released;
+
+        // One inventory update for all the released copies
+        BookInventory bookInventory = repo.findInventory(title);
+        for (int i = 0; i < released.size(); i++) bookInventory.vacatePBook();
+        repo.saveInventory(bookInventory);
+        System.out.println(expiryMessage(title, released));
+        return released;
+    }
+
+    /**
+     * Returns the message reporting the holds on a title released together
+     * as they expired.
+     *
+     * @param title    the title
+     * @param released the names of the users whose hold expired
+     * @return the message
+     */
+    public static String expiryMessage(String title, LibraryListWithPI<String> released) {
+        StringBuilder names = new StringBuilder();
+        released.forEach(name -> names.append(names.isEmpty() ? "" : ", ")
+                .append(name.equals(HoldRecord.ANONYMOUS) ? "(reserve)" : name));
+        return "Released " + released.size() + (released.size() == 1 ? " expired hold" : " expired holds")
+                + " on \"" + title + "\"  (" + BookFormat.PHYSICAL + "): " + names + ".";
     }
 }
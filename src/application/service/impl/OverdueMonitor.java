@@ -0,0 +1,88 @@
+package application.service.impl;
+
+import common.LibraryException;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Checks the due dates of the loans of a library once per second, in a
+ * background thread, so that each loan is reported overdue in the activity
+ * log as soon as its due date passes, see {@link LibraryService#checkDueDates()}.
+ * The same check releases the holds that expired, lending their copies to
+ * the users waiting, see {@link LibraryService#expireHolds()}. A sharded
+ * library runs both checks on the worker of each shard.
+ */
+public class OverdueMonitor implements AutoCloseable {
+
+    /** Interval between two checks, in milliseconds. */
+    public static final long CHECK_INTERVAL_MS = 1_000;
+
+    /** Runs the checks. */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Starts checking the due dates of the loans of a library.
+     *
+     * @param library the library
+     */
+    public OverdueMonitor(LibraryService library) {
+        this(library::checkDueDates, library::expireHolds, library::logEvent);
+    }
+
+    /**
+     * Starts checking the due dates of the loans of every shard of a sharded
+     * library.
+     *
+     * @param library the sharded library
+     */
+    public OverdueMonitor(ShardedLibraryService library) {
+        this(library::checkDueDates, library::expireHolds, library::logEvent);
+    }
+
+    /**
+     * A check of the library.
+     */
+    @FunctionalInterface
+    private interface Check {
+        int run() throws LibraryException;
+    }
+
+    /**
+     * Starts running the checks once per second.
+     *
+     * @param dueDates reports the loans falling due
+     * @param holds    releases the expired holds
+     * @param failures records the failures of the checks
+     */
+    private OverdueMonitor(Check dueDates, Check holds, Consumer<String> failures) {
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "overdue-monitor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                dueDates.run();
+                holds.run();
+            } catch (LibraryException | RuntimeException e) {
+                failures.accept("Due date check failed: " + e.getMessage());
+            }
+        }, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops checking the due dates, waiting for a running check to finish.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,943 @@
+package application.service.impl;
+
+import application.service.BatchOperation;
+import application.service.ILibraryService;
+import application.service.LoanOutcome;
+import application.service.PopularityMetric;
+import application.service.TitleCount;
+import application.service.TitleRecord;
+import common.LibraryClock;
+import common.LibraryException;
+import common.PagedPrinter;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+import domain.book.Book;
+import domain.book.BookFormat;
+import domain.book.DBook;
+import domain.book.PBook;
+import domain.loan.LoanRecord;
+import domain.user.User;
+import domain.user.UserRole;
+import infrastructure.partition.HashRing;
+import infrastructure.partition.NodeConnection;
+import infrastructure.partition.NodeOperation;
+import infrastructure.partition.NodeReply;
+import infrastructure.repository.LibraryRepository;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of ILibraryService routing the operations to the nodes of
+ * a partitioned catalog: library processes on the same machine, each served
+ * by a {@link presentation.LibraryNodeServer} and owning the titles a
+ * {@link HashRing} assigns to it.
+ * <p>
+ * Operations on a title are forwarded to its owner. Users are replicated:
+ * every node holds every user, so that loans and waiting lists can be
+ * checked by the owner of the title alone. Listings of books and loans visit
+ * the nodes in turn; their continuation cursors hold the node to resume at
+ * in their high bits and the position within it in their low bits, so a
+ * cursor below 2<sup>56</sup> is a cursor of the first node. The
+ * output of each operation is printed as the node printed it.
+ * <p>
+ * Nodes join and leave with {@link #addNode(int)} and
+ * {@link #removeNode(int)}: the titles changing owner are copied to their
+ * new owner with their copies, waiting lists and loans, and only then
+ * removed from their former owner. Operations wait while a rebalance runs.
+ */
+public class PartitionedLibraryService implements ILibraryService {
+
+    /** Maximum number of nodes, so that a node index fits a continuation cursor. */
+    public static final int MAX_NODES = 64;
+
+    /** Position of the node index in a continuation cursor. */
+    private static final int CURSOR_NODE_SHIFT = 56;
+
+    /** Mask of the cursor within a node in a continuation cursor. */
+    private static final long CURSOR_POSITION_MASK = (1L << CURSOR_NODE_SHIFT) - 1;
+
+    /** Member nodes, in the order their listings are visited. */
+    private Node[] nodes;
+
+    /** Ring assigning the titles to the member nodes. */
+    private HashRing ring;
+
+    /** Held shared by the operations and exclusively while nodes join or leave. */
+    private final ReentrantReadWriteLock membership = new ReentrantReadWriteLock();
+
+    /**
+     * Constructs a router over the nodes listening on the given local ports,
+     * checking that each one is reachable. The nodes are expected to hold
+     * the same users and the titles the ring assigns to them.
+     *
+     * @param ports the ports of the nodes
+     * @throws LibraryException if there are no nodes, too many, duplicates, or a node is unreachable
+     */
+    public PartitionedLibraryService(int... ports) throws LibraryException {
+        if (ports.length == 0 || ports.length > MAX_NODES)
+            throw new LibraryException("A partitioned library needs between 1 and " + MAX_NODES + " nodes.");
+        Node[] members = new Node[ports.length];
+        for (int i = 0; i < ports.length; i++) {
+            for (int j = 0; j < i; j++) {
+                if (ports[j] == ports[i]) throw new LibraryException("Node " + addressOf(ports[i]) + " is listed twice.");
+            }
+            members[i] = new Node(ports[i]);
+        }
+        try {
+            for (Node node : members) node.call(NodeOperation.VISIT_USERS, "0", "1");
+        } catch (LibraryException e) {
+            for (Node node : members) node.close();
+            throw e;
+        }
+        this.nodes = members;
+        this.ring = new HashRing(addresses(members));
+    }
+
+    // ----------------------
+    // User methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The user is added to every node.
+     */
+    @Override
+    public void addUser(String name) throws LibraryException {
+        broadcast(NodeOperation.ADD_USER, name);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The user is removed from every node.
+     */
+    @Override
+    public void removeUser(String name) throws LibraryException {
+        broadcast(NodeOperation.REMOVE_USER, name);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The role is set on every node, each of which moves the user in the
+     * waiting lists of its titles.
+     */
+    @Override
+    public void setRole(String name, String role) throws LibraryException {
+        broadcast(NodeOperation.SET_ROLE, name, role);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listUsers(long from, int limit) throws LibraryException {
+        membership.readLock().lock();
+        try {
+            return Long.parseLong(forward(nodes[0], NodeOperation.LIST_USERS, Long.toString(from), Integer.toString(limit))[0]);
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitUsers(long from, int limit, Consumer<? super User> visitor) throws LibraryException {
+        membership.readLock().lock();
+        try {
+            String[] values = forward(nodes[0], NodeOperation.VISIT_USERS, Long.toString(from), Integer.toString(limit));
+            for (int i = 1; i + 2 < values.length; i += 3) visitor.accept(userOf(values, i));
+            return Long.parseLong(values[0]);
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    // ----------------------
+    // Book methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addBook(String title, String format) throws LibraryException {
+        onOwner(title, NodeOperation.ADD_BOOK, title, format);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int addCopies(String title, int copies) throws LibraryException {
+        return Integer.parseInt(onOwner(title, NodeOperation.ADD_COPIES, title, Integer.toString(copies))[0]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeBook(String title, String format) throws LibraryException {
+        onOwner(title, NodeOperation.REMOVE_BOOK, title, format);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listBooks(long from, int limit) throws LibraryException {
+        StringBuilder lines = new StringBuilder();
+        long next = visitBooks(from, limit, book -> lines.append(book).append(System.lineSeparator()));
+        if (lines.isEmpty() && from == 0) throw new LibraryException("No available books.");
+        PagedPrinter printer = new PagedPrinter(0, limit);
+        printer.header("--- Available books ---");
+        if (!lines.isEmpty()) printer.println(lines.substring(0, lines.length() - System.lineSeparator().length()));
+        printer.finish();
+        return next;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitBooks(long from, int limit, Consumer<? super Book> visitor) throws LibraryException {
+        return visitAcross(NodeOperation.VISIT_BOOKS, from, limit, 5, (values, i) -> {
+            String title = values[i];
+            if (values[i + 1].equals(BookFormat.PHYSICAL.name())) {
+                int total = Integer.parseInt(values[i + 2]);
+                int available = Integer.parseInt(values[i + 3]);
+                int reserved = Integer.parseInt(values[i + 4]);
+                visitor.accept(new PBook(title, total, available + reserved, reserved));
+            } else {
+                visitor.accept(new DBook(title));
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BookFormat[] formatsOf(String title) throws LibraryException {
+        String[] values = onOwner(title, NodeOperation.FORMATS_OF, title);
+        BookFormat[] formats = new BookFormat[values.length];
+        for (int i = 0; i < values.length; i++) formats[i] = BookFormat.valueOf(values[i]);
+        return formats;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void showWaitingList(String title) throws LibraryException {
+        onOwner(title, NodeOperation.SHOW_WAITING_LIST, title);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void visitWaitingList(String title, Consumer<? super User> visitor) throws LibraryException {
+        String[] values = onOwner(title, NodeOperation.VISIT_WAITING_LIST, title);
+        for (int i = 0; i + 2 < values.length; i += 3) visitor.accept(userOf(values, i));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Not available on a partitioned catalog, whose titles are spread over
+     * the nodes.
+     */
+    @Override
+    public void sortInverse() throws LibraryException {
+        throw new LibraryException("Sorting is not available in a partitioned library.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reserve(String title) throws LibraryException {
+        onOwner(title, NodeOperation.RESERVE, title);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void vacate(String title) throws LibraryException {
+        onOwner(title, NodeOperation.VACATE, title);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void placeHold(String name, String title, long seconds) throws LibraryException {
+        onOwner(title, NodeOperation.PLACE_HOLD, name, title, Long.toString(seconds));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancelHold(String name, String title) throws LibraryException {
+        onOwner(title, NodeOperation.CANCEL_HOLD, name, title);
+    }
+
+    // ----------------------
+    // Loan methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LoanOutcome lendBook(String name, String title, String format) throws LibraryException {
+        return outcomeOf(onOwner(title, NodeOperation.LEND_BOOK, name, title, format));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LoanOutcome returnBook(String name, String title, String format) throws LibraryException {
+        return outcomeOf(onOwner(title, NodeOperation.RETURN_BOOK, name, title, format));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int lendToUsers(String title, String format, LibraryListWithPI<String> names) throws LibraryException {
+        String[] args = new String[names.size() + 2];
+        args[0] = title;
+        args[1] = format;
+        int i = 2;
+        for (String name : names) args[i++] = name;
+        return Integer.parseInt(onOwner(title, NodeOperation.LEND_TO_USERS, args)[0]);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listLoans(long from, int limit) throws LibraryException {
+        StringBuilder lines = new StringBuilder();
+        long next = visitLoans(from, limit, (user, book) -> lines.append("User \"").append(user.getName())
+                .append(", returned loan for \"").append(book.getTitle()).append("\"  (").append(book.getFormat())
+                .append(").").append(System.lineSeparator()));
+        if (lines.isEmpty() && from == 0) {
+            System.out.println("No active loans.");
+            return next;
+        }
+        PagedPrinter printer = new PagedPrinter(0, limit);
+        printer.header("--- Active loans ---");
+        if (!lines.isEmpty()) printer.println(lines.substring(0, lines.length() - System.lineSeparator().length()));
+        printer.finish();
+        return next;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitLoans(long from, int limit, BiConsumer<? super User, ? super Book> visitor) throws LibraryException {
+        return visitAcross(NodeOperation.VISIT_LOANS, from, limit, 3, (values, i) -> {
+            Book book = values[i + 2].equals(BookFormat.PHYSICAL.name()) ? new PBook(values[i + 1]) : new DBook(values[i + 1]);
+            visitor.accept(new User(values[i]), book);
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listOverdueLoans(long from, int limit) throws LibraryException {
+        StringBuilder lines = new StringBuilder();
+        long next = visitOverdueLoans(from, limit, loan -> lines.append("User \"").append(loan.getUser().getName())
+                .append(", overdue loan of \"").append(loan.getBook().getTitle()).append("\"  (")
+                .append(loan.getBook().getFormat()).append("), due ").append(loan.getFormattedDueDate())
+                .append(".").append(System.lineSeparator()));
+        if (lines.isEmpty() && from == 0) {
+            System.out.println("No overdue loans.");
+            return next;
+        }
+        PagedPrinter printer = new PagedPrinter(0, limit);
+        printer.header("--- Overdue loans ---");
+        if (!lines.isEmpty()) printer.println(lines.substring(0, lines.length() - System.lineSeparator().length()));
+        printer.finish();
+        return next;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitOverdueLoans(long from, int limit, Consumer<? super LoanRecord> visitor) throws LibraryException {
+        return visitAcross(NodeOperation.VISIT_OVERDUE_LOANS, from, limit, 4, (values, i) -> {
+            Book book = values[i + 2].equals(BookFormat.PHYSICAL.name()) ? new PBook(values[i + 1]) : new DBook(values[i + 1]);
+            visitor.accept(new LoanRecord(new User(values[i]), book, Long.parseLong(values[i + 3])));
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each node counts the titles it owns, so the top titles of the nodes
+     * are disjoint: their lists, each sorted, are merged into the k largest.
+     */
+    @Override
+    public LibraryListWithPI<TitleCount> topTitles(PopularityMetric metric, int k) throws LibraryException {
+        membership.readLock().lock();
+        try {
+            TitleCount[][] tops = new TitleCount[nodes.length][];
+            for (int n = 0; n < nodes.length; n++) {
+                String[] values = forward(nodes[n], NodeOperation.TOP_TITLES, metric.name(), Integer.toString(k));
+                tops[n] = new TitleCount[values.length / 3];
+                for (int i = 0; i < tops[n].length; i++)
+                    tops[n][i] = new TitleCount(values[3 * i], Long.parseLong(values[3 * i + 1]), Long.parseLong(values[3 * i + 2]));
+            }
+            LibraryListWithPI<TitleCount> merged = new SLLLibraryListWithPI<>();
+            int[] heads = new int[nodes.length];
+            while (merged.size() < k) {
+                int best = -1;
+                for (int n = 0; n < nodes.length; n++)
+                    if (heads[n] < tops[n].length && (best < 0 || tops[n][heads[n]].getCount() > tops[best][heads[best]].getCount()))
+                        best = n;
+                if (best < 0) break;
+                merged.insert(tops[best][heads[best]++]);
+            }
+            return merged;
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long estimatePopularity(PopularityMetric metric, String title) throws LibraryException {
+        return Long.parseLong(onOwner(title, NodeOperation.ESTIMATE_POPULARITY, metric.name(), title)[0]);
+    }
+
+    // ----------------------
+    // Batch methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A batch is applied all or nothing by one node, so its operations must
+     * all be on titles of the same node; users, which live on every node,
+     * cannot be added or removed by a batch.
+     */
+    @Override
+    public void executeBatch(LibraryListWithPI<BatchOperation> operations) throws LibraryException {
+        membership.readLock().lock();
+        try {
+            Node owner = null;
+            LibraryListWithPI<String> args = new SLLLibraryListWithPI<>();
+            for (BatchOperation operation : operations) {
+                String title = switch (operation.getOperation()) {
+                    case LEND_BOOK, RETURN_BOOK -> operation.getArg(1);
+                    case ADD_BOOK, ADD_COPIES, REMOVE_BOOK, RESERVE, VACATE -> operation.getArg(0);
+                    default -> throw new LibraryException(operation + " cannot be part of a batch in a partitioned library.");
+                };
+                Node node = ownerOf(title);
+                if (owner != null && owner != node)
+                    throw new LibraryException("A batch of a partitioned library must only touch titles of one node.");
+                owner = node;
+                args.insert(operation.getOperation().name());
+                args.insert(Integer.toString(operation.getArgCount()));
+                for (int i = 0; i < operation.getArgCount(); i++) args.insert(operation.getArg(i));
+            }
+            if (owner == null) throw new LibraryException("A batch needs at least one operation.");
+            forward(owner, NodeOperation.EXECUTE_BATCH, toArray(args));
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    // ----------------------
+    // Other methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The router keeps no history of its own: the event is printed to the
+     * console instead, with its time.
+     */
+    @Override
+    public void logEvent(String event) {
+        System.out.println(LibraryClock.formattedNow() + " - " + event);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each node keeps its own history: the pages of the first node are shown
+     * first, then those of the next ones.
+     */
+    @Override
+    public long showEventHistory(long from, int limit) throws LibraryException {
+        membership.readLock().lock();
+        try {
+            int node = (int) (from >>> CURSOR_NODE_SHIFT);
+            if (from < 0 || node >= nodes.length) throw new LibraryException("Invalid cursor: " + from);
+            System.out.println("--- Node " + nodes[node].address + " ---");
+            long next = Long.parseLong(forward(nodes[node], NodeOperation.SHOW_EVENT_HISTORY,
+                    Long.toString(from & CURSOR_POSITION_MASK), Integer.toString(limit))[0]);
+            if (next != PagedPrinter.END) return cursor(node, next);
+            return node + 1 < nodes.length ? cursor(node + 1, 0) : PagedPrinter.END;
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Not available on a partitioned catalog: each node saves its own state.
+     */
+    @Override
+    public void saveSnapshot(String path) throws LibraryException {
+        throw new LibraryException("Snapshots are taken by each node of a partitioned library.");
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Not available on a partitioned catalog: each node loads its own state.
+     */
+    @Override
+    public void loadSnapshot(String path) throws LibraryException {
+        throw new LibraryException("Snapshots are loaded by each node of a partitioned library.");
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every node imports the file, which the nodes share with the router on
+     * the same machine.
+     */
+    @Override
+    public void importUsers(String path) throws LibraryException {
+        broadcast(NodeOperation.IMPORT_USERS, path);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every node imports the file, which the nodes share with the router on
+     * the same machine, then drops the titles it does not own.
+     */
+    @Override
+    public void importBooks(String path) throws LibraryException {
+        membership.writeLock().lock();
+        try {
+            broadcast(NodeOperation.IMPORT_BOOKS, path);
+            String[] addresses = addresses(nodes);
+            for (Node node : nodes) node.call(NodeOperation.DROP_TITLES, prepend(node.address, addresses));
+        } finally {
+            membership.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every node is checkpointed.
+     */
+    @Override
+    public void checkpoint() throws LibraryException {
+        membership.readLock().lock();
+        try {
+            for (Node node : nodes) forward(node, NodeOperation.CHECKPOINT);
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Closes the connections to the nodes, which keep running.
+     */
+    @Override
+    public void close() {
+        membership.writeLock().lock();
+        try {
+            for (Node node : nodes) node.close();
+        } finally {
+            membership.writeLock().unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The repositories of a partitioned catalog live in the node processes.
+     *
+     * @return null
+     */
+    @Override
+    public LibraryRepository accessRepository() {
+        return null;
+    }
+
+    // ----------------------
+    // Partition methods
+    // ----------------------
+
+    /**
+     * Adds a node to the catalog and moves to it the titles it now owns. The
+     * node, expected to start empty, first receives every user.
+     *
+     * @param port the port of the node
+     * @throws LibraryException if the node is already a member, unreachable, or the titles cannot be moved
+     */
+    public void addNode(int port) throws LibraryException {
+        membership.writeLock().lock();
+        try {
+            if (indexOf(port) >= 0) throw new LibraryException("Node " + addressOf(port) + " is already a member.");
+            if (nodes.length == MAX_NODES) throw new LibraryException("A partitioned library has at most " + MAX_NODES + " nodes.");
+            Node added = new Node(port);
+            try {
+                copyUsers(nodes[0], added);
+                Node[] next = Arrays.copyOf(nodes, nodes.length + 1);
+                next[nodes.length] = added;
+                int moved = rebalance(next);
+                System.out.println("Node " + added.address + " joined: " + moved + " titles moved.");
+            } catch (LibraryException e) {
+                added.close();
+                throw e;
+            }
+        } finally {
+            membership.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a node from the catalog, moving its titles to the nodes that
+     * now own them. The node keeps running without titles.
+     *
+     * @param port the port of the node
+     * @throws LibraryException if the node is not a member, is the last one, or the titles cannot be moved
+     */
+    public void removeNode(int port) throws LibraryException {
+        membership.writeLock().lock();
+        try {
+            int index = indexOf(port);
+            if (index < 0) throw new LibraryException("Node " + addressOf(port) + " is not a member.");
+            if (nodes.length == 1) throw new LibraryException("The last node of a partitioned library cannot leave.");
+            Node removed = nodes[index];
+            Node[] next = new Node[nodes.length - 1];
+            for (int i = 0, j = 0; i < nodes.length; i++) if (i != index) next[j++] = nodes[i];
+            int moved = rebalance(next);
+            removed.close();
+            System.out.println("Node " + removed.address + " left: " + moved + " titles moved.");
+        } finally {
+            membership.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Prints the member nodes.
+     */
+    public void listNodes() {
+        membership.readLock().lock();
+        try {
+            System.out.println("--- Nodes ---");
+            for (Node node : nodes) System.out.println(node.address);
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    // ----------------------
+    // Private helpers
+    // ----------------------
+
+    /**
+     * Receives the fields of each item of a page of a node listing.
+     */
+    @FunctionalInterface
+    private interface ItemVisitor {
+        void accept(String[] values, int first) throws LibraryException;
+    }
+
+    /**
+     * Connection pool to one node. Connections are taken for one request
+     * and given back once its reply is read, so concurrent operations use
+     * separate connections.
+     */
+    private static class Node {
+
+        /** Port of the node. */
+        private final int port;
+
+        /** Address of the node on the ring. */
+        private final String address;
+
+        /** Connections waiting for a request. */
+        private final ConcurrentLinkedQueue<NodeConnection> idle = new ConcurrentLinkedQueue<>();
+
+        /** Constructs the pool of the node listening on a local port. */
+        private Node(int port) {
+            this.port = port;
+            this.address = addressOf(port);
+        }
+
+        /**
+         * Sends a request to the node over an idle connection, or a new one.
+         *
+         * @throws LibraryException if the node cannot be reached
+         */
+        private NodeReply call(NodeOperation op, String... args) throws LibraryException {
+            NodeConnection connection = idle.poll();
+            try {
+                if (connection == null) connection = new NodeConnection(port);
+                NodeReply reply = connection.call(op, args);
+                idle.offer(connection);
+                return reply;
+            } catch (IOException e) {
+                if (connection != null) connection.close();
+                throw new LibraryException("Node " + address + " is unreachable: " + e.getMessage());
+            }
+        }
+
+        /** Closes the idle connections. */
+        private void close() {
+            NodeConnection connection;
+            while ((connection = idle.poll()) != null) connection.close();
+        }
+    }
+
+    /**
+     * Sends a request to a node, printing its output and reporting its failure.
+     *
+     * @return the values of the reply
+     * @throws LibraryException if the node is unreachable or the operation fails
+     */
+    private static String[] forward(Node node, NodeOperation op, String... args) throws LibraryException {
+        NodeReply reply = node.call(op, args);
+        System.out.print(reply.getOutput());
+        if (!reply.isSuccess()) throw new LibraryException(reply.getError());
+        return reply.getValues();
+    }
+
+    /**
+     * Forwards an operation to the owner of a title.
+     *
+     * @return the values of the reply
+     * @throws LibraryException if the node is unreachable or the operation fails
+     */
+    private String[] onOwner(String title, NodeOperation op, String... args) throws LibraryException {
+        if (title == null) throw new LibraryException("Book \"" + title + "\", not found");
+        membership.readLock().lock();
+        try {
+            return forward(ownerOf(title), op, args);
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * Applies a user operation to every node. The first node decides whether
+     * it succeeds and prints its output; the others, holding the same users,
+     * follow it.
+     *
+     * @throws LibraryException if the operation fails, or only succeeds on some nodes
+     */
+    private void broadcast(NodeOperation op, String... args) throws LibraryException {
+        membership.readLock().lock();
+        try {
+            forward(nodes[0], op, args);
+            for (int i = 1; i < nodes.length; i++) {
+                NodeReply reply = nodes[i].call(op, args);
+                if (!reply.isSuccess())
+                    throw new LibraryException("Node " + nodes[i].address + " diverged: " + reply.getError());
+            }
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits one page of a listing across the nodes, starting at the node
+     * and position of the cursor and moving on to the next nodes until the
+     * page is full.
+     *
+     * @param op      the listing of each node
+     * @param from    the continuation cursor
+     * @param limit   the maximum number of items
+     * @param fields  the number of fields of each item
+     * @param visitor receives the fields of each item
+     * @return the continuation cursor of the next page, or {@link PagedPrinter#END}
+     * @throws LibraryException if the page is invalid or a node is unreachable
+     */
+    private long visitAcross(NodeOperation op, long from, int limit, int fields, ItemVisitor visitor) throws LibraryException {
+        if (from < 0) throw new LibraryException("Invalid cursor: " + from);
+        if (limit < 1) throw new LibraryException("Invalid page size: " + limit);
+        membership.readLock().lock();
+        try {
+            int node = (int) (from >>> CURSOR_NODE_SHIFT);
+            long position = from & CURSOR_POSITION_MASK;
+            if (node >= nodes.length) throw new LibraryException("Invalid cursor: " + from);
+            int remaining = limit;
+            while (true) {
+                String[] values = forward(nodes[node], op, Long.toString(position), Integer.toString(remaining));
+                int items = (values.length - 1) / fields;
+                for (int i = 0; i < items; i++) visitor.accept(values, 1 + i * fields);
+                remaining -= items;
+                long next = Long.parseLong(values[0]);
+                if (next != PagedPrinter.END) return cursor(node, next);
+                if (++node == nodes.length) return PagedPrinter.END;
+                position = 0;
+                if (remaining == 0) return cursor(node, 0);
+            }
+        } finally {
+            membership.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves the titles changing owner to a new membership: each former
+     * member exports the titles it no longer owns, their new owners import
+     * them, and only then do the former members drop them. If a step fails,
+     * the copies already made are dropped and the membership is unchanged.
+     *
+     * @param next the new members
+     * @return the number of titles moved
+     * @throws LibraryException if a node is unreachable or refuses the titles
+     */
+    private int rebalance(Node[] next) throws LibraryException {
+        String[] nextAddresses = addresses(next);
+        HashRing nextRing = new HashRing(nextAddresses);
+        int moved = 0;
+        try {
+            for (Node node : nodes) {
+                String[] fields = forward(node, NodeOperation.EXPORT_TITLES, prepend(node.address, nextAddresses));
+                LibraryMap<String, LibraryListWithPI<String>> byOwner = new HashLibraryMap<>(next.length);
+                Iterator<String> it = Arrays.asList(fields).iterator();
+                while (it.hasNext()) {
+                    TitleRecord record = TitleRecord.readFrom(it);
+                    String owner = nextRing.ownerOf(record.getTitle());
+                    LibraryListWithPI<String> group = byOwner.get(owner);
+                    if (group == null) byOwner.put(owner, group = new SLLLibraryListWithPI<>());
+                    record.writeTo(group);
+                    moved++;
+                }
+                for (Node target : next) {
+                    LibraryListWithPI<String> group = byOwner.get(target.address);
+                    if (group != null) forward(target, NodeOperation.IMPORT_TITLES, toArray(group));
+                }
+            }
+        } catch (LibraryException e) {
+            // Drop the copies made so far: every title is still held by its former owner
+            String[] addresses = addresses(nodes);
+            for (Node node : next) {
+                try {
+                    node.call(NodeOperation.DROP_TITLES, prepend(node.address, addresses));
+                } catch (LibraryException ignored) {
+                    // The node is unreachable: nothing to drop from it
+                }
+            }
+            throw new LibraryException("Rebalance aborted: " + e.getMessage());
+        }
+        for (Node node : nodes) forward(node, NodeOperation.DROP_TITLES, prepend(node.address, nextAddresses));
+        this.nodes = next;
+        this.ring = nextRing;
+        return moved;
+    }
+
+    /**
+     * Adds every user of one node to another, ignoring the users it already has.
+     *
+     * @throws LibraryException if a node is unreachable
+     */
+    private static void copyUsers(Node from, Node to) throws LibraryException {
+        long cursor = 0;
+        do {
+            String[] values = forward(from, NodeOperation.VISIT_USERS, Long.toString(cursor), "1000");
+            for (int i = 1; i + 1 < values.length; i += 2) to.call(NodeOperation.ADD_USER, values[i]);
+            cursor = Long.parseLong(values[0]);
+        } while (cursor != PagedPrinter.END);
+    }
+
+    /** Returns the member owning a title. */
+    private Node ownerOf(String title) {
+        String address = ring.ownerOf(title);
+        for (Node node : nodes) if (node.address.equals(address)) return node;
+        throw new IllegalStateException("No member at " + address);
+    }
+
+    /** Returns the position of the member with a port, or -1. */
+    private int indexOf(int port) {
+        for (int i = 0; i < nodes.length; i++) if (nodes[i].port == port) return i;
+        return -1;
+    }
+
+    /**
+     * Builds the continuation cursor of a position within a node.
+     *
+     * @throws LibraryException if the position does not fit a cursor
+     */
+    private static long cursor(int node, long position) throws LibraryException {
+        if (position > CURSOR_POSITION_MASK) throw new LibraryException("Listing too long to page across nodes.");
+        return ((long) node << CURSOR_NODE_SHIFT) | position;
+    }
+
+    /** Decodes a user from its name, creation date and role, starting at a position. */
+    private static User userOf(String[] values, int i) {
+        return new User(values[i], values[i + 1], UserRole.valueOf(values[i + 2]));
+    }
+
+    /** Decodes the outcome of a loan, if any. */
+    private static LoanOutcome outcomeOf(String[] values) {
+        if (values.length < 4) return null;
+        return new LoanOutcome(values[0], values[1], BookFormat.valueOf(values[2]), Integer.parseInt(values[3]));
+    }
+
+    /** Returns the address of the node listening on a local port. */
+    private static String addressOf(int port) {
+        return "localhost:" + port;
+    }
+
+    /** Returns the addresses of nodes. */
+    private static String[] addresses(Node[] nodes) {
+        String[] addresses = new String[nodes.length];
+        for (int i = 0; i < nodes.length; i++) addresses[i] = nodes[i].address;
+        return addresses;
+    }
+
+    /** Returns a value followed by others. */
+    private static String[] prepend(String first, String[] rest) {
+        String[] values = new String[rest.length + 1];
+        values[0] = first;
+        System.arraycopy(rest, 0, values, 1, rest.length);
+        return values;
+    }
+
+    /** Copies a list of values into an array. */
+    private static String[] toArray(LibraryListWithPI<String> values) {
+        String[] array = new String[values.size()];
+        int i = 0;
+        for (String value : values) array[i++] = value;
+        return array;
+    }
+}
@@ -0,0 +1,216 @@
+package application.service.impl;
+
+import application.service.PopularityMetric;
+import application.service.TitleCount;
+import common.LockStripes;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import common.dataStructures.sketch.FrequencySketch;
+import common.dataStructures.sketch.TopKSketch;
+import common.dataStructures.sketch.impl.CountMinSketch;
+import common.dataStructures.sketch.impl.SpaceSavingSketch;
+
+import java.util.Arrays;
+
+/**
+ * Counts how often titles are borrowed and waited for, as the loans and
+ * waiting lists change, in memory bounded whatever the number of titles.
+ * <p>
+ * Each metric feeds two sketches: a space-saving sketch, see
+ * {@link SpaceSavingSketch}, which keeps the most popular titles ready to be
+ * read in O(k), and a count-min sketch, see {@link CountMinSketch}, which
+ * estimates the count of any title.
+ * <p>
+ * The sketches are split into the title stripes of {@link LockStripes}, each
+ * stripe counting only its own titles and guarded by its own monitor, so
+ * that counting titles of different stripes never contends. Since a title
+ * is counted in a single stripe, the most popular titles are read by
+ * merging the most popular titles of each stripe, and the count of a title
+ * is read from its stripe alone. The count-min sketches of the stripes
+ * share the width of a single sketch, which keeps the same error bound on
+ * the whole count.
+ * <p>
+ * The sketches cannot take counts back, so an operation that may be undone
+ * defers the counts of its thread, see {@link #defer()}: they are held back
+ * until the operation commits, and dropped if it is undone.
+ */
+public class PopularityTracker {
+
+    /** Sketches of each metric, by metric then by title stripe. */
+    private final Sketches[][] sketches;
+
+    /** Counts held back by the thread running an operation, if it defers them. */
+    private final ThreadLocal<Deferred> deferred = new ThreadLocal<>();
+
+    /**
+     * Constructs a tracker with no titles counted.
+     */
+    public PopularityTracker() {
+        PopularityMetric[] metrics = PopularityMetric.values();
+        int width = Math.max(1, CountMinSketch.DEFAULT_WIDTH / LockStripes.DEFAULT_STRIPES);
+        this.sketches = new Sketches[metrics.length][LockStripes.DEFAULT_STRIPES];
+        for (Sketches[] stripes : sketches)
+            for (int i = 0; i < stripes.length; i++) stripes[i] = new Sketches(width);
+    }
+
+    /** Returns the sketches counting a metric for a title. */
+    private Sketches stripeOf(PopularityMetric metric, String title) {
+        return sketches[metric.ordinal()][LockStripes.stripeOf(title, LockStripes.DEFAULT_STRIPES)];
+    }
+
+    /**
+     * Counts one occurrence of a metric for a title.
+     *
+     * @param metric the metric
+     * @param title  the title
+     */
+    public void record(PopularityMetric metric, String title) {
+        Deferred held = deferred.get();
+        if (held != null) {
+            held.add(metric, title);
+            return;
+        }
+        count(metric, title);
+    }
+
+    /**
+     * Holds back the counts recorded by the current thread until
+     * {@link #commit()} or {@link #discard()}, unless they are held back
+     * already, by an enclosing operation.
+     *
+     * @return true if the counts were not held back yet: the caller then
+     *         commits or discards them
+     */
+    public boolean defer() {
+        if (deferred.get() != null) return false;
+        deferred.set(new Deferred());
+        return true;
+    }
+
+    /**
+     * Counts the occurrences held back by the current thread, and stops
+     * holding them back.
+     */
+    public void commit() {
+        Deferred held = deferred.get();
+        if (held == null) return;
+        deferred.remove();
+        for (int i = 0; i < held.size; i++) count(held.metrics[i], held.titles[i]);
+    }
+
+    /**
+     * Drops the occurrences held back by the current thread, once the
+     * operation that recorded them was undone, and stops holding them back.
+     * Does nothing once they were committed.
+     */
+    public void discard() {
+        deferred.remove();
+    }
+
+    /** Counts one occurrence of a metric for a title in its stripe. */
+    private void count(PopularityMetric metric, String title) {
+        Sketches stripe = stripeOf(metric, title);
+        synchronized (stripe) {
+            stripe.top.add(title);
+            stripe.counts.add(title);
+        }
+    }
+
+    /**
+     * Returns the titles with the largest counts of a metric. The k most
+     * popular titles of each stripe are read one stripe at a time, then
+     * merged by decreasing count.
+     *
+     * @param metric the metric
+     * @param k      the number of titles, at most {@link #capacity()}
+     * @return the titles, by decreasing count
+     */
+    public LibraryListWithPI<TitleCount> top(PopularityMetric metric, int k) {
+        Sketches[] stripes = sketches[metric.ordinal()];
+        TitleCount[][] tops = new TitleCount[stripes.length][];
+        for (int i = 0; i < stripes.length; i++) {
+            synchronized (stripes[i]) {
+                TitleCount[] top = new TitleCount[Math.min(k, stripes[i].top.capacity())];
+                int[] n = new int[1];
+                stripes[i].top.forEachTop(top.length, (title, count, error) -> top[n[0]++] = new TitleCount(title, count, error));
+                tops[i] = Arrays.copyOf(top, n[0]);
+            }
+        }
+
+        LibraryListWithPI<TitleCount> titles = new SLLLibraryListWithPI<>();
+        int[] next = new int[stripes.length];
+        for (int taken = 0; taken < k; taken++) {
+            int best = -1;
+            for (int i = 0; i < tops.length; i++) {
+                if (next[i] == tops[i].length) continue;
+                if (best < 0 || tops[i][next[i]].getCount() > tops[best][next[best]].getCount()) best = i;
+            }
+            if (best < 0) break;
+            titles.insert(tops[best][next[best]++]);
+        }
+        return titles;
+    }
+
+    /**
+     * Estimates the count of a metric for a title. The space-saving count is
+     * exact enough for the titles it monitors; the count-min sketch bounds
+     * the others.
+     *
+     * @param metric the metric
+     * @param title  the title
+     * @return the estimated count, never below the true count
+     */
+    public long estimate(PopularityMetric metric, String title) {
+        Sketches stripe = stripeOf(metric, title);
+        synchronized (stripe) {
+            return Math.min(stripe.top.estimate(title), stripe.counts.estimate(title));
+        }
+    }
+
+    /** @return the number of titles kept ready for each metric */
+    public int capacity() {
+        return SpaceSavingSketch.DEFAULT_CAPACITY;
+    }
+
+    /**
+     * Occurrences recorded by an operation that defers them, in order.
+     */
+    private static final class Deferred {
+
+        /** Metric of each occurrence. */
+        private PopularityMetric[] metrics = new PopularityMetric[4];
+
+        /** Title of each occurrence. */
+        private String[] titles = new String[4];
+
+        /** Number of occurrences. */
+        private int size;
+
+        /** Appends an occurrence. */
+        void add(PopularityMetric metric, String title) {
+            if (size == titles.length) {
+                metrics = Arrays.copyOf(metrics, 2 * size);
+                titles = Arrays.copyOf(titles, 2 * size);
+            }
+            metrics[size] = metric;
+            titles[size++] = title;
+        }
+    }
+
+    /**
+     * Sketches counting one metric for the titles of one stripe, guarded by
+     * their own monitor.
+     */
+    private static final class Sketches {
+
+        /** Most popular titles of the stripe. */
+        private final TopKSketch<String> top = new SpaceSavingSketch<>();
+
+        /** Counts of every title of the stripe. */
+        private final FrequencySketch<String> counts;
+
+        Sketches(int width) {
+            this.counts = new CountMinSketch<>(width, CountMinSketch.DEFAULT_DEPTH);
+        }
+    }
+}
@@ -0,0 +1,442 @@
+package application.service.impl;
+
+import application.service.BatchOperation;
+import application.service.ILibraryService;
+import application.service.LoanOutcome;
+import application.service.PopularityMetric;
+import application.service.TitleCount;
+import common.LibraryException;
+import common.dataStructures.list.LibraryListWithPI;
+import domain.book.Book;
+import domain.book.BookFormat;
+import domain.loan.LoanRecord;
+import domain.user.User;
+import infrastructure.repository.LibraryRepository;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Implementation of ILibraryService serving the reads of a library from
+ * read replicas, see {@link LibraryReplica}.
+ * <p>
+ * Every change goes to the primary library, which publishes it to its
+ * replicas. Read-only operations (listings and waiting lists) are
+ * spread over the replicas in turn, so they never wait for the writes of
+ * the primary; a replica only serves reads while it lags the primary by at
+ * most the configured number of changes, and the primary serves them when
+ * no replica does. A read may thus miss the most recent changes, up to that
+ * bound; with a bound of 0, it sees every change completed before it.
+ * The formats of a title are read from the primary, since commands read
+ * them to choose the copy they change.
+ */
+public class ReplicatedLibraryService implements ILibraryService {
+
+    /** Default number of replicas. */
+    public static final int DEFAULT_REPLICAS = 2;
+
+    /** Default number of changes a replica may lag behind and still serve reads. */
+    public static final long DEFAULT_MAX_LAG = 1_000;
+
+    /** Library performing the changes. */
+    private final LibraryService primary;
+
+    /** Replicas serving the reads. */
+    private final LibraryReplica[] replicas;
+
+    /** Number of changes a replica may lag behind and still serve reads. */
+    private final long maxLag;
+
+    /** Position of the next replica to try. */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Constructs a replicated service over the given primary library and
+     * starts copying it to its replicas. The primary belongs to the
+     * replicated service from then on and is closed with it.
+     *
+     * @param primary  the library performing the changes
+     * @param replicas the number of replicas
+     * @param maxLag   the number of changes a replica may lag behind and still serve reads
+     * @throws LibraryException if the number of replicas or the lag is invalid
+     */
+    public ReplicatedLibraryService(LibraryService primary, int replicas, long maxLag) throws LibraryException {
+        if (replicas < 1) throw new LibraryException("The number of replicas must be at least 1.");
+        if (maxLag < 0) throw new LibraryException("The maximum lag of the replicas cannot be negative.");
+        this.primary = primary;
+        this.maxLag = maxLag;
+        this.replicas = new LibraryReplica[replicas];
+        for (int i = 0; i < replicas; i++)
+            this.replicas[i] = new LibraryReplica(primary, "replica-" + i, LibraryReplica.DEFAULT_CAPACITY);
+    }
+
+    // ----------------------
+    // User methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addUser(String name) throws LibraryException {
+        primary.addUser(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeUser(String name) throws LibraryException {
+        primary.removeUser(name);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setRole(String name, String role) throws LibraryException {
+        primary.setRole(name, role);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listUsers(long from, int limit) throws LibraryException {
+        return reader().listUsers(from, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitUsers(long from, int limit, Consumer<? super User> visitor) throws LibraryException {
+        return reader().visitUsers(from, limit, visitor);
+    }
+
+    // ----------------------
+    // Book methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addBook(String title, String format) throws LibraryException {
+        primary.addBook(title, format);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int addCopies(String title, int copies) throws LibraryException {
+        return primary.addCopies(title, copies);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeBook(String title, String format) throws LibraryException {
+        primary.removeBook(title, format);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listBooks(long from, int limit) throws LibraryException {
+        return reader().listBooks(from, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitBooks(long from, int limit, Consumer<? super Book> visitor) throws LibraryException {
+        return reader().visitBooks(from, limit, visitor);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Read from the primary, as the formats choose the copy a change applies to.
+     */
+    @Override
+    public BookFormat[] formatsOf(String title) throws LibraryException {
+        return primary.formatsOf(title);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void showWaitingList(String title) throws LibraryException {
+        reader().showWaitingList(title);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void visitWaitingList(String title, Consumer<? super User> visitor) throws LibraryException {
+        reader().visitWaitingList(title, visitor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void sortInverse() throws LibraryException {
+        primary.sortInverse();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reserve(String title) throws LibraryException {
+        primary.reserve(title);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void vacate(String title) throws LibraryException {
+        primary.vacate(title);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void placeHold(String name, String title, long seconds) throws LibraryException {
+        primary.placeHold(name, title, seconds);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancelHold(String name, String title) throws LibraryException {
+        primary.cancelHold(name, title);
+    }
+
+    // ----------------------
+    // Loan methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LoanOutcome lendBook(String name, String title, String format) throws LibraryException {
+        return primary.lendBook(name, title, format);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LoanOutcome returnBook(String name, String title, String format) throws LibraryException {
+        return primary.returnBook(name, title, format);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int lendToUsers(String title, String format, LibraryListWithPI<String> names) throws LibraryException {
+        return primary.lendToUsers(title, format, names);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listLoans(long from, int limit) throws LibraryException {
+        return reader().listLoans(from, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitLoans(long from, int limit, BiConsumer<? super User, ? super Book> visitor) throws LibraryException {
+        return reader().visitLoans(from, limit, visitor);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Read from the primary, whose clock checks the due dates.
+     */
+    @Override
+    public long listOverdueLoans(long from, int limit) throws LibraryException {
+        return primary.listOverdueLoans(from, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LibraryListWithPI<TitleCount> topTitles(PopularityMetric metric, int k) throws LibraryException {
+        return primary.topTitles(metric, k);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long estimatePopularity(PopularityMetric metric, String title) throws LibraryException {
+        return primary.estimatePopularity(metric, title);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Read from the primary, whose clock checks the due dates.
+     */
+    @Override
+    public long visitOverdueLoans(long from, int limit, Consumer<? super LoanRecord> visitor) throws LibraryException {
+        return primary.visitOverdueLoans(from, limit, visitor);
+    }
+
+    // ----------------------
+    // Batch methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void executeBatch(LibraryListWithPI<BatchOperation> operations) throws LibraryException {
+        primary.executeBatch(operations);
+    }
+
+    // ----------------------
+    // Other methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The events are only recorded by the primary.
+     */
+    @Override
+    public long showEventHistory(long from, int limit) throws LibraryException {
+        return primary.showEventHistory(from, limit);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void logEvent(String event) {
+        primary.logEvent(event);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void saveSnapshot(String path) throws LibraryException {
+        primary.saveSnapshot(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void loadSnapshot(String path) throws LibraryException {
+        primary.loadSnapshot(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void importUsers(String path) throws LibraryException {
+        primary.importUsers(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void importBooks(String path) throws LibraryException {
+        primary.importBooks(path);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void checkpoint() throws LibraryException {
+        primary.checkpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The replicas are stopped first.
+     */
+    @Override
+    public void close() {
+        for (LibraryReplica replica : replicas) replica.close();
+        primary.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LibraryRepository accessRepository() {
+        return primary.accessRepository();
+    }
+
+    // ----------------------
+    // Replica methods
+    // ----------------------
+
+    /**
+     * Prints the status of each replica: the position of the last change it
+     * applied, its lag behind the primary in changes and in milliseconds,
+     * and the number of times it copied the primary.
+     */
+    public void printReplicaStatus() {
+        System.out.println("--- Replicas (primary at change " + primary.getChangeSequence()
+                + ", reads served up to " + maxLag + " changes behind) ---");
+        for (LibraryReplica replica : replicas) {
+            long lag = replica.getLag();
+            System.out.println(replica.getName()
+                    + " | applied: " + replica.getAppliedSequence()
+                    + " | lag: " + (lag == Long.MAX_VALUE ? "copying" : lag + " changes, " + replica.getLagMillis() + " ms")
+                    + " | copies: " + replica.getCopies()
+                    + (replica.isCurrent(maxLag) ? "" : " | not serving"));
+        }
+    }
+
+    // ----------------------
+    // Private helpers
+    // ----------------------
+
+    /**
+     * Returns the library to serve a read from: the next replica current
+     * enough, or the primary if there is none.
+     *
+     * @return the library serving the read
+     */
+    private LibraryService reader() {
+        int start = Math.floorMod(next.getAndIncrement(), replicas.length);
+        for (int i = 0; i < replicas.length; i++) {
+            LibraryReplica replica = replicas[(start + i) % replicas.length];
+            LibraryService copy = replica.getCopy();
+            if (copy != null && replica.isCurrent(maxLag)) return copy;
+        }
+        return primary;
+    }
+}
@@ -0,0 +1,931 @@
+package application.service.impl;
+
+import application.service.BatchOperation;
+import application.service.ILibraryService;
+import application.service.LoanOutcome;
+import application.service.PopularityMetric;
+import application.service.TitleCount;
+import common.LibraryException;
+import common.LockStripes;
+import common.PagedPrinter;
+import common.ThreadRoutedPrintStream;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import domain.book.Book;
+import domain.book.BookFormat;
+import domain.book.DBook;
+import domain.book.PBook;
+import domain.loan.LoanRecord;
+import domain.user.User;
+import infrastructure.repository.LibraryRepository;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+
+/**
+ * Implementation of ILibraryService partitioning the titles of a library
+ * across worker threads, each the single writer of its shard.
+ * <p>
+ * Each shard owns a library of its own holding the titles assigned to it:
+ * their inventories, waiting lists, loans and holds live in that library
+ * only, which only the worker of the shard ever touches. A title belongs to
+ * the shard owning its title stripe, see {@link LockStripes#stripeOf(Object, int)},
+ * and every operation on it is posted to the mailbox of that worker and run
+ * there in arrival order, so the copy counters of a title are only written
+ * from one core and operations on titles of different shards run in
+ * parallel without sharing any state.
+ * <p>
+ * Users are replicated, as in a {@link PartitionedLibraryService}: every
+ * shard holds every user, so that loans and waiting lists are checked by
+ * the owner of the title alone. Operations on users are posted to the
+ * mailboxes of all the shards, in the same order on each, and the first
+ * shard decides whether they succeed. Listings of books and loans visit the
+ * shards in turn, one message per shard, and their continuation cursors
+ * hold the shard to resume at in their high bits and the position within
+ * it in their low bits. The caller of an operation waits for the shards to
+ * complete it and receives the output of the first one it ran on.
+ */
+public class ShardedLibraryService implements ILibraryService {
+
+    /** Default number of shards: one per core. */
+    public static final int DEFAULT_SHARDS = Runtime.getRuntime().availableProcessors();
+
+    /** Maximum number of shards: one per title stripe. */
+    public static final int MAX_SHARDS = LockStripes.DEFAULT_STRIPES;
+
+    /** Position of the shard index in a continuation cursor. */
+    private static final int CURSOR_SHARD_SHIFT = 56;
+
+    /** Mask of the cursor within a shard in a continuation cursor. */
+    private static final long CURSOR_POSITION_MASK = (1L << CURSOR_SHARD_SHIFT) - 1;
+
+    /** Shards, in the order their listings are visited. */
+    private final Shard[] shards;
+
+    /** Console output, routed on a shard to the caller of each operation. */
+    private final ThreadRoutedPrintStream console;
+
+    /** Sink of the output of the shards following the first one in a broadcast. */
+    private final PrintStream discarded = new PrintStream(OutputStream.nullOutputStream());
+
+    /** Guards the posting of user operations, so that every shard receives them in the same order. */
+    private final Object userOrder = new Object();
+
+    /**
+     * Constructs a sharded library whose shards hold their titles in the
+     * libraries built by the given factory, one per shard. The libraries
+     * belong to the sharded service from then on and are closed with it;
+     * if one cannot be built, those already built are closed.
+     *
+     * @param shards  the number of shards, at most {@link #MAX_SHARDS}
+     * @param library builds the empty or recovered library of a shard, given its index
+     * @throws LibraryException if the number of shards is invalid or a library cannot be built
+     */
+    public ShardedLibraryService(int shards, ShardFactory library) throws LibraryException {
+        if (shards < 1 || shards > MAX_SHARDS)
+            throw new LibraryException("The number of shards must be between 1 and " + MAX_SHARDS + ".");
+        this.console = ThreadRoutedPrintStream.install();
+        this.shards = new Shard[shards];
+        try {
+            for (int i = 0; i < shards; i++) this.shards[i] = new Shard(i, library.create(i));
+        } catch (LibraryException | RuntimeException e) {
+            for (Shard shard : this.shards) if (shard != null) shard.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the library of a shard.
+     */
+    @FunctionalInterface
+    public interface ShardFactory {
+
+        /**
+         * Builds the library of a shard.
+         *
+         * @param shard the index of the shard
+         * @return the library the shard owns
+         * @throws LibraryException if the library cannot be built
+         */
+        LibraryService create(int shard) throws LibraryException;
+    }
+
+    /** @return the number of shards */
+    public int getShardCount() { return shards.length; }
+
+    // ----------------------
+    // User methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The user is added on every shard.
+     */
+    @Override
+    public void addUser(String name) throws LibraryException {
+        broadcast(library -> {
+            library.addUser(name);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The user is removed on every shard, each of which ends the loans and
+     * holds of the user on its titles.
+     */
+    @Override
+    public void removeUser(String name) throws LibraryException {
+        broadcast(library -> {
+            library.removeUser(name);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The role is set on every shard, each of which moves the user in the
+     * waiting lists of its titles.
+     */
+    @Override
+    public void setRole(String name, String role) throws LibraryException {
+        broadcast(library -> {
+            library.setRole(name, role);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every shard holds every user: the users of the first one are listed.
+     */
+    @Override
+    public long listUsers(long from, int limit) throws LibraryException {
+        return call(shards[0], library -> library.listUsers(from, limit));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every shard holds every user: the users of the first one are visited,
+     * as copies, on the calling thread.
+     */
+    @Override
+    public long visitUsers(long from, int limit, Consumer<? super User> visitor) throws LibraryException {
+        LibraryListWithPI<User> users = new SLLLibraryListWithPI<>();
+        long next = call(shards[0], library -> library.visitUsers(from, limit, user -> users.insert(copyOf(user))));
+        for (User user : users) visitor.accept(user);
+        return next;
+    }
+
+    // ----------------------
+    // Book methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addBook(String title, String format) throws LibraryException {
+        onOwner(title, library -> {
+            library.addBook(title, format);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int addCopies(String title, int copies) throws LibraryException {
+        return onOwner(title, library -> library.addCopies(title, copies));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeBook(String title, String format) throws LibraryException {
+        onOwner(title, library -> {
+            library.removeBook(title, format);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listBooks(long from, int limit) throws LibraryException {
+        StringBuilder lines = new StringBuilder();
+        long next = visitBooks(from, limit, book -> lines.append(book).append(System.lineSeparator()));
+        if (lines.isEmpty() && from == 0) throw new LibraryException("No available books.");
+        PagedPrinter printer = new PagedPrinter(0, limit);
+        printer.header("--- Available books ---");
+        if (!lines.isEmpty()) printer.println(lines.substring(0, lines.length() - System.lineSeparator().length()));
+        printer.finish();
+        return next;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The books are visited as copies, on the calling thread.
+     */
+    @Override
+    public long visitBooks(long from, int limit, Consumer<? super Book> visitor) throws LibraryException {
+        return visitAcross(from, limit, (library, position, remaining, items) ->
+                library.visitBooks(position, remaining, book -> items.insert(copyOf(book))), visitor);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public BookFormat[] formatsOf(String title) throws LibraryException {
+        return onOwner(title, library -> library.formatsOf(title));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void showWaitingList(String title) throws LibraryException {
+        onOwner(title, library -> {
+            library.showWaitingList(title);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The users are visited as copies, on the calling thread.
+     */
+    @Override
+    public void visitWaitingList(String title, Consumer<? super User> visitor) throws LibraryException {
+        LibraryListWithPI<User> users = new SLLLibraryListWithPI<>();
+        onOwner(title, library -> {
+            library.visitWaitingList(title, user -> users.insert(copyOf(user)));
+            return null;
+        });
+        for (User user : users) visitor.accept(user);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Not available on a sharded library, whose titles are spread over the
+     * shards.
+     */
+    @Override
+    public void sortInverse() throws LibraryException {
+        throw new LibraryException("Sorting is not available in a sharded library.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reserve(String title) throws LibraryException {
+        onOwner(title, library -> {
+            library.reserve(title);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void vacate(String title) throws LibraryException {
+        onOwner(title, library -> {
+            library.vacate(title);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void placeHold(String name, String title, long seconds) throws LibraryException {
+        onOwner(title, library -> {
+            library.placeHold(name, title, seconds);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancelHold(String name, String title) throws LibraryException {
+        onOwner(title, library -> {
+            library.cancelHold(name, title);
+            return null;
+        });
+    }
+
+    // ----------------------
+    // Loan methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LoanOutcome lendBook(String name, String title, String format) throws LibraryException {
+        return onOwner(title, library -> library.lendBook(name, title, format));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int lendToUsers(String title, String format, LibraryListWithPI<String> names) throws LibraryException {
+        return onOwner(title, library -> library.lendToUsers(title, format, names));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public LoanOutcome returnBook(String name, String title, String format) throws LibraryException {
+        return onOwner(title, library -> library.returnBook(name, title, format));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listLoans(long from, int limit) throws LibraryException {
+        StringBuilder lines = new StringBuilder();
+        long next = visitLoans(from, limit, (user, book) -> lines.append("User \"").append(user.getName())
+                .append(", returned loan for \"").append(book.getTitle()).append("\"  (").append(book.getFormat())
+                .append(").").append(System.lineSeparator()));
+        if (lines.isEmpty() && from == 0) {
+            System.out.println("No active loans.");
+            return next;
+        }
+        PagedPrinter printer = new PagedPrinter(0, limit);
+        printer.header("--- Active loans ---");
+        if (!lines.isEmpty()) printer.println(lines.substring(0, lines.length() - System.lineSeparator().length()));
+        printer.finish();
+        return next;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The loans are visited as copies, on the calling thread.
+     */
+    @Override
+    public long visitLoans(long from, int limit, BiConsumer<? super User, ? super Book> visitor) throws LibraryException {
+        return visitAcross(from, limit, (library, position, remaining, items) -> library.visitLoans(position, remaining,
+                (user, book) -> items.insert(new LoanRecord(copyOf(user), copyOf(book), 0))),
+                (LoanRecord loan) -> visitor.accept(loan.getUser(), loan.getBook()));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listOverdueLoans(long from, int limit) throws LibraryException {
+        StringBuilder lines = new StringBuilder();
+        long next = visitOverdueLoans(from, limit, loan -> lines.append("User \"").append(loan.getUser().getName())
+                .append(", overdue loan of \"").append(loan.getBook().getTitle()).append("\"  (")
+                .append(loan.getBook().getFormat()).append("), due ").append(loan.getFormattedDueDate())
+                .append(".").append(System.lineSeparator()));
+        if (lines.isEmpty() && from == 0) {
+            System.out.println("No overdue loans.");
+            return next;
+        }
+        PagedPrinter printer = new PagedPrinter(0, limit);
+        printer.header("--- Overdue loans ---");
+        if (!lines.isEmpty()) printer.println(lines.substring(0, lines.length() - System.lineSeparator().length()));
+        printer.finish();
+        return next;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The loans are visited as copies, on the calling thread.
+     */
+    @Override
+    public long visitOverdueLoans(long from, int limit, Consumer<? super LoanRecord> visitor) throws LibraryException {
+        return visitAcross(from, limit, (library, position, remaining, items) -> library.visitOverdueLoans(position, remaining,
+                loan -> items.insert(new LoanRecord(copyOf(loan.getUser()), copyOf(loan.getBook()), loan.getDueDate()))),
+                visitor);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each shard counts the titles it owns, so the top titles of the shards
+     * are disjoint: their lists, each sorted, are merged into the k largest.
+     */
+    @Override
+    public LibraryListWithPI<TitleCount> topTitles(PopularityMetric metric, int k) throws LibraryException {
+        LibraryListWithPI<CompletableFuture<LibraryListWithPI<TitleCount>>> posted = new SLLLibraryListWithPI<>();
+        PrintStream caller = console.current();
+        for (Shard shard : shards) posted.insert(shard.post(caller, library -> library.topTitles(metric, k)));
+        TitleCount[][] tops = new TitleCount[shards.length][];
+        int s = 0;
+        for (CompletableFuture<LibraryListWithPI<TitleCount>> future : posted) {
+            LibraryListWithPI<TitleCount> top = await(future);
+            tops[s] = new TitleCount[top.size()];
+            int i = 0;
+            for (TitleCount count : top) tops[s][i++] = count;
+            s++;
+        }
+        LibraryListWithPI<TitleCount> merged = new SLLLibraryListWithPI<>();
+        int[] heads = new int[shards.length];
+        while (merged.size() < k) {
+            int best = -1;
+            for (int n = 0; n < shards.length; n++)
+                if (heads[n] < tops[n].length && (best < 0 || tops[n][heads[n]].getCount() > tops[best][heads[best]].getCount()))
+                    best = n;
+            if (best < 0) break;
+            merged.insert(tops[best][heads[best]++]);
+        }
+        return merged;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long estimatePopularity(PopularityMetric metric, String title) throws LibraryException {
+        return onOwner(title, library -> library.estimatePopularity(metric, title));
+    }
+
+    // ----------------------
+    // Batch methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * A batch is applied all or nothing by one shard, so its operations must
+     * all be on titles of the same shard; users, which live on every shard,
+     * cannot be added or removed by a batch.
+     */
+    @Override
+    public void executeBatch(LibraryListWithPI<BatchOperation> operations) throws LibraryException {
+        Shard owner = null;
+        for (BatchOperation operation : operations) {
+            String title = switch (operation.getOperation()) {
+                case LEND_BOOK, RETURN_BOOK -> operation.getArg(1);
+                case ADD_BOOK, ADD_COPIES, REMOVE_BOOK, RESERVE, VACATE -> operation.getArg(0);
+                default -> throw new LibraryException(operation + " cannot be part of a batch in a sharded library.");
+            };
+            if (title == null) throw new LibraryException("Book \"" + title + "\", not found");
+            Shard shard = shardOf(title);
+            if (owner != null && owner != shard)
+                throw new LibraryException("A batch of a sharded library must only touch titles of one shard.");
+            owner = shard;
+        }
+        if (owner == null) throw new LibraryException("A batch needs at least one operation.");
+        call(owner, library -> {
+            library.executeBatch(operations);
+            return null;
+        });
+    }
+
+    // ----------------------
+    // Other methods
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Events that are not about one title are recorded in the history of
+     * the first shard, without waiting for it.
+     */
+    @Override
+    public void logEvent(String event) {
+        shards[0].post(discarded, library -> {
+            library.logEvent(event);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each shard keeps its own history: the pages of the first shard are
+     * shown first, then those of the next ones.
+     */
+    @Override
+    public long showEventHistory(long from, int limit) throws LibraryException {
+        int shard = (int) (from >>> CURSOR_SHARD_SHIFT);
+        if (from < 0 || shard >= shards.length) throw new LibraryException("Invalid cursor: " + from);
+        System.out.println("--- Shard " + shard + " ---");
+        long next = call(shards[shard], library -> library.showEventHistory(from & CURSOR_POSITION_MASK, limit));
+        if (next != PagedPrinter.END) return cursor(shard, next);
+        return shard + 1 < shards.length ? cursor(shard + 1, 0) : PagedPrinter.END;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each shard saves its own state, to the path followed by the index of
+     * the shard.
+     */
+    @Override
+    public void saveSnapshot(String path) throws LibraryException {
+        all(i -> library -> {
+            library.saveSnapshot(path + "." + i);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each shard loads its own state, from the path followed by the index of
+     * the shard, as saved by a library with the same number of shards. The
+     * files of all the shards must exist.
+     */
+    @Override
+    public void loadSnapshot(String path) throws LibraryException {
+        for (int i = 0; i < shards.length; i++) {
+            if (!Files.isRegularFile(Path.of(path + "." + i)))
+                throw new LibraryException("Snapshot of shard " + i + " not found: \"" + path + "." + i + "\".");
+        }
+        all(i -> library -> {
+            library.loadSnapshot(path + "." + i);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every shard imports the users.
+     */
+    @Override
+    public void importUsers(String path) throws LibraryException {
+        broadcast(library -> {
+            library.importUsers(path);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every shard imports the file, then drops the titles it does not own.
+     */
+    @Override
+    public void importBooks(String path) throws LibraryException {
+        all(i -> library -> {
+            library.importBooks(path);
+            library.dropTitles(title -> shardOf(title) != shards[i]);
+            return null;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every shard is checkpointed.
+     */
+    @Override
+    public void checkpoint() throws LibraryException {
+        all(i -> library -> {
+            library.checkpoint();
+            return null;
+        });
+    }
+
+    /**
+     * Checks the due dates of the loans of every shard, each on its own
+     * worker, see {@link LibraryService#checkDueDates()}.
+     *
+     * @return the number of loans that became overdue
+     * @throws LibraryException if a shard cannot log the loans
+     */
+    public int checkDueDates() throws LibraryException {
+        return sum(LibraryService::checkDueDates);
+    }
+
+    /**
+     * Releases the expired holds of every shard, each on its own worker, see
+     * {@link LibraryService#expireHolds()}.
+     *
+     * @return the number of holds released
+     * @throws LibraryException if a shard cannot log the released holds
+     */
+    public int expireHolds() throws LibraryException {
+        return sum(LibraryService::expireHolds);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The operations already posted to the shards are completed first, then
+     * every shard closes its library on its own worker.
+     */
+    @Override
+    public void close() {
+        for (Shard shard : shards) shard.close();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The repositories of a sharded library belong to its shards.
+     *
+     * @return null
+     */
+    @Override
+    public LibraryRepository accessRepository() {
+        return null;
+    }
+
+    // ----------------------
+    // Private helpers
+    // ----------------------
+
+    /**
+     * An operation run by a shard on the library it owns.
+     *
+     * @param <T> the type of the result
+     */
+    @FunctionalInterface
+    private interface Step<T> {
+        T run(LibraryService library) throws LibraryException;
+    }
+
+    /**
+     * Collects one page of a listing of a shard.
+     *
+     * @param <E> the type of the items
+     */
+    @FunctionalInterface
+    private interface PageStep<E> {
+        long run(LibraryService library, long position, int remaining, LibraryListWithPI<E> items) throws LibraryException;
+    }
+
+    /**
+     * Worker owning the library of one shard. Its single-threaded executor
+     * runs the operations posted to the shard; its queue is the mailbox of
+     * the shard.
+     */
+    private final class Shard {
+
+        /** Library holding the titles of the shard, only used by the worker. */
+        private final LibraryService library;
+
+        /** Worker of the shard. */
+        private final ExecutorService worker;
+
+        /** Constructs the worker of a shard owning a library. */
+        private Shard(int index, LibraryService library) {
+            this.library = library;
+            String name = "library-shard-" + index;
+            this.worker = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * Posts an operation to the mailbox of the shard, the worker printing
+         * to the given stream while it runs it.
+         *
+         * @param out  the stream receiving the output of the operation
+         * @param step the operation
+         * @return the outcome of the operation
+         */
+        private <T> CompletableFuture<T> post(PrintStream out, Step<T> step) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            try {
+                worker.execute(() -> {
+                    PrintStream previous = console.route(out);
+                    try {
+                        future.complete(step.run(library));
+                    } catch (LibraryException | RuntimeException e) {
+                        future.completeExceptionally(e);
+                    } finally {
+                        console.route(previous);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(new LibraryException("The library is not accepting operations: " + e.getMessage()));
+            }
+            return future;
+        }
+
+        /** Completes the operations posted, closes the library on the worker and stops it. */
+        private void close() {
+            post(discarded, library -> {
+                library.close();
+                return null;
+            });
+            worker.shutdown();
+            try {
+                worker.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Returns the shard owning a title: the owner of its title stripe.
+     *
+     * @param title the title
+     * @return the shard
+     */
+    private Shard shardOf(String title) {
+        return shards[LockStripes.stripeOf(title, LockStripes.DEFAULT_STRIPES) % shards.length];
+    }
+
+    /**
+     * Runs an operation on the shard owning a title.
+     *
+     * @return the result of the operation
+     * @throws LibraryException if the operation fails
+     */
+    private <T> T onOwner(String title, Step<T> step) throws LibraryException {
+        if (title == null) throw new LibraryException("Book \"" + title + "\", not found");
+        return call(shardOf(title), step);
+    }
+
+    /**
+     * Posts an operation to a shard and waits for it, the shard printing to
+     * wherever the calling thread prints.
+     *
+     * @return the result of the operation
+     * @throws LibraryException if the operation fails or the shards are closed
+     */
+    private <T> T call(Shard shard, Step<T> step) throws LibraryException {
+        return await(shard.post(console.current(), step));
+    }
+
+    /**
+     * Applies a user operation on every shard. The operation is posted to
+     * all the mailboxes at once, so that every shard applies the user
+     * operations in the same order. The first shard decides whether it
+     * succeeds and prints its output; the others, holding the same users,
+     * follow it.
+     *
+     * @throws LibraryException if the operation fails, or only succeeds on some shards
+     */
+    private void broadcast(Step<?> step) throws LibraryException {
+        LibraryListWithPI<CompletableFuture<?>> posted = new SLLLibraryListWithPI<>();
+        PrintStream caller = console.current();
+        synchronized (userOrder) {
+            for (int i = 0; i < shards.length; i++) posted.insert(shards[i].post(i == 0 ? caller : discarded, step));
+        }
+        int i = 0;
+        LibraryException diverged = null;
+        for (CompletableFuture<?> future : posted) {
+            try {
+                await(future);
+            } catch (LibraryException e) {
+                // A failure on the first shard is the failure of the operation, on the others a divergence
+                if (i == 0) diverged = e;
+                else if (diverged == null) diverged = new LibraryException("Shard " + i + " diverged: " + e.getMessage());
+            }
+            i++;
+        }
+        if (diverged != null) throw diverged;
+    }
+
+    /**
+     * Runs an operation on every shard, each given its own index, and waits
+     * for all of them. The first shard prints its output.
+     *
+     * @throws LibraryException if the operation fails on a shard, the first failure being reported
+     */
+    private void all(IntFunction<Step<?>> steps) throws LibraryException {
+        LibraryListWithPI<CompletableFuture<?>> posted = new SLLLibraryListWithPI<>();
+        PrintStream caller = console.current();
+        for (int i = 0; i < shards.length; i++) posted.insert(shards[i].post(i == 0 ? caller : discarded, steps.apply(i)));
+        LibraryException failure = null;
+        for (CompletableFuture<?> future : posted) {
+            try {
+                await(future);
+            } catch (LibraryException e) {
+                if (failure == null) failure = e;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Runs a counting operation on every shard and adds up the counts.
+     *
+     * @throws LibraryException if the operation fails on a shard
+     */
+    private int sum(Step<Integer> step) throws LibraryException {
+        LibraryListWithPI<CompletableFuture<Integer>> posted = new SLLLibraryListWithPI<>();
+        for (Shard shard : shards) posted.insert(shard.post(discarded, step));
+        int total = 0;
+        for (CompletableFuture<Integer> future : posted) total += await(future);
+        return total;
+    }
+
+    /**
+     * Visits one page of a listing across the shards, starting at the shard
+     * and position of the cursor and moving on to the next shards until the
+     * page is full. Each shard collects its part of the page, which is then
+     * visited on the calling thread.
+     *
+     * @param from    the continuation cursor
+     * @param limit   the maximum number of items
+     * @param page    collects a page of a shard
+     * @param visitor receives the items
+     * @return the continuation cursor of the next page, or {@link PagedPrinter#END}
+     * @throws LibraryException if the page is invalid
+     */
+    private <E> long visitAcross(long from, int limit, PageStep<E> page, Consumer<? super E> visitor) throws LibraryException {
+        if (from < 0) throw new LibraryException("Invalid cursor: " + from);
+        if (limit < 1) throw new LibraryException("Invalid page size: " + limit);
+        int shard = (int) (from >>> CURSOR_SHARD_SHIFT);
+        if (shard >= shards.length) throw new LibraryException("Invalid cursor: " + from);
+        long position = from & CURSOR_POSITION_MASK;
+        int remaining = limit;
+        while (true) {
+            LibraryListWithPI<E> items = new SLLLibraryListWithPI<>();
+            long start = position;
+            int wanted = remaining;
+            long next = call(shards[shard], library -> page.run(library, start, wanted, items));
+            for (E item : items) visitor.accept(item);
+            remaining -= items.size();
+            if (next != PagedPrinter.END) return cursor(shard, next);
+            if (++shard == shards.length) return PagedPrinter.END;
+            position = 0;
+            if (remaining == 0) return cursor(shard, 0);
+        }
+    }
+
+    /**
+     * Waits for the outcome of an operation posted to a shard. The
+     * operation is already posted: an interruption does not abandon it.
+     *
+     * @return the result of the operation
+     * @throws LibraryException if the operation fails
+     */
+    private static <T> T await(CompletableFuture<T> future) throws LibraryException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof LibraryException libraryException) throw libraryException;
+            if (e.getCause() instanceof RuntimeException runtimeException) throw runtimeException;
+            throw new LibraryException(e.getCause().getMessage());
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Builds the continuation cursor of a position within a shard.
+     *
+     * @throws LibraryException if the position does not fit a cursor
+     */
+    private static long cursor(int shard, long position) throws LibraryException {
+        if (position > CURSOR_POSITION_MASK) throw new LibraryException("Listing too long to page across shards.");
+        return ((long) shard << CURSOR_SHARD_SHIFT) | position;
+    }
+
+    /** Copies a user, so that the copy can leave the worker of its shard. */
+    private static User copyOf(User user) {
+        return new User(user.getName(), user.getCreationDate(), user.getRole());
+    }
+
+    /** Copies a book, so that the copy can leave the worker of its shard. */
+    private static Book copyOf(Book book) {
+        if (book instanceof PBook pBook) return new PBook(pBook.getTitle(), pBook.getTotalCopies(),
+                pBook.getAvailableCopies() + pBook.getReservedCopies(), pBook.getReservedCopies());
+        return new DBook(book.getTitle());
+    }
+}
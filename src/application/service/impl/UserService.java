@@ -1,16 +1,33 @@
 package application.service.impl;
 
 import application.service.IUserService;
+import application.service.ImportResult;
+import common.LibraryClock;
 import common.LibraryException;
+import common.PageCursor;
+import common.PagedPrinter;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
 import domain.user.User;
+import domain.user.UserRole;
+import infrastructure.persistence.RecordFileReader;
 import infrastructure.repository.LibraryRepository;
 
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
 /**
  * Implementation of the IUserService interface that manages users
  * in a library system using a repository.
  */
 public class UserService implements IUserService {
 
+    /** Number of records read from an import file before they are stored. */
+    private static final int IMPORT_BATCH_SIZE = 4096;
+
+    /** Estimated size of a user record in an import file, used to pre-size the repository. */
+    private static final int ESTIMATED_USER_RECORD_BYTES = 12;
+
     /** Repository used for storing and retrieving users. */
     private final LibraryRepository repo;
 
@@ -27,10 +44,15 @@ public class UserService implements IUserService {
      * {@inheritDoc}
      */
     @Override
-    public void addUser(String name) throws LibraryException {
-        if (repo.getUserMap().containsKey(name))
+    public void addUser(String name, long creationDate) throws LibraryException {
+        // Anonymous holds are held by the empty name
+        if (name.isEmpty())
+            throw new LibraryException("User name cannot be empty.");
+        if (!User.isStorableName(name))
+            throw new LibraryException("User name too long: at most " + User.MAX_NAME_LENGTH + " bytes.");
+        if (repo.containsUser(name))
             throw new LibraryException("User, \"" + name + "\", already exists.");
-        repo.getUserMap().put(name, new User(name));
+        repo.saveUser(new User(name, LibraryClock.format(creationDate)));
         System.out.println("User \"" + name + "\", successfully added.");
     }
 
@@ -40,7 +62,7 @@ public class UserService implements IUserService {
      */
     @Override
     public User removeUser(String name) {
-        User user = repo.getUserMap().remove(name);
+        User user = repo.removeUser(name);
         System.out.println("User \"" + name + "\", successfully removed.");
         return user;
     }
@@ -49,10 +71,83 @@ public class UserService implements IUserService {
      * {@inheritDoc}
      */
     @Override
-    public void listUsers() throws LibraryException {
-        if (repo.getUserMap().isEmpty())
+    public int setRole(String name, UserRole role) throws LibraryException {
+        User user = repo.findUser(name);
+        if (user == null)
+            throw new LibraryException("User \"" + name + "\", not found");
+        user.setRole(role);
+        repo.saveUser(user);
+
+        // The waiting lists cannot be looked up while they are iterated
+        LibraryListWithPI<String> titles = new SLLLibraryListWithPI<>();
+        repo.forEachWaitingList((title, queue) -> {
+            if (queue.contains(user)) titles.insert(title);
+        });
+        for (String title : titles) repo.findWaitingList(title).update(user);
+        System.out.println("User \"" + name + "\", role set to " + role + ".");
+        return titles.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long listUsers(long from, int limit) throws LibraryException {
+        if (repo.userCount() == 0)
             throw new LibraryException("No registered users.");
-        System.out.println("--- Registered Users ---");
-        repo.getUserMap().values().forEach((user) -> System.out.println(user.toString()));
+        PagedPrinter printer = new PagedPrinter(from, limit);
+        printer.header("--- Registered Users ---");
+        repo.forEachUserWhile(printer, user -> {
+            if (printer.accept()) printer.println(user.toString());
+            return printer.needsMore();
+        });
+        return printer.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long visitUsers(long from, int limit, Consumer<? super User> visitor) throws LibraryException {
+        PageCursor cursor = new PageCursor(from, limit);
+        repo.forEachUserWhile(cursor, user -> {
+            if (cursor.accept()) visitor.accept(user);
+            return cursor.needsMore();
+        });
+        return cursor.finish();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The repository is grown once from the file size, then records are read
+     * and stored in batches.
+     */
+    @Override
+    public ImportResult importUsers(Path path) throws LibraryException {
+        try (RecordFileReader in = new RecordFileReader(path)) {
+            long estimated = in.size() / ESTIMATED_USER_RECORD_BYTES;
+            repo.ensureCapacity(0, (int) Math.min(Integer.MAX_VALUE, repo.userCount() + estimated));
+
+            String[] batch = new String[IMPORT_BATCH_SIZE];
+            int imported = 0, skipped = 0;
+            int size;
+            do {
+                size = 0;
+                String[] record;
+                while (size < batch.length && (record = in.next()) != null) batch[size++] = record[0];
+
+                for (int i = 0; i < size; i++) {
+                    String name = batch[i];
+                    if (name.isEmpty() || !User.isStorableName(name) || repo.containsUser(name)) {
+                        skipped++;
+                        continue;
+                    }
+                    repo.saveUser(new User(name));
+                    imported++;
+                }
+            } while (size == batch.length);
+            return new ImportResult(imported, skipped);
+        }
     }
 }
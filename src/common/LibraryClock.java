@@ -0,0 +1,101 @@
+package common;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Coarse-grained clock shared by the library system.
+ * <p>
+ * Timestamps in the library only have second precision, so the formatted
+ * value changes at most once per second. This clock caches the current
+ * second together with its formatted representation and only recomputes
+ * them on second rollover, turning the common case into a volatile read
+ * plus a call to {@link System#currentTimeMillis()}.
+ */
+public final class LibraryClock {
+
+    /** Formatter for timestamps in the format yyyy-MM-dd HH:mm:ss. */
+    private static final DateTimeFormatter DTF = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    /** Time zone used to render the cached timestamp. */
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    /** Current cached tick, replaced as a whole on second rollover. */
+    private static volatile Tick current = tick(System.currentTimeMillis() / 1000);
+
+    /** Utility class, not meant to be instantiated. */
+    private LibraryClock() {}
+
+    /**
+     * Returns the current time formatted as yyyy-MM-dd HH:mm:ss.
+     *
+     * @return the formatted current second
+     */
+    public static String formattedNow() {
+        return refresh().formatted;
+    }
+
+    /**
+     * Returns the current time as seconds since the epoch.
+     *
+     * @return the current epoch second
+     */
+    public static long epochSecond() {
+        return refresh().epochSecond;
+    }
+
+    /**
+     * Formats a time given as seconds since the epoch as yyyy-MM-dd HH:mm:ss.
+     *
+     * @param epochSecond the time to format
+     * @return the formatted time
+     */
+    public static String format(long epochSecond) {
+        Tick t = current;
+        return t.epochSecond == epochSecond ? t.formatted : tick(epochSecond).formatted;
+    }
+
+    /**
+     * Returns the cached tick, replacing it first if the second has rolled over.
+     * Concurrent callers may both rebuild the tick on rollover; both produce
+     * the same value, so the race is harmless.
+     *
+     * @return the tick for the current second
+     */
+    private static Tick refresh() {
+        long second = System.currentTimeMillis() / 1000;
+        Tick t = current;
+        if (t.epochSecond != second) {
+            t = tick(second);
+            current = t;
+        }
+        return t;
+    }
+
+    /** Builds the tick for the given epoch second. */
+    private static Tick tick(long second) {
+        Instant instant = Instant.ofEpochSecond(second);
+        String formatted = LocalDateTime.ofInstant(instant, ZONE).format(DTF);
+        return new Tick(second, formatted);
+    }
+
+    /**
+     * Immutable pair of an epoch second and its formatted representation,
+     * published together so readers never observe a torn update.
+     */
+    private static final class Tick {
+
+        /** Seconds since the epoch. */
+        final long epochSecond;
+
+        /** Formatted representation of {@link #epochSecond}. */
+        final String formatted;
+
+        Tick(long epochSecond, String formatted) {
+            this.epochSecond = epochSecond;
+            this.formatted = formatted;
+        }
+    }
+}
@@ -1,23 +1,25 @@
 package common;
 
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
 import infrastructure.repository.LibraryRepository;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-
 /**
  * Provides logging functionality for the library system.
  * Stores and displays a history of events, each timestamped
- * with the current date and time.
+ * with the current date and time as provided by {@link LibraryClock}.
+ * <p>
+ * Events are recorded and displayed one thread at a time, so that the
+ * history can be read while other threads keep logging.
  */
 public class LibraryLogger {
 
-    /** Formatter for timestamps in the format yyyy-MM-dd HH:mm:ss. */
-    private final DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-
     /** Repository that stores the library's event history. */
     private final LibraryRepository repo;
 
+    /** Whether events are dropped instead of recorded. */
+    private volatile boolean muted;
+
     /**
      * Constructs a logger associated with the given library repository.
      *
@@ -28,25 +30,71 @@ public class LibraryLogger {
     }
 
     /**
-     * Records an event in the library's history with a timestamp.
+     * Records an event in the library's history with a timestamp. The
+     * entry is formatted before the history is locked, so that threads
+     * only wait for one another to append it.
      *
      * @param event a description of the event to log
      */
     public void logEvent(String event) {
-        String timestamp = LocalDateTime.now().format(dtf);
-        repo.getEventHistory().insert(timestamp + " - " + event, repo.getEventHistory().size() - 1);
+        if (muted) return;
+        String entry = LibraryClock.formattedNow() + " - " + event;
+        synchronized (this) {
+            repo.appendEvent(entry);
+        }
     }
 
     /**
-     * Prints the full history of recorded events to the console.
-     * If no events are registered, a message is shown instead.
+     * Records a group of events with a single timestamp, one after the
+     * other, so that no event of another thread falls between them.
+     *
+     * @param events the descriptions of the events to log, in order
      */
-    public void showEventHistory() {
-        if (repo.getEventHistory().isEmpty()) {
+    public void logEvents(Iterable<String> events) {
+        if (muted) return;
+        String timestamp = LibraryClock.formattedNow();
+        LibraryListWithPI<String> entries = new SLLLibraryListWithPI<>();
+        for (String event : events) entries.insert(timestamp + " - " + event);
+        synchronized (this) {
+            for (String entry : entries) repo.appendEvent(entry);
+        }
+    }
+
+    /**
+     * Drops or records the events logged from now on. Events are dropped
+     * while operations are replayed, which would otherwise be recorded with
+     * the time of the replay rather than the time they happened.
+     *
+     * @param muted true to drop the events, false to record them
+     */
+    public void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+
+    /**
+     * Prints one page of the history of recorded events to the console.
+     * If no events are registered, a message is shown instead. The events
+     * are read by position, each event being a bucket of the page cursor,
+     * so a page costs O(limit) wherever it starts.
+     *
+     * @param from  continuation cursor of the page (0 for the first page)
+     * @param limit maximum number of events to print
+     * @return the continuation cursor of the next page, or {@link PagedPrinter#END}
+     * @throws LibraryException if the cursor or the limit are invalid
+     */
+    public synchronized long showEventHistory(long from, int limit) throws LibraryException {
+        int count = repo.eventCount();
+        if (count == 0) {
             System.out.println("No activity registered.");
-            return;
+            return PagedPrinter.END;
+        }
+        PagedPrinter printer = new PagedPrinter(from, limit);
+        printer.header("--- Activity ---");
+        // Events are only appended, so the cursor stays the position of the same event
+        for (long i = printer.startBucket(); i < count && printer.needsMore(); i++) {
+            printer.enterBucket(i);
+            if (printer.accept()) printer.println(repo.eventAt((int) i));
         }
-        System.out.println("--- Activity ---");
-        repo.getEventHistory().forEach(System.out::println);
+        return printer.finish();
     }
 }
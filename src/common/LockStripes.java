@@ -0,0 +1,206 @@
+package common;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Fixed set of locks guarding the library state by title and by user name,
+ * so that operations on unrelated titles and users can run in parallel.
+ * <p>
+ * Each title and each user name maps to one of {@link #DEFAULT_STRIPES}
+ * stripes through {@link #stripeOf(Object, int)}; the repository partitions
+ * its maps with the same function, so holding a stripe gives exclusive
+ * access to every record of its keys. Locks are exclusive even for reads,
+ * since the library data structures move an internal cursor when searched.
+ * <p>
+ * To avoid deadlocks, stripes are always acquired through a {@link Guard}
+ * in a fixed order: title stripes first, then user stripes, each in
+ * ascending stripe order. A guard releases everything it holds when closed.
+ */
+public class LockStripes {
+
+    /** Number of stripes per kind of key; a power of two. */
+    public static final int DEFAULT_STRIPES = 64;
+
+    /** Locks of the title stripes. */
+    private final ReentrantLock[] titleLocks;
+
+    /** Locks of the user stripes. */
+    private final ReentrantLock[] userLocks;
+
+    /**
+     * Constructs {@link #DEFAULT_STRIPES} title stripes and as many user stripes.
+     */
+    public LockStripes() {
+        this.titleLocks = newLocks(DEFAULT_STRIPES);
+        this.userLocks = newLocks(DEFAULT_STRIPES);
+    }
+
+    /**
+     * Returns the stripe of a key. The hash is scrambled and its high bits
+     * used, so that stripes stay independent from the bucket a hash table
+     * of the stripe places the key in.
+     *
+     * @param key     the title or user name
+     * @param stripes the number of stripes, a power of two
+     * @return the stripe of the key, between 0 and {@code stripes - 1}
+     */
+    public static int stripeOf(Object key, int stripes) {
+        if (stripes == 1) return 0;
+        int h = key.hashCode();
+        h = (h ^ (h >>> 16)) * 0x9E3779B9;
+        return h >>> Integer.numberOfLeadingZeros(stripes - 1);
+    }
+
+    /**
+     * Starts acquiring stripes. The returned guard holds nothing yet.
+     *
+     * @return a guard to acquire stripes through, to be closed once done
+     */
+    public Guard guard() {
+        return new Guard();
+    }
+
+    /** Creates the given number of locks. */
+    private static ReentrantLock[] newLocks(int count) {
+        ReentrantLock[] locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) locks[i] = new ReentrantLock();
+        return locks;
+    }
+
+    /**
+     * Stripes held by one operation. Title stripes must be acquired before
+     * user stripes, each kind at most once, and closing the guard releases
+     * them in reverse order.
+     */
+    public class Guard implements AutoCloseable {
+
+        /** Locks acquired, in acquisition order. */
+        private final ReentrantLock[] held = new ReentrantLock[2 * DEFAULT_STRIPES];
+
+        /** Number of locks acquired. */
+        private int count = 0;
+
+        /** Whether title stripes may still be acquired. */
+        private boolean titlesOpen = true;
+
+        /** Whether user stripes may still be acquired. */
+        private boolean usersOpen = true;
+
+        private Guard() {
+        }
+
+        /**
+         * Acquires the stripes of the given titles. Null titles are ignored.
+         *
+         * @param titles the titles the operation touches
+         * @return this guard
+         * @throws IllegalStateException if stripes were already acquired by this step or a later one
+         */
+        public Guard titles(String... titles) {
+            closeTitles();
+            lock(titleLocks, titles);
+            return this;
+        }
+
+        /**
+         * Acquires every title stripe, for operations touching titles not
+         * known in advance.
+         *
+         * @return this guard
+         * @throws IllegalStateException if stripes were already acquired by this step or a later one
+         */
+        public Guard allTitles() {
+            closeTitles();
+            lockAll(titleLocks);
+            return this;
+        }
+
+        /**
+         * Acquires the stripes of the given user names. Null names are ignored.
+         *
+         * @param names the user names the operation touches
+         * @return this guard
+         * @throws IllegalStateException if user stripes were already acquired
+         */
+        public Guard users(String... names) {
+            closeUsers();
+            lock(userLocks, names);
+            return this;
+        }
+
+        /**
+         * Acquires every user stripe, for operations touching users not
+         * known in advance.
+         *
+         * @return this guard
+         * @throws IllegalStateException if user stripes were already acquired
+         */
+        public Guard allUsers() {
+            closeUsers();
+            lockAll(userLocks);
+            return this;
+        }
+
+        /**
+         * Releases every stripe held and starts over, for a selection that
+         * read records under the stripes it acquired and found that it needs
+         * other stripes. The records read may change once released.
+         *
+         * @return this guard, holding nothing
+         */
+        public Guard reset() {
+            close();
+            titlesOpen = true;
+            usersOpen = true;
+            return this;
+        }
+
+        /** Releases every stripe held, in reverse acquisition order. */
+        @Override
+        public void close() {
+            while (count > 0) {
+                held[--count].unlock();
+                held[count] = null;
+            }
+        }
+
+        /** Ends the title step, which must not have ended yet. */
+        private void closeTitles() {
+            if (!titlesOpen) throw new IllegalStateException("Title stripes must be acquired first and once");
+            titlesOpen = false;
+        }
+
+        /** Ends both steps, the user step must not have ended yet. */
+        private void closeUsers() {
+            if (!usersOpen) throw new IllegalStateException("User stripes must be acquired once");
+            titlesOpen = false;
+            usersOpen = false;
+        }
+
+        /** Locks the distinct stripes of the given keys in ascending order. */
+        private void lock(ReentrantLock[] locks, String[] keys) {
+            int[] stripes = new int[keys.length];
+            int n = 0;
+            for (String key : keys) {
+                if (key != null) stripes[n++] = stripeOf(key, locks.length);
+            }
+            Arrays.sort(stripes, 0, n);
+            for (int i = 0; i < n; i++) {
+                if (i > 0 && stripes[i] == stripes[i - 1]) continue;
+                acquire(locks[stripes[i]]);
+            }
+        }
+
+        /** Locks every stripe in ascending order. */
+        private void lockAll(ReentrantLock[] locks) {
+            for (ReentrantLock lock : locks) acquire(lock);
+        }
+
+        /** Locks one stripe and records it as held. */
+        private void acquire(ReentrantLock lock) {
+            lock.lock();
+            held[count++] = lock;
+        }
+    }
+}
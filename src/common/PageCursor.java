@@ -0,0 +1,141 @@
+package common;
+
+/**
+ * Selects one page of a listing while the listing is iterated.
+ * <p>
+ * A page is described by a cursor ({@code from}, the position of the first
+ * item of the page) and a {@code limit} on the number of items. Callers
+ * offer each item with {@link #accept()} and only handle the items that
+ * belong to the page. {@link #finish()} returns the continuation cursor to
+ * request the following page, or {@link #END} when the listing is complete.
+ * <p>
+ * A listing is walked as a sequence of buckets, such as the buckets of a
+ * hash map, each holding any number of items. The cursor is the bucket the
+ * page starts in, shifted left by {@value #SKIP_BITS} bits, plus the number
+ * of items of that bucket that precede the page. The listing starts walking
+ * at {@link #startBucket()} and calls {@link #enterBucket(long)} before the
+ * items of each bucket, so a page costs O(limit) plus the empty buckets
+ * crossed, wherever it starts. A listing read by position makes each item a
+ * bucket of its own, and a listing that cannot seek enters the buckets
+ * before the cursor without offering their items.
+ * <p>
+ * A cursor stays valid while the listing changes: a page resumes in the
+ * same bucket, though items added or removed before it, or a map grown in
+ * between, may shift the items it shows.
+ */
+public class PageCursor {
+
+    /** Continuation cursor returned when there are no more items. */
+    public static final long END = -1;
+
+    /** Number of low bits of a cursor counting the items to skip in its first bucket. */
+    public static final int SKIP_BITS = 20;
+
+    /** Largest number of items a cursor can skip in its first bucket. */
+    private static final long MAX_SKIP = (1L << SKIP_BITS) - 1;
+
+    /** Bucket the page starts in. */
+    private final long startBucket;
+
+    /** Number of items of the first bucket that precede the page. */
+    private final long skip;
+
+    /** Maximum number of items of the page. */
+    private final int limit;
+
+    /** Bucket of the next item offered. */
+    private long bucket;
+
+    /** Position of the next item offered within its bucket. */
+    private long position;
+
+    /** Number of items of the page accepted so far. */
+    private int accepted;
+
+    /** Whether an item was offered after the page was full. */
+    private boolean hasMore;
+
+    /**
+     * Creates a cursor for the page starting at {@code from} with at most
+     * {@code limit} items.
+     *
+     * @param from  continuation cursor of the page (0 for the first page)
+     * @param limit maximum number of items of the page
+     * @throws LibraryException if the cursor or the limit are negative
+     */
+    public PageCursor(long from, int limit) throws LibraryException {
+        if (from < 0) throw new LibraryException("Invalid cursor: " + from);
+        if (limit < 1) throw new LibraryException("Invalid page size: " + limit);
+        this.startBucket = from >>> SKIP_BITS;
+        this.skip = from & MAX_SKIP;
+        this.limit = limit;
+        this.bucket = startBucket;
+    }
+
+    /**
+     * Returns the bucket the listing starts walking at.
+     *
+     * @return the bucket of the first item of the page
+     */
+    public long startBucket() {
+        return startBucket;
+    }
+
+    /**
+     * Moves to a bucket of the listing, before offering its items. Buckets
+     * are entered in increasing order, from {@link #startBucket()} on.
+     *
+     * @param bucket the bucket
+     */
+    public void enterBucket(long bucket) {
+        this.bucket = bucket;
+        this.position = 0;
+    }
+
+    /**
+     * Advances to the next item of the listing and tells whether that item
+     * belongs to the current page. Items of the first bucket before the
+     * cursor are skipped; once the page is full the cursor records where
+     * the following page starts.
+     *
+     * @return true if the caller must handle the item
+     */
+    public boolean accept() {
+        if (hasMore) return false;
+        if (accepted == limit) {
+            hasMore = true;
+            return false;
+        }
+        if (bucket == startBucket && position < skip) {
+            position++;
+            return false;
+        }
+        position++;
+        accepted++;
+        return true;
+    }
+
+    /**
+     * Tells whether the listing must go on offering items: once the page is
+     * full and an item after it was offered, the continuation cursor is
+     * known and the rest of the listing can be skipped.
+     *
+     * @return false if the iteration of the listing can stop
+     */
+    public boolean needsMore() {
+        return !hasMore;
+    }
+
+    /**
+     * Ends the page and returns the continuation cursor.
+     *
+     * @return the cursor of the next page, or {@link #END} if there is none
+     * @throws LibraryException if the next page starts too deep into a bucket to be resumed
+     */
+    public long finish() throws LibraryException {
+        if (!hasMore) return END;
+        if (position > MAX_SKIP)
+            throw new LibraryException("Listing too long to page: bucket " + bucket + " holds over " + MAX_SKIP + " items.");
+        return (bucket << SKIP_BITS) | position;
+    }
+}
@@ -0,0 +1,65 @@
+package common;
+
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+
+/**
+ * Prints one page of a listing to the console through a buffered writer.
+ * <p>
+ * Pages are selected as described in {@link PageCursor}: callers offer each
+ * line with {@link #accept()} and only build and print the lines that
+ * belong to the page, so skipped lines cost no formatting. The
+ * buffered output is flushed once when the page is finished.
+ */
+public class PagedPrinter extends PageCursor {
+
+    /** Size of the buffer placed in front of {@code System.out}. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Buffered writer over the console; never closed, only flushed. */
+    private final PrintWriter out;
+
+    /**
+     * Creates a printer for the page starting at {@code from} with at most
+     * {@code limit} lines.
+     *
+     * @param from  continuation cursor of the page (0 for the first page)
+     * @param limit maximum number of lines to print
+     * @throws LibraryException if the cursor or the limit are negative
+     */
+    public PagedPrinter(long from, int limit) throws LibraryException {
+        super(from, limit);
+        this.out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE), false);
+    }
+
+    /**
+     * Writes a line that is not part of the paged content, such as a header.
+     *
+     * @param line the line to write
+     */
+    public void header(String line) {
+        out.println(line);
+    }
+
+    /**
+     * Writes a line previously accepted with {@link #accept()}.
+     *
+     * @param line the line to write
+     */
+    public void println(String line) {
+        out.println(line);
+    }
+
+    /**
+     * Flushes the page to the console and returns the continuation cursor.
+     *
+     * @return the cursor of the next page, or {@link #END} if there is none
+     * @throws LibraryException if the next page cannot be resumed
+     */
+    @Override
+    public long finish() throws LibraryException {
+        out.flush();
+        return super.finish();
+    }
+}
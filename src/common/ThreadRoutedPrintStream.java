@@ -0,0 +1,121 @@
+package common;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Locale;
+
+/**
+ * Print stream forwarding everything printed by a thread to the stream that
+ * thread was routed to, or to a default stream otherwise.
+ * <p>
+ * The services report the outcome of each operation on {@code System.out}.
+ * Installed as {@code System.out}, this stream lets each connection of a
+ * server receive the output of its own commands. Every method forwards to
+ * the target stream directly, so threads printing to different targets do
+ * not contend on a shared lock.
+ */
+public class ThreadRoutedPrintStream extends PrintStream {
+
+    /** Stream receiving the output of threads that were not routed. */
+    private final PrintStream fallback;
+
+    /** Stream receiving the output of the current thread, if routed. */
+    private final ThreadLocal<PrintStream> target = new ThreadLocal<>();
+
+    /**
+     * Constructs a routing stream sending the output of threads that are not
+     * routed to the given stream.
+     *
+     * @param fallback the default target, usually the console
+     */
+    public ThreadRoutedPrintStream(PrintStream fallback) {
+        super(OutputStream.nullOutputStream());
+        this.fallback = fallback;
+    }
+
+    /**
+     * Installs a routing stream as {@code System.out}, unless one is already
+     * installed, keeping the current {@code System.out} as its default target.
+     *
+     * @return the installed routing stream
+     */
+    public static synchronized ThreadRoutedPrintStream install() {
+        if (System.out instanceof ThreadRoutedPrintStream routed) return routed;
+        ThreadRoutedPrintStream routed = new ThreadRoutedPrintStream(System.out);
+        System.setOut(routed);
+        return routed;
+    }
+
+    /**
+     * Sends the output of the current thread to the given stream.
+     *
+     * @param out the stream receiving the output of the current thread, or
+     *            null to send it back to the default stream
+     * @return the stream the output of the current thread was sent to before,
+     *         or null if it was sent to the default stream
+     */
+    public PrintStream route(PrintStream out) {
+        PrintStream previous = target.get();
+        if (out != null) target.set(out);
+        else target.remove();
+        return previous;
+    }
+
+    /** Sends the output of the current thread back to the default stream. */
+    public void unroute() {
+        target.remove();
+    }
+
+    /**
+     * Returns the stream the output of the current thread is sent to, so
+     * that work handed to another thread can be routed there as well.
+     *
+     * @return the target of the current thread, or the default stream if not routed
+     */
+    public PrintStream current() {
+        return out();
+    }
+
+    /** Returns the target of the current thread. */
+    private PrintStream out() {
+        PrintStream out = target.get();
+        return out != null ? out : fallback;
+    }
+
+    @Override public void write(int b) { out().write(b); }
+    @Override public void write(byte[] buf, int off, int len) { out().write(buf, off, len); }
+    @Override public void flush() { out().flush(); }
+    @Override public boolean checkError() { return out().checkError(); }
+
+    /** Flushes the current target; the targets are closed by their owners. */
+    @Override public void close() { out().flush(); }
+
+    @Override public void print(boolean b) { out().print(b); }
+    @Override public void print(char c) { out().print(c); }
+    @Override public void print(int i) { out().print(i); }
+    @Override public void print(long l) { out().print(l); }
+    @Override public void print(float f) { out().print(f); }
+    @Override public void print(double d) { out().print(d); }
+    @Override public void print(char[] s) { out().print(s); }
+    @Override public void print(String s) { out().print(s); }
+    @Override public void print(Object obj) { out().print(obj); }
+
+    @Override public void println() { out().println(); }
+    @Override public void println(boolean x) { out().println(x); }
+    @Override public void println(char x) { out().println(x); }
+    @Override public void println(int x) { out().println(x); }
+    @Override public void println(long x) { out().println(x); }
+    @Override public void println(float x) { out().println(x); }
+    @Override public void println(double x) { out().println(x); }
+    @Override public void println(char[] x) { out().println(x); }
+    @Override public void println(String x) { out().println(x); }
+    @Override public void println(Object x) { out().println(x); }
+
+    @Override public PrintStream printf(String format, Object... args) { out().printf(format, args); return this; }
+    @Override public PrintStream printf(Locale l, String format, Object... args) { out().printf(l, format, args); return this; }
+    @Override public PrintStream format(String format, Object... args) { out().format(format, args); return this; }
+    @Override public PrintStream format(Locale l, String format, Object... args) { out().format(l, format, args); return this; }
+    @Override public PrintStream append(CharSequence csq) { out().append(csq); return this; }
+    @Override public PrintStream append(CharSequence csq, int start, int end) { out().append(csq, start, end); return this; }
+    @Override public PrintStream append(char c) { out().append(c); return this; }
+}
@@ -0,0 +1,56 @@
+package common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors running each task on its own thread, using virtual
+ * threads when the runtime provides them.
+ * <p>
+ * Virtual threads are looked up reflectively, so the library still builds
+ * and runs on runtimes without them; there, a cached pool of daemon platform
+ * threads is used instead, which reuses idle threads between tasks.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Creates an executor starting a thread per task: a virtual thread if
+     * available, otherwise a daemon thread of a cached pool.
+     *
+     * @param name prefix of the names of the platform threads of the fallback pool
+     * @return the executor, to be shut down by the caller
+     */
+    public static ExecutorService newPerTaskExecutor(String name) {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Runtime without virtual threads
+        }
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Tells whether the runtime provides virtual threads.
+     *
+     * @return true if {@link #newPerTaskExecutor(String)} uses virtual threads
+     */
+    public static boolean available() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package common.dataStructures.map;
 
+import common.PageCursor;
 import common.dataStructures.list.LibraryListWithPI;
 
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
 import java.util.function.Function;
 
 /**
@@ -54,4 +56,18 @@ public interface LibraryMap<K, V> {
      * Performs the given action for each key-value entry in the map.
      */
     void forEach(BiConsumer<? super K, ? super V> action);
+
+    /**
+     * Performs the given action for each key-value entry in the map, until
+     * the action returns false. Returns true if every entry was visited.
+     */
+    boolean forEachWhile(BiPredicate<? super K, ? super V> action);
+
+    /**
+     * Performs the given action for each key-value entry in the map, bucket
+     * by bucket from the bucket a page cursor starts at, entering each bucket
+     * in the cursor, until the action returns false. Returns true if every
+     * entry from that bucket on was visited.
+     */
+    boolean forEachWhile(PageCursor cursor, BiPredicate<? super K, ? super V> action);
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package common.dataStructures.map.impl;
 
+import common.PageCursor;
 import common.dataStructures.list.impl.SLLLibraryListWithPI;
 import common.dataStructures.list.LibraryListWithPI;
 import common.dataStructures.map.LibraryMap;
@@ -244,6 +245,57 @@ public class HashLibraryMap<K, V> implements LibraryMap<K, V> {
         }
     }
 
+    /** {@inheritDoc} */
+    public boolean forEachWhile(BiPredicate<? super K, ? super V> action) {
+        for(LibraryListWithPI<HashLibraryEntry<K,V>> bucket : buckets) {
+            bucket.start();
+            while(!bucket.isEnd()) {
+                HashLibraryEntry<K,V> e = bucket.get();
+                if (!action.test(e.key, e.value)) return false;
+                bucket.next();
+            }
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    public boolean forEachWhile(PageCursor cursor, BiPredicate<? super K, ? super V> action) {
+        return forEachWhile(0, cursor, action);
+    }
+
+    /**
+     * Performs the given action for each entry, bucket by bucket from the
+     * bucket a page cursor starts at, until the action returns false. The
+     * buckets of this map are numbered from {@code base}, so that several
+     * maps can be walked as one listing.
+     *
+     * @param base   the number of the first bucket of this map in the listing
+     * @param cursor the page cursor, which enters each bucket walked
+     * @param action the action, returning false to stop
+     * @return true if every entry from the starting bucket on was visited
+     */
+    public boolean forEachWhile(long base, PageCursor cursor, BiPredicate<? super K, ? super V> action) {
+        for (long i = Math.max(0, cursor.startBucket() - base); i < buckets.length; i++) {
+            LibraryListWithPI<HashLibraryEntry<K,V>> bucket = buckets[(int) i];
+            if (bucket.isEmpty()) continue;
+            cursor.enterBucket(base + i);
+            for (bucket.start(); !bucket.isEnd(); bucket.next()) {
+                HashLibraryEntry<K,V> e = bucket.get();
+                if (!action.test(e.key, e.value)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of buckets of the map.
+     *
+     * @return the number of buckets
+     */
+    public int bucketCount() {
+        return buckets.length;
+    }
+
     /** {@inheritDoc} */
     @Override
     public String toString() {
@@ -0,0 +1,146 @@
+package common.dataStructures.map.impl;
+
+import common.LockStripes;
+import common.PageCursor;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import common.dataStructures.map.LibraryMap;
+
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+
+/**
+ * Map partitioned into independent {@link HashLibraryMap} segments, one per
+ * lock stripe of {@link LockStripes}.
+ * <p>
+ * The segment of an entry is the stripe of its partition key, derived from
+ * the map key by a function given at construction (a book is partitioned by
+ * its title, a user by its name). Threads holding different stripes
+ * therefore never touch the same segment, and each segment needs no
+ * synchronization of its own. Operations on a single key are only safe
+ * while holding its stripe; operations on the whole map, such as
+ * {@link #forEach(BiConsumer)}, require every stripe. {@link #size()} may
+ * be read without locks, as an estimate.
+ *
+ * @param <K> the type of keys maintained by this map
+ * @param <V> the type of mapped values
+ */
+public class StripedLibraryMap<K, V> implements LibraryMap<K, V> {
+
+    /** Segments of the map, indexed by stripe. */
+    private final Object[] segments;
+
+    /** Function giving the key whose stripe holds an entry. */
+    private final Function<? super K, ?> partitionKey;
+
+    /**
+     * Constructs a map with the given number of segments, sized for the
+     * expected number of entries overall.
+     *
+     * @param stripes       number of segments, a power of two matching the lock stripes
+     * @param estimatedSize the expected number of entries
+     * @param partitionKey  function giving the key whose stripe holds an entry
+     */
+    public StripedLibraryMap(int stripes, int estimatedSize, Function<? super K, ?> partitionKey) {
+        this.segments = new Object[stripes];
+        int segmentSize = Math.max(1, (estimatedSize + stripes - 1) / stripes);
+        for (int i = 0; i < stripes; i++) segments[i] = new HashLibraryMap<>(segmentSize);
+        this.partitionKey = partitionKey;
+    }
+
+    /** Returns the segment holding the given key. */
+    private HashLibraryMap<K, V> segment(K k) {
+        return segment(LockStripes.stripeOf(partitionKey.apply(k), segments.length));
+    }
+
+    /** Returns the segment at the given position. */
+    @SuppressWarnings("unchecked")
+    private HashLibraryMap<K, V> segment(int i) {
+        return (HashLibraryMap<K, V>) segments[i];
+    }
+
+    /** {@inheritDoc} */
+    public V put(K k, V v) { return segment(k).put(k, v); }
+
+    /** {@inheritDoc} */
+    public V get(K k) { return segment(k).get(k); }
+
+    /** {@inheritDoc} */
+    public V remove(K k) { return segment(k).remove(k); }
+
+    /** {@inheritDoc} */
+    public boolean isEmpty() { return size() == 0; }
+
+    /** {@inheritDoc} */
+    public int size() {
+        int size = 0;
+        for (int i = 0; i < segments.length; i++) size += segment(i).size();
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    public boolean containsKey(K key) { return segment(key).containsKey(key); }
+
+    /** {@inheritDoc} */
+    public LibraryListWithPI<K> keys() {
+        LibraryListWithPI<K> list = new SLLLibraryListWithPI<>();
+        forEach((k, v) -> list.insert(k));
+        return list;
+    }
+
+    /** {@inheritDoc} */
+    public LibraryListWithPI<V> values() {
+        LibraryListWithPI<V> list = new SLLLibraryListWithPI<>();
+        forEach((k, v) -> list.insert(v));
+        return list;
+    }
+
+    /** {@inheritDoc} */
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        return segment(key).computeIfPresent(key, remappingFunction);
+    }
+
+    /** {@inheritDoc} */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        return segment(key).computeIfAbsent(key, mappingFunction);
+    }
+
+    /** {@inheritDoc} */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        for (int i = 0; i < segments.length; i++) segment(i).forEach(action);
+    }
+
+    /** {@inheritDoc} */
+    public boolean forEachWhile(BiPredicate<? super K, ? super V> action) {
+        for (int i = 0; i < segments.length; i++) if (!segment(i).forEachWhile(action)) return false;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The buckets of the segments are numbered one segment after the other,
+     * and the segments before the starting bucket are not walked.
+     */
+    @Override
+    public boolean forEachWhile(PageCursor cursor, BiPredicate<? super K, ? super V> action) {
+        long base = 0;
+        for (int i = 0; i < segments.length; i++) {
+            HashLibraryMap<K, V> segment = segment(i);
+            long end = base + segment.bucketCount();
+            if (cursor.startBucket() < end && !segment.forEachWhile(base, cursor, action)) return false;
+            base = end;
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < segments.length; i++) res.append(segment(i));
+        return res.toString();
+    }
+}
@@ -0,0 +1,41 @@
+package common.dataStructures.queue;
+
+/**
+ * Defines the contract for a priority queue: a {@link LibraryQueue} whose
+ * elements are served by priority first, then in insertion order among
+ * elements of the same priority.
+ * <p>
+ * The priority of an element is read when it is added. When it changes
+ * later, the queue must be told through {@link #update}, which moves the
+ * element to its new place; the element keeps its insertion order among
+ * the elements of its new priority. Iteration and {@link #forEach} follow
+ * the serving order.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public interface PriorityLibraryQueue<E> extends LibraryQueue<E> {
+
+    /**
+     * Reads the priority of an element of the queue again and moves the
+     * element to its new place.
+     *
+     * @param e the element whose priority changed
+     * @return true if the element is in the queue, false otherwise
+     */
+    boolean update(E e);
+
+    /**
+     * Removes an element from the queue, wherever it is.
+     *
+     * @param e the element to remove
+     * @return true if the element was in the queue, false otherwise
+     */
+    boolean cancel(E e);
+
+    /**
+     * Returns the number of elements in the queue.
+     *
+     * @return the number of elements
+     */
+    int size();
+}
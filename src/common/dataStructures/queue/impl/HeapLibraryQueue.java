@@ -0,0 +1,303 @@
+package common.dataStructures.queue.impl;
+
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+import common.dataStructures.queue.PriorityLibraryQueue;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Indexed binary heap implementation of {@link PriorityLibraryQueue}.
+ * <p>
+ * Each element is kept in an entry holding its priority, lower values being
+ * served first, and an arrival number that orders the elements of the same
+ * priority. The entries form a binary heap in an array, and each entry knows
+ * its position in the array; a hash map from elements to entries locates an
+ * element without scanning the heap. Adding and removing the first element,
+ * updating the priority of an element and cancelling it take O(log n).
+ * <p>
+ * Iteration follows the serving order without sorting the heap: it walks the
+ * heap best first, keeping the positions still to visit in a small heap of
+ * their own, so that reading the first k elements takes O(k log k).
+ * <p>
+ * Elements are located by {@code equals}, and an element already in the
+ * queue is not added again. The queue is not thread-safe, and modifying it
+ * during an iteration leaves the iteration undefined.
+ *
+ * @param <E> the type of elements held in this queue
+ */
+public class HeapLibraryQueue<E> implements PriorityLibraryQueue<E> {
+
+    /** Default initial capacity for the queue. */
+    protected static final int DEFAULT_CAPACITY = 8;
+
+    /** Reads the priority of an element. */
+    private final ToIntFunction<? super E> priorityOf;
+
+    /** The heap of entries: each entry is served before its children. */
+    private Object[] heap;
+
+    /** Entry of each element of the queue. */
+    private LibraryMap<E, Entry<E>> entries;
+
+    /** Current number of elements in the queue. */
+    private int size;
+
+    /** Arrival number given to the next element added. */
+    private long arrivals;
+
+    /**
+     * Constructs an empty queue with default capacity.
+     *
+     * @param priorityOf reads the priority of an element, lower values being served first
+     */
+    public HeapLibraryQueue(ToIntFunction<? super E> priorityOf) {
+        this.priorityOf = priorityOf;
+        this.heap = new Object[DEFAULT_CAPACITY];
+        this.entries = new HashLibraryMap<>(DEFAULT_CAPACITY);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(E e) {
+        if (entries.containsKey(e)) return;
+        if (size == heap.length) grow();
+        Entry<E> entry = new Entry<>(e, priorityOf.applyAsInt(e), arrivals++);
+        entries.put(e, entry);
+        place(entry, size++);
+        siftUp(entry.index);
+    }
+
+    /**
+     * Doubles the capacity of the heap, and of the map locating its entries,
+     * which does not grow by itself.
+     */
+    private void grow() {
+        heap = Arrays.copyOf(heap, 2 * heap.length);
+        LibraryMap<E, Entry<E>> resized = new HashLibraryMap<>(heap.length);
+        for (int i = 0; i < size; i++) resized.put(entry(i).element, entry(i));
+        entries = resized;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E remove() {
+        if (size == 0) return null;
+        E first = entry(0).element;
+        removeAt(0);
+        return first;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public E first() {
+        return size == 0 ? null : entry(0).element;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean contains(E e) {
+        return entries.containsKey(e);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean update(E e) {
+        Entry<E> entry = entries.get(e);
+        if (entry == null) return false;
+        int priority = priorityOf.applyAsInt(e);
+        if (priority == entry.priority) return true;
+        entry.priority = priority;
+        siftUp(entry.index);
+        siftDown(entry.index);
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean cancel(E e) {
+        Entry<E> entry = entries.get(e);
+        if (entry == null) return false;
+        removeAt(entry.index);
+        return true;
+    }
+
+    /**
+     * Removes the entry at a position of the heap, filling the gap with the
+     * last entry and moving it to its place.
+     *
+     * @param index the position of the entry
+     */
+    private void removeAt(int index) {
+        Entry<E> removed = entry(index);
+        entries.remove(removed.element);
+        Entry<E> last = entry(--size);
+        heap[size] = null;
+        if (last == removed) return;
+        place(last, index);
+        siftDown(index);
+        siftUp(last.index);
+    }
+
+    /** Moves the entry at a position up while it is served before its parent. */
+    private void siftUp(int index) {
+        Entry<E> entry = entry(index);
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (!before(entry, entry(parent))) break;
+            place(entry(parent), index);
+            index = parent;
+        }
+        place(entry, index);
+    }
+
+    /** Moves the entry at a position down while one of its children is served before it. */
+    private void siftDown(int index) {
+        Entry<E> entry = entry(index);
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            if (child + 1 < size && before(entry(child + 1), entry(child))) child++;
+            if (!before(entry(child), entry)) break;
+            place(entry(child), index);
+            index = child;
+        }
+        place(entry, index);
+    }
+
+    /** Returns the entry at a position of the heap. */
+    @SuppressWarnings("unchecked")
+    private Entry<E> entry(int index) {
+        return (Entry<E>) heap[index];
+    }
+
+    /** Stores an entry at a position of the heap. */
+    private void place(Entry<E> entry, int index) {
+        heap[index] = entry;
+        entry.index = index;
+    }
+
+    /** Tells whether an entry is served before another: by priority, then by arrival. */
+    private static boolean before(Entry<?> a, Entry<?> b) {
+        return a.priority != b.priority ? a.priority < b.priority : a.arrival < b.arrival;
+    }
+
+    /**
+     * Returns a string representation of the queue in serving order.
+     *
+     * @return a string containing all elements of the queue
+     */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder("[");
+        for (E e : this) {
+            if (res.length() > 1) res.append(", ");
+            res.append(e);
+        }
+        return res.append("]").toString();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<>() {
+            /** Positions of the heap still to visit, themselves kept as a heap. */
+            private int[] frontier = new int[DEFAULT_CAPACITY];
+
+            /** Number of positions still to visit. */
+            private int count = size > 0 ? 1 : 0;
+
+            @Override
+            public boolean hasNext() {
+                return count > 0;
+            }
+
+            @Override
+            public E next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                int index = frontier[0];
+                frontier[0] = frontier[--count];
+                down(0);
+                // The children of a visited entry are the only new candidates for the next one
+                for (int child = 2 * index + 1; child <= 2 * index + 2 && child < size; child++) push(child);
+                return entry(index).element;
+            }
+
+            /** Adds a position to the frontier. */
+            private void push(int index) {
+                if (count == frontier.length) frontier = Arrays.copyOf(frontier, 2 * count);
+                int i = count++;
+                while (i > 0) {
+                    int parent = (i - 1) >>> 1;
+                    if (!before(entry(index), entry(frontier[parent]))) break;
+                    frontier[i] = frontier[parent];
+                    i = parent;
+                }
+                frontier[i] = index;
+            }
+
+            /** Moves the position at a slot of the frontier down to its place. */
+            private void down(int i) {
+                if (count == 0) return;
+                int index = frontier[i];
+                while (2 * i + 1 < count) {
+                    int child = 2 * i + 1;
+                    if (child + 1 < count && before(entry(frontier[child + 1]), entry(frontier[child]))) child++;
+                    if (!before(entry(frontier[child]), entry(index))) break;
+                    frontier[i] = frontier[child];
+                    i = child;
+                }
+                frontier[i] = index;
+            }
+        };
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEach(Consumer<? super E> action) {
+        for (E e : this) action.accept(e);
+    }
+
+    /**
+     * Element of the queue with its priority, its arrival number and its
+     * position in the heap.
+     *
+     * @param <E> the type of the element
+     */
+    private static final class Entry<E> {
+
+        /** The element. */
+        private final E element;
+
+        /** Priority of the element, lower values being served first. */
+        private int priority;
+
+        /** Arrival number, ordering the elements of the same priority. */
+        private final long arrival;
+
+        /** Position of the entry in the heap. */
+        private int index;
+
+        Entry(E element, int priority, long arrival) {
+            this.element = element;
+            this.priority = priority;
+            this.arrival = arrival;
+        }
+    }
+}
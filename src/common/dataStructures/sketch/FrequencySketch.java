@@ -0,0 +1,33 @@
+package common.dataStructures.sketch;
+
+/**
+ * Defines the contract for a frequency sketch: a summary of a stream of
+ * elements, in bounded memory, that estimates how often each element
+ * occurred.
+ * <p>
+ * An estimate is never below the true number of occurrences of the
+ * element; how far above it may be depends on the sketch and on the length
+ * of the stream.
+ *
+ * @param <E> the type of elements counted
+ */
+public interface FrequencySketch<E> {
+
+    /**
+     * Counts one occurrence of an element.
+     *
+     * @param e the element
+     */
+    void add(E e);
+
+    /**
+     * Estimates the number of occurrences of an element.
+     *
+     * @param e the element
+     * @return the estimate, never below the true number of occurrences
+     */
+    long estimate(E e);
+
+    /** @return the number of occurrences counted, of all elements */
+    long total();
+}
@@ -0,0 +1,46 @@
+package common.dataStructures.sketch;
+
+/**
+ * Defines the contract for a top-k sketch: a {@link FrequencySketch} that
+ * also keeps track of the elements occurring the most, so that the k most
+ * frequent elements are read without scanning the stream again.
+ * <p>
+ * The sketch monitors a bounded number of elements, its capacity. Each
+ * monitored element has a count, never below its true number of
+ * occurrences, and an error: the count minus the error is never above the
+ * true number of occurrences.
+ *
+ * @param <E> the type of elements counted
+ */
+public interface TopKSketch<E> extends FrequencySketch<E> {
+
+    /** @return the number of elements monitored at most */
+    int capacity();
+
+    /**
+     * Visits the monitored elements occurring the most, by decreasing count.
+     *
+     * @param k       the number of elements to visit
+     * @param visitor receives each element with its count and error
+     * @return the number of elements visited, at most k
+     */
+    int forEachTop(int k, TopVisitor<? super E> visitor);
+
+    /**
+     * Receives the elements of a top-k sketch.
+     *
+     * @param <E> the type of elements counted
+     */
+    @FunctionalInterface
+    interface TopVisitor<E> {
+
+        /**
+         * Visits a monitored element.
+         *
+         * @param element the element
+         * @param count   the count of the element, never below its true number of occurrences
+         * @param error   how far above the true number of occurrences the count may be
+         */
+        void visit(E element, long count, long error);
+    }
+}
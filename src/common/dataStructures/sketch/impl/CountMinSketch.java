@@ -0,0 +1,103 @@
+package common.dataStructures.sketch.impl;
+
+import common.dataStructures.sketch.FrequencySketch;
+
+/**
+ * Count-min sketch implementation of {@link FrequencySketch}.
+ * <p>
+ * The sketch is a table of counters, with a fixed number of rows and a
+ * power of two of columns. Each row hashes an element to one of its
+ * columns; counting an element increments its counter in every row, and
+ * the estimate of an element is the smallest of its counters. Collisions
+ * only ever add to a counter, so the estimate is never below the true
+ * count, and it exceeds it by at most {@code e / width} of the total count
+ * in all rows but a fraction {@code e^-depth} of the cases. Counting and
+ * estimating take O(depth), and the memory used does not depend on the
+ * number of distinct elements.
+ * <p>
+ * The rows derive their columns from two hashes of the element, combined
+ * differently in each row. The sketch is not thread-safe.
+ *
+ * @param <E> the type of elements counted
+ */
+public class CountMinSketch<E> implements FrequencySketch<E> {
+
+    /** Default number of columns. */
+    public static final int DEFAULT_WIDTH = 2048;
+
+    /** Default number of rows. */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /** The counters, row after row. */
+    private final long[] counters;
+
+    /** Number of columns, a power of two. */
+    private final int width;
+
+    /** Number of rows. */
+    private final int depth;
+
+    /** Number of occurrences counted. */
+    private long total;
+
+    /**
+     * Constructs an empty sketch with default dimensions.
+     */
+    public CountMinSketch() {
+        this(DEFAULT_WIDTH, DEFAULT_DEPTH);
+    }
+
+    /**
+     * Constructs an empty sketch.
+     *
+     * @param width the number of columns, rounded up to a power of two
+     * @param depth the number of rows
+     */
+    public CountMinSketch(int width, int depth) {
+        if (width < 1 || depth < 1) throw new IllegalArgumentException("The sketch needs at least one row and one column.");
+        int columns = Integer.highestOneBit(width);
+        this.width = columns < width ? columns << 1 : columns;
+        this.depth = depth;
+        this.counters = new long[this.width * depth];
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(E e) {
+        int h1 = hash(e), h2 = rehash(h1);
+        for (int row = 0; row < depth; row++) counters[row * width + column(h1, h2, row)]++;
+        total++;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long estimate(E e) {
+        int h1 = hash(e), h2 = rehash(h1);
+        long min = Long.MAX_VALUE;
+        for (int row = 0; row < depth; row++) min = Math.min(min, counters[row * width + column(h1, h2, row)]);
+        return min;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long total() {
+        return total;
+    }
+
+    /** Returns the column of an element in a row, from its two hashes. */
+    private int column(int h1, int h2, int row) {
+        return (h1 + row * h2) & (width - 1);
+    }
+
+    /** Spreads the hash code of an element over all its bits. */
+    private static int hash(Object e) {
+        int h = e.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Derives a second, odd hash from the first one, so that the rows of an element fall in distinct columns. */
+    private static int rehash(int h) {
+        h *= 0x85EBCA6B;
+        return (h ^ (h >>> 13)) | 1;
+    }
+}
@@ -0,0 +1,230 @@
+package common.dataStructures.sketch.impl;
+
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+import common.dataStructures.sketch.TopKSketch;
+
+/**
+ * Space-saving implementation of {@link TopKSketch}.
+ * <p>
+ * The sketch monitors at most {@code capacity} elements, each with a
+ * counter. An element already monitored has its counter incremented. A new
+ * element takes a free counter if there is one, and otherwise replaces the
+ * element with the smallest count, inheriting that count plus one, and the
+ * inherited count as its error. Any element occurring more than
+ * {@code total / capacity} times is thus monitored.
+ * <p>
+ * The counters are kept in a stream summary: buckets of counters sharing
+ * the same count, linked in increasing order of count, and a hash map from
+ * each monitored element to its counter. Counting an element moves its
+ * counter to the next bucket in constant time, and the k most frequent
+ * elements are read from the largest bucket down in O(k), whatever the
+ * capacity. The sketch is not thread-safe.
+ *
+ * @param <E> the type of elements counted
+ */
+public class SpaceSavingSketch<E> implements TopKSketch<E> {
+
+    /** Default number of elements monitored. */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /** Number of elements monitored at most. */
+    private final int capacity;
+
+    /** Counter of each monitored element; never holds more than {@code capacity} entries. */
+    private final LibraryMap<E, Counter<E>> counters;
+
+    /** Bucket with the smallest count, or null if nothing is monitored. */
+    private Bucket<E> min;
+
+    /** Bucket with the largest count, or null if nothing is monitored. */
+    private Bucket<E> max;
+
+    /** Number of elements monitored. */
+    private int size;
+
+    /** Number of occurrences counted. */
+    private long total;
+
+    /**
+     * Constructs an empty sketch with default capacity.
+     */
+    public SpaceSavingSketch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an empty sketch.
+     *
+     * @param capacity the number of elements monitored at most
+     */
+    public SpaceSavingSketch(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("The sketch needs at least one counter.");
+        this.capacity = capacity;
+        this.counters = new HashLibraryMap<>(capacity);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void add(E e) {
+        total++;
+        Counter<E> counter = counters.get(e);
+        if (counter != null) {
+            increment(counter);
+            return;
+        }
+        if (size < capacity) {
+            counter = new Counter<>(e);
+            size++;
+            counters.put(e, counter);
+            if (min == null || min.count != 1) {
+                Bucket<E> first = new Bucket<>(1);
+                link(null, first, min);
+            }
+            attach(counter, min);
+            return;
+        }
+        // Replace the element with the smallest count, which the new element may have evicted before
+        counter = min.head;
+        counters.remove(counter.element);
+        counter.element = e;
+        counter.error = min.count;
+        counters.put(e, counter);
+        increment(counter);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * An element not monitored occurred at most as often as the smallest
+     * count, once the sketch is full.
+     */
+    @Override
+    public long estimate(E e) {
+        Counter<E> counter = counters.get(e);
+        if (counter != null) return counter.bucket.count;
+        return size < capacity ? 0 : min.count;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long total() {
+        return total;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int forEachTop(int k, TopVisitor<? super E> visitor) {
+        int visited = 0;
+        for (Bucket<E> bucket = max; bucket != null && visited < k; bucket = bucket.prev) {
+            for (Counter<E> counter = bucket.head; counter != null && visited < k; counter = counter.next) {
+                visitor.visit(counter.element, bucket.count, counter.error);
+                visited++;
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Moves a counter to the bucket of the next count, creating the bucket
+     * if needed and dropping its former bucket if it becomes empty.
+     */
+    private void increment(Counter<E> counter) {
+        Bucket<E> from = counter.bucket;
+        Bucket<E> to = from.next;
+        if (to == null || to.count != from.count + 1) {
+            to = new Bucket<>(from.count + 1);
+            link(from, to, from.next);
+        }
+        detach(counter);
+        attach(counter, to);
+        if (from.head == null) unlink(from);
+    }
+
+    /** Inserts a bucket between two neighbours, either of which may be null. */
+    private void link(Bucket<E> prev, Bucket<E> bucket, Bucket<E> next) {
+        bucket.prev = prev;
+        bucket.next = next;
+        if (prev == null) min = bucket; else prev.next = bucket;
+        if (next == null) max = bucket; else next.prev = bucket;
+    }
+
+    /** Removes an empty bucket from the summary. */
+    private void unlink(Bucket<E> bucket) {
+        if (bucket.prev == null) min = bucket.next; else bucket.prev.next = bucket.next;
+        if (bucket.next == null) max = bucket.prev; else bucket.next.prev = bucket.prev;
+    }
+
+    /** Adds a counter at the head of a bucket. */
+    private static <E> void attach(Counter<E> counter, Bucket<E> bucket) {
+        counter.bucket = bucket;
+        counter.prev = null;
+        counter.next = bucket.head;
+        if (bucket.head != null) bucket.head.prev = counter;
+        bucket.head = counter;
+    }
+
+    /** Removes a counter from its bucket. */
+    private static <E> void detach(Counter<E> counter) {
+        if (counter.prev == null) counter.bucket.head = counter.next; else counter.prev.next = counter.next;
+        if (counter.next != null) counter.next.prev = counter.prev;
+        counter.prev = counter.next = null;
+    }
+
+    /**
+     * Counters sharing the same count.
+     *
+     * @param <E> the type of elements counted
+     */
+    private static final class Bucket<E> {
+
+        /** The count of the counters of the bucket. */
+        private final long count;
+
+        /** First counter of the bucket. */
+        private Counter<E> head;
+
+        /** Bucket with the next smaller count. */
+        private Bucket<E> prev;
+
+        /** Bucket with the next larger count. */
+        private Bucket<E> next;
+
+        Bucket(long count) {
+            this.count = count;
+        }
+    }
+
+    /**
+     * Counter of a monitored element.
+     *
+     * @param <E> the type of elements counted
+     */
+    private static final class Counter<E> {
+
+        /** The monitored element. */
+        private E element;
+
+        /** Count inherited from the element this counter monitored before. */
+        private long error;
+
+        /** Bucket holding the count of the counter. */
+        private Bucket<E> bucket;
+
+        /** Previous counter of the bucket. */
+        private Counter<E> prev;
+
+        /** Next counter of the bucket. */
+        private Counter<E> next;
+
+        Counter(E element) {
+            this.element = element;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package common.dataStructures.wheel;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Defines the contract for a timing wheel: a scheduler of elements, each
+ * due at a deadline, driven by a clock that only moves forward.
+ * <p>
+ * Time is counted in ticks, whatever a tick stands for. Advancing the clock
+ * reports the elements whose deadline it reaches and moves them to the
+ * expired elements, where they stay until cancelled. Scheduling and
+ * cancelling an element take constant time, and so does each tick, whatever
+ * the number of elements scheduled.
+ *
+ * @param <E> the type of elements scheduled
+ */
+public interface TimingWheel<E> {
+
+    /**
+     * Schedules an element. An element whose deadline has already been
+     * reached is reported by the next tick.
+     *
+     * @param element  the element
+     * @param deadline the tick at which the element is due
+     * @return the handle of the scheduled element, used to cancel it
+     */
+    Timeout<E> schedule(E element, long deadline);
+
+    /**
+     * Advances the clock to the given tick, one tick after the other,
+     * reporting each element whose deadline is reached.
+     *
+     * @param time    the tick to advance to; earlier ticks are ignored
+     * @param expired receives each element as its deadline is reached
+     * @return the number of elements reported
+     */
+    int advance(long time, Consumer<? super E> expired);
+
+    /** @return the current tick of the clock */
+    long getTime();
+
+    /** @return the number of elements whose deadline is not reached yet */
+    int pendingCount();
+
+    /** @return the number of elements whose deadline was reached and that are not cancelled */
+    int expiredCount();
+
+    /**
+     * Executes the given action for each expired element, most recently
+     * expired last, until the action returns false.
+     *
+     * @param action a Predicate that performs an operation on each expired element and tells whether to go on
+     * @return true if every expired element was visited
+     */
+    boolean forEachExpired(Predicate<? super E> action);
+
+    /**
+     * Handle of an element scheduled in a timing wheel.
+     *
+     * @param <E> the type of the element
+     */
+    interface Timeout<E> {
+
+        /** @return the scheduled element */
+        E getElement();
+
+        /** @return the tick at which the element is due */
+        long getDeadline();
+
+        /** @return true if the deadline of the element was reached */
+        boolean isExpired();
+
+        /**
+         * Removes the element from the wheel, whether its deadline was
+         * reached or not.
+         *
+         * @return true if the element was in the wheel, false if it was already cancelled
+         */
+        boolean cancel();
+    }
+}
@@ -0,0 +1,283 @@
+package common.dataStructures.wheel.impl;
+
+import common.dataStructures.wheel.TimingWheel;
+
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Hierarchical implementation of {@link TimingWheel}.
+ * <p>
+ * The wheel has several levels of {@value #SLOTS} slots each: a slot of the
+ * first level spans one tick, and a slot of each next level spans all the
+ * slots of the level below it. An element is kept in the slot of the lowest
+ * level whose span reaches its deadline, in a doubly-linked list, so that
+ * scheduling and cancelling it take constant time. Each tick reports the
+ * elements of one slot of the first level; when it completes the rotation
+ * of a level, the next slot of the level above is emptied into the lower
+ * levels. The levels cover {@code 64^5} ticks, over 30 years of seconds;
+ * an element due later is kept in the last slot of the top level and moved
+ * down as time goes by.
+ * <p>
+ * Each scheduled element takes a {@link Node} of the lists, which is also
+ * its handle. An element may instead be its own node, by extending
+ * {@link Node}, and be scheduled with {@link #schedule(Node)}, so that
+ * scheduling it allocates nothing.
+ * <p>
+ * The wheel is not thread-safe: concurrent callers must synchronize on it.
+ *
+ * @param <E> the type of elements scheduled
+ */
+public class HierarchicalTimingWheel<E> implements TimingWheel<E> {
+
+    /** Number of bits of a tick that select the slot of a level. */
+    private static final int SLOT_BITS = 6;
+
+    /** Number of slots of each level. */
+    public static final int SLOTS = 1 << SLOT_BITS;
+
+    /** Mask selecting the slot of a level. */
+    private static final int MASK = SLOTS - 1;
+
+    /** Number of levels of the wheel. */
+    public static final int LEVELS = 5;
+
+    /** Slots of each level; each slot is the sentinel of a circular list, read through {@link #slot}. */
+    private final Object[][] slots;
+
+    /** Sentinel of the circular list of expired elements, oldest first. */
+    private final Node<E> expired;
+
+    /** Current tick of the clock. */
+    private long time;
+
+    /** Number of elements whose deadline is not reached yet. */
+    private int pendingCount;
+
+    /** Number of expired elements not cancelled yet. */
+    private int expiredCount;
+
+    /**
+     * Constructs an empty wheel whose clock starts at the given tick.
+     *
+     * @param start the current tick
+     */
+    public HierarchicalTimingWheel(long start) {
+        this.time = start;
+        this.slots = new Object[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++)
+            for (int slot = 0; slot < SLOTS; slot++) slots[level][slot] = new Node<>(this, null, 0);
+        this.expired = new Node<>(this, null, 0);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Timeout<E> schedule(E element, long deadline) {
+        Node<E> node = new Node<>(this, element, deadline);
+        insert(node, time + 1);
+        pendingCount++;
+        return node;
+    }
+
+    /**
+     * Schedules an element that is its own node, at the deadline of the
+     * node. The node must not be scheduled already.
+     *
+     * @param node the element, extending {@link Node}
+     * @return the node, which is the handle of the scheduled element
+     */
+    public Timeout<E> schedule(Node<E> node) {
+        node.wheel = this;
+        node.isExpired = false;
+        insert(node, time + 1);
+        pendingCount++;
+        return node;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int advance(long target, Consumer<? super E> action) {
+        int reported = 0;
+        while (time < target) {
+            if (pendingCount == 0) {
+                // Nothing can expire on the way: jump straight to the target
+                time = target;
+                break;
+            }
+            time++;
+            // Completing a rotation of a level moves the next slot of the level above down
+            for (int level = 1; level < LEVELS; level++) {
+                if ((time & ((1L << (SLOT_BITS * level)) - 1)) != 0) break;
+                Node<E> head = slot(level, slotOf(time, level));
+                Node<E> node = head.next;
+                head.next = head.prev = head;
+                while (node != head) {
+                    Node<E> next = node.next;
+                    insert(node, time);
+                    node = next;
+                }
+            }
+            Node<E> head = slot(0, slotOf(time, 0));
+            while (head.next != head) {
+                Node<E> node = head.next;
+                unlink(node);
+                node.isExpired = true;
+                link(expired, node);
+                pendingCount--;
+                expiredCount++;
+                reported++;
+                action.accept(node.getElement());
+            }
+        }
+        return reported;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getTime() {
+        return time;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int pendingCount() {
+        return pendingCount;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int expiredCount() {
+        return expiredCount;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean forEachExpired(Predicate<? super E> action) {
+        Node<E> node = expired.next;
+        while (node != expired) {
+            Node<E> next = node.next;
+            if (!action.test(node.getElement())) return false;
+            node = next;
+        }
+        return true;
+    }
+
+    /**
+     * Links a pending node into the slot of the lowest level reaching its
+     * deadline. A deadline before the earliest tick the node may be reported
+     * at is reported at that tick.
+     *
+     * @param node     the node
+     * @param earliest the earliest tick the node may be reported at
+     */
+    private void insert(Node<E> node, long earliest) {
+        long at = Math.max(node.deadline, earliest);
+        long delta = at - time;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) level++;
+        // Beyond the span of the wheel, wait in the last slot of the top level
+        if (delta >= 1L << (SLOT_BITS * LEVELS)) at = time + (1L << (SLOT_BITS * LEVELS)) - 1;
+        link(slot(level, slotOf(at, level)), node);
+    }
+
+    /** Returns the sentinel of a slot of a level. */
+    @SuppressWarnings("unchecked")
+    private Node<E> slot(int level, int slot) {
+        return (Node<E>) slots[level][slot];
+    }
+
+    /** Returns the slot of a level spanning a tick. */
+    private static int slotOf(long tick, int level) {
+        return (int) ((tick >>> (SLOT_BITS * level)) & MASK);
+    }
+
+    /** Links a node at the end of the list of a sentinel. */
+    private static <E> void link(Node<E> head, Node<E> node) {
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+    }
+
+    /** Unlinks a node from its list. */
+    private static <E> void unlink(Node<E> node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+    }
+
+    /**
+     * Element scheduled in the wheel, linked in the list of its slot or in
+     * the list of expired elements; also the sentinel of such a list.
+     * Elements extending it are their own node.
+     *
+     * @param <E> the type of the element
+     */
+    public static class Node<E> implements Timeout<E> {
+
+        /** Wheel the node belongs to, null for an element not scheduled yet. */
+        private HierarchicalTimingWheel<E> wheel;
+
+        /** Scheduled element, null for a sentinel or an element that is its own node. */
+        private final E element;
+
+        /** Tick at which the element is due. */
+        private final long deadline;
+
+        /** Previous node of the list, null once cancelled. */
+        private Node<E> prev;
+
+        /** Next node of the list, null once cancelled. */
+        private Node<E> next;
+
+        /** Whether the deadline of the element was reached. */
+        private boolean isExpired;
+
+        /**
+         * Constructs an element that is its own node, due at the given tick,
+         * to be scheduled with {@link HierarchicalTimingWheel#schedule(Node)}.
+         *
+         * @param deadline the tick at which the element is due
+         */
+        protected Node(long deadline) {
+            this.element = null;
+            this.deadline = deadline;
+        }
+
+        private Node(HierarchicalTimingWheel<E> wheel, E element, long deadline) {
+            this.wheel = wheel;
+            this.element = element;
+            this.deadline = deadline;
+            this.prev = this.next = this;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        @SuppressWarnings("unchecked")
+        public final E getElement() {
+            return element != null ? element : (E) this;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public final long getDeadline() {
+            return deadline;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public final boolean isExpired() {
+            return isExpired;
+        }
+
+        /** {@inheritDoc} */
+        @Override
+        public final boolean cancel() {
+            if (next == null) return false;
+            unlink(this);
+            if (isExpired) wheel.expiredCount--;
+            else wheel.pendingCount--;
+            return true;
+        }
+    }
+}
@@ -1,11 +1,16 @@
 package domain.book;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * Abstract base class representing a book in the library system.
  * Contains common properties shared by all book types, such as title and format.
  */
 public abstract class Book {
 
+    /** Maximum length of a title, in UTF-8 bytes, so that it can be logged and saved. */
+    public static final int MAX_TITLE_LENGTH = 0xFFFF;
+
     /** Title of the book */
     protected final String title;
 
@@ -23,6 +28,16 @@ public abstract class Book {
         this.format = format;
     }
 
+    /**
+     * Checks that a title is at most {@link #MAX_TITLE_LENGTH} bytes long once encoded.
+     *
+     * @param title the title
+     * @return true if the title can be logged and saved
+     */
+    public static boolean isStorableTitle(String title) {
+        return title.length() <= MAX_TITLE_LENGTH / 3 || title.getBytes(StandardCharsets.UTF_8).length <= MAX_TITLE_LENGTH;
+    }
+
     /**
      * Returns the title of the book.
      *
@@ -41,6 +56,31 @@ public abstract class Book {
         return format;
     }
 
+    /**
+     * Two books are equal if they have the same title and format, since the
+     * inventory holds at most one book object per title and format.
+     *
+     * @param o the object to compare with
+     * @return true if {@code o} is a book with the same title and format
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof Book)) return false;
+        Book other = (Book) o;
+        return title.equals(other.title) && format.equals(other.format);
+    }
+
+    /**
+     * Returns a hash code consistent with {@link #equals(Object)}.
+     *
+     * @return the hash code of the title and format
+     */
+    @Override
+    public int hashCode() {
+        return 31 * title.hashCode() + format.hashCode();
+    }
+
     /**
      * Returns a string representation of the book, including its title and format.
      *
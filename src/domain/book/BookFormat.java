@@ -60,7 +60,11 @@ public enum BookFormat {
      */
     public static BookFormat fromString(String input) throws LibraryException {
         if (input == null) throw new LibraryException("Null format");
-        BookFormat bf = lookup.get(input.toLowerCase());
+        BookFormat bf;
+        // Searching the map moves its cursor, and formats are parsed by concurrent operations
+        synchronized (lookup) {
+            bf = lookup.get(input.toLowerCase());
+        }
         if (bf == null) throw new LibraryException("Invalid format: must be physical/f or digital/d");
         return bf;
     }
@@ -1,19 +1,50 @@
 package domain.book;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
 /**
  * Represents a physical book in the library system.
  * A PBook has a limited number of copies and can be reserved or loaned.
+ * <p>
+ * The copy counters live in a single {@code long}, updated by
+ * compare-and-set through a {@link VarHandle}: loaning, returning,
+ * reserving and vacating a copy each check the counters and change them in
+ * one atomic step, so that concurrent callers can never lend or reserve
+ * more copies than the library has, even without a lock.
  */
 public class PBook extends Book {
 
-    /** Number of available copies not reserved. */
-    private int availableCopies = 0;
+    /** Largest number of copies a counter holds: each counter takes 21 bits of the packed state. */
+    public static final int MAX_COPIES = (1 << 21) - 1;
+
+    /** Position of the reserved copies in the packed state. */
+    private static final int RESERVED_SHIFT = 0;
+
+    /** Position of the copies in the library, including reserved ones, in the packed state. */
+    private static final int SHELVED_SHIFT = 21;
 
-    /** Total number of copies of this book. */
-    private int totalCopies = 0;
+    /** Position of the total copies in the packed state. */
+    private static final int TOTAL_SHIFT = 42;
+
+    /** Handle updating the packed state atomically. */
+    private static final VarHandle COUNTERS;
+
+    static {
+        try {
+            COUNTERS = MethodHandles.lookup().findVarHandle(PBook.class, "counters", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
-    /** Number of copies currently reserved. */
-    private int reservedCopies = 0;
+    /**
+     * The copy counters packed into one word: total copies, copies in the
+     * library (on the shelf, reserved or not) and reserved copies, 21 bits
+     * each. Every change replaces the whole word with a compare-and-set, so
+     * that a check and the update it guards are a single atomic step.
+     */
+    private volatile long counters;
 
     /**
      * Constructs a new physical book with the specified title.
@@ -25,13 +56,27 @@ public class PBook extends Book {
         super(title, BookFormat.PHYSICAL.toString());
     }
 
+    /**
+     * Constructs a physical book with known copy counters, used when
+     * restoring the inventory from persisted library state.
+     *
+     * @param title           the title of the physical book
+     * @param totalCopies     total number of copies
+     * @param availableCopies copies not currently on loan, including reserved ones
+     * @param reservedCopies  copies currently reserved
+     */
+    public PBook(String title, int totalCopies, int availableCopies, int reservedCopies) {
+        this(title);
+        this.counters = pack(totalCopies, availableCopies, reservedCopies);
+    }
+
     /**
      * Checks if the book has any available copies for loan (excluding reserved copies).
      *
      * @return true if at least one copy is available, false otherwise
      */
     public boolean isAvailable() {
-        return availableCopies - reservedCopies > 0;
+        return getAvailableCopies() > 0;
     }
 
     /**
@@ -40,7 +85,8 @@ public class PBook extends Book {
      * @return available copies
      */
     public int getAvailableCopies() {
-        return availableCopies - reservedCopies;
+        long state = counters;
+        return shelved(state) - reserved(state);
     }
 
     /**
@@ -49,58 +95,179 @@ public class PBook extends Book {
      * @return total copies
      */
     public int getTotalCopies() {
-        return totalCopies;
+        return total(counters);
+    }
+
+    /**
+     * Returns the number of copies currently reserved.
+     *
+     * @return reserved copies
+     */
+    public int getReservedCopies() {
+        return reserved(counters);
     }
 
     /**
      * Adds one copy to both total and available copies.
+     *
+     * @return true if the copy was added, false if the book already has {@link #MAX_COPIES} copies
+     */
+    public boolean addCopies() {
+        return addCopies(1);
+    }
+
+    /**
+     * Adds several copies to both total and available copies.
+     *
+     * @param count the number of copies
+     * @return true if the copies were added, false if the book would exceed {@link #MAX_COPIES} copies
      */
-    public void addCopies() {
-        totalCopies += 1;
-        availableCopies += 1;
+    public boolean addCopies(int count) {
+        long state;
+        do {
+            state = counters;
+            if (count < 1 || total(state) > MAX_COPIES - count) return false;
+        } while (!COUNTERS.compareAndSet(this, state,
+                pack(total(state) + count, shelved(state) + count, reserved(state))));
+        return true;
     }
 
     /**
      * Removes one copy from both total and available copies.
+     *
+     * @return true if the copy was removed, false if no copy is available
      */
-    public void removeCopies() {
-        availableCopies -= 1;
-        totalCopies -= 1;
+    public boolean removeCopies() {
+        long state;
+        do {
+            state = counters;
+            if (shelved(state) - reserved(state) < 1) return false;
+        } while (!COUNTERS.compareAndSet(this, state,
+                pack(total(state) - 1, shelved(state) - 1, reserved(state))));
+        return true;
     }
 
     /**
-     * Adds one reserved copy.
+     * Adds one reserved copy, taken from the available copies.
+     *
+     * @return true if a copy was reserved, false if no copy is available
      */
-    public void addReservedCopies() {
-        reservedCopies += 1;
+    public boolean addReservedCopies() {
+        long state;
+        do {
+            state = counters;
+            if (shelved(state) - reserved(state) < 1) return false;
+        } while (!COUNTERS.compareAndSet(this, state, state + (1L << RESERVED_SHIFT)));
+        return true;
     }
 
     /**
-     * Removes one reserved copy.
+     * Removes one reserved copy, making it available again.
+     *
+     * @return true if a copy was released, false if no copy is reserved
      */
-    public void removeReservedCopies() {
-        reservedCopies -= 1;
+    public boolean removeReservedCopies() {
+        long state;
+        do {
+            state = counters;
+            if (reserved(state) < 1) return false;
+        } while (!COUNTERS.compareAndSet(this, state, state - (1L << RESERVED_SHIFT)));
+        return true;
     }
 
     /**
      * Removes one copy due to user removal (does not affect available copies).
+     *
+     * @return true if the copy was removed, false if no copy is on loan
+     */
+    public boolean removeCopiesByRemoveUser() {
+        long state;
+        do {
+            state = counters;
+            if (total(state) - shelved(state) < 1) return false;
+        } while (!COUNTERS.compareAndSet(this, state, state - (1L << TOTAL_SHIFT)));
+        return true;
+    }
+
+    /**
+     * Loans one copy by decrementing the available copies, unless none is
+     * available: the check and the update are one atomic step, so that two
+     * concurrent loans never take the same last copy.
+     *
+     * @return true if a copy was loaned, false if no copy is available
+     */
+    public boolean loanCopies() {
+        long state;
+        do {
+            state = counters;
+            if (shelved(state) - reserved(state) < 1) return false;
+        } while (!COUNTERS.compareAndSet(this, state, state - (1L << SHELVED_SHIFT)));
+        return true;
+    }
+
+    /**
+     * Loans several copies at once, unless fewer are available: either all
+     * of them are loaned, in one atomic step, or none is.
+     *
+     * @param count the number of copies
+     * @return true if the copies were loaned, false if fewer copies are available
      */
-    public void removeCopiesByRemoveUser() {
-        totalCopies -= 1;
+    public boolean loanCopies(int count) {
+        long state;
+        do {
+            state = counters;
+            if (count < 1 || shelved(state) - reserved(state) < count) return false;
+        } while (!COUNTERS.compareAndSet(this, state, state - ((long) count << SHELVED_SHIFT)));
+        return true;
     }
 
     /**
-     * Loans one copy by decrementing the available copies.
+     * Loans a reserved copy to the user it was reserved for, releasing the
+     * reservation and lending the copy in one atomic step.
+     *
+     * @return true if a reserved copy was loaned, false if no copy is reserved
      */
-    public void loanCopies() {
-        availableCopies -= 1;
+    public boolean loanReservedCopies() {
+        long state;
+        do {
+            state = counters;
+            if (reserved(state) < 1) return false;
+        } while (!COUNTERS.compareAndSet(this, state, state - (1L << SHELVED_SHIFT) - (1L << RESERVED_SHIFT)));
+        return true;
     }
 
     /**
      * Returns one copy by incrementing the available copies.
+     *
+     * @return true if the copy was returned, false if no copy is on loan
      */
-    public void returnCopies() {
-        availableCopies += 1;
+    public boolean returnCopies() {
+        long state;
+        do {
+            state = counters;
+            if (total(state) - shelved(state) < 1) return false;
+        } while (!COUNTERS.compareAndSet(this, state, state + (1L << SHELVED_SHIFT)));
+        return true;
+    }
+
+    /** Packs the three counters into one word. */
+    private static long pack(int total, int shelved, int reserved) {
+        return ((long) total << TOTAL_SHIFT) | ((long) shelved << SHELVED_SHIFT) | ((long) reserved << RESERVED_SHIFT);
+    }
+
+    /** Reads the total copies from a packed word. */
+    private static int total(long state) {
+        return (int) (state >>> TOTAL_SHIFT) & MAX_COPIES;
+    }
+
+    /** Reads the copies in the library, including reserved ones, from a packed word. */
+    private static int shelved(long state) {
+        return (int) (state >>> SHELVED_SHIFT) & MAX_COPIES;
+    }
+
+    /** Reads the reserved copies from a packed word. */
+    private static int reserved(long state) {
+        return (int) (state >>> RESERVED_SHIFT) & MAX_COPIES;
     }
 
     /**
@@ -111,6 +278,7 @@ public class PBook extends Book {
      */
     @Override
     public String toString() {
-        return super.toString() + (availableCopies - reservedCopies) + "/" + totalCopies + " available.";
+        long state = counters;
+        return super.toString() + (shelved(state) - reserved(state)) + "/" + total(state) + " available.";
     }
 }
\ No newline at end of file
@@ -36,8 +36,20 @@ public interface BookInventory {
     /** @return the physical book object (PBook) */
     PBook getPBook();
 
-    /** Adds a physical book copy to the inventory */
-    void addPBook();
+    /**
+     * Adds a physical book copy to the inventory.
+     *
+     * @throws LibraryException if the book already has {@link PBook#MAX_COPIES} copies
+     */
+    void addPBook() throws LibraryException;
+
+    /**
+     * Adds several physical book copies to the inventory at once.
+     *
+     * @param count the number of copies, at least 1
+     * @throws LibraryException if the book would exceed {@link PBook#MAX_COPIES} copies
+     */
+    void addPBooks(int count) throws LibraryException;
 
     /**
      * Removes a physical book copy from the inventory.
@@ -64,23 +76,41 @@ public interface BookInventory {
     boolean loanPBook() throws LibraryException;
 
     /**
-     * Returns a previously loaned physical book.
+     * Loans several physical copies at once, all or none.
      *
+     * @param count the number of copies, at least 1
+     * @return true if the copies were loaned, false if fewer copies are available
      * @throws LibraryException if the book is not registered
      */
+    boolean loanPBooks(int count) throws LibraryException;
+
+    /**
+     * Loans a reserved physical book to the user it was reserved for,
+     * releasing the reservation and lending the copy in one step.
+     *
+     * @return true if the book was loaned, false if no copy is reserved
+     * @throws LibraryException if the book is not registered
+     */
+    boolean loanReservedPBook() throws LibraryException;
+
+    /**
+     * Returns a previously loaned physical book.
+     *
+     * @throws LibraryException if the book is not registered or no copy is on loan
+     */
     void returnPBook() throws LibraryException;
 
     /**
      * Reserves a physical book.
      *
-     * @throws LibraryException if the book is not registered
+     * @throws LibraryException if the book is not registered or no copy is available
      */
     void reservePBook() throws LibraryException;
 
     /**
      * Vacates a previously reserved physical book.
      *
-     * @return true if successful
+     * @return true if successful, false if no copy is reserved
      * @throws LibraryException if the book is not registered
      */
     boolean vacatePBook() throws LibraryException;
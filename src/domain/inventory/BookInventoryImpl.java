@@ -29,6 +29,20 @@ public class BookInventoryImpl implements BookInventory {
         this.title = title;
     }
 
+    /**
+     * Constructs a BookInventoryImpl with existing copies, used when
+     * restoring the inventory from persisted library state.
+     *
+     * @param title the title of the book
+     * @param pBook the physical book, or null if none exists
+     * @param dBook the digital book, or null if none exists
+     */
+    public BookInventoryImpl(String title, PBook pBook, DBook dBook) {
+        this.title = title;
+        this.pBook = pBook;
+        this.dBook = dBook;
+    }
+
     /** {@inheritDoc} */
     @Override
     public String getTitle() {
@@ -60,9 +74,17 @@ public class BookInventoryImpl implements BookInventory {
 
     /** {@inheritDoc} */
     @Override
-    public void addPBook() {
+    public void addPBook() throws LibraryException {
+        addPBooks(1);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void addPBooks(int count) throws LibraryException {
         if (pBook == null) pBook = new PBook(title);
-        pBook.addCopies();
+        if (!pBook.addCopies(count)) {
+            throw new LibraryException("Physical copy of \"" + title +  "\", at most " + PBook.MAX_COPIES + " copies.");
+        }
     }
 
     /** {@inheritDoc} */
@@ -71,10 +93,9 @@ public class BookInventoryImpl implements BookInventory {
         if(pBook == null) {
             throw new LibraryException("Physical copy of \"" + title +  "\", not registered in the library.");
         }
-        if(!pBook.isAvailable()) {
+        if(!pBook.removeCopies()) {
             throw new LibraryException("Physical copy of \"" + title +  "\", no copies available to remove.");
         }
-        pBook.removeCopies();
         if(pBook.getTotalCopies() < 1) pBook = null;
         return pBook;
     }
@@ -93,21 +114,40 @@ public class BookInventoryImpl implements BookInventory {
         if(pBook == null) {
             throw new LibraryException("Physical copy of \"" + title +  "\", not registered in the library.");
         }
-        if(!pBook.isAvailable()) {
+        if(!pBook.loanCopies()) {
             System.out.println("Physical copy of \"" + title +  "\", no copies available to loan.");
             return false;
         }
-        pBook.loanCopies();
         return true;
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public boolean loanPBooks(int count) throws LibraryException {
+        if(pBook == null) {
+            throw new LibraryException("Physical copy of \"" + title +  "\", not registered in the library.");
+        }
+        return pBook.loanCopies(count);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean loanReservedPBook() throws LibraryException {
+        if(pBook == null) {
+            throw new LibraryException("Physical copy of \"" + title +  "\", not registered in the library.");
+        }
+        return pBook.loanReservedCopies();
+    }
+
     /** {@inheritDoc} */
     @Override
     public void returnPBook() throws LibraryException {
         if(pBook == null) {
             throw new LibraryException("Physical copy of \"" + title +  "\", not registered in the library.");
         }
-        pBook.returnCopies();
+        if(!pBook.returnCopies()) {
+            throw new LibraryException("Physical copy of \"" + title +  "\", no copies on loan to return.");
+        }
     }
 
     /** {@inheritDoc} */
@@ -116,10 +156,9 @@ public class BookInventoryImpl implements BookInventory {
         if(pBook == null) {
             throw new LibraryException("Physical copy of \"" + title +  "\", not registered in the library.");
         }
-        if(pBook.getAvailableCopies() < 1) {
-            System.out.println("Physical copy of \"" + title +  "\", no copies available to reserve.");
+        if(!pBook.addReservedCopies()) {
+            throw new LibraryException("Physical copy of \"" + title +  "\", no copies available to reserve.");
         }
-        pBook.addReservedCopies();
     }
 
     /** {@inheritDoc} */
@@ -128,7 +167,10 @@ public class BookInventoryImpl implements BookInventory {
         if(pBook == null) {
             throw new LibraryException("Physical copy of \"" + title +  "\", not registered in the library.");
         }
-        pBook.removeReservedCopies();
+        if(!pBook.removeReservedCopies()) {
+            System.out.println("Physical copy of \"" + title +  "\", no copies reserved to vacate.");
+            return false;
+        }
         return true;
     }
 
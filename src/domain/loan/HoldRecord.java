@@ -0,0 +1,127 @@
+package domain.loan;
+
+import common.LibraryClock;
+import common.dataStructures.wheel.TimingWheel;
+
+/**
+ * Represents a hold in the library system: a physical copy of a title set
+ * aside for a user until an expiry date.
+ * <p>
+ * The held copy counts as a reserved copy of the title, so that nobody else
+ * borrows it; the user takes it off the reserved copies by borrowing the
+ * title. The repository schedules each hold at its expiry in a timing wheel,
+ * see {@link TimingWheel}, and keeps the handle of the scheduled hold in the
+ * hold itself, so that cancelling the hold removes it in constant time.
+ * Holds refer to their user by name, and end with the removal of their user.
+ * <p>
+ * A reservation made for nobody in particular is an anonymous hold, held by
+ * {@link #ANONYMOUS}: it expires like any other hold, so that a forgotten
+ * reservation does not set a copy aside forever. A title may have several
+ * anonymous holds, released in the order they expire.
+ */
+public class HoldRecord {
+
+    /** Default hold period, in seconds: two days. */
+    public static final long DEFAULT_PERIOD_SECONDS = 2L * 24 * 60 * 60;
+
+    /** Holder of the anonymous holds: no user has an empty name. */
+    public static final String ANONYMOUS = "";
+
+    /** Name of the user the copy is held for. */
+    private final String name;
+
+    /** The held title. */
+    private final String title;
+
+    /** The expiry date, in seconds since the epoch. */
+    private final long expiry;
+
+    /** Handle of the hold in the timing wheel of its repository, null if not scheduled. */
+    private TimingWheel.Timeout<HoldRecord> timeout;
+
+    /**
+     * Constructs a hold expiring at the given date.
+     *
+     * @param name   the name of the user the copy is held for
+     * @param title  the held title
+     * @param expiry the expiry date, in seconds since the epoch
+     */
+    public HoldRecord(String name, String title, long expiry) {
+        this.name = name;
+        this.title = title;
+        this.expiry = expiry;
+    }
+
+    /**
+     * Returns the name of the user the copy is held for.
+     *
+     * @return the user name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Tells whether the copy is held for nobody in particular.
+     *
+     * @return true if the hold is anonymous
+     */
+    public boolean isAnonymous() {
+        return name.equals(ANONYMOUS);
+    }
+
+    /**
+     * Returns the held title.
+     *
+     * @return the title
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Returns the expiry date of the hold.
+     *
+     * @return the expiry date, in seconds since the epoch
+     */
+    public long getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * Returns the expiry date of the hold, formatted as yyyy-MM-dd HH:mm:ss.
+     *
+     * @return the formatted expiry date
+     */
+    public String getFormattedExpiry() {
+        return LibraryClock.format(expiry);
+    }
+
+    /**
+     * Returns the handle of the hold in the timing wheel of its repository.
+     *
+     * @return the handle, or null if the hold is not scheduled
+     */
+    public TimingWheel.Timeout<HoldRecord> getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets the handle of the hold in the timing wheel of its repository.
+     *
+     * @param timeout the handle
+     */
+    public void setTimeout(TimingWheel.Timeout<HoldRecord> timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Returns a string representation of the hold, including its user, title and expiry date.
+     *
+     * @return a formatted string representing the hold
+     */
+    @Override
+    public String toString() {
+        return (isAnonymous() ? "(reserve)" : name) + " - " + title + ", until " + getFormattedExpiry();
+    }
+}
@@ -0,0 +1,97 @@
+package domain.loan;
+
+import common.LibraryClock;
+import common.dataStructures.wheel.impl.HierarchicalTimingWheel;
+import domain.book.Book;
+import domain.user.User;
+
+/**
+ * Represents a loan in the library system: a copy of a book held by a user
+ * until a due date.
+ * <p>
+ * The repository schedules each loan at its due date in a timing wheel, see
+ * {@link HierarchicalTimingWheel}. A loan is its own node of the wheel,
+ * holding its due date as the deadline of the node, so that scheduling a
+ * loan allocates nothing more than the loan and returning it cancels it in
+ * constant time.
+ */
+public class LoanRecord extends HierarchicalTimingWheel.Node<LoanRecord> {
+
+    /** Default loan period, in seconds: two weeks. */
+    public static final long DEFAULT_PERIOD_SECONDS = 14L * 24 * 60 * 60;
+
+    /** The borrowing user. */
+    private final User user;
+
+    /** The copy on loan. */
+    private final Book book;
+
+    /**
+     * Constructs a loan due at the given date.
+     *
+     * @param user    the borrowing user
+     * @param book    the copy on loan
+     * @param dueDate the due date, in seconds since the epoch
+     */
+    public LoanRecord(User user, Book book, long dueDate) {
+        super(dueDate);
+        this.user = user;
+        this.book = book;
+    }
+
+    /**
+     * Returns the borrowing user.
+     *
+     * @return the user
+     */
+    public User getUser() {
+        return user;
+    }
+
+    /**
+     * Returns the copy on loan.
+     *
+     * @return the book
+     */
+    public Book getBook() {
+        return book;
+    }
+
+    /**
+     * Returns the due date of the loan.
+     *
+     * @return the due date, in seconds since the epoch
+     */
+    public long getDueDate() {
+        return getDeadline();
+    }
+
+    /**
+     * Returns the due date of the loan, formatted as yyyy-MM-dd HH:mm:ss.
+     *
+     * @return the formatted due date
+     */
+    public String getFormattedDueDate() {
+        return LibraryClock.format(getDeadline());
+    }
+
+    /**
+     * Tells whether the loan is overdue: its due date was reached by the
+     * timing wheel of its repository and it was not returned.
+     *
+     * @return true if the loan is overdue
+     */
+    public boolean isOverdue() {
+        return isExpired();
+    }
+
+    /**
+     * Returns a string representation of the loan, including its user, book and due date.
+     *
+     * @return a formatted string representing the loan
+     */
+    @Override
+    public String toString() {
+        return user.getName() + " - " + book + ", due " + getFormattedDueDate();
+    }
+}
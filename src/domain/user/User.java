@@ -1,22 +1,39 @@
 package domain.user;
 
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import common.LibraryClock;
+
+import java.nio.charset.StandardCharsets;
 
 /**
  * Represents a user in the library system.
- * Each user has a name, a role (default "USER"), and a creation date.
+ * Each user has a name, a role (default {@link UserRole#USER}), and a creation date.
  */
 public class User {
 
+    /** Maximum length of a name, in UTF-8 bytes, so that it can be logged and saved. */
+    public static final int MAX_NAME_LENGTH = 0xFFFF;
+
     /** The name of the user. */
     private final String name;
 
     /** The date and time when the user was created, formatted as yyyy-MM-dd HH:mm:ss. */
     private final String creationDate;
 
-    /** The role of the user in the system. Default is "USER". */
-    private final String role;
+    /**
+     * The role of the user in the system, which sets their priority in the
+     * waiting lists. Default is {@link UserRole#USER}.
+     */
+    private volatile UserRole role;
+
+    /**
+     * Checks that a name is at most {@link #MAX_NAME_LENGTH} bytes long once encoded.
+     *
+     * @param name the name
+     * @return true if the name can be logged and saved
+     */
+    public static boolean isStorableName(String name) {
+        return name.length() <= MAX_NAME_LENGTH / 3 || name.getBytes(StandardCharsets.UTF_8).length <= MAX_NAME_LENGTH;
+    }
 
     /**
      * Constructs a new user with the specified name.
@@ -26,10 +43,33 @@ public class User {
      */
     public User(String name) {
         this.name = name;
-        this.role = "USER";
-        this.creationDate = LocalDateTime.now().format(
-                DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
-        );
+        this.role = UserRole.USER;
+        this.creationDate = LibraryClock.formattedNow();
+    }
+
+    /**
+     * Constructs a user with a known creation date, used when restoring
+     * users from persisted library state.
+     *
+     * @param name         the name of the user
+     * @param creationDate the creation date, formatted as yyyy-MM-dd HH:mm:ss
+     */
+    public User(String name, String creationDate) {
+        this(name, creationDate, UserRole.USER);
+    }
+
+    /**
+     * Constructs a user with a known creation date and role, used when
+     * restoring users from persisted library state.
+     *
+     * @param name         the name of the user
+     * @param creationDate the creation date, formatted as yyyy-MM-dd HH:mm:ss
+     * @param role         the role of the user
+     */
+    public User(String name, String creationDate, UserRole role) {
+        this.name = name;
+        this.role = role;
+        this.creationDate = creationDate;
     }
 
     /**
@@ -41,6 +81,34 @@ public class User {
         return name;
     }
 
+    /**
+     * Returns the creation date of the user.
+     *
+     * @return the creation date, formatted as yyyy-MM-dd HH:mm:ss
+     */
+    public String getCreationDate() {
+        return creationDate;
+    }
+
+    /**
+     * Returns the role of the user.
+     *
+     * @return the user's role
+     */
+    public UserRole getRole() {
+        return role;
+    }
+
+    /**
+     * Sets the role of the user. The waiting lists the user is in must be
+     * updated with their new priority.
+     *
+     * @param role the new role
+     */
+    public void setRole(UserRole role) {
+        this.role = role;
+    }
+
     /**
      * Returns a string representation of the user,
      * showing the name, role, and creation date.
@@ -0,0 +1,90 @@
+package domain.user;
+
+import common.LibraryException;
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+
+/**
+ * Enumeration representing the roles of the users of the library system.
+ * The declaration order is the priority of the role in the waiting lists:
+ * users of a role are served before the users of every role declared after
+ * it, and in arrival order among themselves.
+ */
+public enum UserRole {
+
+    /** Patron entitled to an accessibility hold, served first. */
+    ACCESSIBILITY("ACCESSIBILITY", "a", "accessibility"),
+
+    /** Faculty member, served before regular patrons. */
+    FACULTY("FACULTY", "f", "faculty"),
+
+    /** Regular patron, the default role. */
+    USER("USER", "u", "user", "regular");
+
+    /** Display name of the role. */
+    private final String displayName;
+
+    /** Aliases for this role (lowercased). */
+    private final String[] aliases;
+
+    /** Lookup map to convert strings to UserRole enums. */
+    private static final LibraryMap<String, UserRole> lookup = new HashLibraryMap<>(16);
+
+    // Static block to populate the lookup map
+    static {
+        for (UserRole role : values()) {
+            lookup.put(role.displayName.toLowerCase(), role);
+            for (String alias : role.aliases) {
+                lookup.put(alias, role);
+            }
+        }
+    }
+
+    /**
+     * Constructs a UserRole with a display name and optional aliases.
+     *
+     * @param displayName the official display name of the role
+     * @param aliases     optional alternative strings representing this role
+     */
+    UserRole(String displayName, String... aliases) {
+        this.displayName = displayName;
+        this.aliases = aliases;
+    }
+
+    /**
+     * Returns the priority of the role in the waiting lists.
+     *
+     * @return the priority, lower values being served first
+     */
+    public int getPriority() {
+        return ordinal();
+    }
+
+    /**
+     * Converts a string into a UserRole enum.
+     *
+     * @param input the input string representing a role
+     * @return the corresponding UserRole
+     * @throws LibraryException if the input is null or does not match any known role
+     */
+    public static UserRole fromString(String input) throws LibraryException {
+        if (input == null) throw new LibraryException("Null role");
+        UserRole role;
+        // Searching the map moves its cursor, and roles are parsed by concurrent operations
+        synchronized (lookup) {
+            role = lookup.get(input.toLowerCase());
+        }
+        if (role == null) throw new LibraryException("Invalid role: must be accessibility/a, faculty/f or user/u");
+        return role;
+    }
+
+    /**
+     * Returns the display name of the role.
+     *
+     * @return the role's display name
+     */
+    @Override
+    public String toString() {
+        return displayName;
+    }
+}
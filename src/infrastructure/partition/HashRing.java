@@ -0,0 +1,82 @@
+package infrastructure.partition;
+
+import java.util.Arrays;
+
+/**
+ * Consistent-hash ring assigning each title of a partitioned catalog to one
+ * of its nodes.
+ * <p>
+ * Every node is placed on the ring at {@link #VIRTUAL_NODES} points derived
+ * from its address, and a title belongs to the node of the first point at
+ * or after the hash of the title, wrapping around. Adding or removing a node
+ * only moves the titles of the ranges it gains or loses, about one in as
+ * many titles as there are nodes. Hashes only depend on the addresses and
+ * titles, so every process computes the same owners for the same members.
+ */
+public class HashRing {
+
+    /** Number of points of each node on the ring, evening out the ranges of the nodes. */
+    public static final int VIRTUAL_NODES = 128;
+
+    /** Addresses of the member nodes. */
+    private final String[] nodes;
+
+    /**
+     * Points of the ring in ascending order, each the hash of the point in
+     * the high half and the index of its node in the low half.
+     */
+    private final long[] points;
+
+    /**
+     * Constructs the ring of the given nodes.
+     *
+     * @param nodes the addresses of the member nodes, at least one, without duplicates
+     * @throws IllegalArgumentException if there is no node
+     */
+    public HashRing(String... nodes) {
+        if (nodes.length == 0) throw new IllegalArgumentException("A ring needs at least one node.");
+        this.nodes = nodes.clone();
+        this.points = new long[nodes.length * VIRTUAL_NODES];
+        int p = 0;
+        for (int i = 0; i < nodes.length; i++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                points[p++] = ((long) hash(nodes[i] + "#" + v) << 32) | i;
+            }
+        }
+        Arrays.sort(points);
+    }
+
+    /**
+     * Returns the node owning a title.
+     *
+     * @param title the title
+     * @return the address of the owning node
+     */
+    public String ownerOf(String title) {
+        long key = (long) hash(title) << 32;
+        int i = Arrays.binarySearch(points, key);
+        if (i < 0) i = -i - 1;
+        if (i == points.length) i = 0;
+        return nodes[(int) points[i]];
+    }
+
+    /** @return the addresses of the member nodes */
+    public String[] getNodes() { return nodes.clone(); }
+
+    /** @return the number of member nodes */
+    public int size() { return nodes.length; }
+
+    /**
+     * Hashes a key onto the ring, scrambling its string hash so that similar
+     * keys land far apart.
+     */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
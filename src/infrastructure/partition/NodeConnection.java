@@ -0,0 +1,76 @@
+package infrastructure.partition;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Connection of a router to one node of a partitioned catalog, sending one
+ * request at a time and waiting for its reply. A connection is not
+ * thread-safe: each is used by one thread at a time.
+ */
+public class NodeConnection implements AutoCloseable {
+
+    /** Size of the input and output buffers of the connection. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Time allowed to connect to a node, in milliseconds. */
+    private static final int CONNECT_TIMEOUT_MS = 5_000;
+
+    /** Socket connected to the node. */
+    private final Socket socket;
+
+    /** Stream of the requests. */
+    private final DataOutputStream out;
+
+    /** Stream of the replies. */
+    private final DataInputStream in;
+
+    /**
+     * Connects to a node listening on a local port.
+     *
+     * @param port the port of the node
+     * @throws IOException if the node cannot be reached
+     */
+    public NodeConnection(int port) throws IOException {
+        this.socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a request and waits for its reply.
+     *
+     * @param op   the operation requested
+     * @param args the arguments of the operation
+     * @return the reply of the node
+     * @throws IOException if the node cannot be reached; the connection is unusable afterwards
+     */
+    public NodeReply call(NodeOperation op, String... args) throws IOException {
+        NodeProtocol.writeRequest(out, op, args);
+        out.flush();
+        return NodeProtocol.readReply(in);
+    }
+
+    /** Closes the connection, ignoring failures. */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket that cannot be closed
+        }
+    }
+}
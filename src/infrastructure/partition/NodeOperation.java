@@ -0,0 +1,138 @@
+package infrastructure.partition;
+
+/**
+ * Enumeration of the requests a router sends to the nodes of a partitioned
+ * catalog. Each operation has a stable code sent on the wire; its arguments
+ * and the values of its reply are strings.
+ */
+public enum NodeOperation {
+
+    /** Add a user: name. */
+    ADD_USER(1),
+
+    /** Remove a user: name. */
+    REMOVE_USER(2),
+
+    /** Print a page of users: from, limit. Replies the continuation cursor. */
+    LIST_USERS(3),
+
+    /** Read a page of users: from, limit. Replies the continuation cursor, then name, creation date and role of each user. */
+    VISIT_USERS(4),
+
+    /** Add a book copy: title, format. */
+    ADD_BOOK(5),
+
+    /** Remove a book copy: title, format. */
+    REMOVE_BOOK(6),
+
+    /**
+     * Read a page of books: from, limit. Replies the continuation cursor,
+     * then title, format, total, available and reserved copies of each book.
+     */
+    VISIT_BOOKS(7),
+
+    /** Read the formats of a title: title. Replies the format names. */
+    FORMATS_OF(8),
+
+    /** Print the waiting list of a title: title. */
+    SHOW_WAITING_LIST(9),
+
+    /** Read the waiting list of a title: title. Replies name, creation date and role of each waiting user, first in line first. */
+    VISIT_WAITING_LIST(10),
+
+    /** Reserve a physical copy: title. */
+    RESERVE(11),
+
+    /** Vacate a reserved physical copy: title. */
+    VACATE(12),
+
+    /** Lend a book: user name, title, format. Replies name, title, format and queue position of the outcome. */
+    LEND_BOOK(13),
+
+    /** Return a book: user name, title, format. Replies the outcome of the promoted loan, if any. */
+    RETURN_BOOK(14),
+
+    /** Read a page of loans: from, limit. Replies the continuation cursor, then name, title and format of each loan. */
+    VISIT_LOANS(15),
+
+    /** Execute a batch: for each operation, its name, its number of arguments and its arguments. */
+    EXECUTE_BATCH(16),
+
+    /** Print a page of events: from, limit. Replies the continuation cursor. */
+    SHOW_EVENT_HISTORY(17),
+
+    /** Import users: path. */
+    IMPORT_USERS(18),
+
+    /** Import books: path. */
+    IMPORT_BOOKS(19),
+
+    /** Checkpoint the node. */
+    CHECKPOINT(20),
+
+    /** Copy the titles a node no longer owns: address of the node, addresses of the members. Replies the title records. */
+    EXPORT_TITLES(21),
+
+    /** Take over moved titles: the title records. */
+    IMPORT_TITLES(22),
+
+    /** Remove the titles a node no longer owns: address of the node, addresses of the members. Replies the count. */
+    DROP_TITLES(23),
+
+    /** Read a page of overdue loans: from, limit. Replies the continuation cursor, then name, title, format and due date of each loan. */
+    VISIT_OVERDUE_LOANS(24),
+
+    /** Add physical copies and lend them to the users waiting: title, number of copies. Replies the number of users lent a copy. */
+    ADD_COPIES(25),
+
+    /** Set the role of a user: name, role. */
+    SET_ROLE(26),
+
+    /** Hold a physical copy for a user: name, title, duration in seconds. */
+    PLACE_HOLD(27),
+
+    /** Cancel the hold of a user: name, title. */
+    CANCEL_HOLD(28),
+
+    /** Read the titles with the largest counts of a popularity metric: metric, number of titles. Replies title, count and error of each. */
+    TOP_TITLES(29),
+
+    /** Estimate the count of a popularity metric for a title: metric, title. Replies the count. */
+    ESTIMATE_POPULARITY(30),
+
+    /** Lend a book to a cohort of users: title, format, then the names of the users. Replies the number of users lent the book. */
+    LEND_TO_USERS(31);
+
+    /** Lookup table from wire codes to operations. */
+    private static final NodeOperation[] BY_CODE = new NodeOperation[32];
+
+    // Static block to populate the lookup table
+    static {
+        for (NodeOperation op : values()) BY_CODE[op.code] = op;
+    }
+
+    /** Code identifying the operation on the wire. */
+    private final int code;
+
+    /**
+     * Constructs a NodeOperation with its wire code.
+     *
+     * @param code the code identifying the operation on the wire
+     */
+    NodeOperation(int code) {
+        this.code = code;
+    }
+
+    /** @return the code identifying the operation on the wire */
+    public int getCode() { return code; }
+
+    /**
+     * Returns the operation with the given wire code.
+     *
+     * @param code the code read from the wire
+     * @return the matching operation, or null if the code is unknown
+     */
+    public static NodeOperation fromCode(int code) {
+        return (code >= 0 && code < BY_CODE.length) ? BY_CODE[code] : null;
+    }
+}
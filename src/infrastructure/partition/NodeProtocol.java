@@ -0,0 +1,108 @@
+package infrastructure.partition;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Wire format of the requests and replies exchanged between a router and
+ * the nodes of a partitioned catalog.
+ * <p>
+ * A request is the code of its {@link NodeOperation} followed by its string
+ * arguments. A reply is a success flag, the output of the operation, the
+ * failure message if it failed, and the string values it returned. Lists
+ * of strings are written as their size followed by each string in modified
+ * UTF-8; the output, which may be long, as its length in bytes followed by
+ * its UTF-8 bytes.
+ */
+public final class NodeProtocol {
+
+    private NodeProtocol() {
+    }
+
+    /**
+     * Writes a request, without flushing it.
+     *
+     * @param out  the stream to the node
+     * @param op   the operation requested
+     * @param args the arguments of the operation
+     * @throws IOException if the request cannot be written
+     */
+    public static void writeRequest(DataOutputStream out, NodeOperation op, String... args) throws IOException {
+        out.writeByte(op.getCode());
+        writeStrings(out, args);
+    }
+
+    /**
+     * Reads the operation of a request; its arguments follow, see
+     * {@link #readStrings(DataInputStream)}.
+     *
+     * @param in the stream from the router
+     * @return the operation requested, or null if its code is unknown
+     * @throws IOException if the request cannot be read, including at the end of the stream
+     */
+    public static NodeOperation readOperation(DataInputStream in) throws IOException {
+        return NodeOperation.fromCode(in.readUnsignedByte());
+    }
+
+    /**
+     * Writes a reply, without flushing it.
+     *
+     * @param out    the stream to the router
+     * @param output the output the operation printed
+     * @param error  the message of the failure of the operation, or null if it succeeded
+     * @param values the values returned by the operation
+     * @throws IOException if the reply cannot be written
+     */
+    public static void writeReply(DataOutputStream out, String output, String error, String... values) throws IOException {
+        out.writeBoolean(error == null);
+        byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+        if (error != null) out.writeUTF(error);
+        writeStrings(out, values);
+    }
+
+    /**
+     * Reads a reply.
+     *
+     * @param in the stream from the node
+     * @return the reply
+     * @throws IOException if the reply cannot be read
+     */
+    public static NodeReply readReply(DataInputStream in) throws IOException {
+        boolean success = in.readBoolean();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        String error = success ? null : in.readUTF();
+        return new NodeReply(new String(bytes, StandardCharsets.UTF_8), error, readStrings(in));
+    }
+
+    /**
+     * Writes a list of strings.
+     *
+     * @param out     the stream
+     * @param strings the strings
+     * @throws IOException if the strings cannot be written
+     */
+    public static void writeStrings(DataOutputStream out, String... strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings) out.writeUTF(s);
+    }
+
+    /**
+     * Reads a list of strings.
+     *
+     * @param in the stream
+     * @return the strings
+     * @throws IOException if the strings cannot be read
+     */
+    public static String[] readStrings(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < 0) throw new IOException("Invalid number of strings: " + count);
+        String[] strings = new String[count];
+        for (int i = 0; i < count; i++) strings[i] = in.readUTF();
+        return strings;
+    }
+}
@@ -0,0 +1,42 @@
+package infrastructure.partition;
+
+/**
+ * Reply of a node to one request: what the operation printed, its failure
+ * if it failed, and the values it returned.
+ */
+public class NodeReply {
+
+    /** Output the operation printed on the node. */
+    private final String output;
+
+    /** Message of the failure of the operation, or null if it succeeded. */
+    private final String error;
+
+    /** Values returned by the operation. */
+    private final String[] values;
+
+    /**
+     * Constructs a NodeReply.
+     *
+     * @param output the output the operation printed on the node
+     * @param error  the message of the failure of the operation, or null if it succeeded
+     * @param values the values returned by the operation
+     */
+    public NodeReply(String output, String error, String[] values) {
+        this.output = output;
+        this.error = error;
+        this.values = values;
+    }
+
+    /** @return the output the operation printed on the node */
+    public String getOutput() { return output; }
+
+    /** @return true if the operation succeeded */
+    public boolean isSuccess() { return error == null; }
+
+    /** @return the message of the failure of the operation, or null if it succeeded */
+    public String getError() { return error; }
+
+    /** @return the values returned by the operation */
+    public String[] getValues() { return values; }
+}
@@ -0,0 +1,110 @@
+package infrastructure.persistence;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered sequential reader of the values written by {@link ChannelWriter}.
+ * <p>
+ * Data is read from the channel in large chunks into a direct buffer, so
+ * decoding a file costs one system call per chunk rather than per value.
+ */
+public class ChannelReader {
+
+    /** Default size of the read buffer. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Channel the data is read from. */
+    private final FileChannel channel;
+
+    /** Buffer holding data read from the channel but not yet decoded. */
+    private final ByteBuffer buffer;
+
+    /** Scratch array reused to decode strings. */
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Constructs a reader over the given channel.
+     *
+     * @param channel the channel to read from, positioned at the first value
+     */
+    public ChannelReader(FileChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        this.buffer.flip();
+    }
+
+    /** Reads a single unsigned byte. */
+    public int getByte() throws IOException {
+        require(Byte.BYTES);
+        return buffer.get() & 0xFF;
+    }
+
+    /** Reads a 4-byte integer. */
+    public int getInt() throws IOException {
+        require(Integer.BYTES);
+        return buffer.getInt();
+    }
+
+    /** Reads an 8-byte integer. */
+    public long getLong() throws IOException {
+        require(Long.BYTES);
+        return buffer.getLong();
+    }
+
+    /**
+     * Reads {@code length} raw bytes into the beginning of {@code dst}.
+     *
+     * @param dst    the array receiving the bytes
+     * @param length the number of bytes to read
+     * @throws IOException if the channel ends before {@code length} bytes are read
+     */
+    public void getBytes(byte[] dst, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!buffer.hasRemaining() && !fill()) throw new EOFException("Unexpected end of file");
+            int n = Math.min(buffer.remaining(), length - offset);
+            buffer.get(dst, offset, n);
+            offset += n;
+        }
+    }
+
+    /** Reads a length-prefixed UTF-8 string. */
+    public String getString() throws IOException {
+        require(Short.BYTES);
+        int length = buffer.getShort() & 0xFFFF;
+        require(length);
+        if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+        buffer.get(scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks whether all the data of the channel has been consumed.
+     *
+     * @return true if there is nothing left to read
+     * @throws IOException if the channel cannot be read
+     */
+    public boolean isAtEnd() throws IOException {
+        if (buffer.hasRemaining()) return false;
+        return !fill();
+    }
+
+    /** Ensures that at least {@code n} bytes are buffered. */
+    private void require(int n) throws IOException {
+        while (buffer.remaining() < n) {
+            if (!fill()) throw new EOFException("Unexpected end of file");
+        }
+    }
+
+    /** Reads more data from the channel, returning false at end of file. */
+    private boolean fill() throws IOException {
+        buffer.compact();
+        int read = channel.read(buffer);
+        buffer.flip();
+        return read > 0;
+    }
+}
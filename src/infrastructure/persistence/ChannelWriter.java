@@ -0,0 +1,89 @@
+package infrastructure.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Buffered writer of primitive values and strings over a channel, usually
+ * a {@link FileChannel}.
+ * <p>
+ * Values are accumulated in a direct buffer and written to the channel in
+ * large sequential chunks. Strings are encoded as UTF-8 preceded by their
+ * length in bytes as an unsigned short.
+ */
+public class ChannelWriter {
+
+    /** Default size of the write buffer. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Maximum encoded length of a string. */
+    private static final int MAX_STRING_LENGTH = 0xFFFF;
+
+    /** Channel the buffered data is written to. */
+    private final WritableByteChannel channel;
+
+    /** Buffer accumulating data before it is written. */
+    private final ByteBuffer buffer;
+
+    /**
+     * Constructs a writer over the given channel.
+     *
+     * @param channel the channel to write to, positioned where data must be appended
+     */
+    public ChannelWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    }
+
+    /** Writes a single byte. */
+    public void putByte(int b) throws IOException {
+        ensure(Byte.BYTES);
+        buffer.put((byte) b);
+    }
+
+    /** Writes a 4-byte integer. */
+    public void putInt(int i) throws IOException {
+        ensure(Integer.BYTES);
+        buffer.putInt(i);
+    }
+
+    /** Writes an 8-byte integer. */
+    public void putLong(long l) throws IOException {
+        ensure(Long.BYTES);
+        buffer.putLong(l);
+    }
+
+    /**
+     * Writes a length-prefixed UTF-8 string.
+     *
+     * @param s the string to write
+     * @throws IOException if the string is too long or the channel cannot be written
+     */
+    public void putString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_STRING_LENGTH)
+            throw new IOException("String too long to persist: " + bytes.length + " bytes");
+        ensure(Short.BYTES + bytes.length);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * Writes all buffered data to the channel.
+     *
+     * @throws IOException if the channel cannot be written
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    /** Makes room for {@code n} bytes, flushing the buffer if needed. */
+    private void ensure(int n) throws IOException {
+        if (buffer.remaining() < n) flush();
+    }
+}
@@ -0,0 +1,270 @@
+package infrastructure.persistence;
+
+import common.LibraryException;
+import infrastructure.repository.LibraryRepository;
+import infrastructure.repository.impl.DirtyTrackingLibraryRepository;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+/**
+ * Checkpoints the library state of a data directory as a base snapshot
+ * followed by delta files holding only the records changed since the
+ * previous checkpoint, so checkpoint I/O follows the write rate rather than
+ * the size of the library.
+ * <p>
+ * A checkpoint briefly excludes writers to capture the changed records in
+ * memory and rotate the write-ahead log, then writes the delta and discards
+ * the rotated log without blocking them. Once the deltas grow too numerous
+ * or too large, they are compacted into a new base snapshot by replaying
+ * them on a copy of the base loaded from disk, leaving the live state alone.
+ * <p>
+ * Files of the data directory:
+ * <ul>
+ *   <li>{@value #BASE_FILE}: the base snapshot, holding the generation of the last delta it includes</li>
+ *   <li>{@value #DELTA_PREFIX}<i>generation</i>: the deltas, applied in generation order</li>
+ * </ul>
+ */
+public class IncrementalCheckpointer {
+
+    /** Default time between two background checkpoints, in milliseconds. */
+    public static final long DEFAULT_CHECKPOINT_INTERVAL_MS = 30_000;
+
+    /** File name of the base snapshot inside the data directory. */
+    private static final String BASE_FILE = "library.snapshot";
+
+    /** File name prefix of the deltas inside the data directory. */
+    private static final String DELTA_PREFIX = "library.delta.";
+
+    /** Number of deltas that triggers a compaction. */
+    private static final int MAX_DELTAS = 16;
+
+    /** Total size of the deltas below which no compaction is triggered by size, in bytes. */
+    private static final long MIN_COMPACTION_BYTES = 1 << 20;
+
+    /** Directory holding the checkpoint files. */
+    private final Path dir;
+
+    /** Path of the base snapshot. */
+    private final Path basePath;
+
+    /** Factory of the repositories used to merge the deltas during compaction. */
+    private final Supplier<LibraryRepository> storage;
+
+    /** Generation of the last delta written or recovered. */
+    private long generation = 0;
+
+    /** Number of deltas written since the base snapshot. */
+    private int deltaCount = 0;
+
+    /** Total size of the deltas written since the base snapshot. */
+    private long deltaBytes = 0;
+
+    /** Size of the base snapshot. */
+    private long baseBytes = 0;
+
+    /**
+     * Constructs a checkpointer for the given data directory.
+     *
+     * @param dir     the data directory
+     * @param storage factory of the repositories used to merge deltas during compaction
+     */
+    public IncrementalCheckpointer(Path dir, Supplier<LibraryRepository> storage) {
+        this.dir = dir;
+        this.basePath = dir.resolve(BASE_FILE);
+        this.storage = storage;
+    }
+
+    /**
+     * Loads the last checkpointed state into the given empty repository: the
+     * base snapshot if any, then every delta written after it. Deltas already
+     * included in the base by an interrupted compaction are deleted.
+     *
+     * @param target the empty repository to fill
+     * @return the target repository
+     * @throws LibraryException if the checkpoint files cannot be read
+     */
+    public LibraryRepository recover(LibraryRepository target) throws LibraryException {
+        generation = recoverInto(target);
+        boolean hasBase = Files.exists(basePath);
+        baseBytes = hasBase ? size(basePath) : 0;
+        deleteDeltasUpTo(hasBase ? SnapshotStore.readGeneration(basePath) : 0);
+        return target;
+    }
+
+    /**
+     * Writes the records changed since the previous checkpoint as a new delta
+     * and discards the write-ahead log records it reflects, compacting the
+     * deltas into the base snapshot if needed. Writers are only excluded while
+     * the changes are captured.
+     *
+     * @param repo      the repository tracking the changes
+     * @param wal       the write-ahead log of the data directory
+     * @param exclusive lock excluding every writer of the repository
+     * @return the number of changed records written
+     * @throws LibraryException if the checkpoint cannot be written
+     */
+    public synchronized int checkpoint(DirtyTrackingLibraryRepository repo, WriteAheadLog wal, Lock exclusive)
+            throws LibraryException {
+        DirtyTrackingLibraryRepository.Changes changes;
+        byte[] delta;
+        long deltaGeneration;
+        exclusive.lock();
+        try {
+            changes = repo.drainChanges();
+            if (changes.isEmpty()) return 0;
+            deltaGeneration = generation + 1;
+            try {
+                delta = SnapshotStore.encodeDelta(repo.getDelegate(), changes, deltaGeneration);
+                wal.rotate();
+            } catch (LibraryException e) {
+                repo.restoreChanges(changes);
+                throw e;
+            }
+            generation = deltaGeneration;
+        } finally {
+            exclusive.unlock();
+        }
+
+        try {
+            writeAtomically(dir.resolve(DELTA_PREFIX + deltaGeneration), delta);
+        } catch (LibraryException e) {
+            // The rotated log still holds these changes: keep them for the next delta
+            repo.restoreChanges(changes);
+            throw e;
+        }
+        wal.discardRotated();
+        deltaCount++;
+        deltaBytes += delta.length;
+
+        if (deltaCount >= MAX_DELTAS || deltaBytes > Math.max(MIN_COMPACTION_BYTES, baseBytes / 2)) compact();
+        return changes.size();
+    }
+
+    /**
+     * Replaces every checkpoint file with a base snapshot of the given
+     * repository and empties the write-ahead log. Used when the whole state
+     * is replaced. The caller must exclude every writer.
+     *
+     * @param repo the repository holding the new state
+     * @param wal  the write-ahead log of the data directory
+     * @throws LibraryException if the snapshot cannot be written
+     */
+    public synchronized void rebase(LibraryRepository repo, WriteAheadLog wal) throws LibraryException {
+        generation++;
+        SnapshotStore.save(repo, basePath, generation);
+        wal.truncate();
+        deleteDeltasUpTo(generation);
+        baseBytes = size(basePath);
+    }
+
+    /**
+     * Merges the base snapshot and every delta into a new base snapshot,
+     * working on a copy loaded from disk, then deletes the merged deltas.
+     */
+    private void compact() throws LibraryException {
+        try (LibraryRepository merged = storage.get()) {
+            long mergedGeneration = recoverInto(merged);
+            SnapshotStore.save(merged, basePath, mergedGeneration);
+            deleteDeltasUpTo(mergedGeneration);
+        }
+        baseBytes = size(basePath);
+    }
+
+    /** Loads the base snapshot and every later delta, returning the generation reached. */
+    private long recoverInto(LibraryRepository target) throws LibraryException {
+        long reached = 0;
+        if (Files.exists(basePath)) {
+            SnapshotStore.load(basePath, target);
+            reached = SnapshotStore.readGeneration(basePath);
+        }
+        for (Path delta : deltas()) {
+            long deltaGeneration = generationOf(delta);
+            if (deltaGeneration <= reached) continue;
+            SnapshotStore.applyDelta(delta, target);
+            reached = deltaGeneration;
+        }
+        return reached;
+    }
+
+    /** Deletes the deltas included in a base snapshot of the given generation. */
+    private void deleteDeltasUpTo(long baseGeneration) throws LibraryException {
+        for (Path delta : deltas()) {
+            if (generationOf(delta) <= baseGeneration) delete(delta);
+        }
+        deltaCount = 0;
+        deltaBytes = 0;
+        for (Path delta : deltas()) {
+            deltaCount++;
+            deltaBytes += size(delta);
+        }
+    }
+
+    /** Lists the deltas of the data directory in generation order. */
+    private List<Path> deltas() throws LibraryException {
+        List<Path> deltas = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, DELTA_PREFIX + "*")) {
+            for (Path file : files) {
+                if (file.getFileName().toString().substring(DELTA_PREFIX.length()).chars().allMatch(Character::isDigit))
+                    deltas.add(file);
+            }
+        } catch (IOException e) {
+            throw new LibraryException("Could not list checkpoint deltas: " + e.getMessage());
+        }
+        deltas.sort(Comparator.comparingLong(IncrementalCheckpointer::generationOf));
+        return deltas;
+    }
+
+    /** Returns the generation of a delta, from its file name. */
+    private static long generationOf(Path delta) {
+        return Long.parseLong(delta.getFileName().toString().substring(DELTA_PREFIX.length()));
+    }
+
+    /**
+     * Writes a file to a temporary sibling, forces it and moves it into place,
+     * so the file is either absent or complete.
+     */
+    private static void writeAtomically(Path path, byte[] content) throws LibraryException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(content);
+                while (buffer.hasRemaining()) channel.write(buffer);
+                channel.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new LibraryException("Could not write \"" + path + "\": " + e.getMessage());
+        }
+    }
+
+    /** Returns the size of a file. */
+    private static long size(Path path) throws LibraryException {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            throw new LibraryException("Could not read \"" + path + "\": " + e.getMessage());
+        }
+    }
+
+    /** Deletes a file if it exists. */
+    private static void delete(Path path) throws LibraryException {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            throw new LibraryException("Could not delete \"" + path + "\": " + e.getMessage());
+        }
+    }
+}
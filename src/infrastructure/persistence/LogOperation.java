@@ -0,0 +1,132 @@
+package infrastructure.persistence;
+
+/**
+ * Enumeration of the library mutations recorded in the {@link WriteAheadLog}.
+ * Each operation has a stable code stored on disk and the number of string
+ * arguments it carries.
+ * <p>
+ * Operations that may lend copies, directly or to the users of a waiting
+ * list, log the due date of those loans in seconds since the epoch, so that
+ * once replayed the loans fall due at the same date; adding a user logs its
+ * creation date, and reserving a copy the expiry date of the reservation,
+ * the same way. A batch logs the time it ran at instead, from
+ * which the dates of all its operations follow, and its operations are
+ * logged without theirs.
+ */
+public enum LogOperation {
+
+    /** Add a user: name, creation date. */
+    ADD_USER(1, 2, true),
+
+    /** Remove a user, lending the copies held for the user to the users waiting: name, due date. */
+    REMOVE_USER(2, 2, true),
+
+    /** Add a book copy: title, format, due date. */
+    ADD_BOOK(3, 3, true),
+
+    /** Remove a book copy: title, format. */
+    REMOVE_BOOK(4, 2),
+
+    /** Lend a book: user name, title, format, due date. */
+    LEND_BOOK(5, 4, true),
+
+    /** Return a book: user name, title, format, due date. */
+    RETURN_BOOK(6, 4, true),
+
+    /** Reserve a physical copy for nobody in particular: title, expiry date. */
+    RESERVE(7, 2, true),
+
+    /** Vacate a reserved physical copy: title, due date. */
+    VACATE(8, 2, true),
+
+    /**
+     * Batch of operations applied all or nothing: the time it ran at, then
+     * for each operation its code followed by its arguments. Logged as a
+     * single record, so that a crash never leaves part of a batch in the log.
+     */
+    BATCH(9, -1),
+
+    /** Add physical copies and lend them to the users waiting: title, number of copies, due date. */
+    ADD_COPIES(10, 3, true),
+
+    /** Set the role of a user: name, role. */
+    SET_ROLE(11, 2),
+
+    /** Hold a physical copy for a user: name, title, expiry date in seconds since the epoch. */
+    PLACE_HOLD(12, 3),
+
+    /** Cancel the hold of a user: name, title, due date. */
+    CANCEL_HOLD(13, 3, true),
+
+    /** Release expired holds on a title: title, due date, then the names of the users. */
+    EXPIRE_HOLDS(14, -1),
+
+    /** Lend a book to a cohort of users: title, format, due date, then the names of the users. */
+    LEND_TO_USERS(15, -1);
+
+    /** Lookup table from on-disk codes to operations. */
+    private static final LogOperation[] BY_CODE = new LogOperation[16];
+
+    // Static block to populate the lookup table
+    static {
+        for (LogOperation op : values()) BY_CODE[op.code] = op;
+    }
+
+    /** Code identifying the operation on disk. */
+    private final int code;
+
+    /** Number of string arguments of the operation, or -1 if it varies. */
+    private final int arity;
+
+    /** Whether the last argument is a date: the due date of the loans the operation makes, the creation date of a user or the expiry date of a reservation. */
+    private final boolean dated;
+
+    /**
+     * Constructs a LogOperation with its on-disk code and argument count.
+     *
+     * @param code  the code identifying the operation on disk
+     * @param arity the number of string arguments, or -1 if it varies
+     */
+    LogOperation(int code, int arity) {
+        this(code, arity, false);
+    }
+
+    /**
+     * Constructs a LogOperation with its on-disk code, argument count and
+     * whether it logs a due date.
+     *
+     * @param code  the code identifying the operation on disk
+     * @param arity the number of string arguments, or -1 if it varies
+     * @param dated true if the last argument is a date, logged outside batches only
+     */
+    LogOperation(int code, int arity, boolean dated) {
+        this.code = code;
+        this.arity = arity;
+        this.dated = dated;
+    }
+
+    /** @return the code identifying the operation on disk */
+    public int getCode() { return code; }
+
+    /** @return the number of string arguments of the operation, or -1 if it varies */
+    public int getArity() { return arity; }
+
+    /** @return true if the number of arguments varies and is stored with each record */
+    public boolean hasVariableArity() { return arity < 0; }
+
+    /** @return true if the last argument is a date, logged outside batches only */
+    public boolean isDated() { return dated; }
+
+    /** @return the number of string arguments of the operation within a batch, which logs no date */
+    public int getBatchArity() { return dated ? arity - 1 : arity; }
+
+    /**
+     * Returns the operation with the given on-disk code.
+     *
+     * @param code the code read from disk
+     * @return the matching operation, or null if the code is unknown
+     */
+    public static LogOperation fromCode(int code) {
+        return (code >= 0 && code < BY_CODE.length) ? BY_CODE[code] : null;
+    }
+}
@@ -0,0 +1,172 @@
+package infrastructure.persistence;
+
+import common.LibraryException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader of line-delimited or CSV record files, used to import
+ * data in bulk.
+ * <p>
+ * The file is read through a {@link FileChannel} in large chunks, and each
+ * line is split on commas into fields. Fields may be enclosed in double
+ * quotes to contain commas, a doubled quote standing for a literal one.
+ * Surrounding spaces are trimmed, and blank lines and lines starting with
+ * {@code #} are skipped. A file with a single field per line is therefore
+ * read as plain line-delimited records.
+ */
+public class RecordFileReader implements AutoCloseable {
+
+    /** Size of the read buffer. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Path of the file, used in error messages. */
+    private final Path path;
+
+    /** Channel of the file. */
+    private final FileChannel channel;
+
+    /** Buffer holding data read from the channel but not yet split into lines. */
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+    /** Bytes of the line being assembled, which may span several buffer fills. */
+    private byte[] line = new byte[256];
+
+    /** Whether the channel has been read to its end. */
+    private boolean eof = false;
+
+    /** Number of the last line read, starting at 1. */
+    private int lineNumber = 0;
+
+    /**
+     * Opens the given file for reading.
+     *
+     * @param path the file to read
+     * @throws LibraryException if the file cannot be opened
+     */
+    public RecordFileReader(Path path) throws LibraryException {
+        this.path = path;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.READ);
+        } catch (IOException e) {
+            throw new LibraryException("Could not open \"" + path + "\": " + e.getMessage());
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Returns the size of the file, used to estimate its number of records.
+     *
+     * @return the size of the file in bytes
+     * @throws LibraryException if the file cannot be read
+     */
+    public long size() throws LibraryException {
+        try {
+            return channel.size();
+        } catch (IOException e) {
+            throw new LibraryException("Could not read \"" + path + "\": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the next record of the file.
+     *
+     * @return the fields of the record, or null at the end of the file
+     * @throws LibraryException if the file cannot be read
+     */
+    public String[] next() throws LibraryException {
+        try {
+            while (true) {
+                int length = readLine();
+                if (length < 0) return null;
+                String text = new String(line, 0, length, StandardCharsets.UTF_8).trim();
+                if (text.isEmpty() || text.charAt(0) == '#') continue;
+                return split(text);
+            }
+        } catch (IOException e) {
+            throw new LibraryException("Could not read \"" + path + "\": " + e.getMessage());
+        }
+    }
+
+    /** @return the number of the last line read, starting at 1 */
+    public int getLineNumber() { return lineNumber; }
+
+    /** Closes the file. */
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with a file that cannot be closed
+        }
+    }
+
+    /**
+     * Copies the next line into {@link #line}, without its terminator.
+     *
+     * @return the length of the line, or -1 at the end of the file
+     */
+    private int readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (!buffer.hasRemaining()) {
+                if (eof || !fill()) {
+                    if (length == 0) return -1;
+                    break;
+                }
+            }
+            byte b = buffer.get();
+            if (b == '\n') break;
+            if (length == line.length) {
+                byte[] larger = new byte[line.length * 2];
+                System.arraycopy(line, 0, larger, 0, length);
+                line = larger;
+            }
+            line[length++] = b;
+        }
+        lineNumber++;
+        if (length > 0 && line[length - 1] == '\r') length--;
+        return length;
+    }
+
+    /** Reads more data from the channel, returning false at end of file. */
+    private boolean fill() throws IOException {
+        buffer.clear();
+        int read = channel.read(buffer);
+        buffer.flip();
+        if (read <= 0) eof = true;
+        return read > 0;
+    }
+
+    /** Splits a line into its comma-separated, optionally quoted fields. */
+    private static String[] split(String text) {
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0) return new String[] { text };
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (quoted) {
+                if (c != '"') field.append(c);
+                else if (i + 1 < text.length() && text.charAt(i + 1) == '"') field.append(text.charAt(++i));
+                else quoted = false;
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString().trim());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString().trim());
+        return fields.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,479 @@
+package infrastructure.persistence;
+
+import common.LibraryException;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.queue.LibraryQueue;
+import common.dataStructures.queue.PriorityLibraryQueue;
+import domain.book.Book;
+import domain.book.BookFormat;
+import domain.book.DBook;
+import domain.book.PBook;
+import domain.inventory.BookInventory;
+import domain.inventory.BookInventoryImpl;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
+import domain.user.User;
+import domain.user.UserRole;
+import infrastructure.repository.LibraryRepository;
+import infrastructure.repository.impl.DirtyTrackingLibraryRepository;
+import infrastructure.repository.impl.HeapLibraryRepository;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Saves and loads the state of a {@link LibraryRepository} as a compact
+ * binary snapshot.
+ * <p>
+ * The snapshot starts with a header holding the sequence number of the last
+ * write-ahead log operation it reflects and the number of records of each
+ * section, followed by the sections themselves:
+ * <ol>
+ *   <li>users: name, creation date and role</li>
+ *   <li>inventory: title, the formats present, the physical copy counters
+ *       (total, available and reserved copies) and the holds on the title,
+ *       each with its user and expiry</li>
+ *   <li>loans: for each user with loans, the titles and formats on loan and
+ *       their due dates</li>
+ *   <li>waiting lists: for each title, the names of the queued users in order</li>
+ * </ol>
+ * Loading reads the file sequentially through a {@link FileChannel} and
+ * pre-sizes the repository maps from the header counts. The event history
+ * is not part of the snapshot.
+ * <p>
+ * Incremental checkpoints are stored as delta files using the same record
+ * encoding, restricted to the records that changed. Each changed key is
+ * written with its current state, or as removed: a user or inventory that
+ * no longer exists, a user without loans, or an empty waiting list. Base
+ * snapshots and deltas carry a generation number so that recovery applies
+ * only the deltas written after the base.
+ */
+public class SnapshotStore {
+
+    /** Magic number identifying a library snapshot file ("LIBS"). */
+    private static final int MAGIC = 0x4C494253;
+
+    /** Version of the snapshot format. */
+    private static final int VERSION = 1;
+
+    /** Magic number identifying a delta file ("LIBD"). */
+    private static final int DELTA_MAGIC = 0x4C494244;
+
+    /** Version of the delta format. */
+    private static final int DELTA_VERSION = 1;
+
+    /** Marker preceding a record whose key still exists in a delta. */
+    private static final int PRESENT = 1;
+
+    /** Marker preceding the key of a removed record in a delta. */
+    private static final int REMOVED = 0;
+
+    /** Flag set in an inventory record when a physical book exists. */
+    static final int HAS_PBOOK = 1;
+
+    /** Flag set in an inventory record when a digital book exists. */
+    static final int HAS_DBOOK = 2;
+
+    /** Utility class, not meant to be instantiated. */
+    private SnapshotStore() {}
+
+    /**
+     * Writes a snapshot of the repository to the given file. The snapshot is
+     * written to a temporary file first and then moved into place, so an
+     * interrupted save never corrupts a previous snapshot.
+     *
+     * @param repo the repository to save
+     * @param path the snapshot file
+     * @throws LibraryException if the snapshot cannot be written
+     */
+    public static void save(LibraryRepository repo, Path path) throws LibraryException {
+        save(repo, path, 0);
+    }
+
+    /**
+     * Writes a snapshot of the repository to the given file as a base for
+     * incremental checkpoints, including the deltas up to the given generation.
+     *
+     * @param repo       the repository to save
+     * @param path       the snapshot file
+     * @param generation generation of the last delta reflected by the repository
+     * @throws LibraryException if the snapshot cannot be written
+     */
+    public static void save(LibraryRepository repo, Path path, long generation) throws LibraryException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ChannelWriter out = new ChannelWriter(channel);
+            int[] borrowers = {0};
+            repo.forEachLoansByUser((user, loans) -> borrowers[0]++);
+            int[] queues = {0};
+            repo.forEachWaitingList((title, queue) -> { if (!queue.isEmpty()) queues[0]++; });
+
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(repo.getSequence());
+            out.putLong(generation);
+            out.putInt(repo.userCount());
+            out.putInt(repo.titleCount());
+            out.putInt(borrowers[0]);
+            out.putInt(queues[0]);
+
+            // The repository iterates through lambdas, so write failures are tunnelled out unchecked
+            repo.forEachUser(user -> unchecked(() -> writeUser(out, user)));
+            repo.forEachInventory(bookInventory -> unchecked(() -> writeInventory(out, bookInventory, repo)));
+            repo.forEachLoansByUser((user, loans) -> unchecked(() -> writeLoans(out, user, loans)));
+            repo.forEachWaitingList((title, queue) -> {
+                if (!queue.isEmpty()) unchecked(() -> writeQueue(out, title, queue));
+            });
+            out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            throw new LibraryException("Could not save snapshot \"" + path + "\": " + e.getMessage());
+        } catch (UncheckedIOException e) {
+            throw new LibraryException("Could not save snapshot \"" + path + "\": " + e.getCause().getMessage());
+        }
+        try {
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new LibraryException("Could not save snapshot \"" + path + "\": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Loads a snapshot into a new in-memory repository pre-sized from the snapshot header.
+     *
+     * @param path the snapshot file
+     * @return a repository holding the state stored in the snapshot
+     * @throws LibraryException if the file cannot be read or is not a valid snapshot
+     */
+    public static LibraryRepository load(Path path) throws LibraryException {
+        return load(path, new HeapLibraryRepository());
+    }
+
+    /**
+     * Loads a snapshot into the given empty repository, growing it first to
+     * the sizes found in the snapshot header.
+     *
+     * @param path   the snapshot file
+     * @param target the empty repository to fill
+     * @return the target repository, holding the state stored in the snapshot
+     * @throws LibraryException if the file cannot be read or is not a valid snapshot
+     */
+    public static LibraryRepository load(Path path, LibraryRepository target) throws LibraryException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ChannelReader in = new ChannelReader(channel);
+            if (in.getInt() != MAGIC) throw new LibraryException("\"" + path + "\" is not a library snapshot.");
+            int version = in.getInt();
+            if (version != VERSION) throw new LibraryException("Unsupported snapshot version: " + version);
+            long sequence = in.getLong();
+            in.getLong();
+            int users = in.getInt();
+            int titles = in.getInt();
+            int borrowers = in.getInt();
+            int queues = in.getInt();
+
+            LibraryRepository repo = target;
+            repo.ensureCapacity(titles, users);
+            repo.setSequence(sequence);
+            for (int i = 0; i < users; i++) readUser(in, repo);
+            for (int i = 0; i < titles; i++) readInventory(in, repo);
+            for (int i = 0; i < borrowers; i++) readLoans(in, repo);
+            for (int i = 0; i < queues; i++) readQueue(in, repo);
+            return repo;
+        } catch (IOException e) {
+            throw new LibraryException("Could not load snapshot \"" + path + "\": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the generation of the deltas reflected by a snapshot, from its header.
+     *
+     * @param path the snapshot file
+     * @return the generation of the snapshot, 0 for snapshots not written as a checkpoint base
+     * @throws LibraryException if the file cannot be read or is not a valid snapshot
+     */
+    public static long readGeneration(Path path) throws LibraryException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ChannelReader in = new ChannelReader(channel);
+            if (in.getInt() != MAGIC) throw new LibraryException("\"" + path + "\" is not a library snapshot.");
+            int version = in.getInt();
+            if (version != VERSION) throw new LibraryException("Unsupported snapshot version: " + version);
+            in.getLong();
+            return in.getLong();
+        } catch (IOException e) {
+            throw new LibraryException("Could not read snapshot \"" + path + "\": " + e.getMessage());
+        }
+    }
+
+    // ----------------------
+    // Deltas
+    // ----------------------
+
+    /**
+     * Encodes the current state of the changed records of a repository as a
+     * delta. The repository must not be modified while it is being encoded.
+     *
+     * @param repo       the repository holding the current state
+     * @param changes    the keys of the records that changed
+     * @param generation the generation of the delta
+     * @return the encoded delta
+     * @throws LibraryException if a record cannot be encoded
+     */
+    public static byte[] encodeDelta(LibraryRepository repo, DirtyTrackingLibraryRepository.Changes changes,
+                                     long generation) throws LibraryException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            ChannelWriter out = new ChannelWriter(Channels.newChannel(bytes));
+            out.putInt(DELTA_MAGIC);
+            out.putInt(DELTA_VERSION);
+            out.putLong(generation);
+            out.putLong(repo.getSequence());
+            out.putInt(changes.getUsers().size());
+            out.putInt(changes.getTitles().size());
+            out.putInt(changes.getLoans().size());
+            out.putInt(changes.getQueues().size());
+
+            for (String name : changes.getUsers()) {
+                User user = repo.findUser(name);
+                if (user != null) {
+                    out.putByte(PRESENT);
+                    writeUser(out, user);
+                } else {
+                    out.putByte(REMOVED);
+                    out.putString(name);
+                }
+            }
+            for (String title : changes.getTitles()) {
+                BookInventory bookInventory = repo.findInventory(title);
+                if (bookInventory != null) {
+                    out.putByte(PRESENT);
+                    writeInventory(out, bookInventory, repo);
+                } else {
+                    out.putByte(REMOVED);
+                    out.putString(title);
+                }
+            }
+            for (String name : changes.getLoans()) {
+                User user = repo.findUser(name);
+                LibraryListWithPI<LoanRecord> loans = (user != null) ? repo.findLoansByUser(user) : null;
+                if (loans != null) {
+                    writeLoans(out, user, loans);
+                } else {
+                    out.putString(name);
+                    out.putInt(0);
+                }
+            }
+            for (String title : changes.getQueues()) {
+                PriorityLibraryQueue<User> queue = repo.findWaitingList(title);
+                if (queue != null && !queue.isEmpty()) {
+                    writeQueue(out, title, queue);
+                } else {
+                    out.putString(title);
+                    out.putInt(0);
+                }
+            }
+            out.flush();
+        } catch (IOException e) {
+            throw new LibraryException("Could not encode checkpoint delta: " + e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Applies a delta file to a repository holding the state it was written on top of.
+     *
+     * @param path the delta file
+     * @param repo the repository to update
+     * @throws LibraryException if the file cannot be read or is not a valid delta
+     */
+    public static void applyDelta(Path path, LibraryRepository repo) throws LibraryException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ChannelReader in = new ChannelReader(channel);
+            if (in.getInt() != DELTA_MAGIC) throw new LibraryException("\"" + path + "\" is not a checkpoint delta.");
+            int version = in.getInt();
+            if (version != DELTA_VERSION) throw new LibraryException("Unsupported delta version: " + version);
+            in.getLong();
+            long sequence = in.getLong();
+            int users = in.getInt();
+            int titles = in.getInt();
+            int borrowers = in.getInt();
+            int queues = in.getInt();
+
+            for (int i = 0; i < users; i++) {
+                if (in.getByte() == PRESENT) {
+                    String name = in.getString();
+                    String creationDate = in.getString();
+                    UserRole role = UserRole.valueOf(in.getString());
+                    // Keep the existing instance: loans and waiting lists refer to it
+                    User existing = repo.findUser(name);
+                    if (existing == null) repo.saveUser(new User(name, creationDate, role));
+                    else existing.setRole(role);
+                } else {
+                    // The loans of a removed user end with it
+                    User removed = repo.findUser(in.getString());
+                    if (removed != null) {
+                        repo.removeLoansByUser(removed);
+                        repo.removeUser(removed.getName());
+                    }
+                }
+            }
+            for (int i = 0; i < titles; i++) {
+                if (in.getByte() == PRESENT) readInventory(in, repo);
+                else in.getString(); // The repository has no way to drop an inventory, so none is ever removed
+            }
+            for (int i = 0; i < borrowers; i++) {
+                User user = repo.findUser(in.getString());
+                if (user != null) repo.removeLoansByUser(user);
+                int count = in.getInt();
+                for (int j = 0; j < count; j++) {
+                    String title = in.getString();
+                    int format = in.getByte();
+                    long dueDate = in.getLong();
+                    if (user == null) continue;
+                    BookInventory bookInventory = repo.findInventory(title);
+                    repo.addLoan(user, format == HAS_PBOOK ? bookInventory.getPBook() : bookInventory.getDBook(), dueDate);
+                }
+            }
+            for (int i = 0; i < queues; i++) {
+                String title = in.getString();
+                int size = in.getInt();
+                repo.removeWaitingList(title);
+                if (size == 0) continue;
+                LibraryQueue<User> queue = repo.findOrCreateWaitingList(title);
+                for (int j = 0; j < size; j++) addWaiting(queue, repo, in.getString());
+            }
+            repo.setSequence(sequence);
+        } catch (IOException e) {
+            throw new LibraryException("Could not apply delta \"" + path + "\": " + e.getMessage());
+        }
+    }
+
+    // ----------------------
+    // Record encoding
+    // ----------------------
+
+    /** Writes a user record. */
+    static void writeUser(ChannelWriter out, User user) throws IOException {
+        out.putString(user.getName());
+        out.putString(user.getCreationDate());
+        out.putString(user.getRole().name());
+    }
+
+    /** Reads a user record and stores the user in the repository. */
+    static void readUser(ChannelReader in, LibraryRepository repo) throws IOException {
+        String name = in.getString();
+        String creationDate = in.getString();
+        UserRole role = UserRole.valueOf(in.getString());
+        repo.saveUser(new User(name, creationDate, role));
+    }
+
+    /** Writes an inventory record, with the holds on its title. */
+    static void writeInventory(ChannelWriter out, BookInventory bookInventory, LibraryRepository repo) throws IOException {
+        int flags = (bookInventory.hasPBook() ? HAS_PBOOK : 0) | (bookInventory.hasDBook() ? HAS_DBOOK : 0);
+        out.putString(bookInventory.getTitle());
+        out.putByte(flags);
+        if (bookInventory.hasPBook()) {
+            PBook pBook = bookInventory.getPBook();
+            out.putInt(pBook.getTotalCopies());
+            out.putInt(pBook.getAvailableCopies() + pBook.getReservedCopies());
+            out.putInt(pBook.getReservedCopies());
+        }
+        LibraryListWithPI<HoldRecord> holds = repo.findHolds(bookInventory.getTitle());
+        out.putInt(holds == null ? 0 : holds.size());
+        if (holds == null) return;
+        for (HoldRecord hold : holds) {
+            out.putString(hold.getName());
+            out.putLong(hold.getExpiry());
+        }
+    }
+
+    /**
+     * Reads an inventory record and stores it in the repository, replacing
+     * the holds on its title.
+     */
+    static void readInventory(ChannelReader in, LibraryRepository repo) throws IOException {
+        String title = in.getString();
+        int flags = in.getByte();
+        PBook pBook = null;
+        if ((flags & HAS_PBOOK) != 0) {
+            int total = in.getInt();
+            int available = in.getInt();
+            int reserved = in.getInt();
+            pBook = new PBook(title, total, available, reserved);
+        }
+        DBook dBook = (flags & HAS_DBOOK) != 0 ? new DBook(title) : null;
+        repo.saveInventory(new BookInventoryImpl(title, pBook, dBook));
+        repo.removeHolds(title);
+        int holds = in.getInt();
+        for (int i = 0; i < holds; i++) repo.addHold(in.getString(), title, in.getLong());
+    }
+
+    /** Writes the loans of a user. */
+    static void writeLoans(ChannelWriter out, User user, LibraryListWithPI<LoanRecord> loans) throws IOException {
+        out.putString(user.getName());
+        out.putInt(loans.size());
+        for (LoanRecord loan : loans) {
+            Book book = loan.getBook();
+            out.putString(book.getTitle());
+            out.putByte(book.getFormat().equals(BookFormat.PHYSICAL.toString()) ? HAS_PBOOK : HAS_DBOOK);
+            out.putLong(loan.getDueDate());
+        }
+    }
+
+    /**
+     * Reads the loans of a user and records them in the repository.
+     * Users and inventory must already be loaded.
+     */
+    static void readLoans(ChannelReader in, LibraryRepository repo) throws IOException {
+        User user = repo.findUser(in.getString());
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            BookInventory bookInventory = repo.findInventory(in.getString());
+            Book book = in.getByte() == HAS_PBOOK ? bookInventory.getPBook() : bookInventory.getDBook();
+            repo.addLoan(user, book, in.getLong());
+        }
+    }
+
+    /** Writes the waiting list of a title. */
+    static void writeQueue(ChannelWriter out, String title, PriorityLibraryQueue<User> queue) throws IOException {
+        out.putString(title);
+        out.putInt(queue.size());
+        for (User user : queue) out.putString(user.getName());
+    }
+
+    /** Reads the waiting list of a title and stores it in the repository. Users must already be loaded. */
+    static void readQueue(ChannelReader in, LibraryRepository repo) throws IOException {
+        String title = in.getString();
+        int size = in.getInt();
+        LibraryQueue<User> queue = repo.findOrCreateWaitingList(title);
+        for (int i = 0; i < size; i++) addWaiting(queue, repo, in.getString());
+    }
+
+    /** Queues a user by name, skipping users removed while they were waiting. */
+    private static void addWaiting(LibraryQueue<User> queue, LibraryRepository repo, String name) {
+        User user = repo.findUser(name);
+        if (user != null) queue.add(user);
+    }
+
+    /** An action on the snapshot channel that may fail with an I/O error. */
+    @FunctionalInterface
+    private interface IOAction {
+        void run() throws IOException;
+    }
+
+    /** Runs the action, rethrowing its I/O error unchecked so it can cross a lambda. */
+    private static void unchecked(IOAction action) {
+        try {
+            action.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
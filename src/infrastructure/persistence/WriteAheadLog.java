@@ -0,0 +1,470 @@
+package infrastructure.persistence;
+
+import common.LibraryException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of library mutations with group commit.
+ * <p>
+ * Each record holds a sequence number, a {@link LogOperation} and its string
+ * arguments, framed by its length and a CRC32 checksum:
+ * <pre>
+ *   int length | int crc | long sequence | byte operation | [short arity] | (short length, UTF-8 bytes) * arity
+ * </pre>
+ * The arity is only stored for operations whose number of arguments varies,
+ * such as {@link LogOperation#BATCH}. Both the arity and the lengths are
+ * unsigned shorts: operations with more than {@link #MAX_ARGUMENTS}
+ * arguments, or an argument longer than {@link #MAX_ARGUMENT_LENGTH} bytes,
+ * are rejected rather than logged.
+ * Operations are logged once they have been applied in memory and before the
+ * caller is acknowledged. {@link #append} hands the record to a background
+ * flusher and blocks until it is durable. The flusher writes every record
+ * accumulated since its previous pass with a single write and a single
+ * {@link FileChannel#force(boolean)}, performing at most one force per group
+ * commit interval, so concurrent callers share the cost of each fsync.
+ * <p>
+ * On startup the log is replayed with {@link #replay}. A record cut short by a
+ * crash, or failing its checksum, marks the end of the log: it and anything
+ * after it are discarded.
+ * <p>
+ * A checkpoint that captures the state without stopping writers for its I/O
+ * calls {@link #rotate()} while the state is stable: the log is set aside as
+ * a segment named after its last sequence number and a new log is started.
+ * Once the checkpoint is durable, the segments it covers are deleted with
+ * {@link #discardRotated()}. Segments left by an interrupted checkpoint are
+ * replayed before the log.
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    /** Default time between two forces of the log, in milliseconds. */
+    public static final long DEFAULT_GROUP_COMMIT_INTERVAL_MS = 2;
+
+    /** Maximum number of arguments of a logged operation. */
+    public static final int MAX_ARGUMENTS = 0xFFFF;
+
+    /** Maximum length of a logged argument, in UTF-8 bytes. */
+    public static final int MAX_ARGUMENT_LENGTH = 0xFFFF;
+
+    /** Size of the record frame preceding the body: length and checksum. */
+    private static final int FRAME_SIZE = Integer.BYTES * 2;
+
+    /** Path of the log file. */
+    private final Path path;
+
+    /** Channel of the log file, replaced on rotation. Guarded by the lock. */
+    private FileChannel channel;
+
+    /** Minimum time between two forces of the log, in milliseconds. */
+    private final long groupCommitIntervalMs;
+
+    /** Monitor guarding the pending buffer and sequence counters. */
+    private final Object lock = new Object();
+
+    /** Records appended but not yet handed to the flusher. */
+    private ByteBuffer pending = ByteBuffer.allocate(1 << 16);
+
+    /** Buffer being written by the flusher, swapped with {@link #pending}. */
+    private ByteBuffer writing = ByteBuffer.allocate(1 << 16);
+
+    /** Sequence number assigned to the last appended record. */
+    private long lastSequence;
+
+    /** Sequence number of the last record known to be on disk. */
+    private long durableSequence;
+
+    /** Failure of the flusher, reported to every later append. */
+    private IOException failure;
+
+    /** Whether the log has been closed. */
+    private boolean closed;
+
+    /** Background thread performing the group commits. */
+    private final Thread flusher;
+
+    /**
+     * Opens the log at the given path, creating it if needed.
+     * The log must be replayed with {@link #replay} before appending.
+     *
+     * @param path                  the log file
+     * @param groupCommitIntervalMs minimum time between two forces, in milliseconds
+     * @throws LibraryException if the log cannot be opened
+     */
+    public WriteAheadLog(Path path, long groupCommitIntervalMs) throws LibraryException {
+        this.path = path;
+        try {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new LibraryException("Could not open write-ahead log \"" + path + "\": " + e.getMessage());
+        }
+        this.groupCommitIntervalMs = groupCommitIntervalMs;
+        this.flusher = new Thread(this::flushLoop, "wal-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * Receives the operations read from the log during replay.
+     */
+    @FunctionalInterface
+    public interface Replayer {
+
+        /**
+         * Applies a logged operation.
+         *
+         * @param sequence  the sequence number of the operation
+         * @param operation the logged operation
+         * @param args      the arguments of the operation
+         * @throws LibraryException if the operation cannot be applied
+         */
+        void apply(long sequence, LogOperation operation, String[] args) throws LibraryException;
+    }
+
+    /**
+     * Reads every valid record of the rotated segments and then of the log in
+     * order and hands it to the replayer, then positions the log for
+     * appending after the last valid record. Sequence numbers of new records
+     * continue after both the last logged one and {@code baseSequence}.
+     *
+     * @param baseSequence sequence number already reflected by the loaded state
+     * @param replayer     receiver of the logged operations
+     * @return the number of records read
+     * @throws LibraryException if the log cannot be read
+     */
+    public int replay(long baseSequence, Replayer replayer) throws LibraryException {
+        long[] last = {baseSequence};
+        int records = 0;
+        for (Path segment : rotatedSegments()) {
+            try (FileChannel segmentChannel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                records += replay(segmentChannel, replayer, last, false);
+            } catch (IOException e) {
+                throw new LibraryException("Could not replay write-ahead log segment \"" + segment + "\": " + e.getMessage());
+            }
+        }
+        try {
+            records += replay(channel, replayer, last, true);
+        } catch (IOException e) {
+            throw new LibraryException("Could not replay write-ahead log: " + e.getMessage());
+        }
+        synchronized (lock) {
+            lastSequence = last[0];
+            durableSequence = last[0];
+        }
+        return records;
+    }
+
+    /**
+     * Replays the valid records of one log file.
+     *
+     * @param channel  the log file
+     * @param replayer receiver of the logged operations
+     * @param last     holder of the highest sequence number seen, updated in place
+     * @param active   whether this is the log being appended to, which is cut after its last valid record
+     * @return the number of records read
+     */
+    private static int replay(FileChannel channel, Replayer replayer, long[] last, boolean active)
+            throws IOException, LibraryException {
+        int records = 0;
+        channel.position(0);
+        ChannelReader in = new ChannelReader(channel);
+        long validEnd = 0;
+        byte[] body = new byte[256];
+        CRC32 crc = new CRC32();
+        while (!in.isAtEnd()) {
+            int length;
+            int checksum;
+            try {
+                length = in.getInt();
+                checksum = in.getInt();
+                if (length < Long.BYTES + 1 || length > (1 << 24)) break;
+                if (body.length < length) body = new byte[length];
+                in.getBytes(body, length);
+            } catch (EOFException e) {
+                break;
+            }
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) break;
+
+            ByteBuffer record = ByteBuffer.wrap(body, 0, length);
+            long sequence = record.getLong();
+            LogOperation operation = LogOperation.fromCode(record.get());
+            if (operation == null) break;
+            int arity = operation.hasVariableArity() ? record.getShort() & 0xFFFF : operation.getArity();
+            String[] args = new String[arity];
+            for (int i = 0; i < args.length; i++) {
+                int n = record.getShort() & 0xFFFF;
+                args[i] = new String(body, record.position(), n, StandardCharsets.UTF_8);
+                record.position(record.position() + n);
+            }
+            validEnd += FRAME_SIZE + length;
+            last[0] = Math.max(last[0], sequence);
+            replayer.apply(sequence, operation, args);
+            records++;
+        }
+        if (active) {
+            channel.truncate(validEnd);
+            channel.position(validEnd);
+        }
+        return records;
+    }
+
+    /**
+     * Appends an operation to the log and waits until it is durable.
+     *
+     * @param operation the operation to log
+     * @param args      the arguments of the operation
+     * @return the sequence number assigned to the operation
+     * @throws LibraryException if the log cannot be written, or the operation
+     *         has too many arguments or too long an argument to be logged
+     */
+    public long append(LogOperation operation, String... args) throws LibraryException {
+        if (args.length > MAX_ARGUMENTS)
+            throw new LibraryException("Too many arguments to log " + operation + ": " + args.length + ", at most " + MAX_ARGUMENTS + ".");
+        byte[][] encoded = new byte[args.length][];
+        int length = Long.BYTES + 1 + (operation.hasVariableArity() ? Short.BYTES : 0);
+        for (int i = 0; i < args.length; i++) {
+            encoded[i] = args[i].getBytes(StandardCharsets.UTF_8);
+            if (encoded[i].length > MAX_ARGUMENT_LENGTH)
+                throw new LibraryException("Argument too long to log " + operation + ": " + encoded[i].length
+                        + " bytes, at most " + MAX_ARGUMENT_LENGTH + ".");
+            length += Short.BYTES + encoded[i].length;
+        }
+        // Only the sequence number and the checksum covering it are written under the lock
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.position(Long.BYTES);
+        body.put((byte) operation.getCode());
+        if (operation.hasVariableArity()) body.putShort((short) args.length);
+        for (byte[] arg : encoded) body.putShort((short) arg.length).put(arg);
+        long sequence;
+        synchronized (lock) {
+            checkUsable();
+            sequence = ++lastSequence;
+            body.putLong(0, sequence);
+            CRC32 crc = new CRC32();
+            crc.update(body.array(), 0, length);
+
+            if (pending.remaining() < FRAME_SIZE + length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2, pending.position() + FRAME_SIZE + length));
+                pending.flip();
+                larger.put(pending);
+                pending = larger;
+            }
+            pending.putInt(length).putInt((int) crc.getValue()).put(body.array(), 0, length);
+            lock.notifyAll();
+
+            while (durableSequence < sequence) {
+                checkUsable();
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LibraryException("Interrupted while waiting for the write-ahead log.");
+                }
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Discards every record of the log and of its rotated segments, once all
+     * appended records are durable. Used after a checkpoint has saved a
+     * snapshot reflecting them.
+     *
+     * @throws LibraryException if the log cannot be truncated
+     */
+    public void truncate() throws LibraryException {
+        synchronized (lock) {
+            awaitDurable();
+            try {
+                channel.truncate(0);
+                channel.force(true);
+            } catch (IOException e) {
+                throw new LibraryException("Could not truncate write-ahead log: " + e.getMessage());
+            }
+        }
+        discardRotated();
+    }
+
+    /**
+     * Sets the current log aside as a segment, once all appended records are
+     * durable, and starts a new empty log. Does nothing if the log is empty.
+     * The caller must ensure no record is appended concurrently, so that the
+     * segment ends exactly at the state it is capturing.
+     *
+     * @throws LibraryException if the log cannot be rotated
+     */
+    public void rotate() throws LibraryException {
+        synchronized (lock) {
+            awaitDurable();
+            try {
+                if (channel.size() == 0) return;
+                channel.close();
+                Files.move(path, path.resolveSibling(path.getFileName() + "." + lastSequence),
+                        StandardCopyOption.ATOMIC_MOVE);
+                channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                        StandardOpenOption.READ, StandardOpenOption.WRITE);
+            } catch (IOException e) {
+                failure = e;
+                lock.notifyAll();
+                throw new LibraryException("Could not rotate write-ahead log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Deletes the segments set aside by {@link #rotate()}. Must only be called
+     * once a checkpoint reflecting all their records is durable.
+     *
+     * @throws LibraryException if a segment cannot be deleted
+     */
+    public void discardRotated() throws LibraryException {
+        for (Path segment : rotatedSegments()) {
+            try {
+                Files.deleteIfExists(segment);
+            } catch (IOException e) {
+                throw new LibraryException("Could not delete write-ahead log segment \"" + segment + "\": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Lists the segments set aside by {@link #rotate()}, oldest first.
+     *
+     * @return the paths of the rotated segments
+     * @throws LibraryException if the directory of the log cannot be listed
+     */
+    private List<Path> rotatedSegments() throws LibraryException {
+        String prefix = path.getFileName() + ".";
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(path.toAbsolutePath().getParent(), prefix + "*")) {
+            for (Path file : files) {
+                if (file.getFileName().toString().substring(prefix.length()).chars().allMatch(Character::isDigit))
+                    segments.add(file);
+            }
+        } catch (IOException e) {
+            throw new LibraryException("Could not list write-ahead log segments: " + e.getMessage());
+        }
+        segments.sort(Comparator.comparingLong(segment -> Long.parseLong(segment.getFileName().toString().substring(prefix.length()))));
+        return segments;
+    }
+
+    /**
+     * Returns the sequence number of the last appended operation.
+     *
+     * @return the last sequence number
+     */
+    public long getLastSequence() {
+        synchronized (lock) {
+            return lastSequence;
+        }
+    }
+
+    /**
+     * Stops the flusher once pending records are durable and closes the log file.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            flusher.join();
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // Nothing left to do with a log that cannot be closed
+        }
+    }
+
+    /** Waits until every appended record is durable. Must hold the lock. */
+    private void awaitDurable() throws LibraryException {
+        while (durableSequence < lastSequence) {
+            checkUsable();
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LibraryException("Interrupted while waiting for the write-ahead log.");
+            }
+        }
+        checkUsable();
+    }
+
+    /** Throws if the log can no longer accept or acknowledge records. Must hold the lock. */
+    private void checkUsable() throws LibraryException {
+        if (failure != null) throw new LibraryException("Write-ahead log failed: " + failure.getMessage());
+        if (closed) throw new LibraryException("Write-ahead log is closed.");
+    }
+
+    /**
+     * Body of the flusher thread: waits for pending records, writes them all
+     * with one write and one force, publishes the new durable sequence number
+     * and respects the group commit interval between two forces.
+     */
+    private void flushLoop() {
+        while (true) {
+            long batchSequence;
+            FileChannel target;
+            synchronized (lock) {
+                while (pending.position() == 0 && !closed) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (pending.position() == 0) return;
+                ByteBuffer swap = writing;
+                writing = pending;
+                pending = swap;
+                pending.clear();
+                batchSequence = lastSequence;
+                target = channel;
+            }
+
+            long start = System.nanoTime();
+            try {
+                writing.flip();
+                while (writing.hasRemaining()) target.write(writing);
+                writing.clear();
+                target.force(false);
+            } catch (IOException e) {
+                synchronized (lock) {
+                    failure = e;
+                    lock.notifyAll();
+                }
+                return;
+            }
+            synchronized (lock) {
+                durableSequence = batchSequence;
+                lock.notifyAll();
+            }
+
+            long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+            if (elapsedMs < groupCommitIntervalMs) {
+                try {
+                    Thread.sleep(groupCommitIntervalMs - elapsedMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -1,92 +1,451 @@
 package infrastructure.repository;
 
-import common.dataStructures.list.LibraryList;
-import common.dataStructures.list.impl.SLLLibraryList;
-import common.dataStructures.map.LibraryMap;
-import common.dataStructures.map.impl.HashLibraryMap;
-import common.dataStructures.queue.LibraryQueue;
-import common.dataStructures.set.LibrarySet;
+import common.PageCursor;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.queue.PriorityLibraryQueue;
 import domain.book.Book;
 import domain.inventory.BookInventory;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
 import domain.user.User;
 
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
 /**
- * Repository class storing all library data in memory, including users, books,
- * loans, waiting lists, and event history. Uses custom library data structures
- * for maps, lists, sets, and queues.
+ * Storage of all library data: users, book inventories, loans, waiting
+ * lists, and event history.
+ * <p>
+ * Services only access the library state through the operations of this
+ * interface, so the storage engine can be swapped without changing them.
+ * Inventories returned by the repository may be detached copies of the
+ * stored data: after mutating one, callers must hand it back with
+ * {@link #saveInventory(BookInventory)}.
  */
-public class LibraryRepository {
+public interface LibraryRepository extends AutoCloseable {
 
-    /** Estimated number of books in the library for initial map sizing. */
-    private final int ESTIMATED_LIBRARY_SIZE = 300;
+    /**
+     * Grows the internal structures so they can hold the given number of
+     * titles and users efficiently. Never shrinks them.
+     *
+     * @param expectedTitles expected number of book titles
+     * @param expectedUsers  expected number of users
+     */
+    void ensureCapacity(int expectedTitles, int expectedUsers);
 
-    /** Estimated number of users for initial map sizing. */
-    private final int ESTIMATED_USER_SIZE = 100;
+    // ----------------------
+    // Users
+    // ----------------------
 
     /**
-     * Returns the estimated number of users, used for map initialization.
-     * @return estimated user count
+     * Returns the user with the given name.
+     *
+     * @param name the name of the user
+     * @return the user, or null if not found
      */
-    public int getESTIMATED_USER_SIZE() { return ESTIMATED_USER_SIZE; }
+    User findUser(String name);
 
     /**
-     * Returns the estimated number of books, used for map initialization.
-     * @return estimated library size
+     * Checks if a user with the given name exists.
+     *
+     * @param name the name of the user
+     * @return true if the user exists
      */
-    public int getESTIMATED_LIBRARY_SIZE() { return ESTIMATED_LIBRARY_SIZE; }
+    boolean containsUser(String name);
 
-    /** Map of usernames to User objects. */
-    private final LibraryMap<String, User> userMap = new HashLibraryMap<>(ESTIMATED_USER_SIZE);
+    /**
+     * Stores a user, replacing any user with the same name.
+     *
+     * @param user the user to store
+     */
+    void saveUser(User user);
 
-    /** Map of book titles to their inventory details. */
-    private final LibraryMap<String, BookInventory> inventory = new HashLibraryMap<>(ESTIMATED_LIBRARY_SIZE);
+    /**
+     * Removes the user with the given name.
+     *
+     * @param name the name of the user
+     * @return the removed user, or null if not found
+     */
+    User removeUser(String name);
 
-    /** Map of book titles to waiting lists of users who requested them. */
-    private final LibraryMap<String, LibraryQueue<User>> waitingListMap = new HashLibraryMap<>(ESTIMATED_USER_SIZE);
+    /** @return the number of registered users */
+    int userCount();
 
-    /** List storing the history of events in the library. */
-    private final LibraryList<String> eventHistory = new SLLLibraryList<>();
+    /**
+     * Performs the given action for each registered user.
+     *
+     * @param action the action to perform
+     */
+    void forEachUser(Consumer<? super User> action);
 
-    /** Map of users to the books they currently have on loan. */
-    private final LibraryMap<User, LibrarySet<Book>> loansByUser = new HashLibraryMap<>(ESTIMATED_USER_SIZE);
+    /**
+     * Performs the given action for each registered user, in the same order
+     * as {@link #forEachUser}, from the bucket of the user map a page cursor
+     * starts at, until the action returns false. The cursor enters each
+     * bucket walked, see {@link PageCursor}.
+     *
+     * @param cursor the page cursor
+     * @param action the action to perform, telling whether to go on
+     * @return true if every user was visited
+     */
+    boolean forEachUserWhile(PageCursor cursor, Predicate<? super User> action);
 
-    /** Map of books to the users who currently have them on loan. */
-    private final LibraryMap<Book, LibrarySet<User>> loansByBook = new HashLibraryMap<>(ESTIMATED_LIBRARY_SIZE);
+    // ----------------------
+    // Inventory
+    // ----------------------
 
     /**
-     * Returns the map of users by name.
-     * @return user map
+     * Returns the inventory of the given title.
+     *
+     * @param title the title of the book
+     * @return the inventory, or null if the title is not registered
      */
-    public LibraryMap<String, User> getUserMap() { return userMap; }
+    BookInventory findInventory(String title);
 
     /**
-     * Returns the map of book inventories by title.
-     * @return book inventory map
+     * Checks if the given title is registered.
+     *
+     * @param title the title of the book
+     * @return true if the title has an inventory
      */
-    public LibraryMap<String, BookInventory> getInventory() { return inventory; }
+    boolean containsTitle(String title);
 
     /**
-     * Returns the map of waiting lists for each book.
-     * @return waiting list map
+     * Returns the inventory of the given title, registering an empty one if needed.
+     *
+     * @param title the title of the book
+     * @return the inventory of the title
      */
-    public LibraryMap<String, LibraryQueue<User>> getWaitingListMap() { return waitingListMap; }
+    BookInventory findOrCreateInventory(String title);
 
     /**
-     * Returns the history of library events.
-     * @return event history list
+     * Stores the current state of an inventory after it has been modified.
+     *
+     * @param bookInventory the modified inventory
      */
-    public LibraryList<String> getEventHistory() { return eventHistory; }
+    void saveInventory(BookInventory bookInventory);
+
+    /** @return the number of registered titles */
+    int titleCount();
 
     /**
-     * Returns the mapping of users to books they currently have on loan.
-     * @return loans by user map
+     * Performs the given action for each registered inventory.
+     *
+     * @param action the action to perform
      */
-    public LibraryMap<User, LibrarySet<Book>> getLoansByUser() { return loansByUser; }
+    void forEachInventory(Consumer<? super BookInventory> action);
 
     /**
-     * Returns the mapping of books to users who currently have them on loan.
-     * @return loans by book map
+     * Performs the given action for each registered inventory, in the same
+     * order as {@link #forEachInventory}, from the bucket of the inventory
+     * map a page cursor starts at, until the action returns false. The
+     * cursor enters each bucket walked.
+     *
+     * @param cursor the page cursor
+     * @param action the action to perform, telling whether to go on
+     * @return true if every inventory was visited
      */
-    public LibraryMap<Book, LibrarySet<User>> getLoansByBook() { return loansByBook; }
-}
+    boolean forEachInventoryWhile(PageCursor cursor, Predicate<? super BookInventory> action);
+
+    // ----------------------
+    // Waiting lists
+    // ----------------------
+
+    /**
+     * Returns the waiting list of the given title.
+     *
+     * @param title the title of the book
+     * @return the waiting list, or null if nobody ever queued for it
+     */
+    PriorityLibraryQueue<User> findWaitingList(String title);
+
+    /**
+     * Returns the waiting list of the given title, creating an empty one if needed.
+     *
+     * @param title the title of the book
+     * @return the waiting list of the title
+     */
+    PriorityLibraryQueue<User> findOrCreateWaitingList(String title);
+
+    /**
+     * Removes the waiting list of the given title.
+     *
+     * @param title the title of the book
+     */
+    void removeWaitingList(String title);
+
+    /**
+     * Performs the given action for each waiting list and its title.
+     *
+     * @param action the action to perform
+     */
+    void forEachWaitingList(BiConsumer<? super String, ? super PriorityLibraryQueue<User>> action);
+
+    // ----------------------
+    // Loans
+    // ----------------------
+
+    /**
+     * Records that the user has the book on loan until a due date, and
+     * schedules the loan at that date, see {@link #advanceDueDates}. A loan
+     * of the same book to the user is replaced.
+     *
+     * @param user    the borrowing user
+     * @param book    the loaned book
+     * @param dueDate the due date, in seconds since the epoch
+     * @return the loan
+     */
+    LoanRecord addLoan(User user, Book book, long dueDate);
+
+    /**
+     * Records that several users have the same book on loan until a due
+     * date, in one update of the loans and of their schedule. None of the
+     * users may have the book on loan already.
+     *
+     * @param users   the borrowing users, each once
+     * @param book    the loaned book
+     * @param dueDate the due date, in seconds since the epoch
+     * @return the loans, in the order of the users
+     */
+    LibraryListWithPI<LoanRecord> addLoans(LibraryListWithPI<User> users, Book book, long dueDate);
+
+    /**
+     * Removes the loan of the book to the user, if present.
+     *
+     * @param user the borrowing user
+     * @param book the loaned book
+     */
+    void removeLoan(User user, Book book);
+
+    /**
+     * Removes every loan of the user at once.
+     *
+     * @param user the borrowing user
+     * @return a new list holding the removed loans, or null if the user had no loans
+     */
+    LibraryListWithPI<LoanRecord> removeLoansByUser(User user);
+
+    /**
+     * Removes every loan of the book at once.
+     *
+     * @param book the loaned book
+     * @return a new list holding the removed loans, or null if the book had no loans
+     */
+    LibraryListWithPI<LoanRecord> removeLoansByBook(Book book);
+
+    /**
+     * Returns the loans of the user. The list is a copy, so loans may be
+     * removed while going through it.
+     *
+     * @param user the user
+     * @return a new list holding the loans, or null if the user has no loans
+     */
+    LibraryListWithPI<LoanRecord> findLoansByUser(User user);
+
+    /**
+     * Returns the loan of the given title to the user, whatever the format
+     * of its copy, found by its title alone.
+     *
+     * @param user  the user
+     * @param title the title
+     * @return the loan, or null if the user has no copy of the title on loan
+     */
+    LoanRecord findLoan(User user, String title);
+
+    /**
+     * Returns the loan of the given book to the user.
+     *
+     * @param user the user
+     * @param book the book
+     * @return the loan, or null if the user does not have the book on loan
+     */
+    LoanRecord findLoan(User user, Book book);
+
+    /**
+     * Performs the given action for each user who has the book on loan,
+     * until the action returns false. The action must not add nor remove
+     * loans; {@link #removeLoansByBook(Book)} ends them all.
+     *
+     * @param book   the book
+     * @param action the action to perform, telling whether to go on
+     * @return true if every borrower was visited
+     */
+    boolean forEachBorrowerWhile(Book book, Predicate<? super User> action);
+
+    /** @return true if at least one loan is active */
+    boolean hasLoans();
 
+    /**
+     * Performs the given action for each loan of an existing user, grouped
+     * by user, from the bucket of the user map a page cursor starts at,
+     * until the action returns false. The cursor enters each bucket walked.
+     * The action must not add nor remove loans.
+     *
+     * @param cursor the page cursor
+     * @param action the action to perform, telling whether to go on
+     * @return true if every loan was visited
+     */
+    boolean forEachLoanWhile(PageCursor cursor, Predicate<? super LoanRecord> action);
+
+    /**
+     * Performs the given action for each existing user with loans and the
+     * records of the loans, with their due dates. The action must not add
+     * nor remove loans.
+     *
+     * @param action the action to perform
+     */
+    void forEachLoansByUser(BiConsumer<? super User, ? super LibraryListWithPI<LoanRecord>> action);
+
+    // ----------------------
+    // Due dates
+    // ----------------------
+
+    /**
+     * Advances the clock of the due dates to the given time, reporting each
+     * loan whose due date it reaches. The loan then stays overdue until it
+     * is removed. Each second advanced only costs the loans due at it.
+     *
+     * @param now     the current time, in seconds since the epoch
+     * @param overdue receives each loan that becomes overdue
+     * @return the number of loans that became overdue
+     */
+    int advanceDueDates(long now, Consumer<? super LoanRecord> overdue);
+
+    /** @return the number of overdue loans */
+    int overdueCount();
+
+    /**
+     * Performs the given action for each overdue loan, in the order they
+     * became overdue, from the position a page cursor starts at, until the
+     * action returns false. Each overdue loan is a bucket of the cursor, but
+     * the loans before the cursor are still walked, since the overdue loans
+     * can only be walked from the first one.
+     *
+     * @param cursor the page cursor
+     * @param action the action to perform, telling whether to go on
+     * @return true if every overdue loan was visited
+     */
+    boolean forEachOverdueLoanWhile(PageCursor cursor, Predicate<? super LoanRecord> action);
+
+    // ----------------------
+    // Holds
+    // ----------------------
+
+    /**
+     * Records a hold and schedules it at its expiry, replacing any hold of
+     * the same user on the same title. Anonymous holds, see
+     * {@link HoldRecord#ANONYMOUS}, never replace one another.
+     *
+     * @param name   the name of the user the copy is held for
+     * @param title  the held title
+     * @param expiry the expiry date, in seconds since the epoch
+     * @return the recorded hold
+     */
+    HoldRecord addHold(String name, String title, long expiry);
+
+    /**
+     * Returns the hold of a user on a title, or the anonymous hold on the
+     * title expiring first, the oldest of those expiring together.
+     *
+     * @param title the title
+     * @param name  the user name, or {@link HoldRecord#ANONYMOUS}
+     * @return the hold, or null if the user holds no copy of the title
+     */
+    HoldRecord findHold(String title, String name);
+
+    /**
+     * Removes the hold of a user on a title and cancels its expiry. The
+     * anonymous hold removed is the one {@link #findHold} returns.
+     *
+     * @param title the title
+     * @param name  the user name, or {@link HoldRecord#ANONYMOUS}
+     * @return the removed hold, or null if the user held no copy of the title
+     */
+    HoldRecord removeHold(String title, String name);
+
+    /**
+     * Returns the holds on a title.
+     *
+     * @param title the title
+     * @return a copy of the holds, oldest first, or null if there are none
+     */
+    LibraryListWithPI<HoldRecord> findHolds(String title);
+
+    /**
+     * Removes all the holds on a title at once and cancels their expiry.
+     *
+     * @param title the title
+     * @return the removed holds, or null if there were none
+     */
+    LibraryListWithPI<HoldRecord> removeHolds(String title);
+
+    /**
+     * Performs the given action for the holds of each title that has some,
+     * oldest first.
+     *
+     * @param action the action to perform
+     */
+    void forEachHolds(BiConsumer<? super String, ? super LibraryListWithPI<HoldRecord>> action);
+
+    /**
+     * Advances the clock of the hold expiries to the given time, reporting
+     * each hold whose expiry it reaches. The hold stays recorded until it is
+     * removed. Each second advanced only costs the holds expiring at it.
+     *
+     * @param now     the current time, in seconds since the epoch
+     * @param expired receives each hold that expires
+     * @return the number of holds that expired
+     */
+    int advanceHolds(long now, Consumer<? super HoldRecord> expired);
+
+    // ----------------------
+    // Event history
+    // ----------------------
+
+    /**
+     * Appends an event at the end of the history.
+     *
+     * @param event the event to append
+     */
+    void appendEvent(String event);
+
+    /** @return the number of events in the history */
+    int eventCount();
+
+    /**
+     * Returns an event of the history by its position, so that a page of
+     * the history is read without walking the events before it.
+     *
+     * @param position the position of the event, 0 for the oldest
+     * @return the event
+     */
+    String eventAt(int position);
+
+    // ----------------------
+    // Durability
+    // ----------------------
+
+    /**
+     * Returns the sequence number of the last write-ahead log operation
+     * reflected in this repository, or 0 if none.
+     *
+     * @return last applied sequence number
+     */
+    long getSequence();
+
+    /**
+     * Records that the write-ahead log operation with the given sequence
+     * number is reflected in this repository.
+     *
+     * @param sequence last applied sequence number
+     */
+    void setSequence(long sequence);
+
+    /**
+     * Releases the resources held by the storage engine. The repository
+     * must not be used afterwards.
+     */
+    @Override
+    void close();
+}
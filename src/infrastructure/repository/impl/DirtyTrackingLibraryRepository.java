@@ -0,0 +1,455 @@
+package infrastructure.repository.impl;
+
+import common.PageCursor;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.queue.PriorityLibraryQueue;
+import common.dataStructures.set.LibrarySet;
+import common.dataStructures.set.impl.HashLibrarySet;
+import domain.book.Book;
+import domain.inventory.BookInventory;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
+import domain.user.User;
+import infrastructure.repository.LibraryRepository;
+
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Repository decorator recording which records have changed since the last
+ * checkpoint, so that only those need to be written.
+ * <p>
+ * Changes are tracked by key: user names for users and their loans, titles
+ * for inventories and waiting lists. A key is marked whenever its record is
+ * stored, removed, or handed out in a form that callers may modify, such as
+ * an inventory or a waiting list; records marked but left unchanged are
+ * simply written again. {@link #drainChanges()} returns the marked keys and
+ * starts a new set of changes.
+ */
+public class DirtyTrackingLibraryRepository implements LibraryRepository {
+
+    /** Minimum number of keys each set of changes is sized for. */
+    private static final int MIN_CHANGES_SIZE = 256;
+
+    /** Repository holding the data. */
+    private final LibraryRepository delegate;
+
+    /** Number of keys each set of changes is currently sized for. */
+    private int changesCapacity = MIN_CHANGES_SIZE;
+
+    /** Changes made since the last drain. */
+    private Changes changes = new Changes(changesCapacity);
+
+    /**
+     * Constructs a decorator tracking the changes made through it to the given repository.
+     *
+     * @param delegate the repository holding the data
+     */
+    public DirtyTrackingLibraryRepository(LibraryRepository delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Keys of the records changed during one checkpoint interval.
+     */
+    public static class Changes {
+
+        /** Names of the users added or removed. */
+        private final LibrarySet<String> users;
+
+        /** Titles whose inventory changed. */
+        private final LibrarySet<String> titles;
+
+        /** Names of the users whose loans changed. */
+        private final LibrarySet<String> loans;
+
+        /** Titles whose waiting list changed. */
+        private final LibrarySet<String> queues;
+
+        /** Constructs an empty set of changes sized for the given number of keys. */
+        Changes(int capacity) {
+            this.users = new HashLibrarySet<>(capacity);
+            this.titles = new HashLibrarySet<>(capacity);
+            this.loans = new HashLibrarySet<>(capacity);
+            this.queues = new HashLibrarySet<>(capacity);
+        }
+
+        /** @return the names of the users added or removed */
+        public LibrarySet<String> getUsers() { return users; }
+
+        /** @return the titles whose inventory changed */
+        public LibrarySet<String> getTitles() { return titles; }
+
+        /** @return the names of the users whose loans changed */
+        public LibrarySet<String> getLoans() { return loans; }
+
+        /** @return the titles whose waiting list changed */
+        public LibrarySet<String> getQueues() { return queues; }
+
+        /** @return the total number of changed keys */
+        public int size() { return users.size() + titles.size() + loans.size() + queues.size(); }
+
+        /** @return true if nothing changed */
+        public boolean isEmpty() { return size() == 0; }
+    }
+
+    /**
+     * Returns the changes made since the previous call and starts recording
+     * a new set of changes. Must not run concurrently with mutations of the
+     * repository, so that the returned changes match its current state.
+     *
+     * @return the changes made since the previous drain
+     */
+    public synchronized Changes drainChanges() {
+        Changes drained = changes;
+        changesCapacity = Math.max(MIN_CHANGES_SIZE, drained.size());
+        changes = new Changes(changesCapacity);
+        return drained;
+    }
+
+    /**
+     * Adds back changes previously drained, when they could not be checkpointed,
+     * so that they are part of the next drain.
+     *
+     * @param drained the changes to record again
+     */
+    public synchronized void restoreChanges(Changes drained) {
+        drained.users.forEach(changes.users::add);
+        drained.titles.forEach(changes.titles::add);
+        drained.loans.forEach(changes.loans::add);
+        drained.queues.forEach(changes.queues::add);
+    }
+
+    /** @return the repository holding the data */
+    public LibraryRepository getDelegate() { return delegate; }
+
+    /** {@inheritDoc} */
+    @Override
+    public void ensureCapacity(int expectedTitles, int expectedUsers) {
+        delegate.ensureCapacity(expectedTitles, expectedUsers);
+        growChanges(Math.max(expectedTitles, expectedUsers));
+    }
+
+    /**
+     * Rebuilds the current changes with sets sized for the given number of keys,
+     * since {@link HashLibrarySet} never rehashes by itself.
+     */
+    private synchronized void growChanges(int capacity) {
+        if (capacity <= changesCapacity) return;
+        changesCapacity = capacity;
+        Changes grown = new Changes(capacity);
+        changes.users.forEach(grown.users::add);
+        changes.titles.forEach(grown.titles::add);
+        changes.loans.forEach(grown.loans::add);
+        changes.queues.forEach(grown.queues::add);
+        changes = grown;
+    }
+
+    /** Marks a user as changed. */
+    private synchronized void markUser(String name) { changes.users.add(name); }
+
+    /** Marks an inventory as changed. */
+    private synchronized void markTitle(String title) { changes.titles.add(title); }
+
+    /** Marks the loans of a user as changed. */
+    private synchronized void markLoans(String name) { changes.loans.add(name); }
+
+    /** Marks the loans of the borrowers of removed loans as changed, at once. */
+    private synchronized void markLoansOf(LibraryListWithPI<LoanRecord> removed) {
+        for (LoanRecord loan : removed) changes.loans.add(loan.getUser().getName());
+    }
+
+    /** Marks a waiting list as changed. */
+    private synchronized void markQueue(String title) { changes.queues.add(title); }
+
+    // ----------------------
+    // Users
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public User findUser(String name) { return delegate.findUser(name); }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean containsUser(String name) { return delegate.containsUser(name); }
+
+    /** {@inheritDoc} */
+    @Override
+    public void saveUser(User user) {
+        delegate.saveUser(user);
+        markUser(user.getName());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public User removeUser(String name) {
+        User user = delegate.removeUser(name);
+        markUser(name);
+        markLoans(name);
+        return user;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int userCount() { return delegate.userCount(); }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEachUser(Consumer<? super User> action) { delegate.forEachUser(action); }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean forEachUserWhile(PageCursor cursor, Predicate<? super User> action) { return delegate.forEachUserWhile(cursor, action); }
+
+    // ----------------------
+    // Inventory
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public BookInventory findInventory(String title) {
+        BookInventory bookInventory = delegate.findInventory(title);
+        // Inventories may be modified in place by the caller
+        if (bookInventory != null) markTitle(title);
+        return bookInventory;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean containsTitle(String title) { return delegate.containsTitle(title); }
+
+    /** {@inheritDoc} */
+    @Override
+    public BookInventory findOrCreateInventory(String title) {
+        markTitle(title);
+        return delegate.findOrCreateInventory(title);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void saveInventory(BookInventory bookInventory) {
+        delegate.saveInventory(bookInventory);
+        markTitle(bookInventory.getTitle());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int titleCount() { return delegate.titleCount(); }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEachInventory(Consumer<? super BookInventory> action) { delegate.forEachInventory(action); }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean forEachInventoryWhile(PageCursor cursor, Predicate<? super BookInventory> action) { return delegate.forEachInventoryWhile(cursor, action); }
+
+    // ----------------------
+    // Waiting lists
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public PriorityLibraryQueue<User> findWaitingList(String title) {
+        PriorityLibraryQueue<User> queue = delegate.findWaitingList(title);
+        // Waiting lists are modified in place by the caller
+        if (queue != null) markQueue(title);
+        return queue;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public PriorityLibraryQueue<User> findOrCreateWaitingList(String title) {
+        markQueue(title);
+        return delegate.findOrCreateWaitingList(title);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void removeWaitingList(String title) {
+        delegate.removeWaitingList(title);
+        markQueue(title);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEachWaitingList(BiConsumer<? super String, ? super PriorityLibraryQueue<User>> action) {
+        delegate.forEachWaitingList(action);
+    }
+
+    // ----------------------
+    // Loans
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public LoanRecord addLoan(User user, Book book, long dueDate) {
+        LoanRecord loan = delegate.addLoan(user, book, dueDate);
+        markLoans(user.getName());
+        return loan;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<LoanRecord> addLoans(LibraryListWithPI<User> users, Book book, long dueDate) {
+        LibraryListWithPI<LoanRecord> added = delegate.addLoans(users, book, dueDate);
+        markLoansOf(added);
+        return added;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void removeLoan(User user, Book book) {
+        delegate.removeLoan(user, book);
+        markLoans(user.getName());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<LoanRecord> removeLoansByUser(User user) {
+        LibraryListWithPI<LoanRecord> removed = delegate.removeLoansByUser(user);
+        if (removed != null) markLoans(user.getName());
+        return removed;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<LoanRecord> removeLoansByBook(Book book) {
+        LibraryListWithPI<LoanRecord> removed = delegate.removeLoansByBook(book);
+        if (removed != null) markLoansOf(removed);
+        return removed;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<LoanRecord> findLoansByUser(User user) { return delegate.findLoansByUser(user); }
+
+    /** {@inheritDoc} */
+    @Override
+    public LoanRecord findLoan(User user, String title) { return delegate.findLoan(user, title); }
+
+    /** {@inheritDoc} */
+    @Override
+    public LoanRecord findLoan(User user, Book book) { return delegate.findLoan(user, book); }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean forEachBorrowerWhile(Book book, Predicate<? super User> action) { return delegate.forEachBorrowerWhile(book, action); }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasLoans() { return delegate.hasLoans(); }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean forEachLoanWhile(PageCursor cursor, Predicate<? super LoanRecord> action) {
+        return delegate.forEachLoanWhile(cursor, action);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEachLoansByUser(BiConsumer<? super User, ? super LibraryListWithPI<LoanRecord>> action) {
+        delegate.forEachLoansByUser(action);
+    }
+
+    // ----------------------
+    // Due dates
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public int advanceDueDates(long now, Consumer<? super LoanRecord> overdue) {
+        return delegate.advanceDueDates(now, overdue);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int overdueCount() { return delegate.overdueCount(); }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean forEachOverdueLoanWhile(PageCursor cursor, Predicate<? super LoanRecord> action) { return delegate.forEachOverdueLoanWhile(cursor, action); }
+
+    // ----------------------
+    // Holds
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public HoldRecord addHold(String name, String title, long expiry) {
+        // Holds are saved with the inventory record of their title
+        HoldRecord hold = delegate.addHold(name, title, expiry);
+        markTitle(title);
+        return hold;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public HoldRecord findHold(String title, String name) { return delegate.findHold(title, name); }
+
+    /** {@inheritDoc} */
+    @Override
+    public HoldRecord removeHold(String title, String name) {
+        HoldRecord hold = delegate.removeHold(title, name);
+        if (hold != null) markTitle(title);
+        return hold;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<HoldRecord> findHolds(String title) { return delegate.findHolds(title); }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<HoldRecord> removeHolds(String title) {
+        LibraryListWithPI<HoldRecord> holds = delegate.removeHolds(title);
+        if (holds != null) markTitle(title);
+        return holds;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEachHolds(BiConsumer<? super String, ? super LibraryListWithPI<HoldRecord>> action) {
+        delegate.forEachHolds(action);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int advanceHolds(long now, Consumer<? super HoldRecord> expired) {
+        return delegate.advanceHolds(now, expired);
+    }
+
+    // ----------------------
+    // Event history
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public void appendEvent(String event) { delegate.appendEvent(event); }
+
+    /** {@inheritDoc} */
+    @Override
+    public int eventCount() { return delegate.eventCount(); }
+
+    /** {@inheritDoc} */
+    @Override
+    public String eventAt(int position) { return delegate.eventAt(position); }
+
+    // ----------------------
+    // Durability
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSequence() { return delegate.getSequence(); }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setSequence(long sequence) { delegate.setSequence(sequence); }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() { delegate.close(); }
+}
@@ -0,0 +1,670 @@
+package infrastructure.repository.impl;
+
+import common.LibraryClock;
+import common.LockStripes;
+import common.PageCursor;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+import common.dataStructures.map.impl.StripedLibraryMap;
+import common.dataStructures.queue.PriorityLibraryQueue;
+import common.dataStructures.queue.impl.HeapLibraryQueue;
+import common.dataStructures.wheel.TimingWheel;
+import common.dataStructures.wheel.impl.HierarchicalTimingWheel;
+import domain.book.Book;
+import domain.inventory.BookInventory;
+import domain.inventory.BookInventoryImpl;
+import domain.loan.HoldRecord;
+import domain.loan.LoanRecord;
+import domain.user.User;
+import infrastructure.repository.LibraryRepository;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Repository storing all library data in memory, including users, books,
+ * loans, waiting lists, and event history. Uses custom library data structures
+ * for maps, lists, sets, and queues.
+ * <p>
+ * The maps are partitioned by the lock stripes of {@link LockStripes}: maps
+ * keyed by title are partitioned by title, and maps keyed by user by user
+ * name. Callers holding the stripes of the keys they touch may therefore
+ * use the repository concurrently, while operations on a whole map need
+ * every stripe of its kind.
+ * <p>
+ * Loans are split by the user stripe of their borrower into
+ * {@link LoanStripe}s, each guarded by its own monitor. A stripe keeps the
+ * loans of its users in a {@link LoanIndex}, which gives users and titles
+ * dense integer ids and stores each loan as an {@code int} in the row of its
+ * user and in the row of its book, and schedules each of them at its due
+ * date in a hierarchical timing wheel ticking once per second: adding and
+ * removing a loan schedule and cancel it in constant time, and each tick
+ * only touches the loans falling due at it, however many loans there are.
+ * Operations on the loans of one user thus only contend with the users of
+ * their stripe, while operations on every borrower of a book, or on every
+ * due date, visit the stripes one after the other.
+ * <p>
+ * Waiting lists are {@link HeapLibraryQueue}s serving users by the priority
+ * of their role first, then in arrival order. Holds are kept by title and
+ * scheduled at their expiry in a timing wheel of the title stripe of their
+ * book, guarded by its own monitor.
+ * {@link #ensureCapacity(int, int)} must run alone, and the event history
+ * is left to its single writer, {@link common.LibraryLogger}, to serialize.
+ */
+public class HeapLibraryRepository implements LibraryRepository {
+
+    /** Estimated number of books in the library for initial map sizing. */
+    protected static final int ESTIMATED_LIBRARY_SIZE = 300;
+
+    /** Estimated number of users for initial map sizing. */
+    protected static final int ESTIMATED_USER_SIZE = 100;
+
+    /** Initial number of slots of the event history, doubled when full. */
+    private static final int INITIAL_EVENT_CAPACITY = 64;
+
+    /** Number of titles the title-keyed maps are currently sized for. */
+    private int titleCapacity;
+
+    /** Number of users the user-keyed maps are currently sized for. */
+    private int userCapacity;
+
+    /** Map of usernames to User objects. */
+    private LibraryMap<String, User> userMap;
+
+    /** Map of book titles to their inventory details. */
+    private LibraryMap<String, BookInventory> inventory;
+
+    /** Map of book titles to waiting lists of users who requested them. */
+    private LibraryMap<String, PriorityLibraryQueue<User>> waitingListMap;
+
+    /** Loans by user stripe of their borrower; each guarded by itself. */
+    private final LoanStripe[] loans = new LoanStripe[LockStripes.DEFAULT_STRIPES];
+
+    /** Map of book titles to the holds on them, oldest first. */
+    private LibraryMap<String, LibraryListWithPI<HoldRecord>> holdMap;
+
+    /** Holds scheduled at their expiry, in seconds since the epoch, by title stripe; each guarded by itself. */
+    private final TimingWheel<HoldRecord>[] holdExpiries = newWheels(LockStripes.DEFAULT_STRIPES);
+
+    /** History of events in the library, oldest first, in its first {@code eventCount} slots. */
+    private String[] eventHistory = new String[INITIAL_EVENT_CAPACITY];
+
+    /** Number of events in the history. */
+    private int eventCount;
+
+    /** Sequence number of the last logged operation reflected in this repository. */
+    private volatile long sequence = 0;
+
+    /**
+     * Constructs an empty repository sized for the estimated library and user counts.
+     */
+    public HeapLibraryRepository() {
+        this(ESTIMATED_LIBRARY_SIZE, ESTIMATED_USER_SIZE);
+    }
+
+    /**
+     * Constructs an empty repository whose maps are pre-sized for the expected
+     * number of titles and users. Since {@link HashLibraryMap} never rehashes,
+     * this should be used whenever the final size is known in advance.
+     *
+     * @param expectedTitles expected number of book titles
+     * @param expectedUsers  expected number of users
+     */
+    public HeapLibraryRepository(int expectedTitles, int expectedUsers) {
+        this.titleCapacity = Math.max(expectedTitles, ESTIMATED_LIBRARY_SIZE);
+        this.userCapacity = Math.max(expectedUsers, ESTIMATED_USER_SIZE);
+        this.userMap = striped(userCapacity, Function.identity());
+        this.inventory = striped(titleCapacity, Function.identity());
+        this.waitingListMap = striped(titleCapacity, Function.identity());
+        this.holdMap = striped(titleCapacity, Function.identity());
+        for (int i = 0; i < loans.length; i++)
+            loans[i] = new LoanStripe(perStripe(titleCapacity), perStripe(userCapacity));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void ensureCapacity(int expectedTitles, int expectedUsers) {
+        if (expectedTitles > titleCapacity) {
+            titleCapacity = expectedTitles;
+            inventory = resized(inventory, titleCapacity, Function.identity());
+            waitingListMap = resized(waitingListMap, titleCapacity, Function.identity());
+            holdMap = resized(holdMap, titleCapacity, Function.identity());
+        }
+        if (expectedUsers > userCapacity) {
+            userCapacity = expectedUsers;
+            userMap = resized(userMap, userCapacity, Function.identity());
+        }
+        for (LoanStripe stripe : loans) {
+            synchronized (stripe) {
+                stripe.index.ensureCapacity(perStripe(titleCapacity), perStripe(userCapacity));
+            }
+        }
+    }
+
+    /** Returns the share of a stripe of the given number of entries, spread evenly. */
+    private static int perStripe(int size) {
+        return Math.max(1, size / LockStripes.DEFAULT_STRIPES);
+    }
+
+    /** Creates the given number of empty timing wheels starting now. */
+    @SuppressWarnings("unchecked")
+    private static <E> TimingWheel<E>[] newWheels(int count) {
+        TimingWheel<E>[] wheels = (TimingWheel<E>[]) new TimingWheel<?>[count];
+        for (int i = 0; i < count; i++) wheels[i] = new HierarchicalTimingWheel<>(LibraryClock.epochSecond());
+        return wheels;
+    }
+
+    /** Returns the stripe holding the loans of a user. */
+    private LoanStripe stripeOf(User user) {
+        return loans[LockStripes.stripeOf(user.getName(), loans.length)];
+    }
+
+    /** Returns the wheel scheduling the holds on a title. */
+    private TimingWheel<HoldRecord> holdExpiriesOf(String title) {
+        return holdExpiries[LockStripes.stripeOf(title, holdExpiries.length)];
+    }
+
+    /**
+     * Creates a map partitioned by the lock stripes of the given partition key.
+     */
+    private static <K, V> LibraryMap<K, V> striped(int size, Function<? super K, ?> partitionKey) {
+        return new StripedLibraryMap<>(LockStripes.DEFAULT_STRIPES, size, partitionKey);
+    }
+
+    /**
+     * Copies a map into a new one sized for the given number of entries,
+     * since {@link HashLibraryMap} never rehashes by itself.
+     */
+    private static <K, V> LibraryMap<K, V> resized(LibraryMap<K, V> map, int size, Function<? super K, ?> partitionKey) {
+        LibraryMap<K, V> copy = striped(size, partitionKey);
+        map.forEach(copy::put);
+        return copy;
+    }
+
+    // ----------------------
+    // Users
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public User findUser(String name) { return userMap.get(name); }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean containsUser(String name) { return userMap.containsKey(name); }
+
+    /** {@inheritDoc} */
+    @Override
+    public void saveUser(User user) { userMap.put(user.getName(), user); }
+
+    /** {@inheritDoc} */
+    @Override
+    public User removeUser(String name) { return userMap.remove(name); }
+
+    /** {@inheritDoc} */
+    @Override
+    public int userCount() { return userMap.size(); }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEachUser(Consumer<? super User> action) {
+        userMap.forEach((name, user) -> action.accept(user));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean forEachUserWhile(PageCursor cursor, Predicate<? super User> action) {
+        return userMap.forEachWhile(cursor, (name, user) -> action.test(user));
+    }
+
+    // ----------------------
+    // Inventory
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public BookInventory findInventory(String title) { return inventory.get(title); }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean containsTitle(String title) { return inventory.containsKey(title); }
+
+    /** {@inheritDoc} */
+    @Override
+    public BookInventory findOrCreateInventory(String title) {
+        return inventory.computeIfAbsent(title, BookInventoryImpl::new);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Inventories are stored by reference, so changes are already visible
+     * and this only registers the inventory if it was not yet stored.
+     */
+    @Override
+    public void saveInventory(BookInventory bookInventory) {
+        if (inventory.get(bookInventory.getTitle()) != bookInventory)
+            inventory.put(bookInventory.getTitle(), bookInventory);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int titleCount() { return inventory.size(); }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEachInventory(Consumer<? super BookInventory> action) {
+        inventory.forEach((title, bookInventory) -> action.accept(bookInventory));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean forEachInventoryWhile(PageCursor cursor, Predicate<? super BookInventory> action) {
+        return inventory.forEachWhile(cursor, (title, bookInventory) -> action.test(bookInventory));
+    }
+
+    // ----------------------
+    // Waiting lists
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public PriorityLibraryQueue<User> findWaitingList(String title) { return waitingListMap.get(title); }
+
+    /** {@inheritDoc} */
+    @Override
+    public PriorityLibraryQueue<User> findOrCreateWaitingList(String title) {
+        return waitingListMap.computeIfAbsent(title, t -> new HeapLibraryQueue<>(user -> user.getRole().getPriority()));
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void removeWaitingList(String title) { waitingListMap.remove(title); }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEachWaitingList(BiConsumer<? super String, ? super PriorityLibraryQueue<User>> action) {
+        waitingListMap.forEach(action);
+    }
+
+    // ----------------------
+    // Loans
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public LoanRecord addLoan(User user, Book book, long dueDate) {
+        LoanRecord loan = new LoanRecord(user, book, dueDate);
+        LoanStripe stripe = stripeOf(user);
+        synchronized (stripe) {
+            LoanRecord replaced = stripe.index.put(loan);
+            if (replaced != null) replaced.cancel();
+            stripe.dueDates.schedule(loan);
+        }
+        return loan;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The loans are grouped by the stripe of their user, and each group is
+     * added to its stripe at once.
+     */
+    @Override
+    public LibraryListWithPI<LoanRecord> addLoans(LibraryListWithPI<User> users, Book book, long dueDate) {
+        LibraryListWithPI<LoanRecord> added = new SLLLibraryListWithPI<>();
+        LibraryMap<LoanStripe, LibraryListWithPI<LoanRecord>> byStripe = new HashLibraryMap<>(2 * users.size());
+        for (User user : users) {
+            LoanRecord loan = new LoanRecord(user, book, dueDate);
+            added.insert(loan);
+            byStripe.computeIfAbsent(stripeOf(user), s -> new SLLLibraryListWithPI<>()).insert(loan);
+        }
+        byStripe.forEach((stripe, group) -> {
+            synchronized (stripe) {
+                stripe.index.putAll(book, group);
+                for (LoanRecord loan : group) stripe.dueDates.schedule(loan);
+            }
+        });
+        return added;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void removeLoan(User user, Book book) {
+        LoanStripe stripe = stripeOf(user);
+        synchronized (stripe) {
+            LoanRecord loan = stripe.index.remove(user, book);
+            if (loan != null) loan.cancel();
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<LoanRecord> removeLoansByUser(User user) {
+        LoanStripe stripe = stripeOf(user);
+        synchronized (stripe) {
+            LibraryListWithPI<LoanRecord> removed = stripe.index.removeAll(user);
+            if (removed != null) for (LoanRecord loan : removed) loan.cancel();
+            return removed;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The borrowers of the book are taken stripe by stripe.
+     */
+    @Override
+    public LibraryListWithPI<LoanRecord> removeLoansByBook(Book book) {
+        LibraryListWithPI<LoanRecord> removed = null;
+        for (LoanStripe stripe : loans) {
+            synchronized (stripe) {
+                LibraryListWithPI<LoanRecord> part = stripe.index.removeAll(book);
+                if (part == null) continue;
+                if (removed == null) removed = new SLLLibraryListWithPI<>();
+                for (LoanRecord loan : part) {
+                    loan.cancel();
+                    removed.insert(loan);
+                }
+            }
+        }
+        return removed;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<LoanRecord> findLoansByUser(User user) {
+        LoanStripe stripe = stripeOf(user);
+        synchronized (stripe) {
+            return stripe.index.loansOf(user);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LoanRecord findLoan(User user, String title) {
+        LoanStripe stripe = stripeOf(user);
+        synchronized (stripe) {
+            return stripe.index.find(user, title);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LoanRecord findLoan(User user, Book book) {
+        LoanStripe stripe = stripeOf(user);
+        synchronized (stripe) {
+            return stripe.index.get(user, book);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The borrowers are taken stripe by stripe.
+     */
+    @Override
+    public boolean forEachBorrowerWhile(Book book, Predicate<? super User> action) {
+        for (LoanStripe stripe : loans) {
+            synchronized (stripe) {
+                if (!stripe.index.forEachBorrowerOf(book, action)) return false;
+            }
+        }
+        return true;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean hasLoans() {
+        for (LoanStripe stripe : loans) {
+            synchronized (stripe) {
+                if (stripe.index.loanCount() > 0) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The users are taken in the order of the user map, and the loans of
+     * each user in the order of their row in the index, which only depends on
+     * the loans added and removed, so that copies of the library list the
+     * loans in the same order, whatever ids the index gave.
+     */
+    @Override
+    public boolean forEachLoanWhile(PageCursor cursor, Predicate<? super LoanRecord> action) {
+        return userMap.forEachWhile(cursor, (name, user) -> {
+            LoanStripe stripe = stripeOf(user);
+            synchronized (stripe) {
+                return stripe.index.forEachOf(user, action);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The users are taken in the order of the user map.
+     */
+    @Override
+    public void forEachLoansByUser(BiConsumer<? super User, ? super LibraryListWithPI<LoanRecord>> action) {
+        userMap.forEach((name, user) -> {
+            LibraryListWithPI<LoanRecord> records = findLoansByUser(user);
+            if (records != null) action.accept(user, records);
+        });
+    }
+
+    // ----------------------
+    // Due dates
+    // ----------------------
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The wheels of the stripes are advanced one after the other, so the
+     * loans falling due are reported in due order within each stripe.
+     */
+    @Override
+    public int advanceDueDates(long now, Consumer<? super LoanRecord> overdue) {
+        int count = 0;
+        for (LoanStripe stripe : loans) {
+            synchronized (stripe) {
+                count += stripe.dueDates.advance(now, overdue);
+            }
+        }
+        return count;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int overdueCount() {
+        int count = 0;
+        for (LoanStripe stripe : loans) {
+            synchronized (stripe) {
+                count += stripe.dueDates.expiredCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The expired loans are taken stripe by stripe, and the stripes whose
+     * loans all precede the cursor are skipped by their count.
+     */
+    @Override
+    public boolean forEachOverdueLoanWhile(PageCursor cursor, Predicate<? super LoanRecord> action) {
+        long[] position = {0};
+        for (LoanStripe stripe : loans) {
+            synchronized (stripe) {
+                int expired = stripe.dueDates.expiredCount();
+                if (position[0] + expired <= cursor.startBucket()) {
+                    position[0] += expired;
+                    continue;
+                }
+                boolean more = stripe.dueDates.forEachExpired(loan -> {
+                    long bucket = position[0]++;
+                    if (bucket < cursor.startBucket()) return true;
+                    cursor.enterBucket(bucket);
+                    return action.test(loan);
+                });
+                if (!more) return false;
+            }
+        }
+        return true;
+    }
+
+    // ----------------------
+    // Holds
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public HoldRecord addHold(String name, String title, long expiry) {
+        if (!name.equals(HoldRecord.ANONYMOUS)) removeHold(title, name);
+        HoldRecord hold = new HoldRecord(name, title, expiry);
+        holdMap.computeIfAbsent(title, t -> new SLLLibraryListWithPI<>()).insert(hold);
+        TimingWheel<HoldRecord> expiries = holdExpiriesOf(title);
+        synchronized (expiries) {
+            hold.setTimeout(expiries.schedule(hold, expiry));
+        }
+        return hold;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public HoldRecord findHold(String title, String name) {
+        LibraryListWithPI<HoldRecord> holds = holdMap.get(title);
+        if (holds == null) return null;
+        HoldRecord found = null;
+        for (HoldRecord hold : holds) {
+            if (!hold.getName().equals(name)) continue;
+            if (!hold.isAnonymous()) return hold;
+            if (found == null || hold.getExpiry() < found.getExpiry()) found = hold;
+        }
+        return found;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public HoldRecord removeHold(String title, String name) {
+        HoldRecord found = findHold(title, name);
+        if (found == null) return null;
+        LibraryListWithPI<HoldRecord> holds = holdMap.get(title);
+        for (holds.start(); !holds.isEnd(); holds.next()) {
+            HoldRecord hold = holds.get();
+            if (hold != found) continue;
+            holds.remove();
+            if (holds.isEmpty()) holdMap.remove(title);
+            TimingWheel<HoldRecord> expiries = holdExpiriesOf(title);
+            synchronized (expiries) {
+                hold.getTimeout().cancel();
+            }
+            return hold;
+        }
+        return null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<HoldRecord> findHolds(String title) {
+        LibraryListWithPI<HoldRecord> holds = holdMap.get(title);
+        return holds == null ? null : new SLLLibraryListWithPI<>(holds);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LibraryListWithPI<HoldRecord> removeHolds(String title) {
+        LibraryListWithPI<HoldRecord> holds = holdMap.remove(title);
+        if (holds == null) return null;
+        TimingWheel<HoldRecord> expiries = holdExpiriesOf(title);
+        synchronized (expiries) {
+            for (HoldRecord hold : holds) hold.getTimeout().cancel();
+        }
+        return holds;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void forEachHolds(BiConsumer<? super String, ? super LibraryListWithPI<HoldRecord>> action) {
+        holdMap.forEach(action);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The wheels of the title stripes are advanced one after the other, so
+     * the holds on each title are reported in expiry order.
+     */
+    @Override
+    public int advanceHolds(long now, Consumer<? super HoldRecord> expired) {
+        int count = 0;
+        for (TimingWheel<HoldRecord> expiries : holdExpiries) {
+            synchronized (expiries) {
+                count += expiries.advance(now, expired);
+            }
+        }
+        return count;
+    }
+
+    // ----------------------
+    // Event history
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public void appendEvent(String event) {
+        if (eventCount == eventHistory.length) eventHistory = Arrays.copyOf(eventHistory, 2 * eventCount);
+        eventHistory[eventCount++] = event;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int eventCount() { return eventCount; }
+
+    /** {@inheritDoc} */
+    @Override
+    public String eventAt(int position) { return eventHistory[position]; }
+
+    // ----------------------
+    // Durability
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSequence() { return sequence; }
+
+    /** {@inheritDoc} */
+    @Override
+    public void setSequence(long sequence) { this.sequence = sequence; }
+
+    /** {@inheritDoc} */
+    @Override
+    public void close() {
+        // Nothing to release: all data lives on the heap
+    }
+
+    /**
+     * Loans of the users of one user stripe, indexed by user and by book and
+     * scheduled at their due date; guarded by itself.
+     */
+    private static final class LoanStripe {
+
+        /** Loans of the users of the stripe, by user and by book. */
+        final LoanIndex index;
+
+        /** Loans of the users of the stripe scheduled at their due date, in seconds since the epoch; each loan is its own node. */
+        final HierarchicalTimingWheel<LoanRecord> dueDates = new HierarchicalTimingWheel<>(LibraryClock.epochSecond());
+
+        LoanStripe(int expectedTitles, int expectedUsers) {
+            this.index = new LoanIndex(expectedTitles, expectedUsers);
+        }
+    }
+}
@@ -0,0 +1,551 @@
+package infrastructure.repository.impl;
+
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+import domain.book.Book;
+import domain.book.PBook;
+import domain.loan.LoanRecord;
+import domain.user.User;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Index of the loans of a repository, or of the users of one of its
+ * stripes, in both directions: the loans of each user and the borrowers of
+ * each book.
+ * <p>
+ * Users and titles are given dense integer ids while they have loans, and
+ * the ids of freed users and titles are reused. The book of a given format
+ * of a title has the id {@code 2 * title id}, plus one for the digital copy.
+ * Each user has a row of the ids of the books they hold, along with the
+ * loan records and the position of the user in the row of each book, and
+ * each book a row of the ids of its borrowers; the rows are plain
+ * {@code int} arrays indexed by id, doubled when full. A loan thus takes an
+ * {@code int} in each direction, instead of an entry in a hash set of each
+ * side, and scanning the loans of a user or the borrowers of a book reads
+ * one array.
+ * <p>
+ * A row longer than {@value #INITIAL_ROW_LENGTH} loans also has a slot
+ * table, an open-addressing table from book ids to positions in the row, so
+ * that the loan of a book or title to a user is found in O(1) without
+ * allocating, whatever the number of loans of the user; shorter rows are
+ * scanned. A loan is removed by moving the last entry of each row into its
+ * place, the position kept in the row of the user telling where it is in
+ * the row of the book, so a removal is O(1) too. The order of a row thus
+ * only depends on the loans added to and removed from it: copies of the
+ * same library that apply the same changes list the loans in the same order.
+ * <p>
+ * The index is not thread-safe: concurrent callers must synchronize on it.
+ */
+class LoanIndex {
+
+    /** Initial length of a row, up to which a row of a user is scanned rather than hashed. */
+    private static final int INITIAL_ROW_LENGTH = 4;
+
+    /** Ids of the users with loans. */
+    private final Ids<User> users;
+
+    /** Ids of the titles with loans. */
+    private final Ids<String> titles;
+
+    /** Ids of the books each user holds, by user id. */
+    private int[][] booksOfUser = new int[0][];
+
+    /** Loan records of each user, in the order of their book ids, by user id. */
+    private LoanRecord[][] loansOfUser = new LoanRecord[0][];
+
+    /** Position of each user in the row of each book they hold, in the order of their book ids, by user id. */
+    private int[][] positionsOfUser = new int[0][];
+
+    /**
+     * Slot table of each user with a long row, by user id: pairs of a book
+     * id plus one, zero for a free slot, and the position of the book in the
+     * row of the user.
+     */
+    private int[][] slotsOfUser = new int[0][];
+
+    /** Number of loans of each user, by user id. */
+    private int[] userDegree = new int[0];
+
+    /** Ids of the users holding each book, by book id. */
+    private int[][] usersOfBook = new int[0][];
+
+    /** Number of borrowers of each book, by book id. */
+    private int[] bookDegree = new int[0];
+
+    /** Number of loans in the index. */
+    private int loanCount;
+
+    /**
+     * Creates an empty index sized for the expected number of borrowers and
+     * borrowed titles.
+     *
+     * @param expectedTitles expected number of titles with loans
+     * @param expectedUsers  expected number of users with loans
+     */
+    LoanIndex(int expectedTitles, int expectedUsers) {
+        this.users = new Ids<>(expectedUsers);
+        this.titles = new Ids<>(expectedTitles);
+    }
+
+    /**
+     * Resizes the id lookups for the expected number of borrowers and
+     * borrowed titles at once, rather than doubling them as they fill.
+     *
+     * @param expectedTitles expected number of titles with loans
+     * @param expectedUsers  expected number of users with loans
+     */
+    void ensureCapacity(int expectedTitles, int expectedUsers) {
+        titles.ensureCapacity(expectedTitles);
+        users.ensureCapacity(expectedUsers);
+    }
+
+    /**
+     * Adds a loan, replacing the loan of the same book to the same user if any.
+     *
+     * @param loan the loan
+     * @return the replaced loan, or null if the user did not have the book on loan
+     */
+    LoanRecord put(LoanRecord loan) {
+        int user = users.register(loan.getUser());
+        int book = bookId(titles.register(loan.getBook().getTitle()), loan.getBook());
+        growUsers(user + 1);
+        growBooks(book + 1);
+        int i = slotOf(user, book);
+        if (i >= 0) {
+            LoanRecord replaced = loansOfUser[user][i];
+            loansOfUser[user][i] = loan;
+            return replaced;
+        }
+        int position = bookDegree[book];
+        usersOfBook[book] = append(usersOfBook[book], position, user);
+        bookDegree[book] = position + 1;
+        appendToUser(user, book, loan, position);
+        loanCount++;
+        return null;
+    }
+
+    /**
+     * Adds loans of the same book to several users at once: the title is
+     * registered and the row of the book is grown once for all of them.
+     * None of the users may have the book on loan already.
+     *
+     * @param book  the book
+     * @param loans the loans of the book, each to a different user
+     */
+    void putAll(Book book, LibraryListWithPI<LoanRecord> loans) {
+        if (loans.isEmpty()) return;
+        int b = bookId(titles.register(book.getTitle()), book);
+        growBooks(b + 1);
+        int degree = bookDegree[b];
+        int[] borrowers = usersOfBook[b];
+        int needed = degree + loans.size();
+        if (borrowers == null) borrowers = new int[Math.max(INITIAL_ROW_LENGTH, needed)];
+        else if (needed > borrowers.length) borrowers = Arrays.copyOf(borrowers, Math.max(needed, 2 * borrowers.length));
+        for (LoanRecord loan : loans) {
+            int u = users.register(loan.getUser());
+            growUsers(u + 1);
+            appendToUser(u, b, loan, degree);
+            borrowers[degree++] = u;
+        }
+        usersOfBook[b] = borrowers;
+        bookDegree[b] = degree;
+        loanCount += loans.size();
+    }
+
+    /**
+     * Removes the loan of a book to a user, freeing the ids of the user and
+     * of the title once they have no loans left.
+     *
+     * @param user the user
+     * @param book the book
+     * @return the removed loan, or null if the user did not have the book on loan
+     */
+    LoanRecord remove(User user, Book book) {
+        int u = users.idOf(user), t = titles.idOf(book.getTitle());
+        if (u < 0 || t < 0) return null;
+        int b = bookId(t, book);
+        int i = slotOf(u, b);
+        if (i < 0) return null;
+        LoanRecord loan = loansOfUser[u][i];
+        unlinkFromBook(b, positionsOfUser[u][i]);
+        unlinkFromUser(u, i);
+        loanCount--;
+        releaseBookIfFree(b);
+        return loan;
+    }
+
+    /**
+     * Removes every loan of a user in one pass over their row, taking the
+     * user out of the row of each book they hold in O(1), and frees the id
+     * of the user.
+     *
+     * @param user the user
+     * @return a new list holding the removed loans, or null if the user had no loans
+     */
+    LibraryListWithPI<LoanRecord> removeAll(User user) {
+        int u = users.idOf(user);
+        if (u < 0) return null;
+        LibraryListWithPI<LoanRecord> removed = rowOf(u);
+        int[] books = booksOfUser[u];
+        int[] positions = positionsOfUser[u];
+        for (int i = 0; i < userDegree[u]; i++) {
+            unlinkFromBook(books[i], positions[i]);
+            releaseBookIfFree(books[i]);
+        }
+        loanCount -= userDegree[u];
+        userDegree[u] = 0;
+        releaseUser(u);
+        return removed;
+    }
+
+    /**
+     * Removes every loan of a book in one pass over its row, taking the book
+     * out of the row of each borrower in O(1), and frees the ids of the
+     * borrowers left without loans.
+     *
+     * @param book the book
+     * @return a new list holding the removed loans, or null if the book had no loans
+     */
+    LibraryListWithPI<LoanRecord> removeAll(Book book) {
+        int t = titles.idOf(book.getTitle());
+        if (t < 0) return null;
+        int b = bookId(t, book);
+        if (bookDegree[b] == 0) return null;
+        LibraryListWithPI<LoanRecord> removed = new SLLLibraryListWithPI<>();
+        int[] borrowers = usersOfBook[b];
+        for (int j = 0; j < bookDegree[b]; j++) {
+            int u = borrowers[j];
+            int i = slotOf(u, b);
+            removed.insert(loansOfUser[u][i]);
+            unlinkFromUser(u, i);
+        }
+        loanCount -= bookDegree[b];
+        bookDegree[b] = 0;
+        releaseBookIfFree(b);
+        return removed;
+    }
+
+    /**
+     * Returns the loan of a title to a user, whatever the format of its copy.
+     *
+     * @param user  the user
+     * @param title the title
+     * @return the loan, or null if the user has no copy of the title on loan
+     */
+    LoanRecord find(User user, String title) {
+        int u = users.idOf(user), t = titles.idOf(title);
+        if (u < 0 || t < 0) return null;
+        int i = slotOf(u, t << 1);
+        if (i < 0) i = slotOf(u, (t << 1) | 1);
+        return i >= 0 ? loansOfUser[u][i] : null;
+    }
+
+    /**
+     * Returns the loan of a book to a user.
+     *
+     * @param user the user
+     * @param book the book
+     * @return the loan, or null if the user does not have the book on loan
+     */
+    LoanRecord get(User user, Book book) {
+        int u = users.idOf(user), t = titles.idOf(book.getTitle());
+        if (u < 0 || t < 0) return null;
+        int i = slotOf(u, bookId(t, book));
+        return i >= 0 ? loansOfUser[u][i] : null;
+    }
+
+    /**
+     * Returns a copy of the loans of a user.
+     *
+     * @param user the user
+     * @return a new list holding the loans, or null if the user has no loans
+     */
+    LibraryListWithPI<LoanRecord> loansOf(User user) {
+        int u = users.idOf(user);
+        return u < 0 ? null : rowOf(u);
+    }
+
+    /**
+     * Performs the given action for each user holding a book, reading the
+     * row of the book in place, until the action returns false.
+     *
+     * @param book   the book
+     * @param action the action to perform, telling whether to go on
+     * @return true if every borrower of the book was visited
+     */
+    boolean forEachBorrowerOf(Book book, Predicate<? super User> action) {
+        int t = titles.idOf(book.getTitle());
+        if (t < 0) return true;
+        int b = bookId(t, book);
+        int[] borrowers = usersOfBook[b];
+        for (int i = 0; i < bookDegree[b]; i++) if (!action.test(users.keyOf(borrowers[i]))) return false;
+        return true;
+    }
+
+    /** @return the number of loans */
+    int loanCount() {
+        return loanCount;
+    }
+
+    /**
+     * Performs the given action for each loan of a user, in the order of
+     * their row, until the action returns false.
+     *
+     * @param user   the user
+     * @param action the action to perform, telling whether to go on
+     * @return true if every loan of the user was visited
+     */
+    boolean forEachOf(User user, Predicate<? super LoanRecord> action) {
+        int u = users.idOf(user);
+        if (u < 0) return true;
+        LoanRecord[] loans = loansOfUser[u];
+        for (int i = 0; i < userDegree[u]; i++) if (!action.test(loans[i])) return false;
+        return true;
+    }
+
+    /** Returns the id of the given format of a title. */
+    private static int bookId(int title, Book book) {
+        return (title << 1) | (book instanceof PBook ? 0 : 1);
+    }
+
+    /** Returns the position of a book in the row of a user, or -1 if the user does not hold it. */
+    private int slotOf(int user, int book) {
+        int[] table = slotsOfUser[user];
+        if (table == null) {
+            int[] books = booksOfUser[user];
+            for (int i = 0; i < userDegree[user]; i++) if (books[i] == book) return i;
+            return -1;
+        }
+        int mask = (table.length >>> 1) - 1;
+        for (int i = hash(book) & mask; table[2 * i] != 0; i = (i + 1) & mask)
+            if (table[2 * i] == book + 1) return table[2 * i + 1];
+        return -1;
+    }
+
+    /** Spreads the bits of a book id over a slot table. */
+    private static int hash(int book) {
+        int h = book * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    /** Records the position of a book in a slot table, replacing its previous position. */
+    private static void putSlot(int[] table, int book, int position) {
+        int mask = (table.length >>> 1) - 1;
+        int i = hash(book) & mask;
+        while (table[2 * i] != 0 && table[2 * i] != book + 1) i = (i + 1) & mask;
+        table[2 * i] = book + 1;
+        table[2 * i + 1] = position;
+    }
+
+    /**
+     * Removes a book from a slot table, moving back the entries probed after
+     * it so that no lookup stops at the freed slot.
+     */
+    private static void removeSlot(int[] table, int book) {
+        int mask = (table.length >>> 1) - 1;
+        int i = hash(book) & mask;
+        while (table[2 * i] != book + 1) i = (i + 1) & mask;
+        for (int j = (i + 1) & mask; table[2 * j] != 0; j = (j + 1) & mask) {
+            // The entry at j may move to i if i is not before its home slot
+            int home = hash(table[2 * j] - 1) & mask;
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                table[2 * i] = table[2 * j];
+                table[2 * i + 1] = table[2 * j + 1];
+                i = j;
+            }
+        }
+        table[2 * i] = 0;
+    }
+
+    /** Builds the slot table of the first books of a row, with two slots for each entry of the row. */
+    private static int[] slotTable(int[] books, int size) {
+        int[] table = new int[4 * books.length];
+        for (int i = 0; i < size; i++) putSlot(table, books[i], i);
+        return table;
+    }
+
+    /** Takes the entry at a position out of the row of a book, moving its last entry into its place. */
+    private void unlinkFromBook(int book, int position) {
+        int last = --bookDegree[book];
+        if (position == last) return;
+        int[] row = usersOfBook[book];
+        int moved = row[last];
+        row[position] = moved;
+        positionsOfUser[moved][slotOf(moved, book)] = position;
+    }
+
+    /**
+     * Takes the entry at a position out of the row of a user, moving its last
+     * entry into its place, and frees the id of the user once its row is empty.
+     */
+    private void unlinkFromUser(int user, int i) {
+        int last = --userDegree[user];
+        int[] books = booksOfUser[user];
+        LoanRecord[] loans = loansOfUser[user];
+        int[] positions = positionsOfUser[user];
+        int[] table = slotsOfUser[user];
+        if (table != null) removeSlot(table, books[i]);
+        if (i != last) {
+            books[i] = books[last];
+            loans[i] = loans[last];
+            positions[i] = positions[last];
+            if (table != null) putSlot(table, books[i], i);
+        }
+        loans[last] = null;
+        if (last == 0) releaseUser(user);
+    }
+
+    /** Drops the rows of a user without loans and frees its id. */
+    private void releaseUser(int user) {
+        booksOfUser[user] = null;
+        loansOfUser[user] = null;
+        positionsOfUser[user] = null;
+        slotsOfUser[user] = null;
+        users.release(user);
+    }
+
+    /** Drops the row of a book without borrowers, and frees the id of its title once both formats have none. */
+    private void releaseBookIfFree(int book) {
+        if (bookDegree[book] > 0) return;
+        usersOfBook[book] = null;
+        if (bookDegree[book ^ 1] == 0) titles.release(book >>> 1);
+    }
+
+    /** Appends a value to a row holding size elements, doubling the row when full. */
+    private static int[] append(int[] row, int size, int value) {
+        if (row == null) row = new int[INITIAL_ROW_LENGTH];
+        else if (size == row.length) row = Arrays.copyOf(row, 2 * size);
+        row[size] = value;
+        return row;
+    }
+
+    /**
+     * Appends a book, its loan and the position of the user in the row of
+     * the book to the row of a user, giving the row a slot table once it
+     * grows past its initial length.
+     */
+    private void appendToUser(int user, int book, LoanRecord loan, int position) {
+        int size = userDegree[user];
+        boolean grown = booksOfUser[user] != null && size == booksOfUser[user].length;
+        booksOfUser[user] = append(booksOfUser[user], size, book);
+        positionsOfUser[user] = append(positionsOfUser[user], size, position);
+        LoanRecord[] loans = loansOfUser[user];
+        if (loans == null) loans = new LoanRecord[INITIAL_ROW_LENGTH];
+        else if (grown) loans = Arrays.copyOf(loans, 2 * size);
+        loans[size] = loan;
+        loansOfUser[user] = loans;
+        userDegree[user] = size + 1;
+        if (grown) slotsOfUser[user] = slotTable(booksOfUser[user], size + 1);
+        else if (slotsOfUser[user] != null) putSlot(slotsOfUser[user], book, size);
+    }
+
+    /** Copies the loans of a user into a new list. */
+    private LibraryListWithPI<LoanRecord> rowOf(int user) {
+        LibraryListWithPI<LoanRecord> list = new SLLLibraryListWithPI<>();
+        for (int i = 0; i < userDegree[user]; i++) list.insert(loansOfUser[user][i]);
+        return list;
+    }
+
+    /** Makes room for the rows of the given number of user ids. */
+    private void growUsers(int count) {
+        if (count <= userDegree.length) return;
+        int length = Math.max(count, 2 * userDegree.length);
+        booksOfUser = Arrays.copyOf(booksOfUser, length);
+        loansOfUser = Arrays.copyOf(loansOfUser, length);
+        positionsOfUser = Arrays.copyOf(positionsOfUser, length);
+        slotsOfUser = Arrays.copyOf(slotsOfUser, length);
+        userDegree = Arrays.copyOf(userDegree, length);
+    }
+
+    /** Makes room for the rows of the given number of book ids, always both formats of a title. */
+    private void growBooks(int count) {
+        if (count <= bookDegree.length) return;
+        int length = Math.max(count + (count & 1), 2 * bookDegree.length);
+        usersOfBook = Arrays.copyOf(usersOfBook, length);
+        bookDegree = Arrays.copyOf(bookDegree, length);
+    }
+
+    /**
+     * Dense integer ids of keys: a key keeps its id until released, and
+     * released ids are given again before new ones.
+     * <p>
+     * The lookup from keys to ids is a {@link HashLibraryMap}, which never
+     * rehashes by itself: it is rebuilt twice as large whenever it holds as
+     * many keys as it was sized for, so lookups stay O(1) as keys are added.
+     *
+     * @param <K> the type of keys
+     */
+    private static final class Ids<K> {
+
+        /** Id of each key. */
+        private LibraryMap<K, Integer> ids;
+
+        /** Number of keys the lookup was sized for. */
+        private int capacity;
+
+        /** Key of each id, null for a free id. */
+        private Object[] keys;
+
+        /** Released ids, to give again, last released first. */
+        private int[] free = new int[0];
+
+        /** Number of released ids. */
+        private int freeCount;
+
+        /** Number of ids ever given: every id is below it. */
+        private int limit;
+
+        Ids(int expectedSize) {
+            this.capacity = Math.max(1, expectedSize);
+            this.ids = new HashLibraryMap<>(capacity);
+            this.keys = new Object[capacity];
+        }
+
+        /** Rebuilds the lookup for the expected number of keys, unless it is large enough. */
+        void ensureCapacity(int expectedSize) {
+            if (expectedSize <= capacity) return;
+            LibraryMap<K, Integer> resized = new HashLibraryMap<>(expectedSize);
+            ids.forEach(resized::put);
+            ids = resized;
+            capacity = expectedSize;
+        }
+
+        /** Returns the id of a key, or -1 if it has none. */
+        int idOf(K key) {
+            Integer id = ids.get(key);
+            return id != null ? id : -1;
+        }
+
+        /** Returns the id of a key, giving it one if it has none. */
+        int register(K key) {
+            Integer id = ids.get(key);
+            if (id != null) return id;
+            if (ids.size() >= capacity) ensureCapacity(2 * capacity);
+            int given = freeCount > 0 ? free[--freeCount] : limit++;
+            if (given == keys.length) keys = Arrays.copyOf(keys, Math.max(1, 2 * given));
+            keys[given] = key;
+            ids.put(key, given);
+            return given;
+        }
+
+        /** Frees an id, to be given again. */
+        @SuppressWarnings("unchecked")
+        void release(int id) {
+            ids.remove((K) keys[id]);
+            keys[id] = null;
+            if (freeCount == free.length) free = Arrays.copyOf(free, Math.max(4, 2 * freeCount));
+            free[freeCount++] = id;
+        }
+
+        /** Returns the key of an id, null for a free id. */
+        @SuppressWarnings("unchecked")
+        K keyOf(int id) {
+            return (K) keys[id];
+        }
+
+    }
+}
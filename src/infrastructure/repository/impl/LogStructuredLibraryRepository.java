@@ -0,0 +1,279 @@
+package infrastructure.repository.impl;
+
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+import domain.book.DBook;
+import domain.book.PBook;
+import domain.inventory.BookInventory;
+import domain.inventory.BookInventoryImpl;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * Repository keeping the book catalog in an append-only file on disk, so
+ * libraries whose catalog does not fit in memory can still be served.
+ * Users, loans, waiting lists and the event history stay on the heap, as in
+ * {@link HeapLibraryRepository}.
+ * <p>
+ * Each {@link #saveInventory(BookInventory)} appends a record holding the
+ * title, the formats present and the physical copy counters, and points the
+ * in-memory index of the title at it. Only the index (title to position and
+ * size of the latest record) lives on the heap; {@link #findInventory(String)}
+ * reads and decodes the record with a single positional read, so inventories
+ * returned are detached copies that must be saved after being modified.
+ * <p>
+ * Superseded records are reclaimed by compaction, which rewrites the live
+ * records to a new file once the file is more than twice the size of the live
+ * data. The file is a spill area, not a durability mechanism: it is deleted
+ * on {@link #close()}, and durability remains the job of the snapshot and
+ * write-ahead log.
+ * <p>
+ * The catalog file and its index are shared by every title, so the
+ * inventory methods are synchronized rather than partitioned by stripe:
+ * concurrent operations on different titles serialize on the catalog.
+ */
+public class LogStructuredLibraryRepository extends HeapLibraryRepository {
+
+    /** File size below which the catalog is never compacted, in bytes. */
+    private static final long COMPACTION_THRESHOLD = 1 << 20;
+
+    /** Number of low bits of an index entry holding the record size. */
+    private static final int SIZE_BITS = 24;
+
+    /** Flag set in a record when a physical book exists. */
+    private static final int HAS_PBOOK = 1;
+
+    /** Flag set in a record when a digital book exists. */
+    private static final int HAS_DBOOK = 2;
+
+    /** Directory holding the catalog file. */
+    private final Path directory;
+
+    /** Current catalog file. */
+    private Path file;
+
+    /** Channel of the current catalog file. */
+    private FileChannel channel;
+
+    /** Map of titles to their latest record: position in the high bits, size in the low {@value #SIZE_BITS} bits. */
+    private LibraryMap<String, Long> index;
+
+    /** Number of titles the index is currently sized for. */
+    private int indexCapacity;
+
+    /** Position at which the next record is appended. */
+    private long end = 0;
+
+    /** Total size of the records referenced by the index. */
+    private long liveBytes = 0;
+
+    /**
+     * Constructs an empty repository whose catalog file is created in the
+     * given directory.
+     *
+     * @param directory the directory for the catalog file
+     * @throws UncheckedIOException if the catalog file cannot be created
+     */
+    public LogStructuredLibraryRepository(Path directory) {
+        this.directory = directory;
+        this.indexCapacity = ESTIMATED_LIBRARY_SIZE;
+        this.index = new HashLibraryMap<>(indexCapacity);
+        try {
+            this.file = Files.createTempFile(directory, "catalog", ".log");
+            this.channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not create catalog file in \"" + directory + "\"", e);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void ensureCapacity(int expectedTitles, int expectedUsers) {
+        super.ensureCapacity(0, expectedUsers);
+        if (expectedTitles > indexCapacity) {
+            indexCapacity = expectedTitles;
+            LibraryMap<String, Long> copy = new HashLibraryMap<>(indexCapacity);
+            index.forEach(copy::put);
+            index = copy;
+        }
+    }
+
+    // ----------------------
+    // Inventory
+    // ----------------------
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized BookInventory findInventory(String title) {
+        Long location = index.get(title);
+        return location == null ? null : read(location);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized boolean containsTitle(String title) { return index.containsKey(title); }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized BookInventory findOrCreateInventory(String title) {
+        BookInventory bookInventory = findInventory(title);
+        if (bookInventory == null) {
+            bookInventory = new BookInventoryImpl(title);
+            saveInventory(bookInventory);
+        }
+        return bookInventory;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Appends a new record for the inventory and compacts the catalog file
+     * if superseded records take up too much of it.
+     */
+    @Override
+    public synchronized void saveInventory(BookInventory bookInventory) {
+        ByteBuffer record = encode(bookInventory);
+        int size = record.remaining();
+        long position = end;
+        write(record, position);
+        end += size;
+
+        Long previous = index.put(bookInventory.getTitle(), (position << SIZE_BITS) | size);
+        liveBytes += size - (previous == null ? 0 : sizeOf(previous));
+        if (end > COMPACTION_THRESHOLD && end > 2 * liveBytes) compact();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized int titleCount() { return index.size(); }
+
+    /** {@inheritDoc} */
+    @Override
+    public synchronized void forEachInventory(Consumer<? super BookInventory> action) {
+        index.forEach((title, location) -> action.accept(read(location)));
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Closes and deletes the catalog file.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            channel.close();
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Nothing left to do with a spill file that cannot be removed
+        }
+    }
+
+    // ----------------------
+    // Catalog file
+    // ----------------------
+
+    /**
+     * Rewrites every live record to a new catalog file, dropping superseded
+     * ones, then replaces the current file with it.
+     */
+    private void compact() {
+        Path compactedFile;
+        FileChannel compacted;
+        try {
+            compactedFile = Files.createTempFile(directory, "catalog", ".log");
+            compacted = FileChannel.open(compactedFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not compact catalog file", e);
+        }
+        LibraryMap<String, Long> compactedIndex = new HashLibraryMap<>(indexCapacity);
+        long[] position = {0};
+        index.forEach((title, location) -> {
+            ByteBuffer record = readRecord(location);
+            int size = record.remaining();
+            try {
+                while (record.hasRemaining()) compacted.write(record, position[0] + record.position());
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not compact catalog file", e);
+            }
+            compactedIndex.put(title, (position[0] << SIZE_BITS) | size);
+            position[0] += size;
+        });
+
+        close();
+        file = compactedFile;
+        channel = compacted;
+        index = compactedIndex;
+        end = position[0];
+        liveBytes = position[0];
+    }
+
+    /** Writes a record at the given position of the catalog file. */
+    private void write(ByteBuffer record, long position) {
+        try {
+            while (record.hasRemaining()) channel.write(record, position + record.position());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not write catalog file", e);
+        }
+    }
+
+    /** Reads the raw bytes of the record at the given index location. */
+    private ByteBuffer readRecord(long location) {
+        ByteBuffer record = ByteBuffer.allocate(sizeOf(location));
+        long position = location >>> SIZE_BITS;
+        try {
+            while (record.hasRemaining()) {
+                if (channel.read(record, position + record.position()) < 0)
+                    throw new IOException("Unexpected end of catalog file");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read catalog file", e);
+        }
+        return record.flip();
+    }
+
+    /** Reads and decodes the inventory record at the given index location. */
+    private BookInventory read(long location) {
+        ByteBuffer record = readRecord(location);
+        byte[] titleBytes = new byte[record.getShort() & 0xFFFF];
+        record.get(titleBytes);
+        String title = new String(titleBytes, StandardCharsets.UTF_8);
+        int flags = record.get();
+        PBook pBook = null;
+        if ((flags & HAS_PBOOK) != 0) {
+            int total = record.getInt();
+            int available = record.getInt();
+            int reserved = record.getInt();
+            pBook = new PBook(title, total, available, reserved);
+        }
+        DBook dBook = (flags & HAS_DBOOK) != 0 ? new DBook(title) : null;
+        return new BookInventoryImpl(title, pBook, dBook);
+    }
+
+    /** Encodes an inventory as a record ready to be written. */
+    private static ByteBuffer encode(BookInventory bookInventory) {
+        byte[] titleBytes = bookInventory.getTitle().getBytes(StandardCharsets.UTF_8);
+        int flags = (bookInventory.hasPBook() ? HAS_PBOOK : 0) | (bookInventory.hasDBook() ? HAS_DBOOK : 0);
+        ByteBuffer record = ByteBuffer.allocate(Short.BYTES + titleBytes.length + 1 + 3 * Integer.BYTES);
+        record.putShort((short) titleBytes.length).put(titleBytes).put((byte) flags);
+        if (bookInventory.hasPBook()) {
+            PBook pBook = bookInventory.getPBook();
+            record.putInt(pBook.getTotalCopies());
+            record.putInt(pBook.getAvailableCopies() + pBook.getReservedCopies());
+            record.putInt(pBook.getReservedCopies());
+        }
+        return record.flip();
+    }
+
+    /** Returns the record size stored in an index entry. */
+    private static int sizeOf(long location) {
+        return (int) (location & ((1L << SIZE_BITS) - 1));
+    }
+}
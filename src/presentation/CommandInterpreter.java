@@ -0,0 +1,490 @@
+package presentation;
+
+import application.service.BatchOperation;
+import application.service.ILibraryService;
+import application.service.PopularityMetric;
+import application.service.TitleCount;
+import application.service.impl.PartitionedLibraryService;
+import application.service.impl.ReplicatedLibraryService;
+import common.LibraryException;
+import common.PagedPrinter;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import domain.book.BookFormat;
+import domain.loan.HoldRecord;
+import infrastructure.persistence.LogOperation;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+
+/**
+ * Interpreter of the library command language, shared by the console and
+ * the server connections.
+ * <p>
+ * A line holds one or more commands separated by {@code ;}, each made of a
+ * command name followed by its arguments separated by spaces. Missing
+ * arguments are asked for on the input the interpreter reads from. The
+ * outcome of each command is printed to {@code System.out}.
+ * <p>
+ * A line starting with {@code batch} runs the commands that follow as one
+ * batch, all or nothing, see {@link ILibraryService#executeBatch}.
+ */
+public class CommandInterpreter {
+
+    /** Default number of lines printed per page by the listing commands. */
+    public static final int PAGE_SIZE = 100;
+
+    /** Default number of titles shown by the top command. */
+    public static final int TOP_SIZE = 10;
+
+    /** Library the commands operate on. */
+    private final ILibraryService library;
+
+    /** Input from which missing arguments are read. */
+    private final BufferedReader in;
+
+    /**
+     * Constructs an interpreter of commands operating on the given library.
+     *
+     * @param library the library the commands operate on
+     * @param in      the input from which missing arguments are read
+     */
+    public CommandInterpreter(ILibraryService library, BufferedReader in) {
+        this.library = library;
+        this.in = in;
+    }
+
+    /**
+     * Executes every command of a line, reporting errors without stopping.
+     * Commands following an exit command are ignored.
+     *
+     * @param input the line of {@code ;}-separated commands
+     * @return false if an exit command was executed, true otherwise
+     */
+    public boolean execute(String input) {
+        String[] head = input.trim().split("\\s+", 2);
+        if (head[0].equalsIgnoreCase("batch")) {
+            try {
+                executeBatch(head.length == 2 ? head[1] : "");
+            } catch (LibraryException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+            return true;
+        }
+
+        String[] commands = input.split(";");
+        for (String rawCmd : commands) {
+            String cmdLine = rawCmd.trim();
+            if (cmdLine.isEmpty()) continue;
+
+            try {
+                if (!executeCommand(cmdLine.split("\\s+"))) return false;
+            } catch (LibraryException e) {
+                System.out.println("Error: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Executes a single command.
+     *
+     * @param parts the command name followed by its arguments
+     * @return false if the command was an exit command, true otherwise
+     * @throws LibraryException if the command fails
+     */
+    private boolean executeCommand(String[] parts) throws LibraryException {
+        String command = parts[0].toLowerCase();
+        switch (command) {
+            case "h", "help" -> showHelp();
+            case "u", "users" -> {
+                long from = longArg(parts, 1, 0);
+                int limit = intArg(parts, 2, PAGE_SIZE);
+                showContinuation(command, library.listUsers(from, limit), limit);
+            }
+            case "b", "books" -> {
+                long from = longArg(parts, 1, 0);
+                int limit = intArg(parts, 2, PAGE_SIZE);
+                showContinuation(command, library.listBooks(from, limit), limit);
+            }
+            case "+u", "+user" -> {
+                String name = (parts.length >= 2) ? parts[1] : ask("Name: ");
+                library.addUser(name);
+            }
+            case "-u", "-user" -> {
+                String name = (parts.length >= 2) ? parts[1] : ask("Name: ");
+                library.removeUser(name);
+            }
+            case "role" -> {
+                String name = (parts.length >= 2) ? parts[1] : ask("Name: ");
+                String role = (parts.length >= 3) ? parts[2] : ask("Role (accessibility/a, faculty/f or user/u): ");
+                library.setRole(name, role);
+            }
+            case "+b", "+book" -> {
+                String title = (parts.length >= 2) ? parts[1] : ask("Title: ");
+                String format = (parts.length >= 3) ? parts[2] : ask("Format (physical/p or digital/d): ");
+                if (parts.length >= 4) library.addCopies(title, copiesArg(parts, format));
+                else library.addBook(title, format);
+            }
+            case "-b", "-book" -> {
+                String title = (parts.length >= 2) ? parts[1] : ask("Title: ");
+                String format = (parts.length >= 3) ? parts[2] : getFormat(title);
+                library.removeBook(title, format);
+            }
+            case "+l", "+loan" -> {
+                String user = (parts.length >= 2) ? parts[1] : ask("User: ");
+                String title = (parts.length >= 3) ? parts[2] : ask("Title: ");
+                String format = (parts.length >= 4) ? parts[3].toLowerCase() : getFormat(title);
+                library.lendBook(user, title, format);
+            }
+            case "-l", "-loan" -> {
+                String user = (parts.length >= 2) ? parts[1] : ask("User: ");
+                String title = (parts.length >= 3) ? parts[2] : ask("Title: ");
+                String format = (parts.length >= 4) ? parts[3].toLowerCase() : getFormat(title);
+                library.returnBook(user, title, format);
+            }
+            case "+c", "+cohort" -> {
+                String title = (parts.length >= 2) ? parts[1] : ask("Title: ");
+                String format = (parts.length >= 3) ? parts[2].toLowerCase() : getFormat(title);
+                LibraryListWithPI<String> names = new SLLLibraryListWithPI<>();
+                if (parts.length >= 4) {
+                    for (int i = 3; i < parts.length; i++) names.insert(parts[i]);
+                } else {
+                    for (String name : ask("Users: ").split("\\s+")) if (!name.isEmpty()) names.insert(name);
+                }
+                library.lendToUsers(title, format, names);
+            }
+            case "l", "loans" -> {
+                long from = longArg(parts, 1, 0);
+                int limit = intArg(parts, 2, PAGE_SIZE);
+                showContinuation(command, library.listLoans(from, limit), limit);
+            }
+            case "o", "overdue" -> {
+                long from = longArg(parts, 1, 0);
+                int limit = intArg(parts, 2, PAGE_SIZE);
+                showContinuation(command, library.listOverdueLoans(from, limit), limit);
+            }
+            case "+r", "+reserve" -> {
+                String title = (parts.length >= 2) ? parts[1] : ask("Title: ");
+                library.reserve(title);
+            }
+            case "-r", "-reserve" -> {
+                String title = (parts.length >= 2) ? parts[1] : ask("Title: ");
+                library.vacate(title);
+            }
+            case "+h", "+hold" -> {
+                String user = (parts.length >= 2) ? parts[1] : ask("User: ");
+                String title = (parts.length >= 3) ? parts[2] : ask("Title: ");
+                int hours = intArg(parts, 3, (int) (HoldRecord.DEFAULT_PERIOD_SECONDS / 3600));
+                if (hours < 1) throw new LibraryException("Invalid number of hours: " + hours + ".");
+                library.placeHold(user, title, hours * 3600L);
+            }
+            case "-h", "-hold" -> {
+                String user = (parts.length >= 2) ? parts[1] : ask("User: ");
+                String title = (parts.length >= 3) ? parts[2] : ask("Title: ");
+                library.cancelHold(user, title);
+            }
+            case "q", "queue" -> {
+                String title = (parts.length >= 2) ? parts[1] : ask("Title: ");
+                library.showWaitingList(title);
+            }
+            case "s", "sort" -> library.sortInverse();
+            case "a", "activity" -> {
+                long from = longArg(parts, 1, 0);
+                int limit = intArg(parts, 2, PAGE_SIZE);
+                showContinuation(command, library.showEventHistory(from, limit), limit);
+            }
+            case "save" -> {
+                String path = (parts.length >= 2) ? parts[1] : ask("File: ");
+                library.saveSnapshot(path);
+            }
+            case "load" -> {
+                String path = (parts.length >= 2) ? parts[1] : ask("File: ");
+                library.loadSnapshot(path);
+            }
+            case "import" -> {
+                String kind = (parts.length >= 2) ? parts[1].toLowerCase() : ask("Import (users/books): ").toLowerCase();
+                String path = (parts.length >= 3) ? parts[2] : ask("File: ");
+                switch (kind) {
+                    case "u", "users" -> library.importUsers(path);
+                    case "b", "books" -> library.importBooks(path);
+                    default -> System.out.println("Unknown import. Use 'import users file' or 'import books file'.");
+                }
+            }
+            case "top" -> {
+                int k = intArg(parts, 1, TOP_SIZE);
+                printTop("--- Most borrowed titles ---", PopularityMetric.BORROWS, library.topTitles(PopularityMetric.BORROWS, k));
+                printTop("--- Most waited-for titles ---", PopularityMetric.WAITS, library.topTitles(PopularityMetric.WAITS, k));
+            }
+            case "popularity" -> {
+                String title = (parts.length >= 2) ? parts[1] : ask("Title: ");
+                long borrows = library.estimatePopularity(PopularityMetric.BORROWS, title);
+                long waits = library.estimatePopularity(PopularityMetric.WAITS, title);
+                System.out.println("Book \"" + title + "\", at most " + borrows + " " + PopularityMetric.BORROWS.unit(borrows)
+                        + " and " + waits + " " + PopularityMetric.WAITS.unit(waits) + ".");
+            }
+            case "checkpoint" -> library.checkpoint();
+            case "n", "nodes" -> partitioned().listNodes();
+            case "+n", "+node" -> partitioned().addNode(nodePort(parts));
+            case "-n", "-node" -> partitioned().removeNode(nodePort(parts));
+            case "replicas" -> replicated().printReplicaStatus();
+            case "e", "exit" -> {
+                System.out.println("Exiting...");
+                return false;
+            }
+            default -> System.out.println("Unknown command. Type 'help' to see available commands.");
+        }
+        return true;
+    }
+
+    /**
+     * Runs {@code ;}-separated mutation commands as one batch. Missing
+     * arguments are asked for before the batch runs.
+     *
+     * @param input the commands of the batch
+     * @throws LibraryException if a command cannot be batched or the batch fails
+     */
+    private void executeBatch(String input) throws LibraryException {
+        LibraryListWithPI<BatchOperation> operations = new SLLLibraryListWithPI<>();
+        for (String rawCmd : input.split(";")) {
+            String cmdLine = rawCmd.trim();
+            if (cmdLine.isEmpty()) continue;
+            operations.insert(toOperation(cmdLine.split("\\s+")));
+        }
+        library.executeBatch(operations);
+    }
+
+    /**
+     * Converts a mutation command to the operation it performs.
+     *
+     * @param parts the command name followed by its arguments
+     * @return the operation of the command
+     * @throws LibraryException if the command does not change the library
+     */
+    private BatchOperation toOperation(String[] parts) throws LibraryException {
+        String command = parts[0].toLowerCase();
+        return switch (command) {
+            case "+u", "+user" -> new BatchOperation(LogOperation.ADD_USER,
+                    (parts.length >= 2) ? parts[1] : ask("Name: "));
+            case "-u", "-user" -> new BatchOperation(LogOperation.REMOVE_USER,
+                    (parts.length >= 2) ? parts[1] : ask("Name: "));
+            case "+b", "+book" -> {
+                String title = (parts.length >= 2) ? parts[1] : ask("Title: ");
+                String format = (parts.length >= 3) ? parts[2] : ask("Format (physical/p or digital/d): ");
+                if (parts.length >= 4)
+                    yield new BatchOperation(LogOperation.ADD_COPIES, title, Integer.toString(copiesArg(parts, format)));
+                yield new BatchOperation(LogOperation.ADD_BOOK, title, format);
+            }
+            case "-b", "-book" -> {
+                String title = (parts.length >= 2) ? parts[1] : ask("Title: ");
+                String format = (parts.length >= 3) ? parts[2] : getFormat(title);
+                yield new BatchOperation(LogOperation.REMOVE_BOOK, title, format);
+            }
+            case "+l", "+loan", "-l", "-loan" -> {
+                String user = (parts.length >= 2) ? parts[1] : ask("User: ");
+                String title = (parts.length >= 3) ? parts[2] : ask("Title: ");
+                String format = (parts.length >= 4) ? parts[3].toLowerCase() : getFormat(title);
+                yield new BatchOperation(command.startsWith("+") ? LogOperation.LEND_BOOK : LogOperation.RETURN_BOOK,
+                        user, title, format);
+            }
+            case "+r", "+reserve" -> new BatchOperation(LogOperation.RESERVE,
+                    (parts.length >= 2) ? parts[1] : ask("Title: "));
+            case "-r", "-reserve" -> new BatchOperation(LogOperation.VACATE,
+                    (parts.length >= 2) ? parts[1] : ask("Title: "));
+            default -> throw new LibraryException("\"" + parts[0] + "\" cannot be part of a batch.");
+        };
+    }
+
+    /**
+     * Returns the library as a partitioned one, for the node commands.
+     *
+     * @return the partitioned library
+     * @throws LibraryException if the library is not partitioned
+     */
+    private PartitionedLibraryService partitioned() throws LibraryException {
+        if (library instanceof PartitionedLibraryService partitioned) return partitioned;
+        throw new LibraryException("The library is not partitioned: start it with --nodes.");
+    }
+
+    /**
+     * Returns the library as a replicated one, for the replica commands.
+     *
+     * @return the replicated library
+     * @throws LibraryException if the library has no replicas
+     */
+    private ReplicatedLibraryService replicated() throws LibraryException {
+        if (library instanceof ReplicatedLibraryService replicated) return replicated;
+        throw new LibraryException("The library has no replicas: start it with --replicas.");
+    }
+
+    /**
+     * Reads the port argument of a node command, asking for it if missing.
+     *
+     * @param parts the command name followed by its arguments
+     * @return the port
+     * @throws LibraryException if the port is not a number
+     */
+    private int nodePort(String[] parts) throws LibraryException {
+        return intArg(parts.length >= 2 ? parts : new String[] { parts[0], ask("Port: ") }, 1, 0);
+    }
+
+    /**
+     * Prompts with a question and reads a line of input.
+     *
+     * @param question the prompt to display
+     * @return the trimmed input
+     * @throws LibraryException if the input is closed or cannot be read
+     */
+    public String ask(String question) throws LibraryException {
+        System.out.print(question);
+        System.out.flush();
+        String answer;
+        try {
+            answer = in.readLine();
+        } catch (IOException e) {
+            throw new LibraryException("Could not read input: " + e.getMessage());
+        }
+        if (answer == null) throw new LibraryException("No more input.");
+        return answer.trim();
+    }
+
+    /**
+     * Prints the titles with the largest counts of a popularity metric, with
+     * the range of their true count when the estimate is not exact.
+     *
+     * @param header the header of the listing
+     * @param metric the popularity metric
+     * @param titles the titles, by decreasing count
+     */
+    private static void printTop(String header, PopularityMetric metric, LibraryListWithPI<TitleCount> titles) {
+        System.out.println(header);
+        if (titles.isEmpty()) System.out.println("No " + metric.unit(0) + " yet.");
+        int rank = 0;
+        for (TitleCount top : titles) {
+            String count = top.getError() == 0 ? Long.toString(top.getCount())
+                    : top.getGuaranteedCount() + " to " + top.getCount();
+            System.out.println(++rank + ". " + top.getTitle() + " - " + count + " " + metric.unit(top.getCount()));
+        }
+    }
+
+    /**
+     * Parses an optional integer argument of a command.
+     *
+     * @param parts        the command split into words
+     * @param i            the position of the argument
+     * @param defaultValue the value used when the argument is missing
+     * @return the parsed argument, or the default value
+     * @throws LibraryException if the argument is not a number
+     */
+    public static int intArg(String[] parts, int i, int defaultValue) throws LibraryException {
+        if (parts.length <= i) return defaultValue;
+        try {
+            return Integer.parseInt(parts[i]);
+        } catch (NumberFormatException e) {
+            throw new LibraryException("Invalid number: " + parts[i]);
+        }
+    }
+
+    /**
+     * Parses an optional continuation cursor argument of a command.
+     *
+     * @param parts        the command split into words
+     * @param i            the position of the argument
+     * @param defaultValue the value used when the argument is missing
+     * @return the parsed argument, or the default value
+     * @throws LibraryException if the argument is not a number
+     */
+    private static long longArg(String[] parts, int i, long defaultValue) throws LibraryException {
+        if (parts.length <= i) return defaultValue;
+        try {
+            return Long.parseLong(parts[i]);
+        } catch (NumberFormatException e) {
+            throw new LibraryException("Invalid number: " + parts[i]);
+        }
+    }
+
+    /**
+     * Parses the number of copies of an add book command, which only adds
+     * several copies at a time in the physical format.
+     *
+     * @param parts  the command split into words
+     * @param format the format of the copies
+     * @return the number of copies
+     * @throws LibraryException if the number is invalid or the format is not physical
+     */
+    private static int copiesArg(String[] parts, String format) throws LibraryException {
+        if (BookFormat.fromString(format) != BookFormat.PHYSICAL)
+            throw new LibraryException("Only physical copies can be added several at a time.");
+        int copies = intArg(parts, 3, 1);
+        if (copies < 1) throw new LibraryException("Invalid number of copies: " + copies + ".");
+        return copies;
+    }
+
+    /**
+     * Tells how to request the next page of a listing, if there is one.
+     *
+     * @param command the listing command that was executed
+     * @param next    the continuation cursor returned by the listing
+     * @param limit   the page size used by the listing
+     */
+    private static void showContinuation(String command, long next, int limit) {
+        if (next != PagedPrinter.END)
+            System.out.println("-- More results: " + command + " " + next + " " + limit + " --");
+    }
+
+    /**
+     * Determines the format of a book for lending or removal, asking for it
+     * if both formats are available.
+     *
+     * @param title the book title
+     * @return the selected or determined book format as a string
+     * @throws LibraryException if the book title is not found
+     */
+    public String getFormat(String title) throws LibraryException {
+        BookFormat[] formats = library.formatsOf(title);
+        if (formats.length == 1) return formats[0].toString();
+        return ask("Format (physical/p or digital/d): ").toLowerCase().trim();
+    }
+
+    /**
+     * Prints a help menu showing all available commands and their usage.
+     */
+    public static void showHelp() {
+        System.out.println("""
+        Available commands:
+         h,  help                         - Show this help menu
+         u,  users (from) (limit)         - List users, one page at a time
+        +u, +user name                    - Add a user
+        -u, -user name                    - Remove a user
+             role name role               - Set the role of a user (accessibility/a, faculty/f or user/u)
+         b,  books (from) (limit)         - List books, one page at a time
+        +b, +book title format (copies)   - Add a book (physical/p or digital/d), or several physical copies
+        -b, -book title (format)          - Remove a book (physical/p or digital/d)
+        +l, +loan user title (format)     - Lend a book to a user
+        -l, -loan user title (format)     - Return a book from a user
+        +c, +cohort title format user ... - Lend a book to several users at once, all or nothing
+         l,  loans (from) (limit)         - List current loans, one page at a time
+         o,  overdue (from) (limit)       - List overdue loans, one page at a time
+        +r, +reserve title                - Add a reserve to a book
+        -r, -reserve title                - Remove a reserve to a book
+        +h, +hold user title (hours)      - Hold a physical copy for a user, for 48 hours by default
+        -h, -hold user title              - Cancel the hold of a user on a book
+         q,  queue title                  - Show waiting list for a book
+         s,  sort                         - Sort books by title in descending order
+         a,  activity (from) (limit)      - Show the activity log, one page at a time
+             save file                    - Save the library state to a snapshot file
+             load file                    - Load the library state from a snapshot file
+             import users file            - Import users from a file, one name per line
+             import books file            - Import books from a CSV file of title,format[,copies]
+             top (k)                      - Show the most borrowed and most waited-for titles
+             popularity title             - Show the estimated loans and waits of a book
+             checkpoint                   - Save the changes to the data directory and trim its log
+             batch command; command; ...  - Run the following changes all or nothing, as one batch
+         n,  nodes                        - List the nodes of a partitioned library
+        +n, +node port                    - Add the node on a local port, moving it its titles
+        -n, -node port                    - Remove the node on a local port, moving its titles away
+             replicas                     - Show the lag of the read replicas
+         e,  exit                         - Exit the program
+        """);
+    }
+}
@@ -0,0 +1,155 @@
+package presentation;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Minimal streaming JSON writer: values are written to the underlying
+ * writer as they are given, so arbitrarily long arrays never have to be
+ * held in memory. Commas between members and elements are inserted
+ * automatically; well-formedness beyond that is up to the caller.
+ */
+public class JsonWriter {
+
+    /** Maximum nesting depth of objects and arrays. */
+    private static final int MAX_DEPTH = 32;
+
+    /** Writer receiving the JSON text. */
+    private final Writer out;
+
+    /** For each open object or array, whether it has no member or element yet. */
+    private final boolean[] empty = new boolean[MAX_DEPTH];
+
+    /** Number of open objects and arrays. */
+    private int depth = 0;
+
+    /** Whether the last token written is a member name, awaiting its value. */
+    private boolean afterName = false;
+
+    /**
+     * Constructs a JSON writer over the given writer.
+     *
+     * @param out the writer receiving the JSON text
+     */
+    public JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    /** Opens an object. */
+    public JsonWriter beginObject() throws IOException { return open('{'); }
+
+    /** Closes the current object. */
+    public JsonWriter endObject() throws IOException { return close('}'); }
+
+    /** Opens an array. */
+    public JsonWriter beginArray() throws IOException { return open('['); }
+
+    /** Closes the current array. */
+    public JsonWriter endArray() throws IOException { return close(']'); }
+
+    /**
+     * Writes the name of the next member of the current object.
+     *
+     * @param name the member name
+     * @return this writer
+     */
+    public JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a string value, or null.
+     *
+     * @param value the value
+     * @return this writer
+     */
+    public JsonWriter value(String value) throws IOException {
+        separate();
+        if (value == null) out.write("null");
+        else string(value);
+        return this;
+    }
+
+    /**
+     * Writes a number value.
+     *
+     * @param value the value
+     * @return this writer
+     */
+    public JsonWriter value(long value) throws IOException {
+        separate();
+        out.write(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Writes a boolean value.
+     *
+     * @param value the value
+     * @return this writer
+     */
+    public JsonWriter value(boolean value) throws IOException {
+        separate();
+        out.write(value ? "true" : "false");
+        return this;
+    }
+
+    /** Flushes the underlying writer. */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Opens an object or array. */
+    private JsonWriter open(char bracket) throws IOException {
+        separate();
+        if (depth == MAX_DEPTH) throw new IllegalStateException("JSON nested too deeply");
+        out.write(bracket);
+        empty[depth++] = true;
+        return this;
+    }
+
+    /** Closes the current object or array. */
+    private JsonWriter close(char bracket) throws IOException {
+        if (depth == 0) throw new IllegalStateException("No JSON object or array to close");
+        depth--;
+        out.write(bracket);
+        return this;
+    }
+
+    /** Writes the comma preceding a member or element, unless it is the first one or follows its name. */
+    private void separate() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (depth == 0) return;
+        if (empty[depth - 1]) empty[depth - 1] = false;
+        else out.write(',');
+    }
+
+    /** Writes a quoted and escaped string. */
+    private void string(String s) throws IOException {
+        out.write('"');
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            String escape;
+            if (c == '"') escape = "\\\"";
+            else if (c == '\\') escape = "\\\\";
+            else if (c == '\n') escape = "\\n";
+            else if (c == '\r') escape = "\\r";
+            else if (c == '\t') escape = "\\t";
+            else if (c < 0x20) escape = String.format("\\u%04x", (int) c);
+            else continue;
+            out.write(s, start, i - start);
+            out.write(escape);
+            start = i + 1;
+        }
+        out.write(s, start, s.length() - start);
+        out.write('"');
+    }
+}
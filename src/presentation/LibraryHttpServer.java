@@ -0,0 +1,517 @@
+package presentation;
+
+import application.service.ILibraryService;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import common.LibraryException;
+import common.ThreadRoutedPrintStream;
+import common.VirtualThreads;
+import common.dataStructures.map.LibraryMap;
+import common.dataStructures.map.impl.HashLibraryMap;
+import domain.book.BookFormat;
+import domain.book.PBook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * HTTP/JSON interface to the library, served by the JDK's embedded
+ * {@link HttpServer} on the loopback interface.
+ * <p>
+ * Parameters are read from the query string or from a form-encoded body,
+ * and the resource identifier may be given as the last path segment.
+ * Responses are JSON objects: {@code {"message": ...}} for operations,
+ * {@code {"items": [...], "next": cursor}} for listings, and
+ * {@code {"error": ...}} with status 400, 404 or 405 for failures.
+ * <table>
+ *   <caption>Endpoints</caption>
+ *   <tr><td>GET /users?from&amp;limit</td><td>List users</td></tr>
+ *   <tr><td>POST /users?name</td><td>Add a user</td></tr>
+ *   <tr><td>DELETE /users/{name}</td><td>Remove a user</td></tr>
+ *   <tr><td>GET /books?from&amp;limit</td><td>List books</td></tr>
+ *   <tr><td>POST /books?title&amp;format</td><td>Add a book</td></tr>
+ *   <tr><td>DELETE /books/{title}?format</td><td>Remove a book</td></tr>
+ *   <tr><td>GET /loans?from&amp;limit</td><td>List loans</td></tr>
+ *   <tr><td>POST /loans?user&amp;title&amp;format</td><td>Lend a book, or queue the user</td></tr>
+ *   <tr><td>DELETE /loans?user&amp;title&amp;format</td><td>Return a book</td></tr>
+ *   <tr><td>POST /reservations?title</td><td>Reserve a copy</td></tr>
+ *   <tr><td>DELETE /reservations/{title}</td><td>Release a reserved copy</td></tr>
+ *   <tr><td>GET /queues/{title}</td><td>Show the waiting list of a book</td></tr>
+ * </table>
+ * <p>
+ * Requests are handled on a thread each, virtual if the runtime provides
+ * them, and connections are kept alive between requests. Responses are
+ * buffered up to {@value #BUFFER_SIZE} bytes and sent with their length;
+ * larger listings are streamed in chunks as they are produced. Listing
+ * pages are limited to {@value #MAX_PAGE_SIZE} items, so that a page
+ * normally fits the buffer and the records it reads are not kept locked
+ * while the client is slow to read.
+ */
+public class LibraryHttpServer implements AutoCloseable {
+
+    /** Default port of the server. */
+    public static final int DEFAULT_PORT = 8080;
+
+    /** Default number of items of a listing page. */
+    private static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** Maximum number of items of a listing page. */
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    /** Size of the response buffer, in bytes. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Maximum number of pending connections. */
+    private static final int BACKLOG = 1024;
+
+    static {
+        // Headers and body are written separately: without TCP_NODELAY, the body of
+        // a small response waits for the delayed acknowledgement of the headers
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    /** Library served. */
+    private final ILibraryService library;
+
+    /** Embedded HTTP server. */
+    private final HttpServer server;
+
+    /** Runs one task per request. */
+    private final ExecutorService executor;
+
+    /** Console output, captured per request to become the response message. */
+    private final ThreadRoutedPrintStream console;
+
+    /**
+     * Binds a server for the given library to a local port. Requests are
+     * only served once the server is started.
+     *
+     * @param library the library served
+     * @param port    the port to listen on, or 0 for any free port
+     * @throws LibraryException if the port cannot be bound
+     */
+    public LibraryHttpServer(ILibraryService library, int port) throws LibraryException {
+        this.library = library;
+        try {
+            this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+        } catch (IOException e) {
+            throw new LibraryException("Could not listen on port " + port + ": " + e.getMessage());
+        }
+        this.console = ThreadRoutedPrintStream.install();
+        this.executor = VirtualThreads.newPerTaskExecutor("library-http");
+        server.setExecutor(executor);
+        server.createContext("/users", exchange -> handle(exchange, this::users));
+        server.createContext("/books", exchange -> handle(exchange, this::books));
+        server.createContext("/loans", exchange -> handle(exchange, this::loans));
+        server.createContext("/reservations", exchange -> handle(exchange, this::reservations));
+        server.createContext("/queues", exchange -> handle(exchange, this::queues));
+    }
+
+    /** Starts serving requests. */
+    public void start() {
+        server.start();
+    }
+
+    /** @return the port the server listens on */
+    public int getPort() { return server.getAddress().getPort(); }
+
+    /**
+     * Stops the server, waiting up to a second for the requests being
+     * handled to complete.
+     */
+    @Override
+    public void close() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    // ----------------------
+    // Endpoints
+    // ----------------------
+
+    /** Handles {@code /users}. */
+    private void users(Request request) throws LibraryException, IOException {
+        switch (request.method) {
+            case "GET" -> {
+                PageRequest page = request.page();
+                request.list(json -> library.visitUsers(page.from(), page.limit(), user -> write(() -> json.beginObject()
+                        .name("name").value(user.getName())
+                        .name("created").value(user.getCreationDate())
+                        .name("role").value(user.getRole().toString())
+                        .endObject())));
+            }
+            case "POST" -> request.run(() -> library.addUser(request.required("name")));
+            case "DELETE" -> request.run(() -> library.removeUser(request.resource("name")));
+            default -> request.notAllowed("GET, POST, DELETE");
+        }
+    }
+
+    /** Handles {@code /books}. */
+    private void books(Request request) throws LibraryException, IOException {
+        switch (request.method) {
+            case "GET" -> {
+                PageRequest page = request.page();
+                request.list(json -> library.visitBooks(page.from(), page.limit(), book -> write(() -> {
+                    json.beginObject()
+                            .name("title").value(book.getTitle())
+                            .name("format").value(book.getFormat());
+                    if (book instanceof PBook pBook) {
+                        json.name("available").value(pBook.getAvailableCopies())
+                                .name("reserved").value(pBook.getReservedCopies())
+                                .name("total").value(pBook.getTotalCopies());
+                    }
+                    json.endObject();
+                })));
+            }
+            case "POST" -> request.run(() -> library.addBook(request.required("title"), request.required("format")));
+            case "DELETE" -> {
+                String title = request.resource("title");
+                String format = request.format(title);
+                request.run(() -> library.removeBook(title, format));
+            }
+            default -> request.notAllowed("GET, POST, DELETE");
+        }
+    }
+
+    /** Handles {@code /loans}. */
+    private void loans(Request request) throws LibraryException, IOException {
+        switch (request.method) {
+            case "GET" -> {
+                PageRequest page = request.page();
+                request.list(json -> library.visitLoans(page.from(), page.limit(), (user, book) -> write(() -> json.beginObject()
+                        .name("user").value(user.getName())
+                        .name("title").value(book.getTitle())
+                        .name("format").value(book.getFormat())
+                        .endObject())));
+            }
+            case "POST" -> {
+                String user = request.required("user"), title = request.required("title");
+                String format = request.format(title);
+                request.run(() -> library.lendBook(user, title, format));
+            }
+            case "DELETE" -> {
+                String user = request.required("user"), title = request.required("title");
+                String format = request.format(title);
+                request.run(() -> library.returnBook(user, title, format));
+            }
+            default -> request.notAllowed("GET, POST, DELETE");
+        }
+    }
+
+    /** Handles {@code /reservations}. */
+    private void reservations(Request request) throws LibraryException, IOException {
+        switch (request.method) {
+            case "POST" -> request.run(() -> library.reserve(request.resource("title")));
+            case "DELETE" -> request.run(() -> library.vacate(request.resource("title")));
+            default -> request.notAllowed("POST, DELETE");
+        }
+    }
+
+    /** Handles {@code /queues}. */
+    private void queues(Request request) throws LibraryException, IOException {
+        if (!request.method.equals("GET")) {
+            request.notAllowed("GET");
+            return;
+        }
+        String title = request.resource("title");
+        request.list(json -> {
+            library.visitWaitingList(title, user -> write(() -> json.value(user.getName())));
+            return ResponseBody.NO_CURSOR;
+        });
+    }
+
+    // ----------------------
+    // Request handling
+    // ----------------------
+
+    /** Handler of one endpoint. */
+    @FunctionalInterface
+    private interface Endpoint {
+        void handle(Request request) throws LibraryException, IOException;
+    }
+
+    /** Operation of the library. */
+    @FunctionalInterface
+    private interface Operation {
+        void run() throws LibraryException;
+    }
+
+    /** Listing writing its items to a JSON array, returning its continuation cursor. */
+    @FunctionalInterface
+    private interface Listing {
+        long write(JsonWriter json) throws LibraryException;
+    }
+
+    /** Requested page: the continuation cursor and the maximum number of items. */
+    private record PageRequest(long from, int limit) { }
+
+    /** Piece of JSON output, written from a visitor. */
+    @FunctionalInterface
+    private interface JsonOutput {
+        void write() throws IOException;
+    }
+
+    /**
+     * Writes JSON output from a visitor, which cannot throw checked exceptions.
+     *
+     * @throws UncheckedIOException if the output fails
+     */
+    private static void write(JsonOutput output) {
+        try {
+            output.write();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Runs an endpoint, answering errors with a JSON error. The request body
+     * is always consumed and the exchange closed, so the connection can be
+     * reused for the next request.
+     */
+    private void handle(HttpExchange exchange, Endpoint endpoint) {
+        try (exchange) {
+            Request request = new Request(exchange);
+            try {
+                endpoint.handle(request);
+            } catch (LibraryException e) {
+                int status = e.getMessage() != null && e.getMessage().endsWith("not found") ? 404 : 400;
+                request.error(status, e.getMessage());
+            }
+        } catch (IOException | UncheckedIOException e) {
+            // The client disconnected: nothing left to answer
+        }
+    }
+
+    /**
+     * One HTTP request being handled, with its parameters and its response.
+     */
+    private class Request {
+
+        /** Exchange of the request. */
+        private final HttpExchange exchange;
+
+        /** HTTP method of the request. */
+        private final String method;
+
+        /** Path segment following the context path, or null. */
+        private final String resource;
+
+        /** Parameters of the query string and of a form-encoded body. */
+        private final LibraryMap<String, String> params = new HashLibraryMap<>(8);
+
+        /** Reads the parameters of a request, consuming its body. */
+        Request(HttpExchange exchange) throws IOException {
+            this.exchange = exchange;
+            this.method = exchange.getRequestMethod();
+            String path = exchange.getRequestURI().getRawPath();
+            String context = exchange.getHttpContext().getPath();
+            String rest = path.length() > context.length() + 1 ? path.substring(context.length() + 1) : "";
+            this.resource = rest.isEmpty() ? null : decode(rest);
+            parse(exchange.getRequestURI().getRawQuery());
+            try (InputStream body = exchange.getRequestBody()) {
+                String form = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+                String type = exchange.getRequestHeaders().getFirst("Content-Type");
+                if (type != null && type.startsWith("application/x-www-form-urlencoded")) parse(form);
+            }
+        }
+
+        /** Returns a required parameter. */
+        String required(String name) throws LibraryException {
+            String value = params.get(name);
+            if (value == null || value.isEmpty()) throw new LibraryException("Missing parameter: " + name);
+            return value;
+        }
+
+        /** Returns the resource identifier, from the path or else from the named parameter. */
+        String resource(String name) throws LibraryException {
+            return resource != null ? resource : required(name);
+        }
+
+        /** Returns the format parameter, or the only format of the title if it is missing. */
+        String format(String title) throws LibraryException {
+            String format = params.get("format");
+            if (format != null && !format.isEmpty()) return format;
+            BookFormat[] formats = library.formatsOf(title);
+            if (formats.length != 1) throw new LibraryException("Missing parameter: format");
+            return formats[0].toString();
+        }
+
+        /** Returns the cursor and size of the requested page. */
+        PageRequest page() throws LibraryException {
+            long from = longParam("from", 0);
+            int limit = (int) Math.min(Integer.MAX_VALUE, longParam("limit", DEFAULT_PAGE_SIZE));
+            if (limit > MAX_PAGE_SIZE) throw new LibraryException("Invalid page size: " + limit + " (maximum " + MAX_PAGE_SIZE + ")");
+            return new PageRequest(from, limit);
+        }
+
+        /** Returns an optional integer parameter. */
+        private long longParam(String name, long defaultValue) throws LibraryException {
+            String value = params.get(name);
+            if (value == null || value.isEmpty()) return defaultValue;
+            try {
+                return Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new LibraryException("Invalid number: " + value);
+            }
+        }
+
+        /**
+         * Runs an operation and answers with the messages it printed, which
+         * are captured instead of reaching the console.
+         */
+        void run(Operation operation) throws LibraryException, IOException {
+            ByteArrayOutputStream captured = new ByteArrayOutputStream();
+            console.route(new PrintStream(captured, false, StandardCharsets.UTF_8));
+            try {
+                operation.run();
+            } finally {
+                console.unroute();
+            }
+            String message = captured.toString(StandardCharsets.UTF_8).trim();
+            respond(200, json -> json.beginObject().name("message").value(message).endObject());
+        }
+
+        /** Answers with the items of a listing, streamed as they are visited. */
+        void list(Listing listing) throws LibraryException, IOException {
+            ResponseBody body = new ResponseBody(exchange, 200);
+            Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+            JsonWriter json = new JsonWriter(writer);
+            json.beginObject().name("items").beginArray();
+            long next = listing.write(json);
+            json.endArray();
+            if (next != ResponseBody.NO_CURSOR) json.name("next").value(next);
+            json.endObject();
+            writer.flush();
+            body.finish();
+        }
+
+        /** Answers with an error. */
+        void error(int status, String message) throws IOException {
+            if (exchange.getResponseCode() != -1) return; // Too late: part of the response is already sent
+            respond(status, json -> json.beginObject().name("error").value(message).endObject());
+        }
+
+        /** Answers that the method is not allowed. */
+        void notAllowed(String allowed) throws IOException {
+            exchange.getResponseHeaders().set("Allow", allowed);
+            respond(405, json -> json.beginObject().name("error").value("Method not allowed").endObject());
+        }
+
+        /** Answers with a small JSON document. */
+        private void respond(int status, JsonDocument document) throws IOException {
+            ResponseBody body = new ResponseBody(exchange, status);
+            Writer writer = new OutputStreamWriter(body, StandardCharsets.UTF_8);
+            document.write(new JsonWriter(writer));
+            writer.flush();
+            body.finish();
+        }
+
+        /** Adds the parameters of a form-encoded string. */
+        private void parse(String form) {
+            if (form == null || form.isEmpty()) return;
+            for (String pair : form.split("&")) {
+                if (pair.isEmpty()) continue;
+                int eq = pair.indexOf('=');
+                if (eq < 0) params.put(decode(pair), "");
+                else params.put(decode(pair.substring(0, eq)), decode(pair.substring(eq + 1)));
+            }
+        }
+    }
+
+    /** Small JSON document written at once. */
+    @FunctionalInterface
+    private interface JsonDocument {
+        void write(JsonWriter json) throws IOException;
+    }
+
+    /** Decodes a URL-encoded string. */
+    private static String decode(String s) {
+        return URLDecoder.decode(s, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Body of a response, buffered until it is finished or the buffer is
+     * full. A body that fits the buffer is sent with its length; a larger
+     * one is sent in chunks, the headers being sent when the buffer first
+     * fills up. Until then, the response can still be replaced by an error.
+     */
+    private static class ResponseBody extends OutputStream {
+
+        /** Cursor returned by listings that are not paginated. */
+        static final long NO_CURSOR = Long.MIN_VALUE;
+
+        /** Exchange of the response. */
+        private final HttpExchange exchange;
+
+        /** Status of the response. */
+        private final int status;
+
+        /** Bytes written and not yet sent. */
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+
+        /** Number of bytes in the buffer. */
+        private int count = 0;
+
+        /** Stream of the response once the headers are sent, null before. */
+        private OutputStream streaming;
+
+        /** Creates the body of a response with the given status. */
+        ResponseBody(HttpExchange exchange, int status) {
+            this.exchange = exchange;
+            this.status = status;
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) drain();
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) drain();
+                int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /** Sends the buffered bytes, switching to a chunked response first if needed. */
+        private void drain() throws IOException {
+            if (streaming == null) {
+                exchange.sendResponseHeaders(status, 0);
+                streaming = exchange.getResponseBody();
+            }
+            streaming.write(buffer, 0, count);
+            count = 0;
+        }
+
+        /** Sends the rest of the body and ends the response. */
+        void finish() throws IOException {
+            if (streaming == null) {
+                exchange.sendResponseHeaders(status, count == 0 ? -1 : count);
+                streaming = exchange.getResponseBody();
+            }
+            streaming.write(buffer, 0, count);
+            count = 0;
+            streaming.close();
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package presentation;
+
+import application.service.BatchOperation;
+import application.service.LoanOutcome;
+import application.service.PopularityMetric;
+import application.service.TitleCount;
+import application.service.TitleRecord;
+import application.service.impl.LibraryService;
+import common.LibraryException;
+import common.ThreadRoutedPrintStream;
+import common.VirtualThreads;
+import common.dataStructures.list.LibraryListWithPI;
+import common.dataStructures.list.impl.SLLLibraryListWithPI;
+import domain.book.BookFormat;
+import domain.book.PBook;
+import infrastructure.partition.HashRing;
+import infrastructure.partition.NodeOperation;
+import infrastructure.partition.NodeProtocol;
+import infrastructure.persistence.LogOperation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Server making a library one node of a partitioned catalog: it accepts
+ * local connections from routers, see
+ * {@link application.service.impl.PartitionedLibraryService}, and executes
+ * their requests on the library, see {@link NodeProtocol}.
+ * <p>
+ * Each connection is served on its own thread, virtual if the runtime
+ * provides them. The output an operation prints is captured and sent back
+ * with its reply, so the router can print it to its own caller. The server
+ * only listens on the loopback interface.
+ */
+public class LibraryNodeServer implements AutoCloseable {
+
+    /** Default port of the node server. */
+    public static final int DEFAULT_PORT = 7100;
+
+    /** Size of the input and output buffers of each connection. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Library of this node. */
+    private final LibraryService library;
+
+    /** Socket accepting the connections. */
+    private final ServerSocket serverSocket;
+
+    /** Runs one task per connection. */
+    private final ExecutorService connections;
+
+    /** Console output, routed to the reply of each serving thread. */
+    private final ThreadRoutedPrintStream console;
+
+    /** Connections currently open, closed when the server stops. */
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+
+    /** Thread accepting the connections. */
+    private final Thread acceptor;
+
+    /**
+     * Binds a node server for the given library to a local port. Connections
+     * are only accepted once the server is started.
+     *
+     * @param library the library of the node
+     * @param port    the port to listen on, or 0 for any free port
+     * @throws LibraryException if the port cannot be bound
+     */
+    public LibraryNodeServer(LibraryService library, int port) throws LibraryException {
+        this.library = library;
+        try {
+            this.serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            throw new LibraryException("Could not listen on port " + port + ": " + e.getMessage());
+        }
+        this.console = ThreadRoutedPrintStream.install();
+        this.connections = VirtualThreads.newPerTaskExecutor("library-node-connection");
+        this.acceptor = new Thread(this::acceptLoop, "library-node-server");
+        acceptor.setDaemon(true);
+    }
+
+    /** Starts accepting connections. */
+    public void start() {
+        acceptor.start();
+    }
+
+    /** @return the port the server listens on */
+    public int getPort() { return serverSocket.getLocalPort(); }
+
+    /**
+     * Stops accepting connections and closes the open ones, waiting for the
+     * requests being executed to complete.
+     */
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket that cannot be closed
+        }
+        for (Socket socket : open) closeQuietly(socket);
+        connections.shutdown();
+        try {
+            connections.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Accepts connections until the server socket is closed. */
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                open.add(socket);
+                connections.execute(() -> serve(socket));
+            } catch (SocketException e) {
+                // The server socket was closed
+            } catch (IOException e) {
+                library.logEvent("Could not accept connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serves one connection: executes each request received and replies to
+     * it, until the router disconnects.
+     */
+    private void serve(Socket socket) {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream output = new PrintStream(captured, false, StandardCharsets.UTF_8);
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+            console.route(output);
+            while (true) {
+                NodeOperation op = NodeProtocol.readOperation(in);
+                String[] args = NodeProtocol.readStrings(in);
+                String[] values = new String[0];
+                String error = null;
+                try {
+                    if (op == null) throw new LibraryException("Unknown node operation.");
+                    values = execute(op, args);
+                } catch (LibraryException e) {
+                    error = e.getMessage();
+                } catch (RuntimeException e) {
+                    error = "Invalid request " + op + ": " + e;
+                }
+                output.flush();
+                NodeProtocol.writeReply(out, captured.toString(StandardCharsets.UTF_8), error, values);
+                captured.reset();
+                if (in.available() == 0) out.flush();
+            }
+        } catch (IOException e) {
+            // The router disconnected
+        } finally {
+            console.unroute();
+            open.remove(socket);
+        }
+    }
+
+    /**
+     * Executes one request on the library.
+     *
+     * @param op   the operation requested
+     * @param args the arguments of the operation
+     * @return the values to reply
+     * @throws LibraryException if the operation fails
+     */
+    private String[] execute(NodeOperation op, String[] args) throws LibraryException {
+        LibraryListWithPI<String> values = new SLLLibraryListWithPI<>();
+        switch (op) {
+            case ADD_USER -> library.addUser(args[0]);
+            case REMOVE_USER -> library.removeUser(args[0]);
+            case SET_ROLE -> library.setRole(args[0], args[1]);
+            case LIST_USERS -> values.insert(Long.toString(
+                    library.listUsers(Long.parseLong(args[0]), Integer.parseInt(args[1]))));
+            case VISIT_USERS -> {
+                values.insert("");
+                long next = library.visitUsers(Long.parseLong(args[0]), Integer.parseInt(args[1]), user -> {
+                    values.insert(user.getName());
+                    values.insert(user.getCreationDate());
+                    values.insert(user.getRole().name());
+                });
+                return withCursor(values, next);
+            }
+            case ADD_BOOK -> library.addBook(args[0], args[1]);
+            case ADD_COPIES -> values.insert(Integer.toString(library.addCopies(args[0], Integer.parseInt(args[1]))));
+            case REMOVE_BOOK -> library.removeBook(args[0], args[1]);
+            case VISIT_BOOKS -> {
+                values.insert("");
+                long next = library.visitBooks(Long.parseLong(args[0]), Integer.parseInt(args[1]), book -> {
+                    values.insert(book.getTitle());
+                    if (book instanceof PBook pBook) {
+                        values.insert(BookFormat.PHYSICAL.name());
+                        values.insert(Integer.toString(pBook.getTotalCopies()));
+                        values.insert(Integer.toString(pBook.getAvailableCopies()));
+                        values.insert(Integer.toString(pBook.getReservedCopies()));
+                    } else {
+                        values.insert(BookFormat.DIGITAL.name());
+                        values.insert("1");
+                        values.insert("1");
+                        values.insert("0");
+                    }
+                });
+                return withCursor(values, next);
+            }
+            case FORMATS_OF -> {
+                for (BookFormat format : library.formatsOf(args[0])) values.insert(format.name());
+            }
+            case SHOW_WAITING_LIST -> library.showWaitingList(args[0]);
+            case VISIT_WAITING_LIST -> library.visitWaitingList(args[0], user -> {
+                values.insert(user.getName());
+                values.insert(user.getCreationDate());
+                values.insert(user.getRole().name());
+            });
+            case RESERVE -> library.reserve(args[0]);
+            case VACATE -> library.vacate(args[0]);
+            case PLACE_HOLD -> library.placeHold(args[0], args[1], Long.parseLong(args[2]));
+            case CANCEL_HOLD -> library.cancelHold(args[0], args[1]);
+            case LEND_BOOK -> writeOutcome(values, library.lendBook(args[0], args[1], args[2]));
+            case RETURN_BOOK -> writeOutcome(values, library.returnBook(args[0], args[1], args[2]));
+            case LEND_TO_USERS -> {
+                LibraryListWithPI<String> names = new SLLLibraryListWithPI<>();
+                for (int i = 2; i < args.length; i++) names.insert(args[i]);
+                values.insert(Integer.toString(library.lendToUsers(args[0], args[1], names)));
+            }
+            case VISIT_LOANS -> {
+                values.insert("");
+                long next = library.visitLoans(Long.parseLong(args[0]), Integer.parseInt(args[1]), (user, book) -> {
+                    values.insert(user.getName());
+                    values.insert(book.getTitle());
+                    values.insert(book instanceof PBook ? BookFormat.PHYSICAL.name() : BookFormat.DIGITAL.name());
+                });
+                return withCursor(values, next);
+            }
+            case VISIT_OVERDUE_LOANS -> {
+                values.insert("");
+                long next = library.visitOverdueLoans(Long.parseLong(args[0]), Integer.parseInt(args[1]), loan -> {
+                    values.insert(loan.getUser().getName());
+                    values.insert(loan.getBook().getTitle());
+                    values.insert(loan.getBook() instanceof PBook ? BookFormat.PHYSICAL.name() : BookFormat.DIGITAL.name());
+                    values.insert(Long.toString(loan.getDueDate()));
+                });
+                return withCursor(values, next);
+            }
+            case TOP_TITLES -> {
+                for (TitleCount top : library.topTitles(PopularityMetric.valueOf(args[0]), Integer.parseInt(args[1]))) {
+                    values.insert(top.getTitle());
+                    values.insert(Long.toString(top.getCount()));
+                    values.insert(Long.toString(top.getError()));
+                }
+            }
+            case ESTIMATE_POPULARITY -> values.insert(Long.toString(
+                    library.estimatePopularity(PopularityMetric.valueOf(args[0]), args[1])));
+            case EXECUTE_BATCH -> library.executeBatch(decodeBatch(args));
+            case SHOW_EVENT_HISTORY -> values.insert(Long.toString(
+                    library.showEventHistory(Long.parseLong(args[0]), Integer.parseInt(args[1]))));
+            case IMPORT_USERS -> library.importUsers(args[0]);
+            case IMPORT_BOOKS -> library.importBooks(args[0]);
+            case CHECKPOINT -> library.checkpoint();
+            case EXPORT_TITLES -> {
+                for (TitleRecord record : library.exportTitles(leaving(args))) record.writeTo(values);
+            }
+            case IMPORT_TITLES -> {
+                LibraryListWithPI<TitleRecord> records = new SLLLibraryListWithPI<>();
+                Iterator<String> fields = Arrays.asList(args).iterator();
+                while (fields.hasNext()) records.insert(TitleRecord.readFrom(fields));
+                library.importTitles(records);
+            }
+            case DROP_TITLES -> values.insert(Integer.toString(library.dropTitles(leaving(args))));
+        }
+        return toArray(values);
+    }
+
+    /**
+     * Tells which titles leave this node under a new membership.
+     *
+     * @param args the address of this node, followed by the addresses of the members
+     * @return whether a title is owned by another node of the new membership
+     */
+    private static Predicate<String> leaving(String[] args) {
+        String self = args[0];
+        HashRing ring = new HashRing(Arrays.copyOfRange(args, 1, args.length));
+        return title -> !ring.ownerOf(title).equals(self);
+    }
+
+    /**
+     * Decodes the operations of a batch request: for each operation, its
+     * name, its number of arguments and its arguments.
+     */
+    private static LibraryListWithPI<BatchOperation> decodeBatch(String[] args) throws LibraryException {
+        LibraryListWithPI<BatchOperation> operations = new SLLLibraryListWithPI<>();
+        int i = 0;
+        while (i < args.length) {
+            LogOperation operation = LogOperation.valueOf(args[i]);
+            int count = Integer.parseInt(args[i + 1]);
+            operations.insert(new BatchOperation(operation, Arrays.copyOfRange(args, i + 2, i + 2 + count)));
+            i += 2 + count;
+        }
+        return operations;
+    }
+
+    /** Appends the fields of a loan outcome, if any. */
+    private static void writeOutcome(LibraryListWithPI<String> values, LoanOutcome outcome) {
+        if (outcome == null) return;
+        values.insert(outcome.getName());
+        values.insert(outcome.getTitle());
+        values.insert(outcome.getFormat().name());
+        values.insert(Integer.toString(outcome.getQueuePosition()));
+    }
+
+    /** Converts listed values whose first placeholder is the continuation cursor. */
+    private static String[] withCursor(LibraryListWithPI<String> values, long next) {
+        String[] array = toArray(values);
+        array[0] = Long.toString(next);
+        return array;
+    }
+
+    /** Copies a list of values into an array. */
+    private static String[] toArray(LibraryListWithPI<String> values) {
+        String[] array = new String[values.size()];
+        int i = 0;
+        for (String value : values) array[i++] = value;
+        return array;
+    }
+
+    /** Closes a socket, ignoring failures. */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket that cannot be closed
+        }
+    }
+}
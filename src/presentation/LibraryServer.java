@@ -0,0 +1,170 @@
+package presentation;
+
+import application.service.ILibraryService;
+import common.LibraryException;
+import common.ThreadRoutedPrintStream;
+import common.VirtualThreads;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server accepting local socket connections that speak the command language
+ * of the console, all operating on one shared library.
+ * <p>
+ * Each connection is served on its own thread, virtual if the runtime
+ * provides them, see {@link VirtualThreads}. A connection sends lines of
+ * {@code ;}-separated commands and receives the same output the console
+ * would print, each answer followed by a {@code "> "} prompt. Commands may
+ * be pipelined: answers are buffered and only flushed once every line
+ * already received has been executed, so a batch of commands costs one
+ * write. An exit command closes the connection, not the library.
+ * <p>
+ * The server only listens on the loopback interface.
+ */
+public class LibraryServer implements AutoCloseable {
+
+    /** Default port of the server. */
+    public static final int DEFAULT_PORT = 7070;
+
+    /** Size of the input and output buffers of each connection. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Library shared by every connection. */
+    private final ILibraryService library;
+
+    /** Socket accepting the connections. */
+    private final ServerSocket serverSocket;
+
+    /** Runs one task per connection. */
+    private final ExecutorService connections;
+
+    /** Console output, routed to the connection of each serving thread. */
+    private final ThreadRoutedPrintStream console;
+
+    /** Connections currently open, closed when the server stops. */
+    private final Set<Socket> open = ConcurrentHashMap.newKeySet();
+
+    /** Thread accepting the connections. */
+    private final Thread acceptor;
+
+    /**
+     * Binds a server for the given library to a local port. Connections are
+     * only accepted once the server is started.
+     *
+     * @param library the library shared by every connection
+     * @param port    the port to listen on, or 0 for any free port
+     * @throws LibraryException if the port cannot be bound
+     */
+    public LibraryServer(ILibraryService library, int port) throws LibraryException {
+        this.library = library;
+        try {
+            this.serverSocket = new ServerSocket();
+            serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        } catch (IOException e) {
+            throw new LibraryException("Could not listen on port " + port + ": " + e.getMessage());
+        }
+        this.console = ThreadRoutedPrintStream.install();
+        this.connections = VirtualThreads.newPerTaskExecutor("library-connection");
+        this.acceptor = new Thread(this::acceptLoop, "library-server");
+        acceptor.setDaemon(true);
+    }
+
+    /** Starts accepting connections. */
+    public void start() {
+        acceptor.start();
+    }
+
+    /** @return the port the server listens on */
+    public int getPort() { return serverSocket.getLocalPort(); }
+
+    /**
+     * Stops accepting connections and closes the open ones, waiting for the
+     * commands being executed to complete.
+     */
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket that cannot be closed
+        }
+        for (Socket socket : open) closeQuietly(socket);
+        connections.shutdown();
+        try {
+            connections.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Accepts connections until the server socket is closed. */
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                open.add(socket);
+                connections.execute(() -> serve(socket));
+            } catch (SocketException e) {
+                // The server socket was closed
+            } catch (IOException e) {
+                library.logEvent("Could not accept connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serves one connection: executes each line received and answers it,
+     * until the client exits or disconnects.
+     */
+    private void serve(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8), BUFFER_SIZE);
+             PrintStream out = new PrintStream(
+                     new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE), false, StandardCharsets.UTF_8)) {
+            console.route(out);
+            CommandInterpreter interpreter = new CommandInterpreter(library, in);
+            out.println("Welcome to the Library. Type 'help' to see the available commands.");
+            out.print("\n> ");
+            out.flush();
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!interpreter.execute(line.trim())) break;
+                out.print("\n> ");
+                // Answer pipelined commands together, once every line received is executed
+                if (!in.ready()) out.flush();
+            }
+            out.flush();
+        } catch (IOException e) {
+            // The client disconnected
+        } finally {
+            console.unroute();
+            open.remove(socket);
+        }
+    }
+
+    /** Closes a socket, ignoring failures. */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do with a socket that cannot be closed
+        }
+    }
+}